@@ -6,7 +6,6 @@ import android.support.v4.content.LocalBroadcastManager;
 
 import edu.umass.cs.prepare.constants.Constants;
 import edu.umass.cs.shared.communication.BroadcastInterface;
-import edu.umass.cs.shared.communication.DataLayerUtil;
 import edu.umass.cs.shared.constants.SharedConstants;
 
 /**
@@ -14,7 +13,8 @@ import edu.umass.cs.shared.constants.SharedConstants;
  * e.g. the service started/stopped.
  * <br><br>
  * This specific implementation simply broadcasts a message via an {@link Intent} for other
- * application components to receive.
+ * application components to receive. Sensor data is instead published on the
+ * {@link edu.umass.cs.shared.communication.SensorEventBus SensorEventBus}.
  *
  * @author Sean Noran
  * @affiliation University of Massachusetts Amherst
@@ -32,24 +32,6 @@ public class Broadcaster implements BroadcastInterface {
         this.context = context;
     }
 
-    /**
-     * Broadcasts sensor data to send to other mobile application components.
-     * @param context the context from which the sensor data is sent.
-     * @param sensorType the type of sensor, corresponding to the Sensor class constants, i.e. Sensor.TYPE_ACCELEROMETER
-     * @param timestamps list of timestamps corresponding to sensor events
-     * @param values list of sensor readings
-     */
-    public static void broadcastSensorData(Context context, SharedConstants.SENSOR_TYPE sensorType, long[] timestamps, float[] values){
-        Intent intent = new Intent();
-        DataLayerUtil.serialize(sensorType).to(intent);
-        intent.putExtra(Constants.KEY.SENSOR_TYPE, sensorType);
-        intent.putExtra(Constants.KEY.SENSOR_DATA, values);
-        intent.putExtra(Constants.KEY.TIMESTAMP, timestamps);
-        intent.setAction(Constants.ACTION.BROADCAST_SENSOR_DATA);
-        LocalBroadcastManager manager = LocalBroadcastManager.getInstance(context);
-        manager.sendBroadcast(intent);
-    }
-
     /**
      * Broadcasts a message to send to other mobile application components.
      * @param context the context from which the message is sent.
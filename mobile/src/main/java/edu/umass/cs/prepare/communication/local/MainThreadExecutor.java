@@ -0,0 +1,38 @@
+package edu.umass.cs.prepare.communication.local;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+
+import edu.umass.cs.shared.communication.SensorEventBus;
+
+/**
+ * Executes tasks on the main thread of the application, e.g. so that views may subscribe to
+ * the {@link SensorEventBus} and update themselves directly.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ *
+ * @see SensorEventBus
+ */
+public class MainThreadExecutor implements Executor {
+
+    private static MainThreadExecutor instance;
+
+    /** Posts tasks to the main thread's message queue. **/
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    public static synchronized MainThreadExecutor getInstance() {
+        if (instance == null)
+            instance = new MainThreadExecutor();
+        return instance;
+    }
+
+    private MainThreadExecutor() {}
+
+    @Override
+    public void execute(Runnable task) {
+        handler.post(task);
+    }
+}
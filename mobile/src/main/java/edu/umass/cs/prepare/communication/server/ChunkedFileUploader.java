@@ -0,0 +1,239 @@
+package edu.umass.cs.prepare.communication.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Uploads completed files, e.g. sensor segments, manifests and videos, to the server in
+ * fixed-size chunks, each protected by a CRC-32 checksum. The server acknowledges every chunk
+ * with the number of bytes of the file it holds, so that an interrupted upload resumes from the
+ * last acknowledged offset, and a corrupted chunk is sent again. The acknowledged offsets are
+ * persisted in the {@link FileUploadProgress}.
+ * <br><br>
+ * The protocol is a simple request-response exchange over TCP, with all integers big-endian:
+ * <pre>
+ * connection: "PRUP", version (byte)
+ * client:     OPEN (byte 1), subject ID (int), file name (UTF), file length (long)
+ * server:     offset (long), the number of bytes of the file it already holds
+ * client:     CHUNK (byte 2), offset (long), length (int), CRC-32 (int), data
+ * server:     offset (long), offset + length if the chunk was stored, otherwise unchanged
+ * ...
+ * client:     CLOSE (byte 0)
+ * </pre>
+ * If the server holds more bytes than the announced length, e.g. because a torn row was trimmed
+ * from the file after an earlier upload, it discards its copy and replies with 0.
+ * <br><br>
+ * An uploader is not thread-safe; uploads block and should run on a background thread.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ */
+public class ChunkedFileUploader {
+
+    /** Identifies the protocol at the start of a connection. **/
+    static final byte[] MAGIC = {'P', 'R', 'U', 'P'};
+
+    /** The version of the protocol. **/
+    static final byte VERSION = 1;
+
+    static final byte CLOSE = 0;
+
+    static final byte OPEN = 1;
+
+    static final byte CHUNK = 2;
+
+    /** The default number of bytes per chunk. **/
+    public static final int DEFAULT_CHUNK_SIZE = 512 * 1024;
+
+    /** The number of times a chunk is sent again before the upload fails. **/
+    private static final int MAX_CHUNK_FAILURES = 3;
+
+    /** The number of acknowledged chunks after which the progress is saved. **/
+    private static final int PROGRESS_SAVE_INTERVAL_CHUNKS = 16;
+
+    /** The time in milliseconds after which a connection attempt fails. **/
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+
+    /** The time in milliseconds to wait for an acknowledgement. **/
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+
+    /**
+     * Decides whether uploading may continue, e.g. whether the device is still on an
+     * unmetered network or charging. Checked before every chunk.
+     */
+    public interface Condition {
+        boolean isSatisfied();
+    }
+
+    private final String host;
+
+    private final int port;
+
+    private final int subjectId;
+
+    private final FileUploadProgress progress;
+
+    /** Holds the chunk being sent. **/
+    private final byte[] chunk;
+
+    private final CRC32 crc = new CRC32();
+
+    /** The number of bytes sent and the number of chunks sent again, for statistics. **/
+    private long bytesSent = 0, chunksResent = 0;
+
+    /**
+     * Instantiates an uploader.
+     * @param host the host name or IP address of the server
+     * @param port the port of the server
+     * @param subjectId the subject ID, under which the server stores the files
+     * @param progress the persisted upload progress
+     * @param chunkSize the number of bytes per chunk
+     */
+    public ChunkedFileUploader(String host, int port, int subjectId, FileUploadProgress progress, int chunkSize) {
+        this.host = host;
+        this.port = port;
+        this.subjectId = subjectId;
+        this.progress = progress;
+        this.chunk = new byte[chunkSize];
+    }
+
+    /**
+     * Uploads the given files in order over a single connection, skipping those already
+     * uploaded. Uploading stops early once the condition is no longer satisfied; the progress
+     * is saved in any case.
+     * @param files the files
+     * @param condition decides whether uploading may continue
+     * @return the number of files which are now completely uploaded
+     * @throws IOException if the connection fails or the server rejects a chunk repeatedly
+     */
+    public int upload(List<File> files, Condition condition) throws IOException {
+        int uploaded = 0;
+        Socket socket = null;
+        DataOutputStream out = null;
+        DataInputStream in = null;
+        try {
+            for (File file : files) {
+                if (progress.isUploaded(file)) {
+                    uploaded++;
+                    continue;
+                }
+                if (!condition.isSatisfied())
+                    break;
+                if (socket == null) {
+                    socket = open();
+                    out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                }
+                if (!upload(file, out, in, condition))
+                    break;
+                uploaded++;
+            }
+            if (out != null) {
+                out.writeByte(CLOSE);
+                out.flush();
+            }
+        } finally {
+            if (socket != null)
+                socket.close();
+            progress.save();
+        }
+        return uploaded;
+    }
+
+    private Socket open() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Uploads a single file, starting at the offset the server already holds.
+     * @return true if the file was uploaded completely, false if the condition was no longer satisfied
+     */
+    private boolean upload(File file, DataOutputStream out, DataInputStream in, Condition condition) throws IOException {
+        long length = file.length();
+        out.writeByte(OPEN);
+        out.writeInt(subjectId);
+        out.writeUTF(file.getName());
+        out.writeLong(length);
+        out.flush();
+        long offset = in.readLong();
+        if (offset < 0 || offset > length)
+            throw new IOException("Invalid offset " + offset + " for " + file.getName());
+        progress.setOffset(file, offset);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            int failures = 0, chunks = 0;
+            while (offset < length) {
+                if (!condition.isSatisfied())
+                    return false;
+                int n = (int) Math.min(chunk.length, length - offset);
+                raf.seek(offset);
+                raf.readFully(chunk, 0, n);
+                crc.reset();
+                crc.update(chunk, 0, n);
+                out.writeByte(CHUNK);
+                out.writeLong(offset);
+                out.writeInt(n);
+                out.writeInt((int) crc.getValue());
+                out.write(chunk, 0, n);
+                out.flush();
+                bytesSent += n;
+
+                long acknowledged = in.readLong();
+                if (acknowledged == offset + n) {
+                    offset = acknowledged;
+                    failures = 0;
+                    progress.setOffset(file, offset);
+                    if (++chunks % PROGRESS_SAVE_INTERVAL_CHUNKS == 0)
+                        progress.save();
+                } else if (acknowledged >= 0 && acknowledged <= length && ++failures <= MAX_CHUNK_FAILURES) {
+                    offset = acknowledged; // send again from the server's offset
+                    chunksResent++;
+                } else {
+                    throw new IOException("Chunk at " + offset + " of " + file.getName() + " rejected");
+                }
+            }
+        } finally {
+            raf.close();
+        }
+        progress.setOffset(file, length);
+        progress.save();
+        return true;
+    }
+
+    /** Returns the number of bytes sent, including chunks sent again. **/
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /** Returns the number of chunks sent again because the server did not store them. **/
+    public long getChunksResent() {
+        return chunksResent;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "file uploader: sent %d bytes, resent %d chunks", bytesSent, chunksResent);
+    }
+}
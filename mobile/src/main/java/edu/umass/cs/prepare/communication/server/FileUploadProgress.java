@@ -0,0 +1,115 @@
+package edu.umass.cs.prepare.communication.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import edu.umass.cs.prepare.storage.StorageManager;
+
+/**
+ * Persists how much of each file has been acknowledged by the upload server, so that an
+ * interrupted upload can resume and completed files are not uploaded again. A file counts as
+ * uploaded once all of its current bytes have been acknowledged; if it is appended to later,
+ * e.g. when an interrupted session is continued, the upload resumes with the new bytes. The
+ * {@link StorageManager} uses this to delete uploaded files first.
+ * <br><br>
+ * The progress is a properties file mapping file paths to acknowledged offsets. It is replaced
+ * atomically on every {@link #save()}.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ *
+ * @see ChunkedFileUploader
+ */
+public class FileUploadProgress implements StorageManager.UploadStatus {
+
+    /** The progress file. **/
+    private final File progressFile;
+
+    /** Mapping from file paths to acknowledged offsets. **/
+    private final Properties offsets = new Properties();
+
+    /** Indicates whether the offsets changed since they were last saved. **/
+    private boolean dirty = false;
+
+    /**
+     * Opens the upload progress, reading the offsets saved previously.
+     * @param progressFile the progress file, which need not exist
+     */
+    public FileUploadProgress(File progressFile) {
+        this.progressFile = progressFile;
+        if (progressFile.exists()) {
+            try {
+                FileInputStream in = new FileInputStream(progressFile);
+                try {
+                    offsets.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                e.printStackTrace();
+                offsets.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes of a file acknowledged by the server.
+     * @param file the file
+     * @return the acknowledged offset, 0 if the file has not been uploaded
+     */
+    public synchronized long getOffset(File file) {
+        String offset = offsets.getProperty(file.getAbsolutePath());
+        if (offset == null)
+            return 0;
+        try {
+            return Long.parseLong(offset);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Records the number of bytes of a file acknowledged by the server.
+     * @param file the file
+     * @param offset the acknowledged offset
+     */
+    public synchronized void setOffset(File file, long offset) {
+        offsets.setProperty(file.getAbsolutePath(), String.valueOf(offset));
+        dirty = true;
+    }
+
+    @Override
+    public synchronized boolean isUploaded(File file) {
+        return offsets.containsKey(file.getAbsolutePath()) && getOffset(file) >= file.length();
+    }
+
+    /**
+     * Writes the offsets to the progress file if they have changed, forgetting files which
+     * no longer exist.
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void save() throws IOException {
+        for (String path : offsets.stringPropertyNames()) {
+            if (!new File(path).exists()) {
+                offsets.remove(path);
+                dirty = true;
+            }
+        }
+        if (!dirty)
+            return;
+        File temp = new File(progressFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            offsets.store(out, null);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(progressFile))
+            throw new IOException("Could not replace " + progressFile);
+        dirty = false;
+    }
+}
@@ -0,0 +1,120 @@
+package edu.umass.cs.prepare.communication.server;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import edu.umass.cs.prepare.storage.DataWriterService;
+import edu.umass.cs.prepare.storage.StorageManager;
+import edu.umass.cs.shared.constants.SharedConstants;
+import edu.umass.cs.shared.preferences.ApplicationPreferences;
+
+/**
+ * Uploads the completed files in the save directory to the server in the background, using the
+ * {@link ChunkedFileUploader}. Uploading only takes place while the device is connected to an
+ * unmetered network or charging, and stops as soon as neither is the case; an interrupted upload
+ * resumes from the last acknowledged offset the next time the service is started.
+ * <br><br>
+ * The service is started whenever a file is completed and by the {@link UploadConditionsReceiver}
+ * when the device is plugged in or its connectivity changes.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ */
+public class FileUploadService extends IntentService {
+
+    @SuppressWarnings("unused")
+    /** used for debugging purposes */
+    private static final String TAG = FileUploadService.class.getName();
+
+    /** The name of the file in the application's private directory holding the upload progress. **/
+    private static final String PROGRESS_FILENAME = "upload-progress.properties";
+
+    private static FileUploadProgress progress;
+
+    private final StorageManager storageManager = StorageManager.getInstance();
+
+    public FileUploadService() {
+        super(FileUploadService.class.getName());
+    }
+
+    /**
+     * Returns the persisted upload progress, which is shared by the service and the
+     * {@link StorageManager}.
+     * @param context the application context
+     * @return the upload progress
+     */
+    public static synchronized FileUploadProgress getProgress(Context context) {
+        if (progress == null)
+            progress = new FileUploadProgress(new File(context.getFilesDir(), PROGRESS_FILENAME));
+        return progress;
+    }
+
+    /**
+     * Starts uploading the completed files if the server is enabled in the application preferences.
+     * @param context the context from which the service is started
+     */
+    public static void start(Context context) {
+        if (ApplicationPreferences.getInstance(context).writeServer())
+            context.startService(new Intent(context, FileUploadService.class));
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        ApplicationPreferences applicationPreferences = ApplicationPreferences.getInstance(this);
+        if (!applicationPreferences.writeServer() || !mayUpload())
+            return;
+        DataWriterService.configureStorageManager(storageManager, applicationPreferences);
+        List<File> files = storageManager.getCompletedFiles();
+        if (files.isEmpty())
+            return;
+        // the files must not be deleted by the storage manager while they are read
+        for (File file : files) {
+            storageManager.protect(file);
+        }
+        ChunkedFileUploader uploader = new ChunkedFileUploader(applicationPreferences.getIpAddress(),
+                SharedConstants.FILE_UPLOAD_PORT, applicationPreferences.getSubjectID(), getProgress(this),
+                ChunkedFileUploader.DEFAULT_CHUNK_SIZE);
+        try {
+            int uploaded = uploader.upload(files, new ChunkedFileUploader.Condition() {
+                @Override
+                public boolean isSatisfied() {
+                    return mayUpload();
+                }
+            });
+            Log.d(TAG, "uploaded " + uploaded + " of " + files.size() + " files");
+        } catch (IOException e) {
+            Log.d(TAG, "upload interrupted: " + e.getMessage());
+        } finally {
+            for (File file : files) {
+                storageManager.release(file);
+            }
+            Log.d(TAG, uploader.toString());
+        }
+        storageManager.requestCheck();
+    }
+
+    /**
+     * Indicates whether files may be uploaded, i.e. whether the device is connected to an
+     * unmetered network, or connected to any network and charging.
+     */
+    private boolean mayUpload() {
+        ConnectivityManager connectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        if (networkInfo == null || !networkInfo.isConnected())
+            return false;
+        if (!connectivityManager.isActiveNetworkMetered())
+            return true;
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+}
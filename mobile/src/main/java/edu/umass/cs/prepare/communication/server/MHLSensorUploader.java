@@ -0,0 +1,154 @@
+package edu.umass.cs.prepare.communication.server;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import edu.umass.cs.prepare.MHLClient.MHLConnectionStateHandler;
+import edu.umass.cs.prepare.MHLClient.MHLMobileIOClient;
+import edu.umass.cs.prepare.MHLClient.MHLSensorReadings.MHLSensorReading;
+import edu.umass.cs.shared.communication.SendPipeline;
+import edu.umass.cs.shared.constants.SharedConstants;
+
+/**
+ * Streams sensor data to the server through the {@link MHLMobileIOClient}, i.e. in the
+ * per-reading format understood by the server as deployed. Each batch is queued once in a
+ * {@link SendPipeline}, and its writer thread hands the readings of the batch to the client one
+ * after another, so that the thread handing over the batches, which also writes the local files,
+ * never waits, and readings are no longer delayed by a fixed pause after each of them. Once the
+ * bounded queue is full, the oldest batches are dropped.
+ * <br><br>
+ * As before, nothing is sent once the client reports that the server could not be reached.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ */
+public class MHLSensorUploader implements SensorUploader {
+
+    @SuppressWarnings("unused")
+    /** used for debugging purposes */
+    private static final String TAG = MHLSensorUploader.class.getName();
+
+    /** The maximum number of batches waiting to be handed to the client. **/
+    private static final int DEFAULT_CAPACITY = 512;
+
+    /** Sends the readings to the server. **/
+    private final MHLMobileIOClient client;
+
+    /** Delivers the batches in order on a dedicated thread. **/
+    private final SendPipeline pipeline;
+
+    /** Batches whose arrays may be reused. **/
+    private final ConcurrentLinkedQueue<Batch> pool = new ConcurrentLinkedQueue<>();
+
+    private volatile ConnectionStateListener listener;
+
+    /** Indicates whether the server could not be reached, in which case batches are no longer queued. **/
+    private volatile boolean connectionFailed = false;
+
+    /**
+     * Instantiates an uploader for the given server.
+     * @param host the host name or IP address of the server
+     * @param port the port of the server
+     * @param subjectId the subject ID, sent with every reading
+     */
+    public MHLSensorUploader(String host, int port, int subjectId) {
+        this.client = new MHLMobileIOClient(host, port, subjectId);
+        this.client.setConnectionStateHandler(new MHLConnectionStateHandler() {
+            @Override
+            public void onConnected() {
+                ConnectionStateListener listener = MHLSensorUploader.this.listener;
+                if (listener != null)
+                    listener.onConnected();
+            }
+
+            @Override
+            public void onConnectionFailed() {
+                connectionFailed = true;
+                ConnectionStateListener listener = MHLSensorUploader.this.listener;
+                if (listener != null)
+                    listener.onConnectionFailed();
+            }
+        });
+        this.pipeline = new SendPipeline("MHLSensorUploader", DEFAULT_CAPACITY, SendPipeline.OverflowPolicy.DROP_OLDEST, 0, 0);
+    }
+
+    /**
+     * A batch of sensor readings waiting to be handed to the client. The arrays are recycled
+     * through the {@link #pool} once the batch is sent or dropped.
+     */
+    private class Batch implements SendPipeline.Task {
+        private SharedConstants.SENSOR_TYPE sensorType;
+        private long[] timestamps = new long[0];
+        private float[] values = new float[0];
+        private int count;
+        private int nDimensions;
+
+        private void set(SharedConstants.SENSOR_TYPE sensorType, long[] timestamps, float[] values, int count, int nDimensions) {
+            if (this.timestamps.length < count)
+                this.timestamps = new long[count];
+            if (this.values.length < count * nDimensions)
+                this.values = new float[count * nDimensions];
+            System.arraycopy(timestamps, 0, this.timestamps, 0, count);
+            System.arraycopy(values, 0, this.values, 0, count * nDimensions);
+            this.sensorType = sensorType;
+            this.count = count;
+            this.nDimensions = nDimensions;
+        }
+
+        @Override
+        public boolean send() {
+            for (int i = 0; i < count; i++) {
+                // the client queues the reading, so it needs its own array
+                float[] reading = Arrays.copyOfRange(values, i * nDimensions, (i + 1) * nDimensions);
+                client.addSensorReading(MHLSensorReading.getReading(sensorType, timestamps[i], reading));
+            }
+            pool.offer(this);
+            return true;
+        }
+
+        @Override
+        public void discard() {
+            pool.offer(this);
+        }
+
+        @Override
+        public Object getKey() {
+            return null;
+        }
+    }
+
+    @Override
+    public void setConnectionStateListener(ConnectionStateListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void connect() {
+        client.connect();
+    }
+
+    @Override
+    public boolean upload(SharedConstants.SENSOR_TYPE sensorType, long[] timestamps, float[] values, int count, int nDimensions) {
+        if (count == 0 || connectionFailed)
+            return false;
+        Batch batch = pool.poll();
+        if (batch == null)
+            batch = new Batch();
+        batch.set(sensorType, timestamps, values, count, nDimensions);
+        return pipeline.submit(batch);
+    }
+
+    /**
+     * Hands the remaining batches to the client, waiting at most the given time. The client
+     * itself offers no way to close its connection, so readings it has queued are still sent.
+     */
+    @Override
+    public void disconnect(long timeoutMillis) {
+        pipeline.stop(timeoutMillis);
+    }
+
+    @Override
+    public String toString() {
+        return pipeline.toString();
+    }
+}
@@ -0,0 +1,61 @@
+package edu.umass.cs.prepare.communication.server;
+
+import java.util.Random;
+
+/**
+ * Computes the delays between consecutive attempts to reconnect to the server. The delay doubles
+ * with every failed attempt up to a maximum, and half of it is randomized, so that phones which
+ * lost the connection at the same time, e.g. when the Wi-Fi access point dropped out, do not all
+ * reconnect at the same time. Not thread-safe.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ */
+class ReconnectBackoff {
+
+    /** The delay in milliseconds after the first failed attempt, before randomization. **/
+    private final long initialDelayMillis;
+
+    /** The maximum delay in milliseconds, before randomization. **/
+    private final long maxDelayMillis;
+
+    private final Random random;
+
+    /** The number of failed attempts since the last successful connection. **/
+    private int failures = 0;
+
+    ReconnectBackoff(long initialDelayMillis, long maxDelayMillis) {
+        this(initialDelayMillis, maxDelayMillis, new Random());
+    }
+
+    ReconnectBackoff(long initialDelayMillis, long maxDelayMillis, Random random) {
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = Math.max(initialDelayMillis, maxDelayMillis);
+        this.random = random;
+    }
+
+    /**
+     * Records a failed attempt and returns the time to wait before the next one.
+     * @return a delay in milliseconds between half and all of the current backoff
+     */
+    long nextDelayMillis() {
+        long delay = maxDelayMillis;
+        if (failures < 62 && initialDelayMillis <= maxDelayMillis >> failures)
+            delay = initialDelayMillis << failures;
+        failures++;
+        long half = delay / 2;
+        return delay - half + (long) (random.nextDouble() * (half + 1));
+    }
+
+    /**
+     * Records a successful connection, so that the next failure starts with the initial delay.
+     */
+    void reset() {
+        failures = 0;
+    }
+
+    /** Returns the number of failed attempts since the last successful connection. **/
+    int getFailures() {
+        return failures;
+    }
+}
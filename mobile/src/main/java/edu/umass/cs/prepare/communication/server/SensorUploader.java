@@ -0,0 +1,55 @@
+package edu.umass.cs.prepare.communication.server;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+
+/**
+ * A Sensor Uploader streams sensor data to the server. Whole batches are handed to the uploader
+ * at once, e.g. by the {@link edu.umass.cs.prepare.storage.DataWriterService}, and are sent on a
+ * dedicated thread, so that the caller never waits for the network.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ */
+public interface SensorUploader {
+
+    /**
+     * Receives changes in the state of the server connection. Callbacks are made on the thread
+     * that sends the data.
+     */
+    interface ConnectionStateListener {
+        /** Called when the connection to the server has been established. **/
+        void onConnected();
+
+        /** Called when the server could not be reached. **/
+        void onConnectionFailed();
+    }
+
+    /**
+     * Sets the listener that is notified of changes in the connection state.
+     * @param listener the listener, null to remove it
+     */
+    void setConnectionStateListener(ConnectionStateListener listener);
+
+    /**
+     * Connects to the server in the background.
+     */
+    void connect();
+
+    /**
+     * Queues a batch of sensor readings to be sent to the server. The data is copied, so the
+     * arrays may be reused once the call returns. This does not block.
+     * @param sensorType the sensor type
+     * @param timestamps the timestamps of the readings
+     * @param values the readings, [nDimensions x count] values in sequential order
+     * @param count the number of readings
+     * @param nDimensions the number of values per reading
+     * @return true if the batch was queued, false if it was dropped
+     */
+    boolean upload(SharedConstants.SENSOR_TYPE sensorType, long[] timestamps, float[] values, int count, int nDimensions);
+
+    /**
+     * Sends the remaining batches and closes the connection, waiting at most the given time.
+     * @param timeoutMillis the maximum time in milliseconds to wait for queued batches to be sent, 0 to wait indefinitely
+     */
+    void disconnect(long timeoutMillis);
+}
@@ -0,0 +1,702 @@
+package edu.umass.cs.prepare.communication.server;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import edu.umass.cs.shared.communication.SendPipeline;
+import edu.umass.cs.shared.communication.SensorDataCodec;
+import edu.umass.cs.shared.communication.SensorDataSpool;
+import edu.umass.cs.shared.communication.SensorFrameCodec;
+import edu.umass.cs.shared.constants.SharedConstants;
+
+/**
+ * Streams sensor data to the server over a TCP connection. Each batch is queued once in a
+ * {@link SendPipeline} and written by its writer thread as a single binary frame, see
+ * {@link SensorFrameCodec}, if the server greets the uploader with the frame format when the
+ * connection is established. Frames are a fraction of the size of the per-reading format of the
+ * MHL client, which matters when the uplink is metered. Flow control is left to TCP: the writer
+ * thread blocks while the server is not reading, and once the bounded queue is full the oldest batches are moved to the
+ * spool, so that the thread handing over the batches, which also writes the local files, never
+ * waits for the network. Output is buffered and flushed whenever the queue runs empty, so that
+ * readings are sent in as few segments as possible without delaying them.
+ * <br><br>
+ * Batches which cannot be sent, because the server is unreachable or the connection broke, are
+ * stored in a {@link SensorDataSpool}. The uploader reconnects after an exponentially growing,
+ * randomized delay, see {@link ReconnectBackoff}, and replays the spool at a bounded rate,
+ * interleaved with live batches. Attempts are only made while the device is awake anyway, i.e.
+ * when batches arrive or the replay timer fires; the uploader never holds a wake lock. The
+ * replay timer only runs while the spool holds batches and is cancelled once it is drained.
+ * <br><br>
+ * Every batch carries the session, i.e. the time the uploader was created, and a sequence number
+ * per sensor. The uploaded batches of each session are tracked by {@link UploadWatermarks}, so
+ * that batches replayed again after a restart are skipped. Since the frame protocol has no
+ * acknowledgements, a batch counts as uploaded once the output holding it has been flushed to
+ * the socket. Until then, each written batch is also kept in encoded form; if the write or
+ * flush fails, the batches not known to have been flushed are spooled again, so a batch may
+ * occasionally be sent twice but is never lost with a broken connection.
+ * <br><br>
+ * The server as deployed does not understand frames, so the uploader is only used if enabled in
+ * the preferences; by default, data is sent through the {@link MHLSensorUploader}. A server that
+ * does not send a greeting within a short timeout is still served: the connection is closed and
+ * the live and spooled batches are handed to a fallback uploader, usually the
+ * {@link MHLSensorUploader}. The greeting is expected on every connection until the uploader
+ * has fallen back; from then on, the uploader deliberately stays with the fallback for the rest
+ * of the session, i.e. its own lifetime, and never waits for a greeting again: switching back
+ * to frames in the middle of a session would reorder the batches still queued by the fallback.
+ * A server upgraded during a session receives frames from the next session on.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ */
+public class SocketSensorUploader implements SensorUploader {
+
+    @SuppressWarnings("unused")
+    /** used for debugging purposes */
+    private static final String TAG = SocketSensorUploader.class.getName();
+
+    /** The maximum number of batches waiting to be sent. **/
+    private static final int DEFAULT_CAPACITY = 512;
+
+    /** The delay in milliseconds after the first failed connection attempt. **/
+    private static final long INITIAL_RECONNECT_DELAY_MILLIS = 1000;
+
+    /** The maximum delay in milliseconds between connection attempts. **/
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 5 * 60 * 1000;
+
+    /** The time in milliseconds after which a connection attempt fails. **/
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    /** The time in milliseconds to wait for the server's greeting before falling back to the MHL client. **/
+    private static final int DEFAULT_NEGOTIATION_TIMEOUT_MILLIS = 2000;
+
+    /** The size of the output buffer, which should hold several batches. **/
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    /** The size of the unflushed batches above which the output is flushed even if more batches are queued. **/
+    private static final int MAX_UNFLUSHED_BYTES = 4 * OUTPUT_BUFFER_SIZE;
+
+    /** The maximum size of the spool: half a day of Metawear accelerometer and gyroscope data. **/
+    private static final long SPOOL_MAX_SIZE_BYTES = 64 * 1024 * 1024;
+
+    /** The size at which a new spool segment is started. **/
+    private static final long SPOOL_SEGMENT_SIZE_BYTES = 256 * 1024;
+
+    /** The number of milliseconds between replays of the spool. **/
+    private static final long DEFAULT_REPLAY_INTERVAL_MILLIS = 1000;
+
+    /** The maximum number of spooled batches replayed per interval, which limits the replay rate. **/
+    private static final int DEFAULT_REPLAY_BATCHES_PER_INTERVAL = 20;
+
+    /** The number of replay intervals after which changed watermarks are saved. **/
+    private static final int WATERMARK_SAVE_INTERVALS = 10;
+
+    /** The name of the watermark file in the spool directory. **/
+    private static final String WATERMARK_FILENAME = "watermarks.properties";
+
+    private final String host;
+
+    private final int port;
+
+    private final int subjectId;
+
+    /** Identifies the recording session, i.e. the lifetime of the uploader. **/
+    private final long sessionId = System.currentTimeMillis();
+
+    /** The next sequence number of each sensor stream, indexed by {@link SharedConstants.SENSOR_TYPE} ordinal. **/
+    private final long[] sequenceNumbers = new long[SharedConstants.SENSOR_TYPE.values().length];
+
+    /** Delivers the batches in order on a dedicated thread. **/
+    private final SendPipeline pipeline;
+
+    /** Receives the batches if the server does not accept frames. **/
+    private final SensorUploader fallback;
+
+    /** Holds the frame being sent, grown if a batch does not fit, accessed only on the writer thread. **/
+    private ByteBuffer frameBuffer = ByteBuffer.allocate(4096);
+
+    /**
+     * The batches written since the output was last flushed, each encoded by the
+     * {@link SensorDataCodec} and preceded by its length, so that they can be marked uploaded
+     * once flushed or spooled again if the connection breaks. Grown if necessary, accessed only
+     * on the writer thread.
+     */
+    private ByteBuffer unflushed = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+
+    /** Decodes the headers of the {@link #unflushed} batches, accessed only on the writer thread. **/
+    private final SensorDataCodec unflushedCodec = new SensorDataCodec();
+
+    private final int negotiationTimeoutMillis;
+
+    /** Batches whose arrays may be reused. **/
+    private final ConcurrentLinkedQueue<Batch> pool = new ConcurrentLinkedQueue<>();
+
+    /** Stores the batches which could not be sent. **/
+    private final SensorDataSpool spool;
+
+    /** Tracks the uploaded batches. **/
+    private final UploadWatermarks watermarks;
+
+    /** Determines when to reconnect, accessed only on the writer thread. **/
+    private final ReconnectBackoff backoff;
+
+    private final long replayIntervalMillis;
+
+    private final int replayBatchesPerInterval;
+
+    /** Runs the replay timer, null if not connected. **/
+    private ScheduledExecutorService replayScheduler;
+
+    /** Periodically submits a replay of the spool while it holds batches, null otherwise. **/
+    private ScheduledFuture<?> replayFuture;
+
+    /** Indicates whether a replay has been submitted to the {@link #pipeline} and not yet completed. **/
+    private final AtomicBoolean replayPending = new AtomicBoolean(false);
+
+    private volatile ConnectionStateListener listener;
+
+    /** The connection to the server, accessed only on the writer thread. **/
+    private Socket socket;
+
+    private OutputStream out;
+
+    /**
+     * Indicates whether the server did not greet the uploader, in which case the batches are
+     * handed to the {@link #fallback} for the rest of the session. Set only on the writer thread.
+     */
+    private volatile boolean usingFallback = false;
+
+    /** The number of bytes written to the server, for statistics. **/
+    private volatile long bytesSent = 0;
+
+    /** The time in milliseconds, from {@link System#nanoTime()}, before which no connection attempt is made. **/
+    private long nextConnectMillis = 0;
+
+    /** The connection state last reported to the listener, null if none was reported yet. **/
+    private Boolean reportedConnected;
+
+    /**
+     * Instantiates an uploader for the given server.
+     * @param host the host name or IP address of the server
+     * @param port the port of the server
+     * @param subjectId the subject ID, sent with every batch
+     * @param spoolDirectory the directory in which unsent batches are stored
+     * @param fallback receives the batches if the server does not accept frames; it is connected only then
+     */
+    public SocketSensorUploader(String host, int port, int subjectId, File spoolDirectory, SensorUploader fallback) {
+        this(host, port, subjectId, spoolDirectory, fallback, DEFAULT_CAPACITY,
+                new ReconnectBackoff(INITIAL_RECONNECT_DELAY_MILLIS, MAX_RECONNECT_DELAY_MILLIS),
+                DEFAULT_REPLAY_INTERVAL_MILLIS, DEFAULT_REPLAY_BATCHES_PER_INTERVAL, DEFAULT_NEGOTIATION_TIMEOUT_MILLIS);
+    }
+
+    SocketSensorUploader(String host, int port, int subjectId, File spoolDirectory, SensorUploader fallback, int capacity,
+                         ReconnectBackoff backoff, long replayIntervalMillis, int replayBatchesPerInterval,
+                         int negotiationTimeoutMillis) {
+        this.host = host;
+        this.port = port;
+        this.subjectId = subjectId;
+        this.negotiationTimeoutMillis = negotiationTimeoutMillis;
+        this.backoff = backoff;
+        this.replayIntervalMillis = replayIntervalMillis;
+        this.replayBatchesPerInterval = replayBatchesPerInterval;
+        this.fallback = fallback;
+        this.spool = new SensorDataSpool(spoolDirectory, SPOOL_MAX_SIZE_BYTES, SPOOL_SEGMENT_SIZE_BYTES,
+                SensorDataSpool.EvictionPolicy.DROP_OLDEST);
+        this.watermarks = new UploadWatermarks(new File(spoolDirectory, WATERMARK_FILENAME));
+        // a batch that cannot be sent is spooled rather than retried
+        this.pipeline = new SendPipeline("SensorUploader", capacity, SendPipeline.OverflowPolicy.DROP_OLDEST, 0, 0);
+    }
+
+    /**
+     * A batch of sensor readings waiting to be sent. The arrays are recycled through the
+     * {@link #pool} once the batch is sent or spooled.
+     */
+    private class Batch implements SendPipeline.Task {
+        private SharedConstants.SENSOR_TYPE sensorType;
+        private long sequenceNumber;
+        private long[] timestamps = new long[0];
+        private float[] values = new float[0];
+        private int count;
+        private int nDimensions;
+
+        private void set(SharedConstants.SENSOR_TYPE sensorType, long sequenceNumber, long[] timestamps,
+                         float[] values, int count, int nDimensions) {
+            if (this.timestamps.length < count)
+                this.timestamps = new long[count];
+            if (this.values.length < count * nDimensions)
+                this.values = new float[count * nDimensions];
+            System.arraycopy(timestamps, 0, this.timestamps, 0, count);
+            System.arraycopy(values, 0, this.values, 0, count * nDimensions);
+            this.sensorType = sensorType;
+            this.sequenceNumber = sequenceNumber;
+            this.count = count;
+            this.nDimensions = nDimensions;
+        }
+
+        @Override
+        public boolean send() {
+            if (!write(sessionId, sensorType, sequenceNumber, timestamps, values, count, nDimensions))
+                return false;
+            if (pipeline.size() == 0)
+                flush();
+            pool.offer(this);
+            return true;
+        }
+
+        @Override
+        public void discard() {
+            spool.append(sessionId, sequenceNumber, sensorType, timestamps, values, count, nDimensions, false);
+            pool.offer(this);
+            updateReplaySchedule();
+        }
+
+        @Override
+        public Object getKey() {
+            return null;
+        }
+    }
+
+    /** Connects to the server before the first batch is available. **/
+    private final SendPipeline.Task connectTask = new SendPipeline.Task() {
+        @Override
+        public boolean send() {
+            open();
+            return true;
+        }
+
+        @Override
+        public void discard() {
+        }
+
+        @Override
+        public Object getKey() {
+            return null;
+        }
+    };
+
+    /**
+     * Replays spooled batches, reconnecting first if necessary, and saves the watermarks
+     * every few intervals and once the spool is drained. Runs on the writer thread, so replayed
+     * batches are interleaved with live batches.
+     */
+    private final SendPipeline.Task replayTask = new SendPipeline.Task() {
+        private int intervals = 0;
+
+        @Override
+        public boolean send() {
+            if (!spool.isEmpty() && open()) {
+                spool.replay(replayBatchesPerInterval, replayHandler);
+                flush();
+            }
+            boolean drained = spool.isEmpty();
+            if (drained)
+                watermarks.removeSessionsBefore(sessionId);
+            if (++intervals >= WATERMARK_SAVE_INTERVALS || drained) {
+                intervals = 0;
+                saveWatermarks();
+            }
+            replayPending.set(false);
+            updateReplaySchedule();
+            return true;
+        }
+
+        @Override
+        public void discard() {
+            replayPending.set(false);
+        }
+
+        @Override
+        public Object getKey() {
+            return null;
+        }
+    };
+
+    /** Sends spooled batches which have not been uploaded yet, accessed only on the writer thread. **/
+    private final SensorDataSpool.RecordHandler replayHandler = new SensorDataSpool.RecordHandler() {
+        private final SensorDataCodec codec = new SensorDataCodec();
+        private long[] timestamps = new long[0];
+        private float[] values = new float[0];
+
+        @Override
+        public boolean onRecord(byte[] data, int offset, int length) {
+            ByteBuffer in = ByteBuffer.wrap(data, offset, length);
+            try {
+                codec.decodeHeader(in);
+                if (watermarks.isUploaded(codec.getSessionId(), codec.getSensorType(), codec.getSequenceNumber()))
+                    return true; // uploaded before the spool position was lost in a restart
+                int count = codec.getCount();
+                if (timestamps.length < count)
+                    timestamps = new long[count];
+                if (values.length < count * codec.getDimensions())
+                    values = new float[count * codec.getDimensions()];
+                codec.decodeReadings(in, timestamps, values);
+            } catch (IllegalArgumentException | BufferUnderflowException e) {
+                Log.w(TAG, "Skipping corrupt spooled batch: " + e.getMessage());
+                return true; // skip the corrupt record
+            }
+            return write(codec.getSessionId(), codec.getSensorType(), codec.getSequenceNumber(),
+                    timestamps, values, codec.getCount(), codec.getDimensions());
+        }
+    };
+
+    /** Submits a replay of the spool to the writer thread, unless one is already pending. **/
+    private final Runnable scheduleReplay = new Runnable() {
+        @Override
+        public void run() {
+            if (replayPending.compareAndSet(false, true) && !pipeline.submit(replayTask))
+                replayPending.set(false);
+        }
+    };
+
+    @Override
+    public void setConnectionStateListener(ConnectionStateListener listener) {
+        this.listener = listener;
+        fallback.setConnectionStateListener(listener);
+    }
+
+    @Override
+    public synchronized void connect() {
+        pipeline.submit(connectTask);
+        if (replayScheduler == null)
+            replayScheduler = Executors.newSingleThreadScheduledExecutor();
+        updateReplaySchedule(); // batches may be left in the spool by a previous session
+    }
+
+    /**
+     * Starts the replay timer if the spool holds batches, and cancels it once the spool is empty,
+     * so that the device is not woken up every interval when there is nothing to replay.
+     */
+    private synchronized void updateReplaySchedule() {
+        if (replayScheduler == null)
+            return;
+        if (spool.isEmpty()) {
+            if (replayFuture != null) {
+                replayFuture.cancel(false);
+                replayFuture = null;
+            }
+        } else if (replayFuture == null) {
+            replayFuture = replayScheduler.scheduleWithFixedDelay(scheduleReplay, replayIntervalMillis,
+                    replayIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public boolean upload(SharedConstants.SENSOR_TYPE sensorType, long[] timestamps, float[] values, int count, int nDimensions) {
+        if (count == 0)
+            return false;
+        long sequenceNumber;
+        synchronized (sequenceNumbers) {
+            sequenceNumber = sequenceNumbers[sensorType.ordinal()]++;
+        }
+        Batch batch = pool.poll();
+        if (batch == null)
+            batch = new Batch();
+        batch.set(sensorType, sequenceNumber, timestamps, values, count, nDimensions);
+        return pipeline.submit(batch);
+    }
+
+    @Override
+    public void disconnect(long timeoutMillis) {
+        synchronized (this) {
+            if (replayScheduler != null) {
+                replayScheduler.shutdown();
+                replayScheduler = null;
+                replayFuture = null;
+            }
+        }
+        long start = System.nanoTime();
+        pipeline.stop(timeoutMillis);
+        flush();
+        close();
+        if (usingFallback) {
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            fallback.disconnect(timeoutMillis == 0 ? 0 : Math.max(1, timeoutMillis - elapsedMillis));
+        }
+        saveWatermarks();
+        spool.close();
+    }
+
+    /**
+     * Writes a batch to the server, opening the connection if necessary. The batch is marked
+     * uploaded once the output is flushed, or once it is handed to the {@link #fallback}. Called
+     * only on the writer thread.
+     * @return true if the batch was written or, together with the other unflushed batches, spooled
+     * again; false if it should be spooled or kept in the spool
+     */
+    private boolean write(long sessionId, SharedConstants.SENSOR_TYPE sensorType, long sequenceNumber,
+                          long[] timestamps, float[] values, int count, int nDimensions) {
+        if (!open())
+            return false;
+        if (usingFallback) {
+            // a batch the fallback rejects is dropped, as the MHL client drops all data once its
+            // server could not be reached, rather than replayed from the spool indefinitely
+            if (fallback.upload(sensorType, timestamps, values, count, nDimensions))
+                watermarks.markUploaded(sessionId, sensorType, sequenceNumber);
+            return true;
+        }
+        int maxSize = SensorFrameCodec.getMaxEncodedSize(count, nDimensions);
+        if (frameBuffer.capacity() < maxSize)
+            frameBuffer = ByteBuffer.allocate(maxSize);
+        frameBuffer.clear();
+        SensorFrameCodec.encode(frameBuffer, subjectId, sessionId, sequenceNumber, sensorType,
+                timestamps, values, count, nDimensions);
+        try {
+            out.write(frameBuffer.array(), 0, frameBuffer.position());
+            bytesSent += frameBuffer.position();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not send sensor data: " + e.getMessage());
+            onConnectionBroken();
+            return false;
+        }
+        retainUntilFlushed(sessionId, sensorType, sequenceNumber, timestamps, values, count, nDimensions);
+        if (unflushed.position() >= MAX_UNFLUSHED_BYTES)
+            flush();
+        return true;
+    }
+
+    /**
+     * Keeps a written batch until the output has been flushed. Called only on the writer thread.
+     */
+    private void retainUntilFlushed(long sessionId, SharedConstants.SENSOR_TYPE sensorType, long sequenceNumber,
+                                    long[] timestamps, float[] values, int count, int nDimensions) {
+        int maxSize = 4 + SensorDataCodec.getMaxEncodedSize(count, nDimensions);
+        if (unflushed.remaining() < maxSize) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * unflushed.capacity(), unflushed.position() + maxSize));
+            unflushed.flip();
+            grown.put(unflushed);
+            unflushed = grown;
+        }
+        int start = unflushed.position();
+        unflushed.position(start + 4);
+        SensorDataCodec.encode(unflushed, sessionId, sequenceNumber, sensorType, timestamps, values, count, nDimensions, false);
+        unflushed.putInt(start, unflushed.position() - start - 4);
+    }
+
+    /**
+     * Passes each of the {@link #unflushed} batches either to the watermarks, if the output was
+     * flushed, or back to the spool, and forgets them. Called only on the writer thread.
+     * @param uploaded true if the batches reached the socket, false if they must be sent again
+     */
+    private void releaseUnflushed(boolean uploaded) {
+        byte[] data = unflushed.array();
+        ByteBuffer view = unflushed.duplicate();
+        int end = unflushed.position();
+        int offset = 0;
+        while (offset < end) {
+            int length = unflushed.getInt(offset);
+            offset += 4;
+            if (uploaded) {
+                view.limit(offset + length);
+                view.position(offset);
+                unflushedCodec.decodeHeader(view);
+                watermarks.markUploaded(unflushedCodec.getSessionId(), unflushedCodec.getSensorType(),
+                        unflushedCodec.getSequenceNumber());
+            } else {
+                spool.append(data, offset, length);
+            }
+            offset += length;
+        }
+        unflushed.clear();
+        if (!uploaded)
+            updateReplaySchedule();
+    }
+
+    /**
+     * Flushes buffered output to the server and marks the flushed batches uploaded. Called only
+     * on the writer thread.
+     */
+    private void flush() {
+        if (out == null)
+            return;
+        try {
+            out.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not send sensor data: " + e.getMessage());
+            onConnectionBroken();
+            return;
+        }
+        releaseUnflushed(true);
+    }
+
+    /**
+     * Closes the broken connection and spools the batches which may not have reached the
+     * server. Called only on the writer thread.
+     */
+    private void onConnectionBroken() {
+        close();
+        releaseUnflushed(false);
+        setConnected(false);
+    }
+
+    /**
+     * Opens the connection to the server if it is not open, unless the next attempt is not
+     * yet due. If the server does not greet the uploader, the connection is closed and the
+     * {@link #fallback} is connected instead. Called only on the writer thread.
+     * @return true if the connection or the fallback is open
+     */
+    private boolean open() {
+        if (socket != null || usingFallback)
+            return true;
+        long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        if (now < nextConnectMillis)
+            return false;
+        Socket candidate = new Socket();
+        try {
+            candidate.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            out = new BufferedOutputStream(candidate.getOutputStream(), OUTPUT_BUFFER_SIZE);
+            if (!negotiate(candidate)) {
+                candidate.close();
+                out = null;
+                useFallback();
+                return true;
+            }
+            socket = candidate;
+            backoff.reset();
+            setConnected(true);
+            return true;
+        } catch (IOException e) {
+            try {
+                candidate.close();
+            } catch (IOException ignored) {}
+            out = null;
+            nextConnectMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()) + backoff.nextDelayMillis();
+            setConnected(false);
+            return false;
+        }
+    }
+
+    /**
+     * Waits for the server's greeting and answers it if the server accepts binary frames. Once
+     * frames have been negotiated, a reconnect is again expected to be greeted. Called only on
+     * the writer thread.
+     * @param socket the newly connected socket
+     * @return true if batches should be sent as frames, false if the server does not accept them
+     */
+    private boolean negotiate(Socket socket) throws IOException {
+        byte[] greeting = new byte[SensorFrameCodec.PREAMBLE_SIZE];
+        socket.setSoTimeout(negotiationTimeoutMillis);
+        try {
+            InputStream in = socket.getInputStream();
+            int n = 0;
+            while (n < greeting.length) {
+                int read = in.read(greeting, n, greeting.length - n);
+                if (read < 0)
+                    throw new EOFException("The server closed the connection before greeting");
+                n += read;
+            }
+        } catch (SocketTimeoutException e) {
+            return false; // servers without frame support do not send a greeting
+        } finally {
+            socket.setSoTimeout(0);
+        }
+        int version = SensorFrameCodec.decodePreamble(ByteBuffer.wrap(greeting));
+        if (version < 1)
+            return false;
+        ByteBuffer answer = ByteBuffer.allocate(SensorFrameCodec.PREAMBLE_SIZE);
+        SensorFrameCodec.encodePreamble(answer, (byte) Math.min(version, SensorFrameCodec.VERSION));
+        out.write(answer.array());
+        return true;
+    }
+
+    /**
+     * Hands the batches to the {@link #fallback} for the rest of the session, which reports the
+     * state of its own connection from now on. Called only on the writer thread.
+     */
+    private void useFallback() {
+        Log.i(TAG, "The server does not accept frames, falling back to the MHL client");
+        usingFallback = true;
+        backoff.reset();
+        fallback.connect();
+    }
+
+    private void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not close the connection: " + e.getMessage());
+            }
+        }
+        socket = null;
+        out = null;
+    }
+
+    /** Notifies the listener if the connection state changed. **/
+    private void setConnected(boolean connected) {
+        if (reportedConnected != null && reportedConnected == connected)
+            return;
+        reportedConnected = connected;
+        ConnectionStateListener listener = this.listener;
+        if (listener == null)
+            return;
+        if (connected)
+            listener.onConnected();
+        else
+            listener.onConnectionFailed();
+    }
+
+    private void saveWatermarks() {
+        try {
+            watermarks.save();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save the upload watermarks: " + e.getMessage());
+        }
+    }
+
+    /** Returns the identifier of the session, which is sent with every batch. **/
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Returns the upload watermark of a sensor stream in the current session.
+     * @param sensorType the sensor type
+     * @return the highest sequence number up to which all batches have been uploaded, or -1
+     */
+    public long getWatermark(SharedConstants.SENSOR_TYPE sensorType) {
+        return watermarks.getWatermark(sessionId, sensorType);
+    }
+
+    /** Indicates whether replays of the spool are currently scheduled. **/
+    synchronized boolean isReplayScheduled() {
+        return replayFuture != null;
+    }
+
+    /** Returns the number of spooled bytes waiting to be replayed. **/
+    public long getSpooledBytes() {
+        return spool.getSizeBytes();
+    }
+
+    /** Indicates whether the batches are handed to the fallback, because the server does not accept frames. **/
+    public boolean isUsingFallback() {
+        return usingFallback;
+    }
+
+    /** Returns the number of bytes written to the server. **/
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s; sent %d bytes as frames%s; %s", pipeline.toString(), bytesSent,
+                usingFallback ? ", then " + fallback.toString() : "", spool.toString());
+    }
+}
@@ -0,0 +1,22 @@
+package edu.umass.cs.prepare.communication.server;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Starts the {@link FileUploadService} when the device is plugged in or its connectivity
+ * changes, i.e. whenever the conditions for uploading files may have become satisfied. The
+ * service itself checks whether they are.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ */
+public class UploadConditionsReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        FileUploadService.start(context);
+    }
+
+}
@@ -0,0 +1,194 @@
+package edu.umass.cs.prepare.communication.server;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+
+/**
+ * Tracks which batches of each recording session have been uploaded to the server. Batches are
+ * identified by the session, the sensor type and their sequence number within the sensor's
+ * stream. Since live batches are sent while older batches are still being replayed from the
+ * spool, the uploaded sequence numbers are kept as ranges; the watermark of a stream is the
+ * highest sequence number up to which every batch has been uploaded.
+ * <br><br>
+ * The ranges are persisted in a properties file, replaced atomically, so that batches replayed
+ * again after a restart can be recognized and skipped.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ */
+class UploadWatermarks {
+
+    @SuppressWarnings("unused")
+    /** used for debugging purposes */
+    private static final String TAG = UploadWatermarks.class.getName();
+
+    /** The file in which the ranges are persisted. **/
+    private final File file;
+
+    /** Mapping from session and sensor type to the sorted, disjoint ranges of uploaded sequence numbers. **/
+    private final Map<String, List<long[]>> ranges = new HashMap<>();
+
+    /** Indicates whether the ranges changed since they were last saved. **/
+    private boolean dirty = false;
+
+    /**
+     * Opens the watermarks, reading those persisted by a previous process.
+     * @param file the file, which need not exist
+     */
+    UploadWatermarks(File file) {
+        this.file = file;
+        if (!file.exists())
+            return;
+        Properties properties = new Properties();
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            for (String key : properties.stringPropertyNames()) {
+                List<long[]> list = new ArrayList<>();
+                for (String range : properties.getProperty(key).split(",")) {
+                    String[] bounds = range.split("-");
+                    list.add(new long[]{Long.parseLong(bounds[0]), Long.parseLong(bounds[1])});
+                }
+                ranges.put(key, list);
+            }
+        } catch (IOException | IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            Log.w(TAG, "Discarding unreadable upload watermarks: " + e.getMessage());
+            ranges.clear();
+        }
+    }
+
+    private static String getKey(long sessionId, SharedConstants.SENSOR_TYPE sensorType) {
+        return sessionId + "." + sensorType.name();
+    }
+
+    private static long getSessionId(String key) {
+        return Long.parseLong(key.substring(0, key.indexOf('.')));
+    }
+
+    /**
+     * Indicates whether a batch has been uploaded.
+     * @param sessionId the recording session
+     * @param sensorType the sensor type
+     * @param sequenceNumber the sequence number of the batch
+     * @return true if the batch has been uploaded
+     */
+    synchronized boolean isUploaded(long sessionId, SharedConstants.SENSOR_TYPE sensorType, long sequenceNumber) {
+        List<long[]> list = ranges.get(getKey(sessionId, sensorType));
+        if (list == null)
+            return false;
+        for (long[] range : list) {
+            if (sequenceNumber < range[0])
+                return false;
+            if (sequenceNumber <= range[1])
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records that a batch has been uploaded.
+     * @param sessionId the recording session
+     * @param sensorType the sensor type
+     * @param sequenceNumber the sequence number of the batch
+     */
+    synchronized void markUploaded(long sessionId, SharedConstants.SENSOR_TYPE sensorType, long sequenceNumber) {
+        String key = getKey(sessionId, sensorType);
+        List<long[]> list = ranges.get(key);
+        if (list == null) {
+            list = new ArrayList<>();
+            ranges.put(key, list);
+        }
+        // usually the batch extends the last range, so search from the end
+        int i = list.size() - 1;
+        while (i >= 0 && list.get(i)[0] > sequenceNumber)
+            i--;
+        if (i >= 0 && sequenceNumber <= list.get(i)[1])
+            return;
+        dirty = true;
+        boolean extendsPrevious = i >= 0 && list.get(i)[1] == sequenceNumber - 1;
+        boolean extendsNext = i + 1 < list.size() && list.get(i + 1)[0] == sequenceNumber + 1;
+        if (extendsPrevious && extendsNext) {
+            list.get(i)[1] = list.remove(i + 1)[1];
+        } else if (extendsPrevious) {
+            list.get(i)[1] = sequenceNumber;
+        } else if (extendsNext) {
+            list.get(i + 1)[0] = sequenceNumber;
+        } else {
+            list.add(i + 1, new long[]{sequenceNumber, sequenceNumber});
+        }
+    }
+
+    /**
+     * Returns the watermark of a stream.
+     * @param sessionId the recording session
+     * @param sensorType the sensor type
+     * @return the highest sequence number up to which all batches have been uploaded, or -1 if
+     * the first batch has not been uploaded
+     */
+    synchronized long getWatermark(long sessionId, SharedConstants.SENSOR_TYPE sensorType) {
+        List<long[]> list = ranges.get(getKey(sessionId, sensorType));
+        if (list == null || list.isEmpty() || list.get(0)[0] != 0)
+            return -1;
+        return list.get(0)[1];
+    }
+
+    /**
+     * Forgets the sessions preceding the given one, e.g. once nothing of them remains to be replayed.
+     * @param sessionId the oldest session to retain
+     */
+    synchronized void removeSessionsBefore(long sessionId) {
+        Iterator<String> keys = ranges.keySet().iterator();
+        while (keys.hasNext()) {
+            if (getSessionId(keys.next()) < sessionId) {
+                keys.remove();
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Writes the ranges to the file if they have changed.
+     * @throws IOException if the file cannot be written
+     */
+    synchronized void save() throws IOException {
+        if (!dirty)
+            return;
+        Properties properties = new Properties();
+        for (Map.Entry<String, List<long[]>> entry : ranges.entrySet()) {
+            StringBuilder value = new StringBuilder();
+            for (long[] range : entry.getValue()) {
+                if (value.length() > 0)
+                    value.append(',');
+                value.append(range[0]).append('-').append(range[1]);
+            }
+            properties.setProperty(entry.getKey(), value.toString());
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            properties.store(out, null);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file))
+            throw new IOException("Could not replace " + file);
+        dirty = false;
+    }
+}
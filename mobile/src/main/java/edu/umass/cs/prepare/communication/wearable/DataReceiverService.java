@@ -5,19 +5,37 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.util.Log;
 
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.Channel;
 import com.google.android.gms.wearable.DataEvent;
 import com.google.android.gms.wearable.DataEventBuffer;
 import com.google.android.gms.wearable.DataItem;
 import com.google.android.gms.wearable.DataMap;
 import com.google.android.gms.wearable.DataMapItem;
 import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.Wearable;
 import com.google.android.gms.wearable.WearableListenerService;
 
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
 import edu.umass.cs.prepare.R;
 import edu.umass.cs.prepare.communication.local.Broadcaster;
 import edu.umass.cs.prepare.communication.local.ServiceManager;
 import edu.umass.cs.prepare.metawear.SensorService;
+import edu.umass.cs.shared.communication.SensorBatchPool;
+import edu.umass.cs.shared.communication.SensorDataCodec;
+import edu.umass.cs.shared.communication.SensorDataCompressor;
+import edu.umass.cs.shared.communication.SensorDataPacket;
+import edu.umass.cs.shared.communication.SensorEventBus;
+import edu.umass.cs.shared.communication.SensorGapTracker;
+import edu.umass.cs.shared.communication.SensorStreamReader;
 import edu.umass.cs.shared.constants.SharedConstants;
+import edu.umass.cs.shared.util.SensorBuffer;
 
 /**
  * The Data Receiver Service listens for data sent from the wearable to the handheld device. In
@@ -37,12 +55,100 @@ public class DataReceiverService extends WearableListenerService {
 
     private ServiceManager serviceManager;
 
+    /** Decodes sensor data sent from the wearable. Data events are delivered on a single thread. **/
+    private final SensorDataCodec codec = new SensorDataCodec();
+
+    /** Decompresses sensor data items compressed by the wearable. The thresholds only apply to compression. **/
+    private final SensorDataCompressor compressor = new SensorDataCompressor(0, 1f, 0);
+
+    /** Provides the batches into which sensor data items are decoded, released by the {@link SensorEventBus}. **/
+    private final SensorBatchPool batchPool = new SensorBatchPool();
+
+    /** The time between consecutive batches of a stream above which a sensor dropout is counted. **/
+    private static final long DROPOUT_THRESHOLD_MILLIS = 500;
+
+    /** Tracks the sequence numbers of the received batches, shared across instances of the service so that it outlives each data event. **/
+    private static SensorGapTracker gapTracker;
+
+    /** Publishes each batch of sensor data received from the wearable, unless it is a duplicate. **/
+    private final SensorStreamReader.OnSensorDataReceivedListener sensorDataListener = new SensorStreamReader.OnSensorDataReceivedListener() {
+        @Override
+        public void onSensorDataReceived(SharedConstants.SENSOR_TYPE sensorType, long sessionId, long sequenceNumber,
+                                         SensorBuffer.Batch batch) {
+            if (batch.size() == 0) {
+                batch.release();
+                return;
+            }
+            long[] timestamps = batch.getTimestamps();
+            SensorGapTracker.Result result = gapTracker.onBatchReceived(sessionId, sensorType, sequenceNumber,
+                    timestamps[0], timestamps[batch.size() - 1]);
+            if (result == SensorGapTracker.Result.DUPLICATE) {
+                batch.release();
+                return;
+            }
+            SensorEventBus.getInstance().publish(sensorType, batch);
+        }
+    };
+
+    /** The client used to read sensor data streams opened by the wearable. **/
+    private GoogleApiClient googleApiClient;
+
+    /** Reads the sensor data streams opened by the wearable one at a time, shared across instances of the service. **/
+    private static final ExecutorService streamReaderExecutor = Executors.newSingleThreadExecutor();
+
+    /** The maximum time in milliseconds to wait for the connection to the data layer. **/
+    private static final long CONNECTION_TIME_OUT_MS = 5000;
+
     @Override
     public void onCreate() {
         serviceManager = ServiceManager.getInstance(this);
+        synchronized (DataReceiverService.class) {
+            if (gapTracker == null) {
+                final RemoteSensorManager remoteSensorManager = RemoteSensorManager.getInstance(this);
+                gapTracker = new SensorGapTracker(DROPOUT_THRESHOLD_MILLIS, new SensorGapTracker.OnGapDetectedListener() {
+                    @Override
+                    public void onGapDetected(long sessionId, SharedConstants.SENSOR_TYPE sensorType, long fromSequenceNumber, long toSequenceNumber) {
+                        Log.w(TAG, "Missing " + sensorType.name() + " batches " + fromSequenceNumber + " to " + toSequenceNumber);
+                        remoteSensorManager.requestSensorData(sessionId, sensorType, fromSequenceNumber, toSequenceNumber);
+                    }
+                });
+            }
+        }
+        googleApiClient = new GoogleApiClient.Builder(this)
+                .addApi(Wearable.API)
+                .build();
         super.onCreate();
     }
 
+    /**
+     * Called when the wearable opens a channel at the start of a recording session. Sensor data
+     * streamed over the channel is read on the {@link #streamReaderExecutor} until the wearable
+     * closes it; a channel opened while another is being read waits for it to close.
+     * @param channel the channel opened by the wearable
+     */
+    @Override
+    public void onChannelOpened(final Channel channel) {
+        if (!channel.getPath().equals(getString(R.string.path_sensor_stream)))
+            return;
+        Log.i(TAG, "Sensor data stream opened by " + channel.getNodeId());
+        streamReaderExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!googleApiClient.isConnected()) {
+                    googleApiClient.blockingConnect(CONNECTION_TIME_OUT_MS, TimeUnit.MILLISECONDS);
+                }
+                InputStream in = channel.getInputStream(googleApiClient).await().getInputStream();
+                if (in == null) {
+                    Log.w(TAG, "Could not open sensor data stream.");
+                    return;
+                }
+                new SensorStreamReader(in, sensorDataListener).run();
+                Log.i(TAG, "Sensor data stream closed.");
+                Log.i(TAG, gapTracker.getSummary());
+            }
+        });
+    }
+
     @Override
     public void onPeerConnected(Node peer) {
         super.onPeerConnected(peer);
@@ -61,6 +167,32 @@ public class DataReceiverService extends WearableListenerService {
         Broadcaster.broadcastMessage(this, SharedConstants.MESSAGES.WEARABLE_DISCONNECTED);
     }
 
+    /**
+     * Publishes a batch of sensor data received from the wearable on the {@link SensorEventBus}.
+     * @param sensorType the sensor type
+     * @param timestamps the timestamps of the readings
+     * @param values the readings, in sequential order
+     */
+    private static void publishSensorData(SharedConstants.SENSOR_TYPE sensorType, long[] timestamps, float[] values) {
+        if (timestamps.length == 0)
+            return;
+        SensorEventBus.getInstance().publish(sensorType, timestamps, values, timestamps.length, values.length / timestamps.length);
+    }
+
+    /**
+     * Decodes a batch of sensor data encoded by the {@link SensorDataCodec}, or a
+     * {@link SensorDataPacket} of such batches, either of which may be compressed, and publishes
+     * each batch to the other application components.
+     * @param data the encoded batch or packet
+     */
+    private void onSensorBatchReceived(byte[] data) {
+        try {
+            SensorDataPacket.decode(ByteBuffer.wrap(data), compressor, codec, batchPool, sensorDataListener);
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            Log.w(TAG, "Discarding malformed sensor data: " + e.getMessage());
+        }
+    }
+
     //Note: This is only called when the data is actually changed!! Since we have a timestamp in the data event, that is no problem
     @Override
     public void onDataChanged(DataEventBuffer dataEvents) {
@@ -72,11 +204,15 @@ public class DataReceiverService extends WearableListenerService {
                 DataMap dataMap = DataMapItem.fromDataItem(dataItem).getDataMap();
 
                 if (path.equals(getString(R.string.path_sensor_data))) {
-                    SharedConstants.SENSOR_TYPE sensorType = SharedConstants.SENSOR_TYPE.values()[dataMap.getInt(SharedConstants.KEY.SENSOR_TYPE)];
-                    long[] timestamps = dataMap.getLongArray(SharedConstants.KEY.TIMESTAMPS);
-                    float[] values = dataMap.getFloatArray(SharedConstants.KEY.SENSOR_VALUES);
-                    Log.d(TAG, "Data received on mobile application : " + sensorType.name());
-                    Broadcaster.broadcastSensorData(this, sensorType, timestamps, values);
+                    if (dataMap.containsKey(SharedConstants.KEY.SENSOR_BATCH)) {
+                        onSensorBatchReceived(dataMap.getByteArray(SharedConstants.KEY.SENSOR_BATCH));
+                    } else {
+                        SharedConstants.SENSOR_TYPE sensorType = SharedConstants.SENSOR_TYPE.values()[dataMap.getInt(SharedConstants.KEY.SENSOR_TYPE)];
+                        long[] timestamps = dataMap.getLongArray(SharedConstants.KEY.TIMESTAMPS);
+                        float[] values = dataMap.getFloatArray(SharedConstants.KEY.SENSOR_VALUES);
+                        Log.d(TAG, "Data received on mobile application : " + sensorType.name());
+                        publishSensorData(sensorType, timestamps, values);
+                    }
                 }
                 else if (path.equals(getString(R.string.path_message))){
                     int message = dataMap.getInt(SharedConstants.KEY.MESSAGE);
@@ -96,6 +232,7 @@ public class DataReceiverService extends WearableListenerService {
                             }
                         }, SensorService.WEARABLE_COLLECTION_DURATION_MILLIS); //TODO Cancel on handler if reconnected
                     } else if (message == SharedConstants.MESSAGES.WEARABLE_SERVICE_STOPPED) {
+                        Log.i(TAG, gapTracker.getSummary());
                         serviceManager.stopDataWriterService();
                     }
                 }
@@ -12,12 +12,12 @@ import com.google.android.gms.wearable.Node;
 import com.google.android.gms.wearable.NodeApi;
 import com.google.android.gms.wearable.Wearable;
 
+import java.nio.ByteBuffer;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import edu.umass.cs.prepare.communication.local.Broadcaster;
+import edu.umass.cs.shared.communication.SendPipeline;
 import edu.umass.cs.shared.constants.SharedConstants;
 
 /**
@@ -41,8 +41,11 @@ public class RemoteSensorManager {
     /** singleton instance of the remote sensor manager */
     private static RemoteSensorManager instance;
 
-    /** used for asynchronous message sending on a non-UI thread */
-    private final ExecutorService executorService;
+    /** the maximum number of commands waiting to be sent */
+    private static final int COMMAND_QUEUE_CAPACITY = 8;
+
+    /** sends commands sequentially on a single non-UI thread, replacing a pending command by a repeated one if the queue overflows */
+    private final SendPipeline commandPipeline;
 
     /** the Google API client is responsible for communicating with the wearable device over the data layer */
     private final GoogleApiClient googleApiClient;
@@ -61,7 +64,8 @@ public class RemoteSensorManager {
                 .addApi(Wearable.API)
                 .build();
 
-        this.executorService = Executors.newCachedThreadPool();
+        this.commandPipeline = new SendPipeline("CommandPipeline", COMMAND_QUEUE_CAPACITY,
+                SendPipeline.OverflowPolicy.COALESCE, 0, 0);
     }
 
     /**
@@ -80,61 +84,95 @@ public class RemoteSensorManager {
 
     /** send a message to the wearable device to start data collection on the wearable */
     public void startSensorService() {
-        executorService.submit(new Runnable() {
-            @Override
-            public void run() {
-                Log.v(TAG, "Start Sensor Service");
-                sendMessageInBackground(SharedConstants.COMMANDS.START_SENSOR_SERVICE, null);
-            }
-        });
+        Log.v(TAG, "Start Sensor Service");
+        commandPipeline.submit(new CommandTask(SharedConstants.COMMANDS.START_SENSOR_SERVICE));
     }
 
     /** send a message to the wearable device to stop data collection on the wearable */
     public void stopSensorService() {
-        executorService.submit(new Runnable() {
-            @Override
-            public void run() {
-                Log.v(TAG, "Stop Sensor Service");
-                sendMessageInBackground(SharedConstants.COMMANDS.STOP_SENSOR_SERVICE, null);
-            }
-        });
+        Log.v(TAG, "Stop Sensor Service");
+        commandPipeline.submit(new CommandTask(SharedConstants.COMMANDS.STOP_SENSOR_SERVICE));
     }
 
     /** send a message to the wearable device to start data collection on the Metawear tag */
     public void startMetawearService(){
         Log.d(TAG, "startMetawearService called.");
-        executorService.submit(new Runnable() {
-            @Override
-            public void run() {
-                Log.d(TAG, "Sending message to wearable...");
-                sendMessageInBackground(SharedConstants.COMMANDS.START_METAWEAR_SERVICE, null);
-            }
-        });
+        Log.d(TAG, "Sending message to wearable...");
+        commandPipeline.submit(new CommandTask(SharedConstants.COMMANDS.START_METAWEAR_SERVICE));
     }
 
     /** send a message to the wearable device to stop data collection on the Metawear tag */
     public void stopMetawearService() {
-        executorService.submit(new Runnable() {
-            @Override
-            public void run() {
-                Log.v(TAG, "Stop Sensor Service");
-                sendMessageInBackground(SharedConstants.COMMANDS.STOP_METAWEAR_SERVICE, null);
-            }
-        });
+        Log.v(TAG, "Stop Sensor Service");
+        commandPipeline.submit(new CommandTask(SharedConstants.COMMANDS.STOP_METAWEAR_SERVICE));
+    }
+
+    /**
+     * Requests the wearable to send the given range of batches of a sensor stream again, because
+     * they were found to be missing. The wearable resends those still in its retention window.
+     * @param sessionId the recording session
+     * @param sensorType the sensor type of the stream
+     * @param fromSequenceNumber the first missing sequence number, inclusive
+     * @param toSequenceNumber the last missing sequence number, inclusive
+     */
+    public void requestSensorData(long sessionId, SharedConstants.SENSOR_TYPE sensorType, long fromSequenceNumber, long toSequenceNumber) {
+        Log.d(TAG, "Requesting " + sensorType.name() + " batches " + fromSequenceNumber + " to " + toSequenceNumber);
+        ByteBuffer request = ByteBuffer.allocate(25);
+        request.putLong(sessionId);
+        request.put((byte) sensorType.ordinal());
+        request.putLong(fromSequenceNumber);
+        request.putLong(toSequenceNumber);
+        commandPipeline.submit(new CommandTask(SharedConstants.COMMANDS.REQUEST_SENSOR_DATA, request.array()));
+    }
+
+    /**
+     * A command sent to the wearable application by the {@link #commandPipeline}. Repeated
+     * commands without a payload share a key, so that only the most recent one is kept if the
+     * queue overflows.
+     */
+    private class CommandTask implements SendPipeline.Task {
+        private final String path;
+
+        private final byte[] msg;
+
+        CommandTask(String path) {
+            this(path, null);
+        }
+
+        CommandTask(String path, byte[] msg) {
+            this.path = path;
+            this.msg = msg;
+        }
+
+        @Override
+        public boolean send() {
+            return sendMessageInBackground(path, msg);
+        }
+
+        @Override
+        public void discard() {
+            Log.w(TAG, "Dropped command " + path);
+        }
+
+        @Override
+        public Object getKey() {
+            return msg == null ? path : null;
+        }
     }
 
     /**
      * sends a command/message (referred to as a path in Google API logic) to the wearable application
      * @param path the message sent to the wearable device
+     * @return true if a connection was available, false otherwise
      */
-    private void sendMessageInBackground(final String path, final byte[] msg) {
+    private boolean sendMessageInBackground(final String path, final byte[] msg) {
         if (validateConnection()) {
             List<Node> nodes = Wearable.NodeApi.getConnectedNodes(googleApiClient).await().getNodes();
 
             if (nodes.size() == 0 && !path.equals(SharedConstants.COMMANDS.STOP_SENSOR_SERVICE)){
                 Log.d(TAG, "No connected nodes.");
                 Broadcaster.broadcastMessage(googleApiClient.getContext(), SharedConstants.MESSAGES.WEARABLE_CONNECTION_FAILED);
-                return;
+                return true;
             }
             for (Node node : nodes) {
                 Log.i(TAG, "add node " + node.getDisplayName());
@@ -148,30 +186,22 @@ public class RemoteSensorManager {
                             }
                         });
             }
+            return true;
         } else {
             Log.w(TAG, "No connections available");
+            return false;
         }
     }
 
     public void queryWearableState(){
         Log.d(TAG, "Query wearable state.");
-        executorService.submit(new Runnable() {
-            @Override
-            public void run() {
-                Log.d(TAG, "Sending message to wearable...");
-                sendMessageInBackground(SharedConstants.COMMANDS.QUERY_WEARABLE_STATE, null);
-            }
-        });
+        Log.d(TAG, "Sending message to wearable...");
+        commandPipeline.submit(new CommandTask(SharedConstants.COMMANDS.QUERY_WEARABLE_STATE));
     }
 
     public void queryMetawearState(){
         Log.d(TAG, "Query metawear state.");
-        executorService.submit(new Runnable() {
-            @Override
-            public void run() {
-                Log.d(TAG, "Sending message to wearable...");
-                sendMessageInBackground(SharedConstants.COMMANDS.QUERY_METAWEAR_STATE, null);
-            }
-        });
+        Log.d(TAG, "Sending message to wearable...");
+        commandPipeline.submit(new CommandTask(SharedConstants.COMMANDS.QUERY_METAWEAR_STATE));
     }
 }
@@ -13,12 +13,6 @@ import android.content.Intent;
  */
 public class Constants {
 
-    /** Number of bytes required to represent a formatted Unix timestamp, used for efficient string allocation **/
-    public static final int BYTES_PER_TIMESTAMP = 20;
-
-    /** Number of bytes required to represent a formatted float reading, used for efficient string allocation **/
-    public static final int BYTES_PER_SENSOR_READING = 10;
-
     /** An action describes commands delivered to a service, sent by calling start
      * {@link android.content.Context#startService(Intent) startService(Intent)}.
      * @see Intent
@@ -28,7 +22,6 @@ public class Constants {
         String MINIMIZE_VIDEO = "edu.umass.cs.prepare.action.minimize-video";
         String MAXIMIZE_VIDEO = "edu.umass.cs.prepare.action.maximize-video";
         String NAVIGATE_TO_APP = "edu.umass.cs.prepare.action.navigate-to-application";
-        String BROADCAST_SENSOR_DATA = "edu.umass.cs.prepare.action.broadcast-sensor-data";
         String BROADCAST_MESSAGE = "edu.umass.cs.prepare.action.broadcast-message";
         String SET_CAMERA_REMINDER = "edu.umass.cs.prepare.action.set-camera-reminder";
     }
@@ -42,9 +35,6 @@ public class Constants {
         String SURFACE_HEIGHT = "edu.umass.cs.prepare.key.surface-height";
         String SURFACE_X = "edu.umass.cs.prepare.key.surface-x";
         String SURFACE_Y = "edu.umass.cs.prepare.key.surface-y";
-        String SENSOR_DATA = "edu.umass.cs.prepare.key.sensor-data";
-        String SENSOR_TYPE = "edu.umass.cs.prepare.key.sensor-type";
-        String TIMESTAMP = "edu.umass.cs.prepare.key.timestamp";
         String PAGE_INDEX = "edu.umass.cs.prepare.key.page-index";
     }
 
@@ -2,6 +2,8 @@ package edu.umass.cs.prepare.main;
 
 import android.app.Application;
 
+import edu.umass.cs.prepare.communication.server.FileUploadService;
+import edu.umass.cs.prepare.storage.StorageManager;
 import wearprefs.WearPrefs;
 
 public class App extends Application {
@@ -11,6 +13,9 @@ public class App extends Application {
 
         // Initialize WearPrefs for the default SharedPreferences file
         WearPrefs.init(this);
+
+        // Delete files that have already been uploaded first when the storage quota is exceeded
+        StorageManager.getInstance().setUploadStatus(FileUploadService.getProgress(this));
     }
 
 }
\ No newline at end of file
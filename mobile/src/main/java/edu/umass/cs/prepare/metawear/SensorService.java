@@ -15,6 +15,7 @@ import java.util.Locale;
 import edu.umass.cs.prepare.communication.local.Broadcaster;
 import edu.umass.cs.prepare.communication.local.ServiceManager;
 import edu.umass.cs.prepare.view.activities.MainActivity;
+import edu.umass.cs.shared.communication.SensorEventBus;
 import edu.umass.cs.shared.preferences.ApplicationPreferences;
 import edu.umass.cs.shared.util.BatteryUtil;
 import edu.umass.cs.shared.constants.SharedConstants;
@@ -64,25 +65,25 @@ public class SensorService extends edu.umass.cs.shared.metawear.SensorService {
     public void onCreate() {
         setBroadcaster(new Broadcaster(this));
         serviceManager = ServiceManager.getInstance(this);
-        setOnBufferFullCallback(accelerometerBuffer, new SensorBuffer.OnBufferFullCallback() {
+        super.onCreate();
+        setOnBatchReadyCallback(accelerometerBuffer, new SensorBuffer.OnBatchReadyCallback() {
             @Override
-            public void onBufferFull(long[] timestamps, float[] values) {
-                Broadcaster.broadcastSensorData(SensorService.this, SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR, timestamps, values);
+            public void onBatchReady(SensorBuffer.Batch batch) {
+                SensorEventBus.getInstance().publish(SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR, batch);
             }
         });
-        setOnBufferFullCallback(gyroscopeBuffer, new SensorBuffer.OnBufferFullCallback() {
+        setOnBatchReadyCallback(gyroscopeBuffer, new SensorBuffer.OnBatchReadyCallback() {
             @Override
-            public void onBufferFull(long[] timestamps, float[] values) {
-                Broadcaster.broadcastSensorData(SensorService.this, SharedConstants.SENSOR_TYPE.GYROSCOPE_METAWEAR, timestamps, values);
+            public void onBatchReady(SensorBuffer.Batch batch) {
+                SensorEventBus.getInstance().publish(SharedConstants.SENSOR_TYPE.GYROSCOPE_METAWEAR, batch);
             }
         });
-        setOnBufferFullCallback(rssiBuffer, new SensorBuffer.OnBufferFullCallback() {
+        setOnBatchReadyCallback(rssiBuffer, new SensorBuffer.OnBatchReadyCallback() {
             @Override
-            public void onBufferFull(long[] timestamps, float[] values) {
-                Broadcaster.broadcastSensorData(SensorService.this, SharedConstants.SENSOR_TYPE.RSSI, timestamps, values);
+            public void onBatchReady(SensorBuffer.Batch batch) {
+                SensorEventBus.getInstance().publish(SharedConstants.SENSOR_TYPE.RSSI, batch);
             }
         });
-        super.onCreate();
     }
 
     @Override
@@ -178,7 +179,7 @@ public class SensorService extends edu.umass.cs.shared.metawear.SensorService {
     @Override
     protected void onBatteryLevelReceived(int percentage) {
         showBatteryLevelNotification(percentage);
-        Broadcaster.broadcastSensorData(SensorService.this, SharedConstants.SENSOR_TYPE.BATTERY_METAWEAR, new long[]{System.currentTimeMillis()}, new float[]{percentage});
+        SensorEventBus.getInstance().publish(SharedConstants.SENSOR_TYPE.BATTERY_METAWEAR, new long[]{System.currentTimeMillis()}, new float[]{percentage}, 1, 1);
     }
 
 }
@@ -26,7 +26,10 @@ import java.util.List;
 
 import edu.umass.cs.prepare.R;
 import edu.umass.cs.prepare.communication.local.Broadcaster;
+import edu.umass.cs.prepare.communication.server.FileUploadService;
 import edu.umass.cs.prepare.constants.Constants;
+import edu.umass.cs.prepare.storage.DataWriterService;
+import edu.umass.cs.prepare.storage.StorageManager;
 import edu.umass.cs.prepare.view.activities.CameraReminderDialogActivity;
 import edu.umass.cs.prepare.view.activities.MainActivity;
 import edu.umass.cs.shared.constants.SharedConstants;
@@ -86,6 +89,31 @@ public class RecordingService extends Service implements SurfaceHolder.Callback
 
     private ApplicationPreferences applicationPreferences;
 
+    /** The file to which the video is currently being recorded, null if not recording. **/
+    private File videoFile;
+
+    /** Deletes old recordings when the save directory exceeds its quota. **/
+    private final StorageManager storageManager = StorageManager.getInstance();
+
+    /** Stops the recording while the video file is still valid, before the device is full. **/
+    private final StorageManager.OnStorageLowListener storageLowListener = new StorageManager.OnStorageLowListener() {
+        @Override
+        public void onStorageLow(long usableBytes) {
+            new Handler(getMainLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    if (isRecording) {
+                        Log.w(TAG, "Stopping recording, storage low");
+                        stopRecording();
+                        Broadcaster.broadcastMessage(RecordingService.this, SharedConstants.MESSAGES.STORAGE_LOW);
+                        Broadcaster.broadcastMessage(RecordingService.this, SharedConstants.MESSAGES.RECORDING_SERVICE_STOPPED);
+                        stopSelf();
+                    }
+                }
+            });
+        }
+    };
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -179,7 +207,11 @@ public class RecordingService extends Service implements SurfaceHolder.Callback
             mMediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.DEFAULT);
         }
         mMediaRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.DEFAULT);
-        mMediaRecorder.setOutputFile(new File(applicationPreferences.getSaveDirectory(), "VIDEO" + String.valueOf(System.currentTimeMillis()) + ".mp4").getAbsolutePath());
+        videoFile = new File(applicationPreferences.getSaveDirectory(), "VIDEO" + String.valueOf(System.currentTimeMillis()) + ".mp4");
+        DataWriterService.configureStorageManager(storageManager, applicationPreferences);
+        storageManager.protect(videoFile);
+        storageManager.register(storageLowListener);
+        mMediaRecorder.setOutputFile(videoFile.getAbsolutePath());
         mMediaRecorder.setVideoFrameRate(30);
         mMediaRecorder.setPreviewDisplay(sHolder.getSurface());
         mMediaRecorder.setOrientationHint(90);
@@ -266,6 +298,13 @@ public class RecordingService extends Service implements SurfaceHolder.Callback
             sHolder.getSurface().release();
             sHolder = null;
         }
+        if (videoFile != null) {
+            storageManager.release(videoFile);
+            storageManager.requestCheck();
+            storageManager.unregister(storageLowListener);
+            videoFile = null;
+            FileUploadService.start(this);
+        }
         isRecording = false;
     }
 
@@ -1,24 +1,32 @@
 package edu.umass.cs.prepare.storage;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.Writer;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 
 /**
- * Asynchronous file writer implementation.
+ * Asynchronous file writer implementation. The data is written on the {@link FileWriterThread},
+ * which is shared by all open writers.
  * @see <a href="http://stackoverflow.com/questions/6206472/what-is-the-best-way-to-write-to-a-file-in-a-parallel-thread-in-java">AsyncFileWriter</a>
  */
-class AsyncFileWriter implements FileWriter, Runnable {
+class AsyncFileWriter implements FileWriter {
 
-    /** The file writer. **/
-    private final Writer out;
+    /** The file output stream, accessed only on the writer thread once opened. **/
+    private final OutputStream out;
 
-    /** The queue of strings written to the file. **/
-    private final BlockingQueue<CharSequence> queue = new LinkedBlockingQueue<>();
+    /** The channel of the file, used to force the data to the device, null if unknown. **/
+    private final FileChannel channel;
+
+    /** Decides when the file is synced, null if it is only synced when closed. **/
+    private SyncPolicy syncPolicy;
+
+    /** The thread on which the data is written. **/
+    private final FileWriterThread writerThread = FileWriterThread.getInstance();
 
     /** Indicates {@link #open()} has been called. **/
     private volatile boolean started = false;
@@ -27,7 +35,40 @@ class AsyncFileWriter implements FileWriter, Runnable {
     private volatile boolean stopped = false;
 
     public AsyncFileWriter(File file) throws IOException {
-        this.out = new BufferedWriter(new java.io.FileWriter(file));
+        this(file, false);
+    }
+
+    /**
+     * Instantiates a file writer that writes to a buffered stream.
+     * @param file the file
+     * @param append true to append to the file if it exists, false to truncate it
+     * @throws IOException if the file cannot be opened
+     */
+    public AsyncFileWriter(File file, boolean append) throws IOException {
+        this(new FileOutputStream(file, append));
+    }
+
+    private AsyncFileWriter(FileOutputStream out) {
+        this.out = new BufferedOutputStream(out);
+        this.channel = out.getChannel();
+    }
+
+    /**
+     * Instantiates a file writer that writes to the given stream, e.g. a {@link ChannelOutputStream}.
+     * @param out the stream, which is closed when the writer is closed
+     */
+    public AsyncFileWriter(OutputStream out) {
+        this.out = out;
+        this.channel = out instanceof ChannelOutputStream ? ((ChannelOutputStream) out).getChannel() : null;
+    }
+
+    /**
+     * Sets the policy deciding when appended data is forced to the storage device. Should be
+     * called before the first {@link #append(byte[], int, int)}.
+     * @param syncPolicy the sync policy, or null to sync only when the file is closed
+     */
+    public void setSyncPolicy(SyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
     }
 
     /**
@@ -36,44 +77,53 @@ class AsyncFileWriter implements FileWriter, Runnable {
      * @return the file writer object
      */
     public FileWriter append(CharSequence seq) {
+        byte[] data = seq.toString().getBytes(Charset.forName("UTF-8"));
+        return append(data, 0, data.length);
+    }
+
+    /**
+     * Appends the specified bytes to the file. The bytes are copied, so the array may be
+     * reused once the call returns.
+     * @param data the array containing the data
+     * @param offset the offset of the data in the array
+     * @param length the number of bytes to append
+     * @return the file writer object
+     */
+    public FileWriter append(byte[] data, int offset, int length) {
         if (!started) {
             throw new IllegalStateException("open() call expected before append()");
         }
-        try {
-            queue.put(seq);
-        } catch (InterruptedException ignored) {
+        if (stopped) {
+            throw new IllegalStateException("append() called after close()");
         }
+        writerThread.write(out, Arrays.copyOfRange(data, offset, offset + length));
+        if (syncPolicy != null && channel != null && syncPolicy.onAppend(System.nanoTime() / 1000000))
+            writerThread.sync(out, channel);
         return this;
     }
 
     /**
-     * Starts writing incoming data to disk on a separate thread.
+     * Starts writing incoming data to disk on the shared writer thread.
      */
-    public void open() {
+    public synchronized void open() {
+        if (started) return;
         this.started = true;
-        new Thread(this).start();
-    }
-
-    public void run() {
-        while (!stopped) {
-            try {
-                CharSequence item = queue.poll(100, TimeUnit.MICROSECONDS);
-                if (item != null) {
-                    try {
-                        out.append(item);
-                    } catch (IOException ignore) {}
-                }
-            } catch (InterruptedException ignore) {}
-        }
-        try {
-            out.close();
-        } catch (IOException ignore) {}
+        writerThread.register();
     }
 
     /**
-     * Closes the file writer.
+     * Closes the file writer, blocking until all data appended before the call has been
+     * written and the file is closed.
      */
-    public void close() {
+    public synchronized void close() {
+        if (stopped) return;
         this.stopped = true;
+        if (started) {
+            writerThread.close(out);
+        } else {
+            try {
+                out.close();
+            } catch (IOException ignore) {}
+        }
     }
-}
\ No newline at end of file
+}
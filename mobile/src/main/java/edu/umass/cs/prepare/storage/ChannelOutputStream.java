@@ -0,0 +1,154 @@
+package edu.umass.cs.prepare.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Byte-oriented output stream that appends to a file through an NIO {@link FileChannel}. Data is
+ * copied into a set of direct {@link ByteBuffer}s, each a multiple of the file system's block
+ * size, and once all buffers are full they are written with a single gathering write. Since the
+ * buffers are direct, the channel writes them without the intermediate copy a heap buffer
+ * requires, and in steady state every write covers whole blocks.
+ * <br><br>
+ * The stream is not thread-safe; it is meant to be used on the {@link FileWriterThread}, e.g.
+ * {@code new AsyncFileWriter(new ChannelOutputStream(file, blockSize))}.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ *
+ * @see AsyncFileWriter
+ */
+class ChannelOutputStream extends OutputStream {
+
+    /** The block size assumed if it is not known. **/
+    static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    /** The minimum size of each buffer in bytes, rounded up to a multiple of the block size. **/
+    private static final int MIN_BUFFER_SIZE = 16 * 1024;
+
+    /** The number of buffers written per gathering write. **/
+    private static final int BUFFER_COUNT = 4;
+
+    /** The channel to which the data is written. **/
+    private final FileChannel channel;
+
+    /** The direct buffers, filled in order. **/
+    private final ByteBuffer[] buffers;
+
+    /** The index of the buffer currently being filled. **/
+    private int current = 0;
+
+    /** Indicates whether the stream has been closed. **/
+    private boolean closed = false;
+
+    /**
+     * Opens a file for writing, truncating it if it exists.
+     * @param file the file
+     * @param blockSize the block size of the file system, e.g. as given by
+     *                  {@link android.os.StatFs#getBlockSizeLong()}, or 0 if unknown
+     * @throws IOException if the file cannot be opened
+     */
+    ChannelOutputStream(File file, int blockSize) throws IOException {
+        this(file, blockSize, false);
+    }
+
+    /**
+     * Opens a file for writing.
+     * @param file the file
+     * @param blockSize the block size of the file system, or 0 if unknown
+     * @param append true to append to the file if it exists, false to truncate it
+     * @throws IOException if the file cannot be opened
+     */
+    ChannelOutputStream(File file, int blockSize, boolean append) throws IOException {
+        if (blockSize <= 0)
+            blockSize = DEFAULT_BLOCK_SIZE;
+        int bufferSize = (MIN_BUFFER_SIZE + blockSize - 1) / blockSize * blockSize;
+        this.channel = new FileOutputStream(file, append).getChannel();
+        this.buffers = new ByteBuffer[BUFFER_COUNT];
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(bufferSize);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+        if (!buffers[current].hasRemaining())
+            advance();
+        buffers[current].put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+        while (length > 0) {
+            ByteBuffer buffer = buffers[current];
+            if (!buffer.hasRemaining()) {
+                advance();
+                continue;
+            }
+            int n = Math.min(buffer.remaining(), length);
+            buffer.put(data, offset, n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Moves on to the next buffer, writing all buffers if the last one is full.
+     */
+    private void advance() throws IOException {
+        if (current < buffers.length - 1)
+            current++;
+        else
+            writeBuffers();
+    }
+
+    /**
+     * Writes the filled buffers to the channel with a gathering write and clears them.
+     */
+    private void writeBuffers() throws IOException {
+        int count = current + 1;
+        long remaining = 0;
+        for (int i = 0; i < count; i++) {
+            buffers[i].flip();
+            remaining += buffers[i].remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers, 0, count);
+        }
+        for (int i = 0; i < count; i++) {
+            buffers[i].clear();
+        }
+        current = 0;
+    }
+
+    /** Returns the channel to which the data is written. **/
+    FileChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (current > 0 || buffers[0].position() > 0)
+            writeBuffers();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        try {
+            flush();
+        } finally {
+            closed = true;
+            channel.close();
+        }
+    }
+}
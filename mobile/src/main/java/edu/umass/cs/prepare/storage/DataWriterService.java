@@ -4,11 +4,11 @@ import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.StatFs;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
@@ -16,20 +16,29 @@ import android.widget.Toast;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-import autovalue.shaded.org.apache.commons.lang.ArrayUtils;
-import edu.umass.cs.prepare.MHLClient.MHLConnectionStateHandler;
-import edu.umass.cs.prepare.MHLClient.MHLMobileIOClient;
-import edu.umass.cs.prepare.MHLClient.MHLSensorReadings.MHLSensorReading;
 import edu.umass.cs.prepare.R;
+import edu.umass.cs.prepare.communication.server.FileUploadService;
+import edu.umass.cs.prepare.communication.server.MHLSensorUploader;
+import edu.umass.cs.prepare.communication.server.SensorUploader;
+import edu.umass.cs.prepare.communication.server.SocketSensorUploader;
 import edu.umass.cs.prepare.communication.wearable.DataReceiverService;
 import edu.umass.cs.prepare.constants.Constants;
 import edu.umass.cs.prepare.view.activities.MainActivity;
-import edu.umass.cs.shared.communication.DataLayerUtil;
+import edu.umass.cs.shared.communication.SensorEventBus;
 import edu.umass.cs.shared.constants.SharedConstants;
 import edu.umass.cs.shared.preferences.ApplicationPreferences;
+import edu.umass.cs.shared.util.GzipBlockEncoder;
+import edu.umass.cs.shared.util.SensorCsvEncoder;
+import edu.umass.cs.shared.util.SessionFileEncoder;
+import edu.umass.cs.shared.util.SessionManifest;
 
 /**
  * The Data Writer Service is responsible for writing all sensor data to their respective files.
@@ -49,17 +58,121 @@ public class DataWriterService extends Service {
     /** CSV extension */
     private static final String CSV_EXTENSION = ".csv";
 
+    /** Extension appended to compressed files */
+    private static final String GZIP_EXTENSION = ".gz";
+
+    /** Session file extension */
+    private static final String SESSION_EXTENSION = ".bin";
+
+    /** The name of the session file, followed by the session start time. **/
+    private static final String SESSION_FILENAME = "SESSION";
+
+    /** The name of the session manifest, followed by the session start time. **/
+    private static final String MANIFEST_FILENAME = "MANIFEST";
+
+    /** The size in bytes after which a sensor file is closed and a new segment started. **/
+    private static final long MAX_SEGMENT_BYTES = 16 * 1024 * 1024;
+
+    /** The time in milliseconds after which a sensor file is closed and a new segment started. **/
+    private static final long MAX_SEGMENT_MILLIS = 60 * 60 * 1000;
+
+    /** Set of formats in which sensor data can be written locally. **/
+    public enum FILE_FORMAT {
+        /** One CSV file per sensor, the format expected by existing analysis scripts. **/
+        CSV,
+        /** A single binary columnar file for all sensors, see {@link SessionFileEncoder}. **/
+        SESSION
+    }
+
+    /** The format in which sensor data is written locally, as set in the application preferences when the service starts writing. **/
+    private FILE_FORMAT localFileFormat = FILE_FORMAT.CSV;
+
+    /** Indicates whether CSV files are compressed, see {@link GzipBlockEncoder}, as set in the application preferences when the service starts writing. **/
+    private boolean compressCsv;
+
+    /** The interval in milliseconds at which compressed blocks are completed, bounding the data lost in a crash. **/
+    private static final long BLOCK_FLUSH_MILLIS = 30 * 1000;
+
+    /**
+     * Indicates whether sensor files are written through a {@link ChannelOutputStream} rather than a
+     * buffered stream, as set in the application preferences when the service starts writing. Off
+     * by default: the channel was not consistently faster than the buffered stream in the
+     * {@code ChannelOutputStreamTest} benchmark, so it is left for experiments.
+     */
+    private boolean useFileChannel;
+
+    /** The number of batches after which a sensor file is forced to the storage device. **/
+    private static final int SYNC_INTERVAL_BATCHES = 50;
+
+    /** The time in milliseconds after which a sensor file is forced to the storage device. **/
+    private static final long SYNC_INTERVAL_MILLIS = 5000;
+
+    /** The name of the recovery log in the application's private files directory. **/
+    private static final String RECOVERY_LOG_FILENAME = "recovery.log";
+
     /** Indicates whether data should be sent to the server. **/
-    private boolean writeServer;
+    private volatile boolean writeServer;
+
+    /** Streams sensor data to the server, null if data is not sent to the server. **/
+    private SensorUploader uploader;
 
-    /** Client responsible for communicating to the server. **/
-    private MHLMobileIOClient client;
+    /** The name of the directory, in the application's private files directory, where data not yet sent to the server is spooled. **/
+    private static final String UPLOAD_SPOOL_DIRECTORY = "upload-spool";
+
+    /** The maximum time in milliseconds to wait for queued sensor data to be sent when the service is stopped. **/
+    private static final long UPLOAD_TERMINATION_TIMEOUT_MILLIS = 5000;
 
     /**
      * Mapping from sensor identifiers, e.g. "ACCELEROMETER_WEARABLE", to file writers
      */
     private final HashMap<String, AsyncFileWriter> fileWriterHashMap = new HashMap<>();
 
+    /** Mapping from sensor identifiers to the statistics of the segments currently being written. **/
+    private final HashMap<String, SessionManifest.Segment> segmentHashMap = new HashMap<>();
+
+    /** Mapping from sensor identifiers to the time in milliseconds at which their current segment ends. **/
+    private final HashMap<String, Long> segmentDeadlineHashMap = new HashMap<>();
+
+    /** Lists the completed segments of the current session, null if no file has been opened yet. **/
+    private SessionManifest manifest;
+
+    /** Formats sensor data as CSV rows, accessed only on the {@link #writerExecutor}. **/
+    private final SensorCsvEncoder csvEncoder = new SensorCsvEncoder();
+
+    /** Mapping from sensor identifiers to the compressors of their CSV files, if {@link #compressCsv} is set. **/
+    private final HashMap<String, GzipBlockEncoder> compressorHashMap = new HashMap<>();
+
+    /** Encodes sensor data into the session file, null if no session file is open. **/
+    private SessionFileEncoder sessionEncoder;
+
+    /** Records the open sensor files, so that an interrupted session can be continued. **/
+    private RecoveryLog recoveryLog;
+
+    /** Keeps the save directory within its quota; open files are protected from eviction. **/
+    private final StorageManager storageManager = StorageManager.getInstance();
+
+    /** Informs other application components when storage is running low. **/
+    private final StorageManager.OnStorageLowListener storageLowListener = new StorageManager.OnStorageLowListener() {
+        @Override
+        public void onStorageLow(long usableBytes) {
+            Log.w(TAG, "Storage low: " + usableBytes + " bytes available");
+            sendMessage(SharedConstants.MESSAGES.STORAGE_LOW);
+        }
+    };
+
+    /** The thread on which sensor data is written, null until subscribed and once the writers have been closed. **/
+    private ScheduledExecutorService writerExecutor;
+
+    /** Indicates whether the service receives sensor data, accessed only on the main thread. **/
+    private boolean subscribed;
+
+    /**
+     * Indicates whether the service is being stopped, i.e. the writers are being closed on the
+     * {@link #writerExecutor}. Cleared if the service is started again in the meantime. Accessed
+     * only on the main thread.
+     */
+    private boolean stopping;
+
     /**
      * Provides access to all shared application preferences.
      */
@@ -79,81 +192,296 @@ public class DataWriterService extends Service {
     public void onCreate() {
         super.onCreate();
         applicationPreferences = ApplicationPreferences.getInstance(this);
+        recoveryLog = new RecoveryLog(new File(getFilesDir(), RECOVERY_LOG_FILENAME));
     }
 
     /**
-     * Gets the file writer associated with the given sensor identifier, instantiating it if necessary.
+     * Gets the file writer associated with the given sensor identifier, instantiating it if
+     * necessary. If the current file is full, it is closed and a new segment is started.
      * @param filename the name of the file, i.e. the sensor identifier
      * @return the file writer object
      */
     private AsyncFileWriter getFileWriter(String filename) {
-        File directory = new File(applicationPreferences.getSaveDirectory());
         AsyncFileWriter writer = fileWriterHashMap.get(filename);
+        if (writer != null && isSegmentComplete(filename)) {
+            closeSegment(filename);
+            writer = null;
+        }
+        if (writer == null) {
+            String extension = compressCsv ? CSV_EXTENSION + GZIP_EXTENSION : CSV_EXTENSION;
+            File file = new File(applicationPreferences.getSaveDirectory(), filename + String.valueOf(System.currentTimeMillis()) + extension);
+            writer = openFileWriter(filename, file, false);
+            if (writer != null) {
+                fileWriterHashMap.put(filename, writer);
+                if (compressCsv)
+                    compressorHashMap.put(filename, new GzipBlockEncoder());
+            }
+        }
+        return writer;
+    }
+
+    /**
+     * Gets the writer of the session file, instantiating it and writing the file header if
+     * necessary. If the current file is full, it is completed and a new segment is started.
+     * @return the file writer object
+     */
+    private AsyncFileWriter getSessionWriter() {
+        AsyncFileWriter writer = fileWriterHashMap.get(SESSION_FILENAME);
+        if (writer != null && isSegmentComplete(SESSION_FILENAME)) {
+            closeSegment(SESSION_FILENAME);
+            writer = null;
+        }
         if (writer == null) {
-            String fullFileName = filename + String.valueOf(System.currentTimeMillis()) + CSV_EXTENSION;
+            long sessionStart = System.currentTimeMillis();
+            File file = new File(applicationPreferences.getSaveDirectory(), SESSION_FILENAME + String.valueOf(sessionStart) + SESSION_EXTENSION);
+            writer = openFileWriter(SESSION_FILENAME, file, false);
+            if (writer != null) {
+                fileWriterHashMap.put(SESSION_FILENAME, writer);
+                sessionEncoder = new SessionFileEncoder(sessionStart);
+            }
+        }
+        return writer;
+    }
+
+    /**
+     * Opens a file writer that is synced according to the {@link SyncPolicy}. New files are
+     * recorded in the {@link #recoveryLog} and start a new segment of the session.
+     * @param key the sensor identifier
+     * @param file the file
+     * @param append true to continue a file of an interrupted session, false to create a new file
+     * @return the file writer object, null if the file could not be opened
+     */
+    private AsyncFileWriter openFileWriter(String key, File file, boolean append) {
+        try {
+            AsyncFileWriter writer;
+            if (useFileChannel) {
+                writer = new AsyncFileWriter(new ChannelOutputStream(file, (int) new StatFs(file.getParent()).getBlockSizeLong(), append));
+            } else {
+                writer = new AsyncFileWriter(file, append);
+            }
+            writer.setSyncPolicy(new SyncPolicy(SYNC_INTERVAL_BATCHES, SYNC_INTERVAL_MILLIS));
+            writer.open();
+            storageManager.protect(file);
+            if (!append) {
+                openManifest();
+                recoveryLog.record(key, file);
+                segmentHashMap.put(key, new SessionManifest.Segment(key, file.getName()));
+                segmentDeadlineHashMap.put(key, System.currentTimeMillis() + MAX_SEGMENT_MILLIS);
+            }
+            return writer;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not open " + file.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Creates the manifest of the session when its first file is opened.
+     */
+    private void openManifest() throws IOException {
+        if (manifest != null)
+            return;
+        File file = new File(applicationPreferences.getSaveDirectory(), MANIFEST_FILENAME + String.valueOf(System.currentTimeMillis()) + CSV_EXTENSION);
+        manifest = new SessionManifest(file);
+        recoveryLog.record(MANIFEST_FILENAME, file);
+        storageManager.protect(file);
+    }
 
+    /**
+     * Appends data to the file associated with the given sensor identifier.
+     * @param key the sensor identifier
+     * @param writer the file writer object
+     * @param data the array containing the data
+     * @param length the number of bytes to append
+     */
+    private void append(String key, AsyncFileWriter writer, byte[] data, int length) {
+        writer.append(data, 0, length);
+        segmentHashMap.get(key).update(data, 0, length);
+    }
+
+    /**
+     * Appends CSV rows to the file associated with the given sensor identifier, compressing them
+     * first if {@link #compressCsv} is set. Compressed data is only appended once a block is
+     * complete.
+     * @param key the sensor identifier
+     * @param writer the file writer object
+     * @param data the array containing the rows
+     * @param length the number of bytes
+     */
+    private void appendCsv(String key, AsyncFileWriter writer, byte[] data, int length) {
+        GzipBlockEncoder compressor = compressorHashMap.get(key);
+        if (compressor == null) {
+            append(key, writer, data, length);
+            return;
+        }
+        compressor.write(data, 0, length);
+        if (compressor.length() > 0) {
+            append(key, writer, compressor.array(), compressor.length());
+            compressor.reset();
+        }
+    }
+
+    /**
+     * Completes the current block of each compressed file, so that at most
+     * {@link #BLOCK_FLUSH_MILLIS} of data is lost if the process is killed. Runs on the
+     * {@link #writerExecutor}.
+     */
+    private final Runnable flushCompressedBlocks = new Runnable() {
+        @Override
+        public void run() {
+            for (String key : compressorHashMap.keySet()) {
+                flushCompressor(key);
+            }
+        }
+    };
+
+    /**
+     * Compresses the current block of a file and appends it.
+     * @param key the sensor identifier
+     */
+    private void flushCompressor(String key) {
+        GzipBlockEncoder compressor = compressorHashMap.get(key);
+        AsyncFileWriter writer = fileWriterHashMap.get(key);
+        if (compressor == null || writer == null)
+            return;
+        compressor.flush();
+        if (compressor.length() > 0) {
+            append(key, writer, compressor.array(), compressor.length());
+            compressor.reset();
+        }
+    }
+
+    /**
+     * Indicates whether the current file of a sensor has reached its maximum size or duration.
+     * @param key the sensor identifier
+     * @return true if a new segment should be started
+     */
+    private boolean isSegmentComplete(String key) {
+        return segmentHashMap.get(key).getBytes() >= MAX_SEGMENT_BYTES
+                || System.currentTimeMillis() >= segmentDeadlineHashMap.get(key);
+    }
+
+    /**
+     * Closes the current file of a sensor, blocking until all its data has been written, and
+     * lists it in the manifest.
+     * @param key the sensor identifier
+     */
+    private void closeSegment(String key) {
+        GzipBlockEncoder compressor = compressorHashMap.get(key);
+        if (compressor != null) {
+            flushCompressor(key);
+            Log.d(TAG, String.format(Locale.US, "%s compressed to %.0f%%", key, 100 * compressor.getCompressionRatio()));
+            compressor.end();
+            compressorHashMap.remove(key);
+        }
+        AsyncFileWriter writer = fileWriterHashMap.remove(key);
+        SessionManifest.Segment segment = segmentHashMap.remove(key);
+        segmentDeadlineHashMap.remove(key);
+        if (key.equals(SESSION_FILENAME) && sessionEncoder != null) {
+            sessionEncoder.encodeFooter();
+            append(key, writer, sessionEncoder.array(), sessionEncoder.length());
+            sessionEncoder.reset();
+            sessionEncoder = null;
+        }
+        writer.close();
+        File file = recoveryLog.getFile(key);
+        try {
+            manifest.add(segment);
+            recoveryLog.remove(key);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not list " + segment.getFileName() + " in the manifest", e);
+        }
+        if (file != null)
+            storageManager.release(file);
+        storageManager.requestCheck();
+    }
+
+    /**
+     * Continues the session that was interrupted when the service was last killed, if any. Each
+     * file of that session is trimmed to its last complete row or chunk and reopened, so that
+     * subsequent data is appended to it rather than to a new file, and the session manifest is
+     * continued. Must be called on the {@link #writerExecutor} before any sensor data is written.
+     */
+    private void recoverSession(){
+        Map<String, File> files = recoveryLog.getFiles();
+        File manifestFile = files.remove(MANIFEST_FILENAME);
+        if (manifestFile == null)
+            return;
+        try {
+            manifest = new SessionManifest(manifestFile);
+            storageManager.protect(manifestFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not recover " + manifestFile, e);
+            return;
+        }
+        for (Map.Entry<String, File> entry : files.entrySet()) {
+            String key = entry.getKey();
+            File file = entry.getValue();
+            if (fileWriterHashMap.containsKey(key) || !file.exists())
+                continue;
+            SessionManifest.Segment segment;
             try {
-                writer = new AsyncFileWriter(new File(directory, fullFileName));
-                writer.open();
-                fileWriterHashMap.put(filename, writer);
+                if (key.equals(SESSION_FILENAME)) {
+                    SessionFileEncoder encoder = RecoveryLog.trimSessionFile(file);
+                    if (encoder == null)
+                        continue;
+                    sessionEncoder = encoder;
+                    segment = SessionManifest.scanSessionFile(key, file);
+                } else if (file.getName().endsWith(GZIP_EXTENSION)) {
+                    RecoveryLog.trimGzip(file);
+                    segment = SessionManifest.scanCsv(key, file);
+                } else {
+                    RecoveryLog.trimCsv(file);
+                    segment = SessionManifest.scanCsv(key, file);
+                }
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.w(TAG, "Could not recover " + file, e);
+                continue;
+            }
+            AsyncFileWriter writer = openFileWriter(key, file, true);
+            if (writer != null) {
+                fileWriterHashMap.put(key, writer);
+                segmentHashMap.put(key, segment);
+                if (file.getName().endsWith(GZIP_EXTENSION))
+                    compressorHashMap.put(key, new GzipBlockEncoder());
+                long segmentStart = segment.getCount() > 0 ? segment.getStartTimestamp() : System.currentTimeMillis();
+                segmentDeadlineHashMap.put(key, segmentStart + MAX_SEGMENT_MILLIS);
+                Log.i(TAG, "Continuing " + file);
             }
         }
-        return writer;
     }
 
-    /** used to receive messages from other components of the handheld app through intents, i.e. receive labels **/
-    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+    /** Writes each batch of sensor data published by other components of the handheld app, on the {@link #writerExecutor}. **/
+    private final SensorEventBus.OnSensorDataListener sensorDataListener = new SensorEventBus.OnSensorDataListener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            if (intent.getAction() != null) {
-                if (intent.getAction().equals(Constants.ACTION.BROADCAST_SENSOR_DATA)) {
-
-                    long[] timestamps = intent.getLongArrayExtra(Constants.KEY.TIMESTAMP);
-                    float[] values = intent.getFloatArrayExtra(Constants.KEY.SENSOR_DATA);
-                    SharedConstants.SENSOR_TYPE sensorType = DataLayerUtil.deserialize(SharedConstants.SENSOR_TYPE.class).from(intent);
-
-                    if (sensorType == SharedConstants.SENSOR_TYPE.BATTERY_METAWEAR) return; //ignore battery readings
-
-                    StringBuilder builder = new StringBuilder(timestamps.length * (Constants.BYTES_PER_TIMESTAMP + Constants.BYTES_PER_SENSOR_READING + 6));
-
-                    boolean receivedRSSI = sensorType.getSensor().equals(SharedConstants.SENSOR.RSSI.TITLE);
-                    final String formatString;
-                    if (receivedRSSI)
-                        formatString = "%f\n";
-                    else
-                        formatString = "%f,%f,%f\n";
-
-                    boolean metawear = sensorType.getDevice().equals(SharedConstants.DEVICE.METAWEAR.TITLE);
-                    for (int i = 0; i < timestamps.length; i++) {
-                        long timestamp = timestamps[i];
-                        final float[] reading;
-                        if (receivedRSSI){
-                            reading = new float[]{values[i]};
-                        }
-                        else {
-                            reading = new float[]{
-                                    values[3 * i] * (metawear ? SharedConstants.GRAVITY : 1),
-                                    values[3 * i + 1] * (metawear ? SharedConstants.GRAVITY : 1),
-                                    values[3 * i + 2] * (metawear ? SharedConstants.GRAVITY : 1)};
-                        }
-
-                        if (writeServer) {
-                            client.addSensorReading(MHLSensorReading.getReading(sensorType, timestamp, reading));
-                            //we must wait briefly after adding to the queue, otherwise subsequent data will not be received
-                            try {
-                                Thread.sleep(10);
-                            } catch (InterruptedException ignored) {}
-                        }
-                        if (applicationPreferences.writeLocal()){
-                            builder.append(String.format(Locale.getDefault(), "%d,", timestamp));
-                            builder.append(String.format(Locale.getDefault(), formatString, ArrayUtils.toObject(reading)));
-                        }
-                    }
+        public void onSensorData(SharedConstants.SENSOR_TYPE sensorType, long[] timestamps, float[] values, int count, int nDimensions) {
+            if (sensorType == SharedConstants.SENSOR_TYPE.BATTERY_METAWEAR || count == 0) return; //ignore battery readings
+
+            boolean receivedRSSI = sensorType.getSensor().equals(SharedConstants.SENSOR.RSSI.TITLE);
+            boolean metawear = sensorType.getDevice().equals(SharedConstants.DEVICE.METAWEAR.TITLE);
+            float[] scaledValues = csvEncoder.scale(values, count * nDimensions, metawear && !receivedRSSI ? SharedConstants.GRAVITY : 1);
 
-                    if (applicationPreferences.writeLocal())
-                        getFileWriter(sensorType.name()).append(builder.toString());
+            if (writeServer) {
+                uploader.upload(sensorType, timestamps, scaledValues, count, nDimensions);
+            }
+            if (applicationPreferences.writeLocal()) {
+                if (localFileFormat == FILE_FORMAT.SESSION) {
+                    AsyncFileWriter writer = getSessionWriter();
+                    if (writer != null) {
+                        sessionEncoder.encodeChunk(sensorType, timestamps, scaledValues, count, nDimensions);
+                        append(SESSION_FILENAME, writer, sessionEncoder.array(), sessionEncoder.length());
+                        sessionEncoder.reset();
+                        segmentHashMap.get(SESSION_FILENAME).addReadings(timestamps[0], timestamps[count - 1], count);
+                    }
+                } else {
+                    String key = sensorType.name();
+                    AsyncFileWriter writer = getFileWriter(key);
+                    if (writer != null) {
+                        csvEncoder.reset();
+                        csvEncoder.encode(timestamps, scaledValues, count, nDimensions);
+                        appendCsv(key, writer, csvEncoder.array(), csvEncoder.length());
+                        segmentHashMap.get(key).addReadings(timestamps[0], timestamps[count - 1], count);
+                    }
                 }
             }
         }
@@ -166,9 +494,19 @@ public class DataWriterService extends Service {
     private void init(){
         networkState = NETWORK_STATE.DISCONNECTED;
         writeServer = applicationPreferences.writeServer();
+        if (uploader != null)
+            uploader.disconnect(UPLOAD_TERMINATION_TIMEOUT_MILLIS);
         if (writeServer) {
-            client = new MHLMobileIOClient(applicationPreferences.getIpAddress(), SharedConstants.SERVER_PORT, applicationPreferences.getSubjectID());
-            client.setConnectionStateHandler(new MHLConnectionStateHandler() {
+            SensorUploader mhlUploader = new MHLSensorUploader(applicationPreferences.getIpAddress(),
+                    SharedConstants.SERVER_PORT, applicationPreferences.getSubjectID());
+            if (applicationPreferences.sendBinaryFrames()) {
+                // servers without frame support receive the data through the MHL client
+                uploader = new SocketSensorUploader(applicationPreferences.getIpAddress(), SharedConstants.SERVER_PORT,
+                        applicationPreferences.getSubjectID(), new File(getFilesDir(), UPLOAD_SPOOL_DIRECTORY), mhlUploader);
+            } else {
+                uploader = mhlUploader;
+            }
+            uploader.setConnectionStateListener(new SensorUploader.ConnectionStateListener() {
                 @Override
                 public void onConnected() {
                     sendMessage(SharedConstants.MESSAGES.SERVER_CONNECTION_SUCCEEDED);
@@ -179,40 +517,69 @@ public class DataWriterService extends Service {
 
                 @Override
                 public void onConnectionFailed() {
-                    writeServer = false;
+                    // the socket uploader spools data until it reconnects, the MHL uploader stops sending
                     sendMessage(SharedConstants.MESSAGES.SERVER_CONNECTION_FAILED);
                     networkState = NETWORK_STATE.CONNECTION_FAILED;
                     NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
                     notificationManager.notify(SharedConstants.NOTIFICATION_ID.DATA_WRITER_SERVICE, getNotification());
                 }
             });
-            client.connect();
+            uploader.connect();
         }
     }
 
     /**
-     * Registers a receiver with an intent filter for message
-     * {@link edu.umass.cs.prepare.constants.Constants.ACTION#BROADCAST_SENSOR_DATA}, i.e.
-     * the service listens for sensor data sent from another application component.
+     * Subscribes to sensor data published by other application components on the
+     * {@link SensorEventBus}. Every batch is received at full rate and written on a dedicated
+     * thread, so that neither the publishing thread nor the main thread waits for the disk or
+     * the server.
      */
-    private void registerReceiver(){
-        LocalBroadcastManager broadcastManager = LocalBroadcastManager.getInstance(this);
-        //the intent filter specifies the messages we are interested in receiving
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(Constants.ACTION.BROADCAST_SENSOR_DATA);
-        broadcastManager.registerReceiver(receiver, filter);
+    private void subscribe(){
+        if (writerExecutor == null) {
+            // the file settings apply until the writers are closed
+            useFileChannel = applicationPreferences.useFileChannel();
+            compressCsv = applicationPreferences.compressFiles();
+            try {
+                localFileFormat = FILE_FORMAT.valueOf(applicationPreferences.getLocalFileFormat());
+            } catch (IllegalArgumentException e) {
+                localFileFormat = FILE_FORMAT.CSV;
+            }
+            writerExecutor = Executors.newSingleThreadScheduledExecutor();
+            if (compressCsv)
+                writerExecutor.scheduleWithFixedDelay(flushCompressedBlocks, BLOCK_FLUSH_MILLIS, BLOCK_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        if (subscribed)
+            return;
+        // the executor is reused if the service is started again while its writers are being closed
+        if (applicationPreferences.writeLocal()) {
+            configureStorageManager(storageManager, applicationPreferences);
+            storageManager.register(storageLowListener);
+            writerExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    recoverSession();
+                }
+            });
+        }
+        SensorEventBus.getInstance().subscribe(sensorDataListener, writerExecutor);
+        subscribed = true;
     }
 
     /**
-     * Unregisters the broadcast receiver.
+     * Configures the storage manager with the save directory and the quota and eviction policy
+     * set in the application preferences.
+     * @param storageManager the storage manager
+     * @param applicationPreferences the application preferences
      */
-    private void unregisterReceiver(){
-        LocalBroadcastManager broadcastManager = LocalBroadcastManager.getInstance(this);
+    public static void configureStorageManager(StorageManager storageManager, ApplicationPreferences applicationPreferences){
+        StorageManager.EVICTION_POLICY evictionPolicy;
         try {
-            broadcastManager.unregisterReceiver(receiver);
-        }catch(IllegalArgumentException e){
-            e.printStackTrace();
+            evictionPolicy = StorageManager.EVICTION_POLICY.valueOf(applicationPreferences.getEvictionPolicy());
+        } catch (IllegalArgumentException e) {
+            evictionPolicy = StorageManager.EVICTION_POLICY.OLDEST_FIRST;
         }
+        storageManager.configure(new File(applicationPreferences.getSaveDirectory()),
+                applicationPreferences.getStorageQuota() * 1024L * 1024L, StorageManager.DEFAULT_RESERVE_BYTES, evictionPolicy);
     }
 
     /**
@@ -272,8 +639,9 @@ public class DataWriterService extends Service {
             if (!applicationPreferences.writeServer() && !applicationPreferences.writeLocal()){
                 stopSelf(); //no need to continue if not saving the data
             }else {
+                stopping = false;
                 init();
-                registerReceiver();
+                subscribe();
                 startForeground(SharedConstants.NOTIFICATION_ID.DATA_WRITER_SERVICE, getNotification());
             }
         } else if (intent.getAction().equals(SharedConstants.ACTIONS.STOP_SERVICE)) {
@@ -303,27 +671,87 @@ public class DataWriterService extends Service {
     }
 
     /**
-     * Stops the data writer background service.
+     * Stops the data writer background service. The service unsubscribes from sensor data right
+     * away, but the batches already received are written, the files closed and the uploader
+     * disconnected on the {@link #writerExecutor}, so that the main thread never waits for the
+     * disk or the network. The service is released once that has completed, see
+     * {@link #onWritersClosed(SensorUploader, boolean)}.
      */
     private void stopService(){
-        unregisterReceiver();
-        if (applicationPreferences.writeLocal())
-            closeAllWriters();
+        if (stopping)
+            return;
+        stopping = true;
+        if (subscribed) {
+            SensorEventBus.getInstance().unsubscribe(sensorDataListener);
+            storageManager.unregister(storageLowListener);
+            subscribed = false;
+        }
+        final boolean writeLocal = applicationPreferences.writeLocal();
+        final SensorUploader closingUploader = uploader;
+        final Runnable closeWriters = new Runnable() {
+            @Override
+            public void run() {
+                if (writeLocal)
+                    closeAllWriters();
+                if (closingUploader != null) {
+                    closingUploader.disconnect(UPLOAD_TERMINATION_TIMEOUT_MILLIS);
+                    Log.d(TAG, closingUploader.toString());
+                }
+                new Handler(getMainLooper()).post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onWritersClosed(closingUploader, writeLocal);
+                    }
+                });
+            }
+        };
+        if (writerExecutor != null)
+            writerExecutor.execute(closeWriters);
+        else
+            closeWriters.run();
+    }
+
+    /**
+     * Releases the service once its writers have been closed, unless it has been started again in
+     * the meantime, in which case the {@link #writerExecutor} is kept for the new session. Called
+     * on the main thread.
+     * @param closedUploader the uploader that was disconnected, if any
+     * @param writeLocal whether data was written locally
+     */
+    private void onWritersClosed(SensorUploader closedUploader, boolean writeLocal){
+        if (uploader == closedUploader)
+            uploader = null;
+        if (!stopping)
+            return;
 
         sendMessage(SharedConstants.MESSAGES.SERVER_DISCONNECTED);
+        if (writeLocal)
+            FileUploadService.start(this);
+        if (writerExecutor != null) {
+            writerExecutor.shutdown();
+            writerExecutor = null;
+        }
 
         Log.d(TAG, "stop service");
+        stopping = false;
         stopForeground(true);
         stopSelf();
     }
 
     /**
-     * Closes all file open writers.
+     * Closes all file open writers, blocking until all data has been written, and lists the
+     * final segments in the manifest. The session file, if any, is completed with its index.
+     * Called on the {@link #writerExecutor}.
      */
     private void closeAllWriters(){
-        for (String key : fileWriterHashMap.keySet()){
-            fileWriterHashMap.get(key).close();
+        for (String key : new ArrayList<>(fileWriterHashMap.keySet())){
+            closeSegment(key);
         }
+        File manifestFile = recoveryLog.getFile(MANIFEST_FILENAME);
+        if (manifestFile != null)
+            storageManager.release(manifestFile);
+        manifest = null;
+        recoveryLog.clear();
     }
 
     @Override
@@ -2,5 +2,6 @@ package edu.umass.cs.prepare.storage;
 
 public interface FileWriter {
     FileWriter append(CharSequence seq);
+    FileWriter append(byte[] data, int offset, int length);
     void close();
-}
\ No newline at end of file
+}
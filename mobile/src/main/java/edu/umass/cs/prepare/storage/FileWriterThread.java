@@ -0,0 +1,182 @@
+package edu.umass.cs.prepare.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The single thread on which all {@link AsyncFileWriter}s write to disk. Writers enqueue their
+ * data, and the thread drains the queue in bulk, writing each chunk to its file. It blocks while
+ * the queue is empty and exits once the last writer has been closed, so that idle writers cause
+ * no wakeups at all.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ *
+ * @see AsyncFileWriter
+ */
+class FileWriterThread implements Runnable {
+
+    @SuppressWarnings("unused")
+    /** used for debugging purposes */
+    private static final String TAG = FileWriterThread.class.getName();
+
+    /** The maximum number of chunks written per drain of the queue. **/
+    private static final int MAX_DRAIN_SIZE = 256;
+
+    /** Data to be written to a file, or a request to sync or close it. **/
+    private static class Chunk {
+        private final OutputStream out;
+
+        /** The data, or null if the file should be synced or closed. **/
+        private final byte[] data;
+
+        /** The channel to force to the device for sync requests, null otherwise. **/
+        private final FileChannel channel;
+
+        /** Counted down once the file has been closed, null for data chunks and sync requests. **/
+        private final CountDownLatch closed;
+
+        private Chunk(OutputStream out, byte[] data, FileChannel channel, CountDownLatch closed) {
+            this.out = out;
+            this.data = data;
+            this.channel = channel;
+            this.closed = closed;
+        }
+    }
+
+    private static FileWriterThread instance;
+
+    /** The chunks waiting to be written, from all open files. **/
+    private final BlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+
+    /** Guards {@link #thread} and {@link #openCount}. **/
+    private final Object lock = new Object();
+
+    /** The running thread, or null if no file is open. **/
+    private Thread thread;
+
+    /** The number of open files. **/
+    private int openCount = 0;
+
+    static synchronized FileWriterThread getInstance() {
+        if (instance == null)
+            instance = new FileWriterThread();
+        return instance;
+    }
+
+    private FileWriterThread() {}
+
+    /**
+     * Registers an open file, starting the thread if necessary.
+     */
+    void register() {
+        synchronized (lock) {
+            openCount++;
+            if (thread == null) {
+                thread = new Thread(this, "FileWriterThread");
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Queues data to be written to a file. The array is owned by the thread afterwards.
+     * @param out the stream of the file
+     * @param data the data
+     */
+    void write(OutputStream out, byte[] data) {
+        queue.add(new Chunk(out, data, null, null));
+    }
+
+    /**
+     * Flushes all data queued for the file so far and forces it to the storage device, without
+     * waiting for it to happen.
+     * @param out the stream of the file
+     * @param channel the channel of the file
+     */
+    void sync(OutputStream out, FileChannel channel) {
+        queue.add(new Chunk(out, null, channel, null));
+    }
+
+    /**
+     * Writes all data queued for the file, then flushes and closes it, blocking until it is closed.
+     * @param out the stream of the file
+     */
+    void close(OutputStream out) {
+        CountDownLatch closed = new CountDownLatch(1);
+        queue.add(new Chunk(out, null, null, closed));
+        try {
+            closed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Chunk> chunks = new ArrayList<>(MAX_DRAIN_SIZE);
+        Set<OutputStream> written = new LinkedHashSet<>();
+        while (true) {
+            try {
+                chunks.add(queue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            queue.drainTo(chunks, MAX_DRAIN_SIZE - 1);
+            for (Chunk chunk : chunks) {
+                if (chunk.data != null) {
+                    try {
+                        chunk.out.write(chunk.data);
+                        written.add(chunk.out);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                } else if (chunk.closed == null) {
+                    try {
+                        chunk.out.flush();
+                        chunk.channel.force(false);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                } else {
+                    written.remove(chunk.out);
+                    try {
+                        chunk.out.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    chunk.closed.countDown();
+                    synchronized (lock) {
+                        openCount--;
+                    }
+                }
+            }
+            chunks.clear();
+            if (queue.isEmpty()) {
+                // push buffered data to the files while idle
+                for (OutputStream out : written) {
+                    try {
+                        out.flush();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                written.clear();
+                synchronized (lock) {
+                    if (openCount == 0 && queue.isEmpty()) {
+                        thread = null;
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
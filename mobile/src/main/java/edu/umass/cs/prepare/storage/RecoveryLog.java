@@ -0,0 +1,255 @@
+package edu.umass.cs.prepare.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import edu.umass.cs.shared.util.SessionFileEncoder;
+import edu.umass.cs.shared.util.SessionFileReader;
+
+/**
+ * Small persistent log of the files written in the current recording session. An entry is
+ * recorded whenever a sensor file is created, and the log is cleared once all files have been
+ * closed properly. If the log still has entries when the data writer starts, the previous
+ * session was interrupted, e.g. because the process was killed; its files can then be repaired
+ * with {@link #trimCsv(File)} or {@link #trimSessionFile(File)} and written to further, so that
+ * the session continues in the same files.
+ * <br><br>
+ * The log is a properties file mapping each sensor identifier to the path of its file. It is
+ * replaced atomically on every update.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ *
+ * @see SyncPolicy
+ */
+class RecoveryLog {
+
+    /** The number of bytes read at a time when searching for the last complete line. **/
+    private static final int SEARCH_BLOCK_SIZE = 4096;
+
+    /** The number of bytes of a gzip member header without optional fields. **/
+    private static final int GZIP_HEADER_SIZE = 10;
+
+    /** The number of bytes of a gzip member trailer. **/
+    private static final int GZIP_TRAILER_SIZE = 8;
+
+    /** The log file. **/
+    private final File logFile;
+
+    /** The entries of the log, mapping sensor identifiers to file paths. **/
+    private final Properties entries = new Properties();
+
+    /**
+     * Opens the recovery log, reading the entries of an interrupted session if there are any.
+     * @param logFile the log file, which need not exist
+     */
+    RecoveryLog(File logFile) {
+        this.logFile = logFile;
+        if (logFile.exists()) {
+            try {
+                FileInputStream in = new FileInputStream(logFile);
+                try {
+                    entries.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                e.printStackTrace();
+                entries.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the files of the interrupted session.
+     * @return a mapping from sensor identifiers to files, empty if there is nothing to recover
+     */
+    synchronized Map<String, File> getFiles() {
+        Map<String, File> files = new HashMap<>();
+        for (String key : entries.stringPropertyNames()) {
+            files.put(key, new File(entries.getProperty(key)));
+        }
+        return files;
+    }
+
+    /**
+     * Returns the file recorded for the given sensor identifier.
+     * @param key the sensor identifier
+     * @return the file, or null if none is recorded
+     */
+    synchronized File getFile(String key) {
+        String path = entries.getProperty(key);
+        return path != null ? new File(path) : null;
+    }
+
+    /**
+     * Records that a file is being written for the given sensor identifier.
+     * @param key the sensor identifier
+     * @param file the file
+     * @throws IOException if the log cannot be written
+     */
+    synchronized void record(String key, File file) throws IOException {
+        entries.setProperty(key, file.getAbsolutePath());
+        save();
+    }
+
+    /**
+     * Removes the entry of a sensor identifier once its file has been closed.
+     * @param key the sensor identifier
+     * @throws IOException if the log cannot be written
+     */
+    synchronized void remove(String key) throws IOException {
+        if (entries.remove(key) != null)
+            save();
+    }
+
+    /**
+     * Clears the log once all files of the session have been closed.
+     */
+    synchronized void clear() {
+        entries.clear();
+        if (logFile.exists() && !logFile.delete())
+            logFile.deleteOnExit();
+    }
+
+    private void save() throws IOException {
+        File temp = new File(logFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            entries.store(out, null);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(logFile))
+            throw new IOException("Could not replace " + logFile);
+    }
+
+    /**
+     * Truncates a CSV file after its last complete line, removing a row that was only partly
+     * written when the process was killed.
+     * @param file the CSV file
+     * @return the length of the file after truncation
+     * @throws IOException if the file cannot be read or truncated
+     */
+    static long trimCsv(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long length = raf.length();
+            byte[] block = new byte[SEARCH_BLOCK_SIZE];
+            long end = length;
+            while (end > 0) {
+                int n = (int) Math.min(block.length, end);
+                raf.seek(end - n);
+                raf.readFully(block, 0, n);
+                for (int i = n - 1; i >= 0; i--) {
+                    if (block[i] == '\n') {
+                        long validLength = end - n + i + 1;
+                        if (validLength < length)
+                            raf.setLength(validLength);
+                        return validLength;
+                    }
+                }
+                end -= n;
+            }
+            raf.setLength(0);
+            return 0;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Truncates a gzip file written by a {@link edu.umass.cs.shared.util.GzipBlockEncoder} after
+     * its last complete member, removing a member that was only partly written when the process
+     * was killed. The members are verified against their checksums.
+     * @param file the gzip file
+     * @return the length of the file after truncation
+     * @throws IOException if the file cannot be read or truncated
+     */
+    static long trimGzip(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        Inflater inflater = new Inflater(true);
+        try {
+            long length = raf.length();
+            long validLength = 0;
+            byte[] input = new byte[SEARCH_BLOCK_SIZE];
+            byte[] output = new byte[4 * SEARCH_BLOCK_SIZE];
+            CRC32 crc = new CRC32();
+            while (validLength + GZIP_HEADER_SIZE + GZIP_TRAILER_SIZE <= length) {
+                raf.seek(validLength);
+                raf.readFully(input, 0, GZIP_HEADER_SIZE);
+                if (input[0] != (byte) 0x1f || input[1] != (byte) 0x8b || input[2] != 8 || input[3] != 0)
+                    break;
+                inflater.reset();
+                crc.reset();
+                long size = 0;
+                try {
+                    while (!inflater.finished()) {
+                        if (inflater.needsInput()) {
+                            int n = raf.read(input);
+                            if (n <= 0)
+                                break;
+                            inflater.setInput(input, 0, n);
+                        }
+                        int n = inflater.inflate(output);
+                        crc.update(output, 0, n);
+                        size += n;
+                    }
+                } catch (DataFormatException e) {
+                    break;
+                }
+                long trailer = validLength + GZIP_HEADER_SIZE + inflater.getBytesRead();
+                if (!inflater.finished() || trailer + GZIP_TRAILER_SIZE > length)
+                    break;
+                raf.seek(trailer);
+                int checksum = Integer.reverseBytes(raf.readInt());
+                int isize = Integer.reverseBytes(raf.readInt());
+                if (checksum != (int) crc.getValue() || isize != (int) size)
+                    break;
+                validLength = trailer + GZIP_TRAILER_SIZE;
+            }
+            if (validLength < length)
+                raf.setLength(validLength);
+            return validLength;
+        } finally {
+            inflater.end();
+            raf.close();
+        }
+    }
+
+    /**
+     * Truncates a session file after its last complete chunk, removing a chunk that was only
+     * partly written when the process was killed.
+     * @param file the session file
+     * @return an encoder that continues the session file, or null if the file is already
+     * complete, i.e. has a footer, and should not be written to further
+     * @throws IOException if the file is not a session file or cannot be truncated
+     */
+    static SessionFileEncoder trimSessionFile(File file) throws IOException {
+        SessionFileReader reader = new SessionFileReader(file);
+        try {
+            if (reader.isIndexed())
+                return null;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if (raf.length() > reader.getValidLength())
+                    raf.setLength(reader.getValidLength());
+            } finally {
+                raf.close();
+            }
+            return new SessionFileEncoder(reader);
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package edu.umass.cs.prepare.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import edu.umass.cs.shared.util.SessionManifest;
+
+/**
+ * Keeps the save directory within a storage quota. All files in the directory, i.e. the sensor
+ * files, session manifests and {@code VIDEO<millis>.mp4} recordings, are accounted for by type
+ * and by session. Whenever the directory exceeds its quota, or the free space on the device falls
+ * below a reserve, files are deleted according to the {@link EVICTION_POLICY} until enough space
+ * is available again. Files that are still being written are {@link #protect(File) protected}
+ * and never deleted. If the reserve cannot be restored, all registered
+ * {@link OnStorageLowListener}s are notified, so that recording can be stopped cleanly before
+ * the device is full.
+ * <br><br>
+ * The directory is checked on a background thread at a fixed interval while any listener is
+ * registered, and on {@link #requestCheck()}, e.g. after a file has been completed.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ */
+public class StorageManager {
+
+    /** The interval in milliseconds at which the directory is checked. **/
+    private static final long CHECK_INTERVAL_MILLIS = 60 * 1000;
+
+    /** The default number of bytes that should remain free on the device. **/
+    public static final long DEFAULT_RESERVE_BYTES = 200 * 1024 * 1024;
+
+    /** The prefix of session manifests, which are deleted with the last file they list. **/
+    private static final String MANIFEST_PREFIX = "MANIFEST";
+
+    /** Set of policies deciding which files are deleted first. **/
+    public enum EVICTION_POLICY {
+        /** Delete the oldest files first. **/
+        OLDEST_FIRST,
+        /** Delete files that have already been uploaded first, oldest first, then all others. **/
+        UPLOADED_FIRST
+    }
+
+    /** Notified when the free space cannot be kept above the reserve. **/
+    public interface OnStorageLowListener {
+        /**
+         * Called on the storage manager's thread when the free space is below the reserve even
+         * after all evictable files have been deleted.
+         * @param usableBytes the number of bytes still available
+         */
+        void onStorageLow(long usableBytes);
+    }
+
+    /** Indicates which files have been uploaded, for {@link EVICTION_POLICY#UPLOADED_FIRST}. **/
+    public interface UploadStatus {
+        boolean isUploaded(File file);
+    }
+
+    /** Summary of the files in the save directory. **/
+    public static class Usage {
+        private long totalBytes = 0;
+
+        private final Map<String, Long> bytesByType = new HashMap<>();
+
+        private final Map<Long, Long> bytesBySession = new HashMap<>();
+
+        /** Returns the total number of bytes in the directory. **/
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        /** Returns the number of bytes per file type, e.g. {@code ACCELEROMETER_METAWEAR} or {@code VIDEO}. **/
+        public Map<String, Long> getBytesByType() {
+            return Collections.unmodifiableMap(bytesByType);
+        }
+
+        /**
+         * Returns the number of bytes per session, identified by the start time of the session
+         * in milliseconds. Files not listed in any manifest, e.g. videos, form a session of their own.
+         */
+        public Map<Long, Long> getBytesBySession() {
+            return Collections.unmodifiableMap(bytesBySession);
+        }
+
+        private void add(String type, long session, long bytes) {
+            totalBytes += bytes;
+            Long typeBytes = bytesByType.get(type);
+            bytesByType.put(type, typeBytes == null ? bytes : typeBytes + bytes);
+            Long sessionBytes = bytesBySession.get(session);
+            bytesBySession.put(session, sessionBytes == null ? bytes : sessionBytes + bytes);
+        }
+    }
+
+    private static StorageManager instance;
+
+    /** The directory being managed, null if not configured. **/
+    private File directory;
+
+    /** The maximum number of bytes in the directory, 0 if unlimited. **/
+    private long quotaBytes = 0;
+
+    /** The number of bytes that should remain free on the device. **/
+    private long reserveBytes = DEFAULT_RESERVE_BYTES;
+
+    private EVICTION_POLICY evictionPolicy = EVICTION_POLICY.OLDEST_FIRST;
+
+    private UploadStatus uploadStatus;
+
+    /** The files that are still being written. **/
+    private final Set<File> protectedFiles = new HashSet<>();
+
+    private final List<OnStorageLowListener> listeners = new CopyOnWriteArrayList<>();
+
+    /** Runs the checks, null while no listener is registered. **/
+    private ScheduledExecutorService executor;
+
+    private ScheduledFuture<?> periodicCheck;
+
+    private final Runnable check = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                enforce();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    };
+
+    public static synchronized StorageManager getInstance() {
+        if (instance == null)
+            instance = new StorageManager();
+        return instance;
+    }
+
+    StorageManager() {}
+
+    /**
+     * Sets the directory to manage and its limits.
+     * @param directory the save directory
+     * @param quotaBytes the maximum number of bytes in the directory, 0 if unlimited
+     * @param reserveBytes the number of bytes that should remain free on the device
+     * @param evictionPolicy the policy deciding which files are deleted first
+     */
+    public synchronized void configure(File directory, long quotaBytes, long reserveBytes, EVICTION_POLICY evictionPolicy) {
+        this.directory = directory;
+        this.quotaBytes = quotaBytes;
+        this.reserveBytes = reserveBytes;
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    /**
+     * Sets which files have been uploaded.
+     * @param uploadStatus the upload status, or null if no file has been uploaded
+     */
+    public synchronized void setUploadStatus(UploadStatus uploadStatus) {
+        this.uploadStatus = uploadStatus;
+    }
+
+    /**
+     * Protects a file from eviction while it is being written.
+     * @param file the file
+     */
+    public synchronized void protect(File file) {
+        protectedFiles.add(file.getAbsoluteFile());
+    }
+
+    /**
+     * Allows a file to be evicted once it is complete.
+     * @param file the file
+     */
+    public synchronized void release(File file) {
+        protectedFiles.remove(file.getAbsoluteFile());
+    }
+
+    /**
+     * Registers a listener for low storage, starting the periodic checks if necessary.
+     * @param listener the listener
+     */
+    public synchronized void register(OnStorageLowListener listener) {
+        listeners.add(listener);
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor();
+            periodicCheck = executor.scheduleWithFixedDelay(check, 0, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Unregisters a listener, stopping the periodic checks once no listener remains.
+     * @param listener the listener
+     */
+    public synchronized void unregister(OnStorageLowListener listener) {
+        listeners.remove(listener);
+        if (listeners.isEmpty() && executor != null) {
+            periodicCheck.cancel(false);
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Checks the directory as soon as possible, without waiting for the next periodic check.
+     */
+    public synchronized void requestCheck() {
+        if (executor != null)
+            executor.execute(check);
+    }
+
+    /**
+     * Returns the type of a file, i.e. the name up to the timestamp, e.g. {@code VIDEO} for
+     * {@code VIDEO1467331200000.mp4}.
+     */
+    static String getType(File file) {
+        String name = file.getName();
+        int end = name.indexOf('.');
+        if (end < 0)
+            end = name.length();
+        int start = end;
+        while (start > 0 && Character.isDigit(name.charAt(start - 1)))
+            start--;
+        return name.substring(0, start);
+    }
+
+    /**
+     * Returns the creation time of a file, i.e. its timestamp, or the time it was last modified
+     * if its name contains none.
+     */
+    static long getTimestamp(File file) {
+        String name = file.getName();
+        String type = getType(file);
+        int end = name.indexOf('.');
+        if (end < 0)
+            end = name.length();
+        if (end > type.length()) {
+            try {
+                return Long.parseLong(name.substring(type.length(), end));
+            } catch (NumberFormatException ignored) {}
+        }
+        return file.lastModified();
+    }
+
+    /**
+     * Summarizes the files currently in the directory.
+     * @return the usage of the directory, empty if no directory is configured
+     */
+    public Usage getUsage() {
+        File[] files = listFiles();
+        Usage usage = new Usage();
+        Map<String, Long> sessions = getSessions(files);
+        for (File file : files) {
+            Long session = sessions.get(file.getName());
+            usage.add(getType(file), session != null ? session : getTimestamp(file), file.length());
+        }
+        return usage;
+    }
+
+    /**
+     * Returns the files in the directory which are no longer being written, i.e. are not
+     * protected, e.g. to upload them.
+     * @return the completed files, oldest first
+     */
+    public List<File> getCompletedFiles() {
+        Set<File> protectedFiles;
+        synchronized (this) {
+            protectedFiles = new HashSet<>(this.protectedFiles);
+        }
+        List<File> completed = new ArrayList<>();
+        final Map<File, Long> timestamps = new HashMap<>();
+        for (File file : listFiles()) {
+            if (protectedFiles.contains(file.getAbsoluteFile()))
+                continue;
+            completed.add(file);
+            timestamps.put(file, getTimestamp(file));
+        }
+        Collections.sort(completed, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(timestamps.get(a), timestamps.get(b));
+            }
+        });
+        return completed;
+    }
+
+    /**
+     * Maps the name of each file listed in a session manifest to the start time of its session.
+     */
+    private static Map<String, Long> getSessions(File[] files) {
+        Map<String, Long> sessions = new HashMap<>();
+        for (File file : files) {
+            if (!getType(file).equals(MANIFEST_PREFIX))
+                continue;
+            long session = getTimestamp(file);
+            sessions.put(file.getName(), session);
+            try {
+                for (SessionManifest.Segment segment : new SessionManifest(file).getSegments()) {
+                    sessions.put(segment.getFileName(), session);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return sessions;
+    }
+
+    private File[] listFiles() {
+        File directory;
+        synchronized (this) {
+            directory = this.directory;
+        }
+        File[] files = directory != null ? directory.listFiles() : null;
+        if (files == null)
+            return new File[0];
+        List<File> regularFiles = new ArrayList<>(files.length);
+        for (File file : files) {
+            if (file.isFile() && !file.isHidden())
+                regularFiles.add(file);
+        }
+        return regularFiles.toArray(new File[regularFiles.size()]);
+    }
+
+    /**
+     * Deletes files until the directory is within its quota and the reserve is free, and
+     * notifies the listeners if the reserve cannot be restored. Called on the background thread.
+     * @return the number of bytes deleted
+     */
+    long enforce() {
+        File directory;
+        long quotaBytes, reserveBytes;
+        EVICTION_POLICY evictionPolicy;
+        UploadStatus uploadStatus;
+        Set<File> protectedFiles;
+        synchronized (this) {
+            directory = this.directory;
+            quotaBytes = this.quotaBytes;
+            reserveBytes = this.reserveBytes;
+            evictionPolicy = this.evictionPolicy;
+            uploadStatus = this.uploadStatus;
+            protectedFiles = new HashSet<>(this.protectedFiles);
+        }
+        if (directory == null)
+            return 0;
+
+        File[] files = listFiles();
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+        long needed = 0;
+        if (quotaBytes > 0)
+            needed = totalBytes - quotaBytes;
+        needed = Math.max(needed, reserveBytes - directory.getUsableSpace());
+
+        long freed = 0;
+        if (needed > 0) {
+            for (File file : getEvictionOrder(files, protectedFiles, evictionPolicy, uploadStatus)) {
+                long length = file.length();
+                if (file.delete()) {
+                    freed += length;
+                    if (freed >= needed)
+                        break;
+                }
+            }
+        }
+        deleteOrphanedManifests(protectedFiles);
+
+        long usableBytes = directory.getUsableSpace();
+        if (usableBytes < reserveBytes) {
+            for (OnStorageLowListener listener : listeners) {
+                listener.onStorageLow(usableBytes);
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * Orders the files that may be evicted, excluding protected files and manifests.
+     */
+    private static List<File> getEvictionOrder(File[] files, Set<File> protectedFiles, EVICTION_POLICY evictionPolicy,
+                                               final UploadStatus uploadStatus) {
+        List<File> candidates = new ArrayList<>(files.length);
+        final Map<File, Long> timestamps = new HashMap<>();
+        for (File file : files) {
+            if (protectedFiles.contains(file.getAbsoluteFile()) || getType(file).equals(MANIFEST_PREFIX))
+                continue;
+            candidates.add(file);
+            timestamps.put(file, getTimestamp(file));
+        }
+        final boolean uploadedFirst = evictionPolicy == EVICTION_POLICY.UPLOADED_FIRST && uploadStatus != null;
+        final Map<File, Boolean> uploaded = new HashMap<>();
+        if (uploadedFirst) {
+            for (File file : candidates) {
+                uploaded.put(file, uploadStatus.isUploaded(file));
+            }
+        }
+        Collections.sort(candidates, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                if (uploadedFirst) {
+                    int order = Boolean.compare(uploaded.get(b), uploaded.get(a));
+                    if (order != 0)
+                        return order;
+                }
+                return Long.compare(timestamps.get(a), timestamps.get(b));
+            }
+        });
+        return candidates;
+    }
+
+    /**
+     * Deletes the manifests of sessions whose files have all been deleted.
+     */
+    private void deleteOrphanedManifests(Set<File> protectedFiles) {
+        for (File file : listFiles()) {
+            if (!getType(file).equals(MANIFEST_PREFIX) || protectedFiles.contains(file.getAbsoluteFile()))
+                continue;
+            try {
+                boolean orphaned = true;
+                for (SessionManifest.Segment segment : new SessionManifest(file).getSegments()) {
+                    if (new File(file.getParentFile(), segment.getFileName()).exists()) {
+                        orphaned = false;
+                        break;
+                    }
+                }
+                if (orphaned)
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
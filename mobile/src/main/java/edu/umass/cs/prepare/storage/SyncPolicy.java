@@ -0,0 +1,56 @@
+package edu.umass.cs.prepare.storage;
+
+/**
+ * Decides when the data appended to a file should be forced to the storage device. A sync point
+ * is reached after a given number of appended batches or once a given time has passed since the
+ * last sync point, whichever comes first, so that at most that much data is lost if the device
+ * shuts down unexpectedly, without syncing on every append. An instance keeps the state of a
+ * single file and is not thread-safe.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ *
+ * @see AsyncFileWriter#setSyncPolicy(SyncPolicy)
+ */
+class SyncPolicy {
+
+    /** The number of appended batches after which a sync point is reached, 0 if unlimited. **/
+    private final int maxBatches;
+
+    /** The time in milliseconds after which a sync point is reached, 0 if unlimited. **/
+    private final long maxIntervalMillis;
+
+    /** The number of batches appended since the last sync point. **/
+    private int batches = 0;
+
+    /** The time of the last sync point in milliseconds, or -1 if nothing has been appended yet. **/
+    private long lastSyncMillis = -1;
+
+    /**
+     * Instantiates a sync policy.
+     * @param maxBatches the number of appended batches after which to sync, 0 if unlimited
+     * @param maxIntervalMillis the time in milliseconds after which to sync, 0 if unlimited
+     */
+    SyncPolicy(int maxBatches, long maxIntervalMillis) {
+        this.maxBatches = maxBatches;
+        this.maxIntervalMillis = maxIntervalMillis;
+    }
+
+    /**
+     * Records that a batch has been appended.
+     * @param nowMillis the current time in milliseconds, from a monotonic clock
+     * @return true if the file should be synced after the batch
+     */
+    boolean onAppend(long nowMillis) {
+        if (lastSyncMillis < 0)
+            lastSyncMillis = nowMillis;
+        batches++;
+        if ((maxBatches > 0 && batches >= maxBatches)
+                || (maxIntervalMillis > 0 && nowMillis - lastSyncMillis >= maxIntervalMillis)) {
+            batches = 0;
+            lastSyncMillis = nowMillis;
+            return true;
+        }
+        return false;
+    }
+}
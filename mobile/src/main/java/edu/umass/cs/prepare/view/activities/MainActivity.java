@@ -31,6 +31,7 @@ import java.text.DecimalFormat;
 import java.util.Locale;
 
 import edu.umass.cs.prepare.R;
+import edu.umass.cs.prepare.communication.local.MainThreadExecutor;
 import edu.umass.cs.prepare.communication.local.ServiceManager;
 import edu.umass.cs.prepare.constants.Constants;
 import edu.umass.cs.prepare.view.tools.BatteryStatusActionProvider;
@@ -40,7 +41,7 @@ import edu.umass.cs.prepare.view.fragments.SettingsFragment;
 import edu.umass.cs.prepare.view.tools.ConnectionStatusActionProvider;
 import edu.umass.cs.prepare.view.tutorial.ConnectionStatusTutorial;
 import edu.umass.cs.prepare.view.tutorial.StandardTutorial;
-import edu.umass.cs.shared.communication.DataLayerUtil;
+import edu.umass.cs.shared.communication.SensorEventBus;
 import edu.umass.cs.shared.constants.SharedConstants;
 import edu.umass.cs.shared.preferences.ApplicationPreferences;
 import edu.umass.cs.shared.util.BatteryUtil;
@@ -193,12 +194,14 @@ public class MainActivity extends AppCompatActivity {
         //the intent filter specifies the messages we are interested in receiving
         IntentFilter filter = new IntentFilter();
         filter.addAction(Constants.ACTION.BROADCAST_MESSAGE);
-        filter.addAction(Constants.ACTION.BROADCAST_SENSOR_DATA);
         broadcastManager.registerReceiver(receiver, filter);
+        SensorEventBus.getInstance().subscribe(batteryLevelListener, MainThreadExecutor.getInstance(),
+                new SensorEventBus.SubscriptionOptions().setLatestOnly(true), SharedConstants.SENSOR_TYPE.BATTERY_METAWEAR);
     }
 
     @Override
     protected void onStop() {
+        SensorEventBus.getInstance().unsubscribe(batteryLevelListener);
         LocalBroadcastManager broadcastManager = LocalBroadcastManager.getInstance(this);
         try {
             broadcastManager.unregisterReceiver(receiver);
@@ -659,6 +662,9 @@ public class MainActivity extends AppCompatActivity {
                         case SharedConstants.MESSAGES.NO_MOTION_DETECTED:
                             showStatus(getString(R.string.status_no_motion));
                             break;
+                        case SharedConstants.MESSAGES.STORAGE_LOW:
+                            showStatus(getString(R.string.status_storage_low));
+                            break;
                         case SharedConstants.MESSAGES.INVALID_ADDRESS:
                             metawearStatusActionProvider.setStatus(ConnectionStatusActionProvider.CONNECTION_STATUS.ERROR);
                             showStatus(getString(R.string.status_invalid_address));
@@ -690,17 +696,19 @@ public class MainActivity extends AppCompatActivity {
                                 networkStatusActionProvider.setStatus(ConnectionStatusActionProvider.CONNECTION_STATUS.DISABLED);
                             break;
                     }
-                }else if (intent.getAction().equals(Constants.ACTION.BROADCAST_SENSOR_DATA)){
-                    SharedConstants.SENSOR_TYPE sensorType = DataLayerUtil.deserialize(SharedConstants.SENSOR_TYPE.class).from(intent);
-                    float[] values = intent.getFloatArrayExtra(Constants.KEY.SENSOR_DATA);
-                    if (sensorType == SharedConstants.SENSOR_TYPE.BATTERY_METAWEAR){
-                        updateBatteryLevel((int)values[0]);
-                    }
                 }
             }
         }
     };
 
+    /** Displays the Metawear battery level, on the main thread. **/
+    private final SensorEventBus.OnSensorDataListener batteryLevelListener = new SensorEventBus.OnSensorDataListener() {
+        @Override
+        public void onSensorData(SharedConstants.SENSOR_TYPE sensorType, long[] timestamps, float[] values, int count, int nDimensions) {
+            updateBatteryLevel((int) values[count - 1]);
+        }
+    };
+
     /**
      * Highlights the sensor data tab repeatedly using a color animation.
      * To stop the animation use {@link ValueAnimator#cancel() colorAnimation.cancel()}
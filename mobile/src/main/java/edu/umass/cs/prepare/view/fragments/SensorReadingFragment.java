@@ -2,13 +2,8 @@ package edu.umass.cs.prepare.view.fragments;
 
 import android.app.AlertDialog;
 import android.app.Fragment;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.DialogInterface;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Bundle;
-import android.support.v4.content.LocalBroadcastManager;
 import android.support.v4.view.ViewPager;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -21,11 +16,11 @@ import android.widget.TextView;
 import java.util.ArrayList;
 
 import edu.umass.cs.prepare.R;
-import edu.umass.cs.prepare.constants.Constants;
+import edu.umass.cs.prepare.communication.local.MainThreadExecutor;
 import edu.umass.cs.prepare.view.activities.MainActivity;
 import edu.umass.cs.prepare.view.tutorial.StandardTutorial;
 import edu.umass.cs.prepare.view.SensorDataListAdapter;
-import edu.umass.cs.shared.communication.DataLayerUtil;
+import edu.umass.cs.shared.communication.SensorEventBus;
 import edu.umass.cs.shared.constants.SharedConstants;
 import edu.umass.cs.shared.preferences.ApplicationPreferences;
 
@@ -52,27 +47,22 @@ public class SensorReadingFragment extends Fragment {
 
     private ApplicationPreferences applicationPreferences;
 
+    /** The maximum number of times per second the readings of each sensor are displayed. **/
+    private static final float DISPLAY_RATE = 10;
+
     @Override
     public void onStart() {
         super.onStart();
         Log.d(TAG, "onStart()");
 
-        LocalBroadcastManager broadcastManager = LocalBroadcastManager.getInstance(getActivity());
-        //the intent filter specifies the messages we are interested in receiving
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(Constants.ACTION.BROADCAST_SENSOR_DATA);
-        broadcastManager.registerReceiver(receiver, filter);
+        SensorEventBus.getInstance().subscribe(sensorDataListener, MainThreadExecutor.getInstance(),
+                new SensorEventBus.SubscriptionOptions().setMaxRate(DISPLAY_RATE).setLatestOnly(true));
     }
 
     @Override
     public void onStop() {
         Log.d(TAG, "onStop()");
-        LocalBroadcastManager broadcastManager = LocalBroadcastManager.getInstance(getActivity());
-        try {
-            broadcastManager.unregisterReceiver(receiver);
-        }catch (IllegalArgumentException e){
-            e.printStackTrace();
-        }
+        SensorEventBus.getInstance().unsubscribe(sensorDataListener);
         super.onStop();
     }
 
@@ -235,27 +225,22 @@ public class SensorReadingFragment extends Fragment {
         });
     }
 
-    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+    /** Displays the average of a batch of sensor data, at most {@link #DISPLAY_RATE} times per second, on the main thread. **/
+    private final SensorEventBus.OnSensorDataListener sensorDataListener = new SensorEventBus.OnSensorDataListener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            if (intent.getAction() != null) {
-                if (intent.getAction().equals(Constants.ACTION.BROADCAST_SENSOR_DATA)) {
-                    SharedConstants.SENSOR_TYPE sensorType = DataLayerUtil.deserialize(SharedConstants.SENSOR_TYPE.class).from(intent);
-                    float[] values = intent.getFloatArrayExtra(Constants.KEY.SENSOR_DATA);
-                    if (sensorType == SharedConstants.SENSOR_TYPE.BATTERY_METAWEAR){
-                        return;
-                    }
+        public void onSensorData(SharedConstants.SENSOR_TYPE sensorType, long[] timestamps, float[] values, int count, int nDimensions) {
+            if (sensorType == SharedConstants.SENSOR_TYPE.BATTERY_METAWEAR || getActivity() == null){
+                return;
+            }
 
-                    float[] averages = new float[3];
-                    for (int i = 0; i < values.length; i++) {
-                        averages[i % 3] += values[i];
-                    }
-                    for (int j = 0; j < averages.length; j++) {
-                        averages[j] /= (values.length / 3f);
-                    }
-                    displaySensorReading(sensorType, averages);
-                }
+            float[] averages = new float[3];
+            for (int i = 0; i < count * nDimensions; i++) {
+                averages[i % nDimensions] += values[i];
+            }
+            for (int j = 0; j < nDimensions; j++) {
+                averages[j] /= count;
             }
+            displaySensorReading(sensorType, averages);
         }
     };
-}
\ No newline at end of file
+}
@@ -0,0 +1,154 @@
+package edu.umass.cs.prepare.communication.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Uploads files to a {@link StandInFileReceiver} and verifies that interrupted uploads resume
+ * from the last acknowledged offset.
+ */
+public class ChunkedFileUploaderTest {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final int SUBJECT_ID = 7;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private StandInFileReceiver receiver;
+
+    private File progressFile;
+
+    private static final ChunkedFileUploader.Condition ALWAYS = new ChunkedFileUploader.Condition() {
+        @Override
+        public boolean isSatisfied() {
+            return true;
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        receiver = new StandInFileReceiver(folder.newFolder("server"));
+        progressFile = new File(folder.getRoot(), "upload-progress.properties");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        receiver.close();
+    }
+
+    private File createFile(String name, int length, long seed) throws IOException {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        File file = new File(folder.getRoot(), name);
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(data);
+        out.close();
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        byte[] data = new byte[(int) raf.length()];
+        raf.readFully(data);
+        raf.close();
+        return data;
+    }
+
+    private void assertReceived(File file) throws IOException {
+        assertArrayEquals(read(file), read(receiver.getFile(SUBJECT_ID, file.getName())));
+    }
+
+    private ChunkedFileUploader newUploader(FileUploadProgress progress) {
+        return new ChunkedFileUploader("127.0.0.1", receiver.getPort(), SUBJECT_ID, progress, CHUNK_SIZE);
+    }
+
+    @Test
+    public void uploadsFilesOnceInChunks() throws IOException {
+        File video = createFile("VIDEO1000.mp4", 5 * CHUNK_SIZE + 123, 1);
+        File manifest = createFile("MANIFEST900.csv", 100, 2);
+        FileUploadProgress progress = new FileUploadProgress(progressFile);
+        ChunkedFileUploader uploader = newUploader(progress);
+
+        assertEquals(2, uploader.upload(Arrays.asList(manifest, video), ALWAYS));
+        assertReceived(video);
+        assertReceived(manifest);
+        assertTrue(progress.isUploaded(video));
+        assertEquals(video.length() + manifest.length(), uploader.getBytesSent());
+
+        // completed files are not sent again, even after a restart
+        uploader = newUploader(new FileUploadProgress(progressFile));
+        assertEquals(2, uploader.upload(Arrays.asList(manifest, video), ALWAYS));
+        assertEquals(0, uploader.getBytesSent());
+    }
+
+    @Test
+    public void resumesFromLastAcknowledgedOffset() throws IOException {
+        File video = createFile("VIDEO1000.mp4", 5 * CHUNK_SIZE, 3);
+        receiver.dropAfterChunks = 2;
+        try {
+            newUploader(new FileUploadProgress(progressFile)).upload(Collections.singletonList(video), ALWAYS);
+            fail("The connection should have dropped");
+        } catch (IOException expected) {
+        }
+        FileUploadProgress progress = new FileUploadProgress(progressFile);
+        assertEquals(CHUNK_SIZE, progress.getOffset(video)); // the second chunk was stored but not acknowledged
+        assertFalse(progress.isUploaded(video));
+
+        receiver.dropAfterChunks = -1;
+        ChunkedFileUploader uploader = newUploader(progress);
+        assertEquals(1, uploader.upload(Collections.singletonList(video), ALWAYS));
+        assertEquals(3 * CHUNK_SIZE, uploader.getBytesSent());
+        assertReceived(video);
+    }
+
+    @Test
+    public void resendsCorruptedChunk() throws IOException {
+        File file = createFile("ACCELEROMETER_METAWEAR1000.csv", 3 * CHUNK_SIZE, 4);
+        receiver.corruptChunk = 1;
+        ChunkedFileUploader uploader = newUploader(new FileUploadProgress(progressFile));
+        assertEquals(1, uploader.upload(Collections.singletonList(file), ALWAYS));
+        assertEquals(1, uploader.getChunksResent());
+        assertReceived(file);
+    }
+
+    @Test
+    public void stopsWhenConditionNoLongerHoldsAndResumesAppendedFiles() throws IOException {
+        File file = createFile("ACCELEROMETER_METAWEAR1000.csv", 4 * CHUNK_SIZE, 5);
+        final int[] checks = {0};
+        ChunkedFileUploader.Condition unmeteredForTwoChunks = new ChunkedFileUploader.Condition() {
+            @Override
+            public boolean isSatisfied() {
+                return ++checks[0] <= 3; // before the file and before each of two chunks
+            }
+        };
+        FileUploadProgress progress = new FileUploadProgress(progressFile);
+        assertEquals(0, newUploader(progress).upload(Collections.singletonList(file), unmeteredForTwoChunks));
+        assertEquals(2 * CHUNK_SIZE, new FileUploadProgress(progressFile).getOffset(file));
+
+        assertEquals(1, newUploader(progress).upload(Collections.singletonList(file), ALWAYS));
+        assertReceived(file);
+
+        // an interrupted session was continued in the same file
+        createFile(file.getName(), 1000, 6);
+        assertFalse(progress.isUploaded(file));
+        ChunkedFileUploader uploader = newUploader(progress);
+        assertEquals(1, uploader.upload(Collections.singletonList(file), ALWAYS));
+        assertEquals(1000, uploader.getBytesSent());
+        assertReceived(file);
+    }
+}
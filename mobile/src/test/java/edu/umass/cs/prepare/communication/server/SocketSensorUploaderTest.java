@@ -0,0 +1,476 @@
+package edu.umass.cs.prepare.communication.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.umass.cs.shared.communication.SensorFrameReader;
+import edu.umass.cs.shared.constants.SharedConstants;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sends sensor data to a stand-in server on the local host, which reads the binary frames or
+ * does not greet the uploader, and verifies that batches are spooled while the server is
+ * unreachable.
+ */
+public class SocketSensorUploaderTest {
+
+    private static final int BATCH_SIZE = 50;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private ServerSocket server;
+
+    @Before
+    public void setUp() throws IOException {
+        try {
+            server = new ServerSocket(SharedConstants.SERVER_PORT);
+        } catch (BindException e) {
+            server = new ServerSocket(0);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    private static long[] timestamps(long start, int count) {
+        long[] timestamps = new long[count];
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = start + 20 * i;
+        }
+        return timestamps;
+    }
+
+    private static float[] values(int count, int nDimensions) {
+        float[] values = new float[count * nDimensions];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i % nDimensions == nDimensions - 1 ? 9.81f : 0.5f * (i % 3);
+        }
+        return values;
+    }
+
+    /**
+     * Records the batches handed to the uploader used as the fallback for servers that do not
+     * greet, instead of sending them through the MHL client.
+     */
+    private static class RecordingUploader implements SensorUploader {
+        private final List<SharedConstants.SENSOR_TYPE> sensorTypes = new ArrayList<>();
+        private final List<long[]> timestamps = new ArrayList<>();
+        private volatile ConnectionStateListener listener;
+        private volatile int connects = 0;
+        private volatile boolean accepting = true;
+        private volatile boolean disconnected = false;
+
+        @Override
+        public void setConnectionStateListener(ConnectionStateListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void connect() {
+            connects++;
+            if (listener != null)
+                listener.onConnected();
+        }
+
+        @Override
+        public synchronized boolean upload(SharedConstants.SENSOR_TYPE sensorType, long[] timestamps, float[] values, int count, int nDimensions) {
+            if (!accepting)
+                return false;
+            sensorTypes.add(sensorType);
+            this.timestamps.add(Arrays.copyOf(timestamps, count));
+            return true;
+        }
+
+        @Override
+        public void disconnect(long timeoutMillis) {
+            disconnected = true;
+        }
+    }
+
+    /** Starts a thread which greets the first connection to the server and collects the frames received on it. **/
+    private Thread receiveFrames(final ServerSocket server, final List<long[]> timestamps) {
+        Thread receiver = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Socket client = server.accept();
+                    SensorFrameReader.writeGreeting(client.getOutputStream());
+                    SensorFrameReader reader = new SensorFrameReader(client.getInputStream(), new SensorFrameReader.OnSensorDataReceivedListener() {
+                        @Override
+                        public void onSensorDataReceived(int subjectId, SharedConstants.SENSOR_TYPE sensorType, long sessionId,
+                                                         long sequenceNumber, long[] t, float[] v) {
+                            synchronized (timestamps) {
+                                timestamps.add(t);
+                            }
+                        }
+                    });
+                    assertTrue(reader.readPreamble());
+                    reader.run();
+                    client.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        receiver.start();
+        return receiver;
+    }
+
+    @Test
+    public void sendsFramesToServersThatGreet() throws Exception {
+        final List<long[]> timestamps = new ArrayList<>();
+        final List<float[]> values = new ArrayList<>();
+        final List<Long> sessions = new ArrayList<>();
+        Thread receiver = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Socket client = server.accept();
+                    SensorFrameReader.writeGreeting(client.getOutputStream());
+                    SensorFrameReader reader = new SensorFrameReader(client.getInputStream(), new SensorFrameReader.OnSensorDataReceivedListener() {
+                        @Override
+                        public void onSensorDataReceived(int subjectId, SharedConstants.SENSOR_TYPE sensorType, long sessionId,
+                                                         long sequenceNumber, long[] t, float[] v) {
+                            assertEquals(7, subjectId);
+                            assertEquals(timestamps.size(), sequenceNumber);
+                            sessions.add(sessionId);
+                            timestamps.add(t);
+                            values.add(v);
+                        }
+                    });
+                    assertTrue(reader.readPreamble());
+                    reader.run();
+                    client.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        receiver.start();
+
+        final CountDownLatch connected = new CountDownLatch(1);
+        RecordingUploader fallback = new RecordingUploader();
+        SocketSensorUploader uploader = new SocketSensorUploader("127.0.0.1", server.getLocalPort(), 7, folder.newFolder(), fallback);
+        uploader.setConnectionStateListener(new SensorUploader.ConnectionStateListener() {
+            @Override
+            public void onConnected() {
+                connected.countDown();
+            }
+
+            @Override
+            public void onConnectionFailed() {
+            }
+        });
+        uploader.connect();
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+        assertFalse(uploader.isReplayScheduled());
+        for (int b = 0; b < 100; b++) {
+            assertTrue(uploader.upload(SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR,
+                    timestamps(1467331200000L + b * BATCH_SIZE * 20, BATCH_SIZE), values(BATCH_SIZE, 3), BATCH_SIZE, 3));
+        }
+        uploader.disconnect(5000);
+        receiver.join(5000);
+
+        assertFalse(uploader.isUsingFallback());
+        assertEquals(0, fallback.connects);
+        assertEquals(100, timestamps.size());
+        for (int b = 0; b < 100; b++) {
+            assertEquals(uploader.getSessionId(), (long) sessions.get(b));
+            assertArrayEquals(timestamps(1467331200000L + b * BATCH_SIZE * 20, BATCH_SIZE), timestamps.get(b));
+            assertArrayEquals(values(BATCH_SIZE, 3), values.get(b), 0f);
+        }
+        assertEquals(99, uploader.getWatermark(SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR));
+        assertEquals(0, uploader.getSpooledBytes());
+        // a timestamp and three floats per reading, as held in memory
+        long rawBytes = 100L * BATCH_SIZE * (8 + 3 * 4);
+        System.out.println(String.format("100 batches of %d accelerometer readings: %d raw bytes, %d bytes as frames (%.1f%%)",
+                BATCH_SIZE, rawBytes, uploader.getBytesSent(), 100.0 * uploader.getBytesSent() / rawBytes));
+        assertTrue(uploader.getBytesSent() < rawBytes);
+    }
+
+    @Test
+    public void handsBatchesToTheFallbackIfTheServerDoesNotGreet() throws Exception {
+        final CountDownLatch closed = new CountDownLatch(1);
+        Thread receiver = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    // a server without frame support waits for the client to send data
+                    Socket client = server.accept();
+                    if (client.getInputStream().read() < 0)
+                        closed.countDown();
+                    client.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        receiver.start();
+
+        final CountDownLatch connected = new CountDownLatch(1);
+        RecordingUploader fallback = new RecordingUploader();
+        SocketSensorUploader uploader = new SocketSensorUploader("127.0.0.1", server.getLocalPort(), 7, folder.newFolder(),
+                fallback, 16, new ReconnectBackoff(20, 100), 20, 4, 200);
+        uploader.setConnectionStateListener(new SensorUploader.ConnectionStateListener() {
+            @Override
+            public void onConnected() {
+                connected.countDown();
+            }
+
+            @Override
+            public void onConnectionFailed() {
+            }
+        });
+        uploader.connect();
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+        for (int b = 0; b < 10; b++) {
+            assertTrue(uploader.upload(SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR,
+                    timestamps(1000 + b * BATCH_SIZE * 20, BATCH_SIZE), values(BATCH_SIZE, 3), BATCH_SIZE, 3));
+        }
+        assertTrue(uploader.upload(SharedConstants.SENSOR_TYPE.RSSI, new long[]{5000}, new float[]{-40}, 1, 1));
+
+        // batches the fallback rejects are dropped rather than spooled
+        long deadline = System.currentTimeMillis() + 5000;
+        while (uploader.getWatermark(SharedConstants.SENSOR_TYPE.RSSI) < 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        fallback.accepting = false;
+        assertTrue(uploader.upload(SharedConstants.SENSOR_TYPE.RSSI, new long[]{6000}, new float[]{-40}, 1, 1));
+        uploader.disconnect(5000);
+        receiver.join(5000);
+
+        // the session stays with the fallback, the server is not connected to again
+        server.setSoTimeout(200);
+        try {
+            server.accept().close();
+            fail("The uploader reconnected to the server");
+        } catch (SocketTimeoutException expected) {}
+
+        assertTrue(uploader.isUsingFallback());
+        assertEquals(1, fallback.connects);
+        assertTrue(fallback.disconnected);
+        assertEquals(11, fallback.timestamps.size());
+        for (int b = 0; b < 10; b++) {
+            assertEquals(SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR, fallback.sensorTypes.get(b));
+            assertArrayEquals(timestamps(1000 + b * BATCH_SIZE * 20, BATCH_SIZE), fallback.timestamps.get(b));
+        }
+        assertArrayEquals(new long[]{5000}, fallback.timestamps.get(10));
+        assertEquals(9, uploader.getWatermark(SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR));
+        assertEquals(0, uploader.getWatermark(SharedConstants.SENSOR_TYPE.RSSI));
+        assertEquals(0, uploader.getBytesSent());
+        assertEquals(0, uploader.getSpooledBytes());
+    }
+
+    @Test
+    public void spoolsWhileServerUnreachableAndReplaysOnReconnect() throws Exception {
+        int port = server.getLocalPort();
+        server.close();
+        final CountDownLatch failed = new CountDownLatch(1);
+        final CountDownLatch connected = new CountDownLatch(1);
+        File spoolDirectory = folder.newFolder();
+        SocketSensorUploader uploader = new SocketSensorUploader("127.0.0.1", port, 7, spoolDirectory, new RecordingUploader(),
+                16, new ReconnectBackoff(20, 100), 20, 4, 200);
+        uploader.setConnectionStateListener(new SensorUploader.ConnectionStateListener() {
+            @Override
+            public void onConnected() {
+                connected.countDown();
+            }
+
+            @Override
+            public void onConnectionFailed() {
+                failed.countDown();
+            }
+        });
+        uploader.connect();
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        for (int b = 0; b < 20; b++) {
+            assertTrue(uploader.upload(SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR,
+                    timestamps(1000 + b * BATCH_SIZE * 20, BATCH_SIZE), values(BATCH_SIZE, 3), BATCH_SIZE, 3));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (uploader.getSpooledBytes() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertTrue(uploader.getSpooledBytes() > 0);
+        assertTrue(uploader.isReplayScheduled());
+
+        // the server comes back: the backlog is replayed alongside live batches
+        server = new ServerSocket(port);
+        List<long[]> received = new ArrayList<>();
+        Thread receiver = receiveFrames(server, received);
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+        for (int b = 20; b < 30; b++) {
+            assertTrue(uploader.upload(SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR,
+                    timestamps(1000 + b * BATCH_SIZE * 20, BATCH_SIZE), values(BATCH_SIZE, 3), BATCH_SIZE, 3));
+        }
+        deadline = System.currentTimeMillis() + 5000;
+        while ((uploader.getWatermark(SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR) < 29 || uploader.isReplayScheduled())
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertFalse(uploader.isReplayScheduled());
+        uploader.disconnect(5000);
+        receiver.join(5000);
+
+        assertEquals(29, uploader.getWatermark(SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR));
+        assertEquals(30, received.size());
+        assertEquals(0, uploader.getSpooledBytes());
+    }
+
+    @Test
+    public void spoolsBufferedBatchesWhenTheConnectionBreaks() throws Exception {
+        final CountDownLatch reset = new CountDownLatch(1);
+        final List<long[]> received = new ArrayList<>();
+        Thread receiver = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    // the first connection is reset once frames have been negotiated
+                    Socket client = server.accept();
+                    SensorFrameReader.writeGreeting(client.getOutputStream());
+                    Thread.sleep(400);
+                    client.setSoLinger(true, 0);
+                    client.close();
+                    reset.countDown();
+                } catch (IOException | InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        receiver.start();
+        final CountDownLatch connected = new CountDownLatch(1);
+        SocketSensorUploader uploader = new SocketSensorUploader("127.0.0.1", server.getLocalPort(), 7, folder.newFolder(),
+                new RecordingUploader(), 16, new ReconnectBackoff(20, 100), 20, 4, 200);
+        uploader.setConnectionStateListener(new SensorUploader.ConnectionStateListener() {
+            @Override
+            public void onConnected() {
+                connected.countDown();
+            }
+
+            @Override
+            public void onConnectionFailed() {
+            }
+        });
+        uploader.connect();
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+        assertTrue(reset.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        receiver.join();
+
+        // the batches are buffered, but the connection turns out to be broken when they are flushed
+        receiver = receiveFrames(server, received);
+        for (int b = 0; b < 10; b++) {
+            assertTrue(uploader.upload(SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR,
+                    timestamps(1000 + b * BATCH_SIZE * 20, BATCH_SIZE), values(BATCH_SIZE, 3), BATCH_SIZE, 3));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (uploader.getWatermark(SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR) < 9 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        uploader.disconnect(5000);
+        receiver.join(5000);
+
+        assertFalse(uploader.isUsingFallback());
+        assertEquals(9, uploader.getWatermark(SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR));
+        Set<Long> timestamps = new HashSet<>();
+        for (long[] t : received) {
+            for (long timestamp : t) {
+                timestamps.add(timestamp);
+            }
+        }
+        for (int i = 0; i < 10 * BATCH_SIZE; i++) {
+            assertTrue(timestamps.contains(1000L + 20 * i));
+        }
+        assertEquals(0, uploader.getSpooledBytes());
+    }
+
+    @Test
+    public void backoffGrowsExponentiallyWithJitter() {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 60000, new Random(3));
+        long[] caps = {1000, 2000, 4000, 8000, 16000, 32000, 60000, 60000};
+        for (long cap : caps) {
+            long delay = backoff.nextDelayMillis();
+            assertTrue(delay >= cap / 2 && delay <= cap);
+        }
+        assertEquals(caps.length, backoff.getFailures());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(backoff.nextDelayMillis() <= 60000);
+        }
+        backoff.reset();
+        assertTrue(backoff.nextDelayMillis() <= 1000);
+    }
+
+    @Test
+    public void benchmarkThroughput() throws Exception {
+        final AtomicLong received = new AtomicLong();
+        Thread receiver = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Socket client = server.accept();
+                    SensorFrameReader.writeGreeting(client.getOutputStream());
+                    SensorFrameReader reader = new SensorFrameReader(client.getInputStream(), new SensorFrameReader.OnSensorDataReceivedListener() {
+                        @Override
+                        public void onSensorDataReceived(int subjectId, SharedConstants.SENSOR_TYPE sensorType, long sessionId,
+                                                         long sequenceNumber, long[] t, float[] v) {
+                            received.addAndGet(t.length);
+                        }
+                    });
+                    assertTrue(reader.readPreamble());
+                    reader.run();
+                    client.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        receiver.start();
+
+        // accelerometer and gyroscope batches, as while recording with the gyroscope enabled
+        int batches = 4000;
+        // the queue holds the whole run, so that the throughput of the connection is measured
+        SocketSensorUploader uploader = new SocketSensorUploader("127.0.0.1", server.getLocalPort(), 7, folder.newFolder(),
+                new RecordingUploader(), batches, new ReconnectBackoff(1000, 1000), 1000, 20, 200);
+        uploader.connect();
+        long[] timestamps = timestamps(1467331200000L, BATCH_SIZE);
+        float[] values = values(BATCH_SIZE, 3);
+        long start = System.nanoTime();
+        long maxUploadNanos = 0;
+        for (int b = 0; b < batches; b++) {
+            long t = System.nanoTime();
+            uploader.upload(b % 2 == 0 ? SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR : SharedConstants.SENSOR_TYPE.GYROSCOPE_METAWEAR,
+                    timestamps, values, BATCH_SIZE, 3);
+            maxUploadNanos = Math.max(maxUploadNanos, System.nanoTime() - t);
+        }
+        uploader.disconnect(30000);
+        receiver.join(30000);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long samples = (long) batches * BATCH_SIZE;
+        assertEquals(samples, received.get());
+        System.out.println(String.format("sent %d samples in %.2f s (%.0f samples/s); longest upload call %.2f ms; "
+                        + "sleeping 10 ms per sample allows at most 100 samples/s",
+                samples, seconds, samples / seconds, maxUploadNanos / 1e6));
+        assertTrue(samples / seconds > 1000);
+    }
+}
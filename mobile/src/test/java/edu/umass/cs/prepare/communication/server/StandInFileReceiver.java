@@ -0,0 +1,130 @@
+package edu.umass.cs.prepare.communication.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A stand-in for the server receiving files from the {@link ChunkedFileUploader}, which stores
+ * the files of each subject in a directory. It can simulate a connection that drops after a
+ * number of chunks and a chunk that is corrupted in transit.
+ */
+class StandInFileReceiver implements Runnable {
+
+    private final ServerSocket server;
+
+    private final File directory;
+
+    private final Thread thread;
+
+    /** The number of chunks after which the connection is dropped, -1 to never drop it. **/
+    volatile int dropAfterChunks = -1;
+
+    /** The index of the chunk which arrives corrupted, -1 if none. **/
+    volatile int corruptChunk = -1;
+
+    /** The number of chunks received, including rejected ones. **/
+    private int chunks = 0;
+
+    StandInFileReceiver(File directory) throws IOException {
+        this.server = new ServerSocket(0);
+        this.directory = directory;
+        this.thread = new Thread(this, "StandInFileReceiver");
+        thread.start();
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    File getFile(int subjectId, String name) {
+        return new File(new File(directory, String.valueOf(subjectId)), name);
+    }
+
+    void close() throws IOException, InterruptedException {
+        server.close();
+        thread.join(5000);
+    }
+
+    @Override
+    public void run() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                try {
+                    receive(socket);
+                } catch (EOFException ignored) {
+                } finally {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                if (!server.isClosed())
+                    e.printStackTrace();
+            }
+        }
+    }
+
+    private void receive(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        byte[] magic = new byte[ChunkedFileUploader.MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, ChunkedFileUploader.MAGIC) || in.readByte() != ChunkedFileUploader.VERSION)
+            return;
+        File file = null;
+        byte[] data = new byte[0];
+        CRC32 crc = new CRC32();
+        while (true) {
+            byte command = in.readByte();
+            if (command == ChunkedFileUploader.CLOSE) {
+                return;
+            } else if (command == ChunkedFileUploader.OPEN) {
+                int subjectId = in.readInt();
+                String name = in.readUTF();
+                long length = in.readLong();
+                file = getFile(subjectId, name);
+                //noinspection ResultOfMethodCallIgnored
+                file.getParentFile().mkdirs();
+                if (file.length() > length) {
+                    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                    raf.setLength(0);
+                    raf.close();
+                }
+                out.writeLong(file.length());
+                out.flush();
+            } else if (command == ChunkedFileUploader.CHUNK) {
+                long offset = in.readLong();
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (data.length < length)
+                    data = new byte[length];
+                in.readFully(data, 0, length);
+                if (chunks == corruptChunk)
+                    data[length / 2] ^= 1;
+                crc.reset();
+                crc.update(data, 0, length);
+                if (file != null && offset == file.length() && (int) crc.getValue() == checksum) {
+                    FileOutputStream fileOut = new FileOutputStream(file, true);
+                    fileOut.write(data, 0, length);
+                    fileOut.close();
+                }
+                if (++chunks == dropAfterChunks)
+                    return;
+                out.writeLong(file != null ? file.length() : 0);
+                out.flush();
+            } else {
+                return;
+            }
+        }
+    }
+}
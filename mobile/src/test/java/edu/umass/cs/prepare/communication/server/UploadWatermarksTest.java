@@ -0,0 +1,72 @@
+package edu.umass.cs.prepare.communication.server;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that uploaded batches are tracked across gaps and restarts.
+ */
+public class UploadWatermarksTest {
+
+    private static final SharedConstants.SENSOR_TYPE ACCELEROMETER = SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR;
+
+    private static final SharedConstants.SENSOR_TYPE GYROSCOPE = SharedConstants.SENSOR_TYPE.GYROSCOPE_METAWEAR;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void watermarkAdvancesOnceGapsAreFilled() {
+        UploadWatermarks watermarks = new UploadWatermarks(new File(folder.getRoot(), "watermarks"));
+        assertEquals(-1, watermarks.getWatermark(1000, ACCELEROMETER));
+
+        // batches 3 to 5 were spooled while live batches continued
+        for (long seq : new long[]{0, 1, 2, 6, 7, 9}) {
+            watermarks.markUploaded(1000, ACCELEROMETER, seq);
+        }
+        assertEquals(2, watermarks.getWatermark(1000, ACCELEROMETER));
+        assertFalse(watermarks.isUploaded(1000, ACCELEROMETER, 4));
+        assertTrue(watermarks.isUploaded(1000, ACCELEROMETER, 6));
+        assertFalse(watermarks.isUploaded(1000, GYROSCOPE, 0));
+
+        watermarks.markUploaded(1000, ACCELEROMETER, 4);
+        watermarks.markUploaded(1000, ACCELEROMETER, 3);
+        assertEquals(4, watermarks.getWatermark(1000, ACCELEROMETER));
+        watermarks.markUploaded(1000, ACCELEROMETER, 5);
+        watermarks.markUploaded(1000, ACCELEROMETER, 8);
+        assertEquals(9, watermarks.getWatermark(1000, ACCELEROMETER));
+        watermarks.markUploaded(1000, ACCELEROMETER, 7); // uploaded again
+        assertEquals(9, watermarks.getWatermark(1000, ACCELEROMETER));
+    }
+
+    @Test
+    public void persistsRangesAndForgetsOldSessions() throws IOException {
+        File file = new File(folder.getRoot(), "watermarks");
+        UploadWatermarks watermarks = new UploadWatermarks(file);
+        for (long seq = 0; seq < 5; seq++) {
+            watermarks.markUploaded(1000, ACCELEROMETER, seq);
+            watermarks.markUploaded(2000, GYROSCOPE, seq + 10);
+        }
+        watermarks.save();
+
+        UploadWatermarks restored = new UploadWatermarks(file);
+        assertEquals(4, restored.getWatermark(1000, ACCELEROMETER));
+        assertEquals(-1, restored.getWatermark(2000, GYROSCOPE));
+        assertTrue(restored.isUploaded(2000, GYROSCOPE, 12));
+        assertFalse(restored.isUploaded(2000, GYROSCOPE, 15));
+
+        restored.removeSessionsBefore(2000);
+        restored.save();
+        restored = new UploadWatermarks(file);
+        assertEquals(-1, restored.getWatermark(1000, ACCELEROMETER));
+        assertTrue(restored.isUploaded(2000, GYROSCOPE, 14));
+    }
+}
@@ -0,0 +1,120 @@
+package edu.umass.cs.prepare.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that {@link AsyncFileWriter}s sharing the {@link FileWriterThread} write all appended
+ * data in order, and that the thread exits once every writer is closed.
+ */
+public class AsyncFileWriterTest {
+
+    private static final int WRITERS = 4;
+
+    private static final int LINES = 20000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static boolean isWriterThreadAlive() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("FileWriterThread") && thread.isAlive())
+                return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void closeWritesAllQueuedData() throws Exception {
+        final File[] files = new File[WRITERS];
+        Thread[] producers = new Thread[WRITERS];
+        for (int w = 0; w < WRITERS; w++) {
+            files[w] = folder.newFile("SENSOR" + w + ".csv");
+            final AsyncFileWriter writer = new AsyncFileWriter(files[w]);
+            writer.open();
+            producers[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] line = new byte[16];
+                    for (int i = 0; i < LINES; i++) {
+                        byte[] row = (i + ",0.000000\n").getBytes();
+                        System.arraycopy(row, 0, line, 0, row.length);
+                        writer.append(line, 0, row.length); // the array is reused immediately
+                    }
+                    writer.close();
+                }
+            });
+            producers[w].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        for (File file : files) {
+            assertLines(file);
+        }
+        for (int i = 0; i < 100 && isWriterThreadAlive(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(isWriterThreadAlive());
+    }
+
+    @Test
+    public void reopensAfterAllWritersClosed() throws Exception {
+        for (int round = 0; round < 3; round++) {
+            File file = folder.newFile("RSSI" + round + ".csv");
+            AsyncFileWriter writer = new AsyncFileWriter(file);
+            writer.open();
+            writer.append("0,0.000000\n");
+            writer.close();
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            assertEquals("0,0.000000", reader.readLine());
+            reader.close();
+        }
+    }
+
+    @Test
+    public void appendsToExistingFile() throws Exception {
+        File file = folder.newFile();
+        for (int round = 0; round < 2; round++) {
+            AsyncFileWriter writer = new AsyncFileWriter(file, true);
+            writer.setSyncPolicy(new SyncPolicy(1, 0));
+            writer.open();
+            writer.append(round + ",0.000000\n");
+            writer.close();
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        assertEquals("0,0.000000", reader.readLine());
+        assertEquals("1,0.000000", reader.readLine());
+        assertNull(reader.readLine());
+        reader.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsAppendAfterClose() throws Exception {
+        AsyncFileWriter writer = new AsyncFileWriter(folder.newFile());
+        writer.open();
+        writer.close();
+        writer.append("0\n");
+    }
+
+    private static void assertLines(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            for (int i = 0; i < LINES; i++) {
+                assertEquals(i + ",0.000000", reader.readLine());
+            }
+            assertNull(reader.readLine());
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package edu.umass.cs.prepare.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that the {@link ChannelOutputStream} writes exactly the appended bytes, and compares
+ * its throughput against the buffered writers used previously.
+ */
+public class ChannelOutputStreamTest {
+
+    /** The number of rows written per benchmark run, about 32 MB of CSV. **/
+    private static final int ROWS = 500000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writesAllBytesInOrder() throws IOException {
+        Random random = new Random(3);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        File file = folder.newFile();
+        ChannelOutputStream out = new ChannelOutputStream(file, 512);
+        byte[] chunk = new byte[40000];
+        for (int i = 0; i < 200; i++) {
+            int length = random.nextInt(i % 10 == 0 ? chunk.length : 100);
+            random.nextBytes(chunk);
+            out.write(chunk, 0, length);
+            expected.write(chunk, 0, length);
+            if (i % 50 == 0) {
+                out.flush();
+                assertEquals(expected.size(), file.length());
+            }
+        }
+        out.write(42);
+        expected.write(42);
+        out.close();
+        out.close();
+        assertArrayEquals(expected.toByteArray(), Files.readAllBytes(file.toPath()));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsWriteAfterClose() throws IOException {
+        ChannelOutputStream out = new ChannelOutputStream(folder.newFile(), 0);
+        out.close();
+        out.write(new byte[1], 0, 1);
+    }
+
+    @Test
+    public void benchmarkAgainstBufferedWriters() throws IOException {
+        byte[][] rows = new byte[64][];
+        String[] lines = new String[rows.length];
+        Random random = new Random(11);
+        for (int i = 0; i < rows.length; i++) {
+            lines[i] = String.format("%d,%f,%f,%f\n", 1467331200000L + 20 * i,
+                    random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+            rows[i] = lines[i].getBytes("US-ASCII");
+        }
+
+        // warm up each path once before measuring
+        for (int run = 0; run < 2; run++) {
+            File file = folder.newFile();
+            long t = System.nanoTime();
+            Writer writer = new BufferedWriter(new java.io.FileWriter(file));
+            for (int i = 0; i < ROWS; i++) {
+                writer.append(lines[i % lines.length]);
+            }
+            writer.close();
+            long writerNanos = System.nanoTime() - t;
+
+            file = folder.newFile();
+            t = System.nanoTime();
+            OutputStream stream = new BufferedOutputStream(new FileOutputStream(file));
+            writeRows(stream, rows);
+            long streamNanos = System.nanoTime() - t;
+
+            file = folder.newFile();
+            t = System.nanoTime();
+            writeRows(new ChannelOutputStream(file, ChannelOutputStream.DEFAULT_BLOCK_SIZE), rows);
+            long channelNanos = System.nanoTime() - t;
+            long bytes = file.length();
+
+            if (run > 0) {
+                System.out.println(String.format("BufferedWriter: %.0f MB/s, BufferedOutputStream: %.0f MB/s, ChannelOutputStream: %.0f MB/s",
+                        mbPerSecond(bytes, writerNanos), mbPerSecond(bytes, streamNanos), mbPerSecond(bytes, channelNanos)));
+            }
+        }
+    }
+
+    private static void writeRows(OutputStream out, byte[][] rows) throws IOException {
+        for (int i = 0; i < ROWS; i++) {
+            byte[] row = rows[i % rows.length];
+            out.write(row, 0, row.length);
+        }
+        out.close();
+    }
+
+    private static double mbPerSecond(long bytes, long nanos) {
+        return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+}
@@ -0,0 +1,147 @@
+package edu.umass.cs.prepare.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Map;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+import edu.umass.cs.shared.util.GzipBlockEncoder;
+import edu.umass.cs.shared.util.SessionFileEncoder;
+import edu.umass.cs.shared.util.SessionFileReader;
+import edu.umass.cs.shared.util.SessionManifest;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that the {@link RecoveryLog} persists the files of a session until it is cleared, and
+ * that torn files of an interrupted session are trimmed so that they can be continued.
+ */
+public class RecoveryLogTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void persistsEntriesUntilCleared() throws IOException {
+        File logFile = new File(folder.getRoot(), "recovery.log");
+        File csv = folder.newFile("ACCELEROMETER_METAWEAR1467331200000.csv");
+        RecoveryLog log = new RecoveryLog(logFile);
+        assertTrue(log.getFiles().isEmpty());
+        log.record("ACCELEROMETER_METAWEAR", csv);
+
+        Map<String, File> files = new RecoveryLog(logFile).getFiles();
+        assertEquals(1, files.size());
+        assertEquals(csv.getAbsoluteFile(), files.get("ACCELEROMETER_METAWEAR"));
+
+        log.clear();
+        assertFalse(logFile.exists());
+        assertTrue(new RecoveryLog(logFile).getFiles().isEmpty());
+    }
+
+    @Test
+    public void trimsTornCsvRow() throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), "1,0.1,0.2,0.3\n2,0.4,0.5,0.6\n3,0.7,0.".getBytes("US-ASCII"));
+        assertEquals(28, RecoveryLog.trimCsv(file));
+        assertEquals("1,0.1,0.2,0.3\n2,0.4,0.5,0.6\n", new String(Files.readAllBytes(file.toPath()), "US-ASCII"));
+
+        // complete files are left untouched
+        assertEquals(28, RecoveryLog.trimCsv(file));
+
+        Files.write(file.toPath(), "1,0.1".getBytes("US-ASCII"));
+        assertEquals(0, RecoveryLog.trimCsv(file));
+        assertEquals(0, file.length());
+    }
+
+    @Test
+    public void trimsTornGzipMember() throws IOException {
+        File file = folder.newFile("RSSI1000.csv.gz");
+        GzipBlockEncoder encoder = new GzipBlockEncoder(1024, 6);
+        OutputStream out = new FileOutputStream(file);
+        for (int i = 0; i < 20; i++) {
+            byte[] row = (1000 + 20 * i + ",-40.000000\n").getBytes("US-ASCII");
+            encoder.write(row, 0, row.length);
+            if (i % 5 == 4)
+                encoder.flush();
+            out.write(encoder.array(), 0, encoder.length());
+            encoder.reset();
+        }
+        encoder.end();
+        out.close();
+        long length = file.length();
+        assertEquals(length, RecoveryLog.trimGzip(file));
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(length - 3);
+        raf.close();
+        long trimmed = RecoveryLog.trimGzip(file);
+        assertTrue(trimmed < length - 3);
+        assertEquals(trimmed, file.length());
+
+        // the remaining members hold the first 15 rows
+        SessionManifest.Segment segment = SessionManifest.scanCsv("RSSI", file);
+        assertEquals(15, segment.getCount());
+        assertEquals(1000, segment.getStartTimestamp());
+        assertEquals(1280, segment.getEndTimestamp());
+        assertEquals(trimmed, segment.getBytes());
+    }
+
+    @Test
+    public void continuesTornSessionFile() throws IOException {
+        File file = folder.newFile();
+        long[] timestamps = {1000, 1020, 1040};
+        float[] values = {1, 2, 3, 4, 5, 6, 7, 8, 9};
+        SessionFileEncoder encoder = new SessionFileEncoder(1000);
+        OutputStream out = new FileOutputStream(file);
+        for (int i = 0; i < 3; i++) {
+            encoder.encodeChunk(SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR, timestamps, values, 3, 3);
+            out.write(encoder.array(), 0, encoder.length());
+            encoder.reset();
+        }
+        out.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 5);
+        raf.close();
+
+        encoder = RecoveryLog.trimSessionFile(file);
+        assertNotNull(encoder);
+        assertEquals(2, encoder.getChunkCount());
+        assertEquals(file.length(), encoder.getFileSize());
+        out = new FileOutputStream(file, true);
+        encoder.encodeChunk(SharedConstants.SENSOR_TYPE.RSSI, timestamps, values, 3, 1);
+        encoder.encodeFooter();
+        out.write(encoder.array(), 0, encoder.length());
+        out.close();
+
+        SessionFileReader reader = new SessionFileReader(file);
+        assertTrue(reader.isIndexed());
+        assertEquals(3, reader.getChunkCount());
+        assertEquals(SharedConstants.SENSOR_TYPE.RSSI, reader.getSensorType(2));
+        float[] column = new float[3];
+        reader.readColumn(1, 2, column);
+        assertEquals(9f, column[2], 0f);
+        reader.close();
+
+        // a complete session is not continued
+        assertNull(RecoveryLog.trimSessionFile(file));
+    }
+
+    @Test
+    public void syncPolicyTriggersOnBatchesOrTime() {
+        SyncPolicy policy = new SyncPolicy(3, 1000);
+        assertFalse(policy.onAppend(0));
+        assertFalse(policy.onAppend(10));
+        assertTrue(policy.onAppend(20));
+        assertFalse(policy.onAppend(500));
+        assertTrue(policy.onAppend(1020));
+        assertFalse(new SyncPolicy(0, 0).onAppend(Long.MAX_VALUE));
+    }
+}
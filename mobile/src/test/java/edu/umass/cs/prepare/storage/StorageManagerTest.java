@@ -0,0 +1,142 @@
+package edu.umass.cs.prepare.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.umass.cs.shared.util.SessionManifest;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that the {@link StorageManager} accounts for the files in the save directory and
+ * evicts them according to its policy, sparing protected files.
+ */
+public class StorageManagerTest {
+
+    private static final long KB = 1024;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File createFile(String name, long length) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(length);
+        raf.close();
+        return file;
+    }
+
+    @Test
+    public void accountsByTypeAndSession() throws IOException {
+        createFile("ACCELEROMETER_METAWEAR1000.csv", 10 * KB);
+        createFile("ACCELEROMETER_METAWEAR2000.csv", 20 * KB);
+        createFile("RSSI1000.csv", 5 * KB);
+        createFile("VIDEO3000.mp4", 100 * KB);
+        SessionManifest manifest = new SessionManifest(new File(folder.getRoot(), "MANIFEST900.csv"));
+        manifest.add(new SessionManifest.Segment("ACCELEROMETER_METAWEAR", "ACCELEROMETER_METAWEAR1000.csv"));
+        manifest.add(new SessionManifest.Segment("ACCELEROMETER_METAWEAR", "ACCELEROMETER_METAWEAR2000.csv"));
+        manifest.add(new SessionManifest.Segment("RSSI", "RSSI1000.csv"));
+        long manifestBytes = new File(folder.getRoot(), "MANIFEST900.csv").length();
+
+        StorageManager storageManager = new StorageManager();
+        storageManager.configure(folder.getRoot(), 0, 0, StorageManager.EVICTION_POLICY.OLDEST_FIRST);
+        StorageManager.Usage usage = storageManager.getUsage();
+        assertEquals(135 * KB + manifestBytes, usage.getTotalBytes());
+        assertEquals(30 * KB, (long) usage.getBytesByType().get("ACCELEROMETER_METAWEAR"));
+        assertEquals(100 * KB, (long) usage.getBytesByType().get("VIDEO"));
+        assertEquals(35 * KB + manifestBytes, (long) usage.getBytesBySession().get(900L));
+        assertEquals(100 * KB, (long) usage.getBytesBySession().get(3000L));
+        assertEquals(0, storageManager.enforce());
+    }
+
+    @Test
+    public void listsCompletedFilesOldestFirst() throws IOException {
+        File video = createFile("VIDEO3000.mp4", KB);
+        File open = createFile("ACCELEROMETER_METAWEAR4000.csv", KB);
+        File closed = createFile("ACCELEROMETER_METAWEAR1000.csv", KB);
+
+        StorageManager storageManager = new StorageManager();
+        storageManager.configure(folder.getRoot(), 0, 0, StorageManager.EVICTION_POLICY.OLDEST_FIRST);
+        storageManager.protect(open);
+        assertEquals(Arrays.asList(closed, video), storageManager.getCompletedFiles());
+        storageManager.release(open);
+        assertEquals(Arrays.asList(closed, video, open), storageManager.getCompletedFiles());
+    }
+
+    @Test
+    public void evictsOldestFirstSparingProtectedFiles() throws IOException {
+        File oldest = createFile("VIDEO1000.mp4", 40 * KB);
+        File protectedFile = createFile("RSSI1500.csv", 40 * KB);
+        File older = createFile("RSSI2000.csv", 40 * KB);
+        File newest = createFile("RSSI3000.csv", 40 * KB);
+
+        StorageManager storageManager = new StorageManager();
+        storageManager.configure(folder.getRoot(), 90 * KB, 0, StorageManager.EVICTION_POLICY.OLDEST_FIRST);
+        storageManager.protect(protectedFile);
+        assertEquals(80 * KB, storageManager.enforce());
+        assertFalse(oldest.exists());
+        assertTrue(protectedFile.exists());
+        assertFalse(older.exists());
+        assertTrue(newest.exists());
+    }
+
+    @Test
+    public void evictsUploadedFirst() throws IOException {
+        File oldest = createFile("RSSI1000.csv", 40 * KB);
+        final File uploaded = createFile("RSSI2000.csv", 40 * KB);
+        createFile("RSSI3000.csv", 40 * KB);
+
+        StorageManager storageManager = new StorageManager();
+        storageManager.configure(folder.getRoot(), 100 * KB, 0, StorageManager.EVICTION_POLICY.UPLOADED_FIRST);
+        storageManager.setUploadStatus(new StorageManager.UploadStatus() {
+            @Override
+            public boolean isUploaded(File file) {
+                return file.equals(uploaded);
+            }
+        });
+        assertEquals(40 * KB, storageManager.enforce());
+        assertTrue(oldest.exists());
+        assertFalse(uploaded.exists());
+    }
+
+    @Test
+    public void deletesOrphanedManifestsAndNotifiesWhenLow() throws IOException {
+        createFile("RSSI1000.csv", 40 * KB);
+        File manifestFile = new File(folder.getRoot(), "MANIFEST900.csv");
+        new SessionManifest(manifestFile).add(new SessionManifest.Segment("RSSI", "RSSI1000.csv"));
+
+        final AtomicLong notified = new AtomicLong(-1);
+        StorageManager storageManager = new StorageManager();
+        // a reserve larger than any device can never be restored
+        storageManager.configure(folder.getRoot(), 0, Long.MAX_VALUE, StorageManager.EVICTION_POLICY.OLDEST_FIRST);
+        StorageManager.OnStorageLowListener listener = new StorageManager.OnStorageLowListener() {
+            @Override
+            public void onStorageLow(long usableBytes) {
+                notified.set(usableBytes);
+            }
+        };
+        storageManager.register(listener);
+        storageManager.unregister(listener);
+        storageManager.register(listener);
+        storageManager.enforce();
+        storageManager.unregister(listener);
+        assertFalse(manifestFile.exists());
+        assertTrue(notified.get() >= 0);
+        assertEquals(0, storageManager.getUsage().getTotalBytes());
+    }
+
+    @Test
+    public void parsesTypeAndTimestamp() {
+        assertEquals("VIDEO", StorageManager.getType(new File("VIDEO1467331200000.mp4")));
+        assertEquals(1467331200000L, StorageManager.getTimestamp(new File("VIDEO1467331200000.mp4")));
+        assertEquals("ACCELEROMETER_WEARABLE", StorageManager.getType(new File("ACCELEROMETER_WEARABLE12.csv")));
+        assertEquals("notes", StorageManager.getType(new File("notes.txt")));
+    }
+}
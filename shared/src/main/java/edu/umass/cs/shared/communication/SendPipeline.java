@@ -0,0 +1,342 @@
+package edu.umass.cs.shared.communication;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The Send Pipeline delivers tasks, e.g. batches of sensor data, in order on a single writer
+ * thread. Unlike a cached thread pool, the number of pending tasks is bounded: if the writer
+ * cannot keep up, for instance because the connection to the other device is blocked, the
+ * {@link OverflowPolicy} determines whether the submitting thread waits or which task is dropped.
+ * A task that fails to send is retried a limited number of times before it is dropped.
+ * Dropped tasks are discarded on the writer thread, ahead of the tasks waiting to be sent, so
+ * that releasing their resources, e.g. spooling them to disk, does not delay the submitting
+ * thread. Since the writer may itself be blocked, at most {@code capacity} dropped tasks wait to
+ * be discarded; beyond that, they are discarded on the submitting thread, so that memory stays
+ * bounded however long the writer is blocked.
+ * <br><br>
+ * The pipeline counts the tasks that were queued, sent, dropped and retried, so that data loss
+ * can be accounted for.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ */
+public class SendPipeline implements Runnable {
+
+    @SuppressWarnings("unused")
+    /** used for debugging purposes */
+    private static final String TAG = SendPipeline.class.getName();
+
+    /**
+     * Determines how a task is handled when it is submitted to a full queue.
+     */
+    public enum OverflowPolicy {
+        /** The submitting thread waits until the queue has space. **/
+        BLOCK,
+        /** The oldest queued task is dropped to make room for the new task. **/
+        DROP_OLDEST,
+        /** A queued task with the same {@link Task#getKey() key} is replaced by the new task;
+         * if there is none, the oldest queued task is dropped. **/
+        COALESCE
+    }
+
+    /**
+     * A unit of work delivered by the pipeline.
+     */
+    public interface Task {
+        /**
+         * Sends the task. Called only on the writer thread.
+         * @return true if the task was delivered, false if it should be retried
+         */
+        boolean send();
+
+        /**
+         * Called instead of, or after unsuccessfully calling, {@link #send()} when the task is
+         * dropped, so that any resources it holds may be released. Called on the writer thread,
+         * or on the submitting thread if the task is submitted after the pipeline was stopped or
+         * too many dropped tasks are already waiting for the writer thread.
+         */
+        void discard();
+
+        /**
+         * Returns the key identifying tasks which supersede each other under the
+         * {@link OverflowPolicy#COALESCE} policy.
+         * @return the key, or null if the task is never coalesced
+         */
+        Object getKey();
+    }
+
+    /** The name of the writer thread. **/
+    private final String name;
+
+    /** The maximum number of tasks waiting to be sent. **/
+    private final int capacity;
+
+    /** Determines how tasks are handled when the queue is full. **/
+    private final OverflowPolicy policy;
+
+    /** The number of times a failed task is retried before it is dropped. **/
+    private final int maxRetries;
+
+    /** The number of milliseconds between consecutive attempts to send a task. **/
+    private final long retryDelayMillis;
+
+    /** The tasks waiting to be sent, guarded by {@link #lock}. **/
+    private final ArrayDeque<Task> queue;
+
+    /** The dropped tasks waiting to be discarded on the writer thread, at most {@link #capacity}, guarded by {@link #lock}. **/
+    private final ArrayDeque<Task> evictedQueue;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition notFull = lock.newCondition();
+
+    /** The writer thread, null if not started. **/
+    private Thread writer;
+
+    /** Indicates whether the writer thread should keep running. **/
+    private volatile boolean running = true;
+
+    private final AtomicLong queued = new AtomicLong();
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong retried = new AtomicLong();
+
+    /**
+     * Instantiates a send pipeline. The writer thread is started when the first task is submitted.
+     * @param name the name of the writer thread
+     * @param capacity the maximum number of tasks waiting to be sent
+     * @param policy determines how tasks are handled when the queue is full
+     * @param maxRetries the number of times a failed task is retried before it is dropped
+     * @param retryDelayMillis the number of milliseconds between consecutive attempts
+     */
+    public SendPipeline(String name, int capacity, OverflowPolicy policy, int maxRetries, long retryDelayMillis) {
+        this.name = name;
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        this.maxRetries = maxRetries;
+        this.retryDelayMillis = retryDelayMillis;
+        this.queue = new ArrayDeque<>(this.capacity);
+        this.evictedQueue = new ArrayDeque<>(this.capacity);
+    }
+
+    /**
+     * Submits a task to be sent on the writer thread. If the queue is full, the task is handled
+     * according to the {@link OverflowPolicy}.
+     * @param task the task
+     * @return true if the task was queued, false if it was dropped
+     */
+    public boolean submit(Task task) {
+        Task evicted = null;
+        lock.lock();
+        try {
+            if (!running) {
+                evicted = task;
+                return false;
+            }
+            if (writer == null) {
+                writer = new Thread(this, name);
+                writer.setDaemon(true);
+                writer.start();
+            }
+            if (queue.size() >= capacity) {
+                switch (policy) {
+                    case BLOCK:
+                        while (queue.size() >= capacity && running) {
+                            try {
+                                notFull.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                evicted = task;
+                                return false;
+                            }
+                        }
+                        if (!running) {
+                            evicted = task;
+                            return false;
+                        }
+                        break;
+                    case COALESCE:
+                        evicted = removeByKey(task.getKey());
+                        if (evicted == null)
+                            evicted = queue.poll();
+                        break;
+                    case DROP_OLDEST:
+                        evicted = queue.poll();
+                        break;
+                }
+            }
+            queue.add(task);
+            queued.incrementAndGet();
+            notEmpty.signal();
+            return true;
+        } finally {
+            boolean discardNow = false;
+            if (evicted != null) {
+                dropped.incrementAndGet();
+                if (running && evictedQueue.size() < capacity) {
+                    evictedQueue.add(evicted);
+                    notEmpty.signal();
+                } else {
+                    // the writer thread may have exited or be blocked
+                    discardNow = true;
+                }
+            }
+            lock.unlock();
+            if (discardNow)
+                evicted.discard();
+        }
+    }
+
+    /**
+     * Removes the most recently queued task with the given key. Must be called while holding the lock.
+     * @param key the coalescing key
+     * @return the removed task, or null if no queued task has the key
+     */
+    private Task removeByKey(Object key) {
+        if (key == null)
+            return null;
+        Iterator<Task> iterator = queue.descendingIterator();
+        while (iterator.hasNext()) {
+            Task queuedTask = iterator.next();
+            if (key.equals(queuedTask.getKey())) {
+                iterator.remove();
+                return queuedTask;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stops the writer thread once all queued tasks have been sent or dropped, waiting at most
+     * the given number of milliseconds. Failed tasks are no longer retried, and tasks submitted
+     * afterwards are dropped.
+     * @param timeoutMillis the maximum time to wait, 0 to wait indefinitely
+     */
+    public void stop(long timeoutMillis) {
+        Thread thread;
+        lock.lock();
+        try {
+            running = false;
+            thread = writer;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (thread != null) {
+            try {
+                thread.join(timeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of tasks currently waiting to be sent.
+     * @return the queue length
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the total number of tasks accepted into the queue. **/
+    public long getQueuedCount() {
+        return queued.get();
+    }
+
+    /** Returns the total number of tasks sent successfully. **/
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    /** Returns the total number of tasks dropped, either on overflow or after failed retries. **/
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /** Returns the total number of retried send attempts. **/
+    public long getRetriedCount() {
+        return retried.get();
+    }
+
+    @Override
+    public String toString() {
+        return name + ": queued " + queued.get() + ", sent " + sent.get() + ", dropped " + dropped.get()
+                + ", retried " + retried.get() + ", pending " + size();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Task task;
+            Task evicted;
+            lock.lock();
+            try {
+                while (queue.isEmpty() && evictedQueue.isEmpty() && running) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                evicted = evictedQueue.poll();
+                task = (evicted == null) ? queue.poll() : null;
+                if (evicted == null && task == null)
+                    return;
+                if (task != null)
+                    notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+            if (evicted != null)
+                evicted.discard();
+            else
+                deliver(task);
+        }
+    }
+
+    /**
+     * Sends the task, retrying up to {@link #maxRetries} times, and drops it if it cannot be sent.
+     * @param task the task
+     */
+    private void deliver(Task task) {
+        for (int attempt = 0; ; attempt++) {
+            boolean success;
+            try {
+                success = task.send();
+            } catch (RuntimeException e) {
+                Log.w(TAG, name + ": task failed to send", e);
+                success = false;
+            }
+            if (success) {
+                sent.incrementAndGet();
+                return;
+            }
+            if (attempt >= maxRetries || !running) {
+                dropped.incrementAndGet();
+                task.discard();
+                return;
+            }
+            retried.incrementAndGet();
+            try {
+                TimeUnit.MILLISECONDS.sleep(retryDelayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package edu.umass.cs.shared.communication;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+import edu.umass.cs.shared.util.SensorBuffer;
+
+/**
+ * The Sensor Batch Pool provides the {@link SensorBuffer.Batch batches} into which received
+ * sensor data is decoded, so that decoding does not allocate arrays for every batch. Each sensor
+ * type has its own pool of batches, which is replaced by a larger one if a batch does not fit.
+ * Batches are {@link SensorBuffer.Batch#release() released} back to the pool by their consumer,
+ * e.g. by the {@link SensorEventBus} once all subscribers have received them, possibly from
+ * another thread.
+ * <br><br>
+ * Batches must be obtained by one thread at a time, typically the thread decoding a stream.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ *
+ * @see SensorDataPacket#decode(java.nio.ByteBuffer, SensorDataCompressor, SensorDataCodec, SensorBatchPool, SensorStreamReader.OnSensorDataReceivedListener)
+ */
+public class SensorBatchPool {
+
+    /** The default number of batches retained for reuse per sensor type. **/
+    private static final int DEFAULT_BATCHES_PER_SENSOR = 8;
+
+    /** The number of batches retained for reuse per sensor type. **/
+    private final int batchesPerSensor;
+
+    /** The buffer providing the batches of each sensor type, indexed by its ordinal, or null until needed. **/
+    private final SensorBuffer[] buffers = new SensorBuffer[SharedConstants.SENSOR_TYPE.values().length];
+
+    public SensorBatchPool() {
+        this(DEFAULT_BATCHES_PER_SENSOR);
+    }
+
+    /**
+     * Instantiates a batch pool.
+     * @param batchesPerSensor the number of batches retained for reuse per sensor type, i.e.
+     *                         how many batches may be in use at once without allocating
+     */
+    public SensorBatchPool(int batchesPerSensor) {
+        this.batchesPerSensor = batchesPerSensor;
+    }
+
+    /**
+     * Obtains a batch with room for the given number of readings.
+     * @param sensorType the sensor type
+     * @param count the number of readings
+     * @param nDimensions the number of values per reading
+     * @return a batch holding {@code count} readings, to be released by the caller
+     */
+    public SensorBuffer.Batch obtain(SharedConstants.SENSOR_TYPE sensorType, int count, int nDimensions) {
+        SensorBuffer buffer = buffers[sensorType.ordinal()];
+        if (buffer == null || buffer.getBufferSize() < count || buffer.getDimensions() != nDimensions) {
+            int bufferSize = Math.max(1, count);
+            if (buffer != null && buffer.getDimensions() == nDimensions)
+                bufferSize = Math.max(bufferSize, buffer.getBufferSize());
+            buffer = new SensorBuffer(bufferSize, nDimensions, 0, batchesPerSensor);
+            buffers[sensorType.ordinal()] = buffer;
+        }
+        return buffer.obtainBatch(count);
+    }
+}
@@ -0,0 +1,306 @@
+package edu.umass.cs.shared.communication;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+
+/**
+ * The Sensor Data Codec defines a compact binary encoding of a batch of sensor readings, which is
+ * used to send sensor data from the wearable to the handheld application. A batch is encoded as
+ * <ul>
+ *     <li>a header consisting of the format version, the {@link SharedConstants.SENSOR_TYPE sensor type},
+ *     the value encoding, the number of dimensions per reading, the number of readings, the
+ *     recording session and the sequence number of the batch within its stream,</li>
+ *     <li>the first timestamp in full, followed by the zigzag varint-encoded differences between
+ *     consecutive timestamps, and</li>
+ *     <li>the values, either as 32-bit floats or as 16-bit fixed-point integers scaled according to
+ *     the sensor type, see {@link #getFixedPointScale(SharedConstants.SENSOR_TYPE)}.</li>
+ * </ul>
+ * The session and sequence number allow the receiver to detect lost, duplicated or reordered
+ * batches. Batches encoded in version 1 of the format carry neither and are still decoded.
+ * <br><br>
+ * Neither encoding nor decoding allocates memory: the caller provides the {@link ByteBuffer} and
+ * the arrays. A single codec instance holds the header of the most recently decoded batch and
+ * must therefore not be shared between threads while decoding.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ */
+public class SensorDataCodec {
+
+    /** The version of the encoding, written as the first byte of each batch. **/
+    public static final byte FORMAT_VERSION = 2;
+
+    /** The version of the encoding without session and sequence numbers, which is still decoded. **/
+    private static final byte FORMAT_VERSION_UNSEQUENCED = 1;
+
+    /** Indicates that a batch does not belong to a recording session. **/
+    public static final long NO_SESSION = 0;
+
+    /** Indicates that a batch carries no sequence number. **/
+    public static final long NO_SEQUENCE = -1;
+
+    /** Values are encoded as 32-bit IEEE 754 floats. **/
+    public static final byte ENCODING_FLOAT = 0;
+
+    /** Values are encoded as 16-bit fixed-point integers. **/
+    public static final byte ENCODING_FIXED_POINT = 1;
+
+    /** The maximum number of readings in a batch, far more than the sensor services ever send at once. **/
+    public static final int MAX_COUNT = 1 << 16;
+
+    /** The maximum number of values per reading. **/
+    public static final int MAX_DIMENSIONS = 16;
+
+    /** The number of header bytes preceding the varint-encoded count. **/
+    private static final int HEADER_SIZE = 4;
+
+    /** The maximum number of bytes in a varint-encoded 64-bit integer. **/
+    private static final int MAX_VARINT_SIZE = 10;
+
+    /** The sensor type of the most recently decoded batch. **/
+    private SharedConstants.SENSOR_TYPE sensorType;
+
+    /** The value encoding of the most recently decoded batch. **/
+    private byte encoding;
+
+    /** The number of dimensions per reading of the most recently decoded batch. **/
+    private int nDimensions;
+
+    /** The number of readings in the most recently decoded batch. **/
+    private int count;
+
+    /** The recording session of the most recently decoded batch. **/
+    private long sessionId;
+
+    /** The sequence number of the most recently decoded batch within its stream. **/
+    private long sequenceNumber;
+
+    /**
+     * Returns the factor by which values of the given sensor type are multiplied before being
+     * rounded to 16-bit integers, or 0 if the sensor type does not support fixed-point encoding.
+     * The scale is chosen such that the full range of the sensor fits into 16 bits, e.g. the
+     * Metawear accelerometer, measured in g, has a range of 16g and a resolution of 0.5mg.
+     * @param sensorType the sensor type
+     * @return the fixed-point scale
+     */
+    public static float getFixedPointScale(SharedConstants.SENSOR_TYPE sensorType) {
+        switch (sensorType) {
+            case ACCELEROMETER_WEARABLE: // m/s^2
+                return 400f;
+            case GYROSCOPE_WEARABLE: // rad/s
+                return 800f;
+            case ACCELEROMETER_METAWEAR: // g
+                return 2000f;
+            case GYROSCOPE_METAWEAR: // deg/s
+                return 16f;
+            case RSSI: // dBm
+            case BATTERY_METAWEAR: // percentage
+                return 100f;
+            default:
+                return 0f;
+        }
+    }
+
+    /**
+     * Returns an upper bound on the number of bytes required to encode a batch.
+     * @param count the number of readings
+     * @param nDimensions the number of values per reading
+     * @return the maximum encoded size in bytes
+     */
+    public static int getMaxEncodedSize(int count, int nDimensions) {
+        return HEADER_SIZE + 3 * MAX_VARINT_SIZE + 8 + count * MAX_VARINT_SIZE + 4 * count * nDimensions;
+    }
+
+    /**
+     * Encodes a batch of sensor readings, which does not belong to a session, into the buffer.
+     * See {@link #encode(ByteBuffer, long, long, SharedConstants.SENSOR_TYPE, long[], float[], int, int, boolean)}.
+     */
+    public static void encode(ByteBuffer out, SharedConstants.SENSOR_TYPE sensorType, long[] timestamps,
+                              float[] values, int count, int nDimensions, boolean fixedPoint) {
+        encode(out, NO_SESSION, NO_SEQUENCE, sensorType, timestamps, values, count, nDimensions, fixedPoint);
+    }
+
+    /**
+     * Encodes a batch of sensor readings into the buffer, starting at its current position.
+     * @param out the buffer, with at least {@link #getMaxEncodedSize(int, int)} bytes remaining
+     * @param sessionId identifies the recording session, e.g. its start time, or {@link #NO_SESSION}
+     * @param sequenceNumber the sequence number of the batch within the session's stream of the
+     *                       given sensor type, or {@link #NO_SEQUENCE}
+     * @param sensorType the sensor type
+     * @param timestamps the timestamps of the readings
+     * @param values the readings, [nDimensions x count] values in sequential order
+     * @param count the number of readings to encode, at most {@link #MAX_COUNT}
+     * @param nDimensions the number of values per reading, at most {@link #MAX_DIMENSIONS}
+     * @param fixedPoint whether values should be encoded as 16-bit fixed-point integers when
+     *                   the sensor type supports it and all values are within range
+     */
+    public static void encode(ByteBuffer out, long sessionId, long sequenceNumber, SharedConstants.SENSOR_TYPE sensorType,
+                              long[] timestamps, float[] values, int count, int nDimensions, boolean fixedPoint) {
+        float scale = fixedPoint ? getFixedPointScale(sensorType) : 0f;
+        int nValues = count * nDimensions;
+        if (scale > 0) {
+            for (int i = 0; i < nValues; i++) {
+                float scaled = values[i] * scale;
+                if (!(scaled >= Short.MIN_VALUE && scaled <= Short.MAX_VALUE)) { // also rejects NaN
+                    scale = 0f;
+                    break;
+                }
+            }
+        }
+
+        out.put(FORMAT_VERSION);
+        out.put((byte) sensorType.ordinal());
+        out.put(scale > 0 ? ENCODING_FIXED_POINT : ENCODING_FLOAT);
+        out.put((byte) nDimensions);
+        writeVarint(out, count);
+        writeVarint(out, sessionId);
+        writeVarint(out, sequenceNumber + 1);
+        if (count == 0)
+            return;
+
+        out.putLong(timestamps[0]);
+        for (int i = 1; i < count; i++) {
+            writeVarint(out, zigzag(timestamps[i] - timestamps[i - 1]));
+        }
+        if (scale > 0) {
+            for (int i = 0; i < nValues; i++) {
+                out.putShort((short) Math.round(values[i] * scale));
+            }
+        } else {
+            for (int i = 0; i < nValues; i++) {
+                out.putFloat(values[i]);
+            }
+        }
+    }
+
+    /**
+     * Decodes the header of a batch, starting at the current position of the buffer. Afterwards,
+     * {@link #getSensorType()}, {@link #getCount()}, {@link #getDimensions()}, {@link #getSessionId()}
+     * and {@link #getSequenceNumber()} describe the batch,
+     * and its readings may be decoded by calling {@link #decodeReadings(ByteBuffer, long[], float[])}.
+     * The header is validated before the caller allocates arrays for the readings, so a corrupt
+     * or truncated batch is rejected rather than requesting huge or negative array sizes.
+     * @param in the buffer containing the encoded batch, limited to its end
+     * @throws IllegalArgumentException if the batch is encoded in an unsupported format, its
+     * dimensions exceed {@link #MAX_COUNT} or {@link #MAX_DIMENSIONS}, or its readings cannot fit
+     * into the rest of the buffer
+     * @throws BufferUnderflowException if the buffer does not contain a complete header
+     */
+    public void decodeHeader(ByteBuffer in) {
+        byte version = in.get();
+        if (version != FORMAT_VERSION && version != FORMAT_VERSION_UNSEQUENCED)
+            throw new IllegalArgumentException("Unsupported sensor data format version " + version);
+        int ordinal = in.get() & 0xFF;
+        SharedConstants.SENSOR_TYPE[] sensorTypes = SharedConstants.SENSOR_TYPE.values();
+        sensorType = ordinal < sensorTypes.length ? sensorTypes[ordinal] : SharedConstants.SENSOR_TYPE.UNKNOWN;
+        encoding = in.get();
+        if (encoding != ENCODING_FLOAT && encoding != ENCODING_FIXED_POINT)
+            throw new IllegalArgumentException("Unsupported sensor value encoding " + encoding);
+        nDimensions = in.get() & 0xFF;
+        if (nDimensions > MAX_DIMENSIONS)
+            throw new IllegalArgumentException("Invalid number of dimensions " + nDimensions);
+        long n = readVarint(in);
+        if (n < 0 || n > MAX_COUNT)
+            throw new IllegalArgumentException("Invalid number of readings " + n);
+        count = (int) n;
+        if (version == FORMAT_VERSION) {
+            sessionId = readVarint(in);
+            sequenceNumber = readVarint(in) - 1;
+        } else {
+            sessionId = NO_SESSION;
+            sequenceNumber = NO_SEQUENCE;
+        }
+        if (count > 0) {
+            // the first timestamp in full, at least one byte per difference and the values
+            int bytesPerValue = encoding == ENCODING_FIXED_POINT ? 2 : 4;
+            long minSize = 8 + (count - 1) + (long) count * nDimensions * bytesPerValue;
+            if (minSize > in.remaining())
+                throw new IllegalArgumentException("Truncated batch of " + count + " readings");
+        }
+    }
+
+    /**
+     * Decodes the timestamps and values of the batch whose header was last decoded.
+     * @param in the buffer, positioned immediately after the header
+     * @param timestamps receives the {@link #getCount()} timestamps
+     * @param values receives the {@link #getCount()} x {@link #getDimensions()} values
+     */
+    public void decodeReadings(ByteBuffer in, long[] timestamps, float[] values) {
+        if (count == 0)
+            return;
+        long timestamp = in.getLong();
+        timestamps[0] = timestamp;
+        for (int i = 1; i < count; i++) {
+            timestamp += unzigzag(readVarint(in));
+            timestamps[i] = timestamp;
+        }
+        int nValues = count * nDimensions;
+        if (encoding == ENCODING_FIXED_POINT) {
+            float scale = getFixedPointScale(sensorType);
+            for (int i = 0; i < nValues; i++) {
+                values[i] = in.getShort() / scale;
+            }
+        } else {
+            for (int i = 0; i < nValues; i++) {
+                values[i] = in.getFloat();
+            }
+        }
+    }
+
+    public SharedConstants.SENSOR_TYPE getSensorType() {
+        return sensorType;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getDimensions() {
+        return nDimensions;
+    }
+
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    /**
+     * Writes an unsigned variable-length integer, 7 bits per byte, least significant group first.
+     */
+    static void writeVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Reads an unsigned variable-length integer written by {@link #writeVarint(ByteBuffer, long)}.
+     */
+    static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /** Maps signed integers to unsigned integers so that small magnitudes have short encodings. **/
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /** Inverse of {@link #zigzag(long)}. **/
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,271 @@
+package edu.umass.cs.shared.communication;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The Sensor Data Compressor deflates payloads, i.e. {@link SensorDataPacket packets} or single
+ * {@link SensorDataCodec encoded} batches, before they are sent to the handheld device. Sensor
+ * signals are smooth, so larger payloads compress well, whereas compressing small payloads costs
+ * CPU time for little gain. The compressor therefore adapts:
+ * <ul>
+ *     <li>payloads smaller than a threshold are sent as they are,</li>
+ *     <li>a compressed payload is only used if it is sufficiently smaller than the original, and</li>
+ *     <li>after a compression attempt that did not pay for itself, the next few payloads are
+ *     sent uncompressed before compression is attempted again.</li>
+ * </ul>
+ * A compressed payload starts with the {@link #COMPRESSED_MARKER}, followed by the varint-encoded
+ * length of the original payload and the zlib-compressed payload. The compressor records the
+ * ratio and the elapsed time of each compression attempt, and keeps rolling statistics over the
+ * {@link #ROLLING_WINDOW} most recent attempts, so that the cost of compression can be followed
+ * while a session is running rather than only from the totals. Times are measured with
+ * {@link System#nanoTime()}, so they include any time the thread was preempted and are an upper
+ * bound on the CPU time spent; only the ratio decides whether compression pays for itself.
+ * <br><br>
+ * A compressor reuses its buffers and must only be used by one thread at a time.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ *
+ * @see SensorDataPacket
+ */
+public class SensorDataCompressor {
+
+    /** The first byte of a compressed payload, which is never the first byte of a packet or batch. **/
+    public static final byte COMPRESSED_MARKER = (byte) 0xFE;
+
+    /** The maximum number of bytes preceding the compressed data. **/
+    private static final int MAX_HEADER_SIZE = 6;
+
+    /** The number of most recent compression attempts covered by the rolling statistics. **/
+    public static final int ROLLING_WINDOW = 64;
+
+    /** Payloads larger than this are considered corrupt when decompressing. **/
+    private static final int MAX_PAYLOAD_SIZE = 1 << 20;
+
+    /** Payloads smaller than this many bytes are not compressed. **/
+    private final int minSize;
+
+    /** The maximum ratio of compressed to original size for which the compressed payload is used. **/
+    private final float maxRatio;
+
+    /** The number of payloads sent uncompressed after an attempt that did not pay for itself. **/
+    private final int backoff;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    private final Inflater inflater = new Inflater();
+
+    /** Reusable buffer holding the most recent output, grown if necessary. **/
+    private byte[] output = new byte[4096];
+
+    /** The length of the most recent output. **/
+    private int outputLength;
+
+    /** The number of payloads left to send uncompressed before the next attempt. **/
+    private int skipRemaining;
+
+    private long payloadCount;
+    private long compressedCount;
+    private long bytesIn;
+    private long bytesOut;
+    private long elapsedNanos;
+    private float lastRatio = 1f;
+    private long lastNanos;
+
+    /** The number of compression attempts, i.e. payloads which were deflated. **/
+    private long attemptCount;
+
+    /** The compression ratios of the most recent attempts, used as a ring indexed by {@link #attemptCount}. **/
+    private final float[] recentRatios = new float[ROLLING_WINDOW];
+
+    /** The elapsed time in nanoseconds of the most recent attempts, used as a ring indexed by {@link #attemptCount}. **/
+    private final long[] recentNanos = new long[ROLLING_WINDOW];
+
+    /**
+     * Instantiates a compressor.
+     * @param minSize payloads smaller than this many bytes are not compressed
+     * @param maxRatio the maximum ratio of compressed to original size for which compression pays for itself
+     * @param backoff the number of payloads sent uncompressed after an attempt that did not pay for itself
+     */
+    public SensorDataCompressor(int minSize, float maxRatio, int backoff) {
+        this.minSize = minSize;
+        this.maxRatio = maxRatio;
+        this.backoff = backoff;
+    }
+
+    /**
+     * Compresses the payload if worthwhile. If so, the compressed payload is available through
+     * {@link #array()} and {@link #length()}; otherwise the original payload should be sent.
+     * @param data the array containing the payload
+     * @param offset the offset of the payload in the array
+     * @param length the length of the payload in bytes
+     * @return true if the payload was compressed, false if it should be sent as it is
+     */
+    public boolean compress(byte[] data, int offset, int length) {
+        payloadCount++;
+        bytesIn += length;
+        if (length < minSize || skipRemaining > 0) {
+            if (length >= minSize)
+                skipRemaining--;
+            bytesOut += length;
+            return false;
+        }
+
+        long start = System.nanoTime();
+        outputLength = 0;
+        ensureOutputCapacity(MAX_HEADER_SIZE + length + length / 100 + 64);
+        ByteBuffer header = ByteBuffer.wrap(output);
+        header.put(COMPRESSED_MARKER);
+        SensorDataCodec.writeVarint(header, length);
+        outputLength = header.position();
+        deflater.reset();
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (outputLength == output.length)
+                ensureOutputCapacity(2 * output.length);
+            outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+        }
+        lastNanos = System.nanoTime() - start;
+        lastRatio = outputLength / (float) length;
+        elapsedNanos += lastNanos;
+        int index = (int) (attemptCount % ROLLING_WINDOW);
+        recentRatios[index] = lastRatio;
+        recentNanos[index] = lastNanos;
+        attemptCount++;
+
+        if (lastRatio > maxRatio) {
+            skipRemaining = backoff;
+            bytesOut += length;
+            return false;
+        }
+        compressedCount++;
+        bytesOut += outputLength;
+        return true;
+    }
+
+    /**
+     * Indicates whether the payload was compressed by a {@link SensorDataCompressor}.
+     * @param in the buffer containing the payload at its current position
+     * @return true if the payload is compressed
+     */
+    public static boolean isCompressed(ByteBuffer in) {
+        return in.remaining() > 0 && in.get(in.position()) == COMPRESSED_MARKER;
+    }
+
+    /**
+     * Decompresses a compressed payload. The original payload is then available through
+     * {@link #array()} and {@link #length()}.
+     * @param in the buffer containing the compressed payload, from its position to its limit
+     * @throws IllegalArgumentException if the payload is not a valid compressed payload
+     * @throws BufferUnderflowException if the payload is truncated
+     */
+    public void decompress(ByteBuffer in) {
+        if (in.get() != COMPRESSED_MARKER)
+            throw new IllegalArgumentException("Payload is not compressed");
+        long length = SensorDataCodec.readVarint(in);
+        if (length < 0 || length > MAX_PAYLOAD_SIZE)
+            throw new IllegalArgumentException("Invalid payload length " + length);
+        outputLength = 0;
+        ensureOutputCapacity((int) length);
+        inflater.reset();
+        inflater.setInput(in.array(), in.arrayOffset() + in.position(), in.remaining());
+        try {
+            outputLength = 0;
+            while (outputLength < length) {
+                int n = inflater.inflate(output, outputLength, (int) length - outputLength);
+                if (n == 0 && (inflater.needsInput() || inflater.finished()))
+                    throw new BufferUnderflowException();
+                outputLength += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt compressed payload", e);
+        }
+        in.position(in.limit());
+    }
+
+    private void ensureOutputCapacity(int capacity) {
+        if (output.length < capacity) {
+            byte[] grown = new byte[capacity];
+            System.arraycopy(output, 0, grown, 0, outputLength);
+            output = grown;
+        }
+    }
+
+    /** Returns the array holding the most recent output, valid up to {@link #length()}. **/
+    public byte[] array() {
+        return output;
+    }
+
+    /** Returns the length of the most recent output in bytes. **/
+    public int length() {
+        return outputLength;
+    }
+
+    /** Returns the ratio of compressed to original size of the most recent compression attempt. **/
+    public float getLastRatio() {
+        return lastRatio;
+    }
+
+    /** Returns the elapsed time in nanoseconds of the most recent compression attempt. **/
+    public long getLastNanos() {
+        return lastNanos;
+    }
+
+    /** Returns the total number of compression attempts. **/
+    public long getAttemptCount() {
+        return attemptCount;
+    }
+
+    /** Returns the mean ratio of compressed to original size over the {@link #ROLLING_WINDOW} most recent attempts. **/
+    public float getRecentRatio() {
+        int n = (int) Math.min(attemptCount, ROLLING_WINDOW);
+        if (n == 0)
+            return 1f;
+        float sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += recentRatios[i];
+        }
+        return sum / n;
+    }
+
+    /** Returns the mean elapsed time in nanoseconds per attempt over the {@link #ROLLING_WINDOW} most recent attempts. **/
+    public long getRecentMeanNanos() {
+        int n = (int) Math.min(attemptCount, ROLLING_WINDOW);
+        if (n == 0)
+            return 0;
+        long sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += recentNanos[i];
+        }
+        return sum / n;
+    }
+
+    /** Returns the maximum elapsed time in nanoseconds of an attempt among the {@link #ROLLING_WINDOW} most recent attempts. **/
+    public long getRecentMaxNanos() {
+        int n = (int) Math.min(attemptCount, ROLLING_WINDOW);
+        long max = 0;
+        for (int i = 0; i < n; i++) {
+            max = Math.max(max, recentNanos[i]);
+        }
+        return max;
+    }
+
+    /** Returns the ratio of bytes sent to bytes submitted over all payloads. **/
+    public float getOverallRatio() {
+        return bytesIn == 0 ? 1f : bytesOut / (float) bytesIn;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "compression: %d of %d payloads compressed, %d -> %d bytes (%.2f), %.1f ms elapsed; "
+                        + "last %d attempts: ratio %.2f, %.3f ms mean, %.3f ms max",
+                compressedCount, payloadCount, bytesIn, bytesOut, getOverallRatio(), elapsedNanos / 1e6,
+                Math.min(attemptCount, ROLLING_WINDOW), getRecentRatio(), getRecentMeanNanos() / 1e6, getRecentMaxNanos() / 1e6);
+    }
+}
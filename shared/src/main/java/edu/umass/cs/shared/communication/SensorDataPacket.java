@@ -0,0 +1,213 @@
+package edu.umass.cs.shared.communication;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+import edu.umass.cs.shared.util.SensorBuffer;
+
+/**
+ * A Sensor Data Packet multiplexes batches of several sensors, each encoded by the
+ * {@link SensorDataCodec}, into a single message, so that the data of all sensors collected
+ * during one flush interval is sent at once. A packet consists of
+ * <ul>
+ *     <li>the {@link #PACKET_MARKER}, which distinguishes it from a single encoded batch,</li>
+ *     <li>the number of batches as a 16-bit integer, and</li>
+ *     <li>each batch, preceded by its varint-encoded length.</li>
+ * </ul>
+ * A packet reuses its buffer once it has been {@link #clear() cleared} and must only be used
+ * by one thread at a time.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ *
+ * @see SensorDataCodec
+ */
+public class SensorDataPacket {
+
+    /** The first byte of a packet, which is never a valid {@link SensorDataCodec#FORMAT_VERSION}. **/
+    public static final byte PACKET_MARKER = (byte) 0xFF;
+
+    /** The number of bytes preceding the first batch. **/
+    private static final int HEADER_SIZE = 3;
+
+    /** The maximum number of bytes in the varint-encoded length of a batch. **/
+    private static final int MAX_LENGTH_SIZE = 5;
+
+    /** The maximum number of batches in a packet. **/
+    public static final int MAX_BATCHES = 0xFFFF;
+
+    /** The buffer holding the packet, grown as batches are added. **/
+    private ByteBuffer buffer;
+
+    /** The number of batches in the packet. **/
+    private int batchCount;
+
+    /** Scratch buffer into which a batch is encoded before its length is known. **/
+    private ByteBuffer scratch;
+
+    /**
+     * Instantiates an empty packet.
+     * @param initialCapacity the initial size of the packet buffer in bytes
+     */
+    public SensorDataPacket(int initialCapacity) {
+        buffer = ByteBuffer.allocate(Math.max(HEADER_SIZE, initialCapacity));
+        scratch = ByteBuffer.allocate(Math.max(HEADER_SIZE, initialCapacity));
+        clear();
+    }
+
+    /**
+     * Encodes a batch of sensor readings and adds it to the packet.
+     * @param sessionId identifies the recording session
+     * @param sequenceNumber the sequence number of the batch within its stream
+     * @param sensorType the sensor type
+     * @param timestamps the timestamps of the readings
+     * @param values the readings
+     * @param count the number of readings
+     * @param nDimensions the number of values per reading
+     * @param fixedPoint whether values should be encoded as fixed-point integers where possible
+     */
+    public void add(long sessionId, long sequenceNumber, SharedConstants.SENSOR_TYPE sensorType, long[] timestamps,
+                    float[] values, int count, int nDimensions, boolean fixedPoint) {
+        int maxSize = SensorDataCodec.getMaxEncodedSize(count, nDimensions);
+        if (scratch.capacity() < maxSize)
+            scratch = ByteBuffer.allocate(maxSize);
+        scratch.clear();
+        SensorDataCodec.encode(scratch, sessionId, sequenceNumber, sensorType, timestamps, values, count, nDimensions, fixedPoint);
+        addEncoded(scratch.array(), 0, scratch.position());
+    }
+
+    /**
+     * Adds a batch already encoded by the {@link SensorDataCodec} to the packet.
+     * @param data the array containing the encoded batch
+     * @param offset the offset of the batch in the array
+     * @param length the length of the batch in bytes
+     */
+    public void addEncoded(byte[] data, int offset, int length) {
+        if (batchCount == MAX_BATCHES)
+            throw new IllegalStateException("Sensor data packet is full");
+        int required = buffer.position() + MAX_LENGTH_SIZE + length;
+        if (buffer.capacity() < required) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(required, 2 * buffer.capacity()));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+        SensorDataCodec.writeVarint(buffer, length);
+        buffer.put(data, offset, length);
+        batchCount++;
+        buffer.putShort(1, (short) batchCount);
+    }
+
+    /** Returns the array backing the packet, valid up to {@link #length()}. **/
+    public byte[] array() {
+        return buffer.array();
+    }
+
+    /** Returns the length of the packet in bytes. **/
+    public int length() {
+        return buffer.position();
+    }
+
+    public int getBatchCount() {
+        return batchCount;
+    }
+
+    public boolean isEmpty() {
+        return batchCount == 0;
+    }
+
+    /**
+     * Passes each batch in the packet to the handler, e.g. to spool the batches if the packet
+     * could not be sent.
+     * @param handler receives each encoded batch; its return value is ignored
+     */
+    public void forEachBatch(SensorDataSpool.RecordHandler handler) {
+        ByteBuffer in = ByteBuffer.wrap(buffer.array(), HEADER_SIZE, buffer.position() - HEADER_SIZE);
+        for (int i = 0; i < batchCount; i++) {
+            int length = (int) SensorDataCodec.readVarint(in);
+            handler.onRecord(in.array(), in.position(), length);
+            in.position(in.position() + length);
+        }
+    }
+
+    /**
+     * Removes all batches from the packet.
+     */
+    public void clear() {
+        buffer.clear();
+        buffer.put(PACKET_MARKER);
+        buffer.putShort((short) 0);
+        batchCount = 0;
+    }
+
+    /**
+     * Decodes either a packet or a single encoded batch, passing each batch to the listener.
+     * @param in the buffer containing the packet or batch, from its current position to its limit
+     * @param codec the codec used to decode each batch
+     * @param pool provides the batches into which the readings are decoded
+     * @param listener receives each decoded batch
+     * @return the number of batches decoded
+     * @throws IllegalArgumentException if a batch is encoded in an unsupported format
+     * @throws BufferUnderflowException if the data is truncated
+     */
+    public static int decode(ByteBuffer in, SensorDataCodec codec, SensorBatchPool pool,
+                             SensorStreamReader.OnSensorDataReceivedListener listener) {
+        return decode(in, null, codec, pool, listener);
+    }
+
+    /**
+     * Decodes a packet or a single encoded batch, either of which may have been compressed by a
+     * {@link SensorDataCompressor}, passing each batch to the listener. The readings are decoded
+     * into batches obtained from the pool, so that decoding does not allocate.
+     * @param in the buffer containing the payload, from its current position to its limit
+     * @param compressor the compressor used to decompress the payload, or null if the payload
+     *                   is known to be uncompressed
+     * @param codec the codec used to decode each batch
+     * @param pool provides the batches into which the readings are decoded
+     * @param listener receives each decoded batch
+     * @return the number of batches decoded
+     * @throws IllegalArgumentException if the payload is encoded in an unsupported format
+     * @throws BufferUnderflowException if the data is truncated
+     */
+    public static int decode(ByteBuffer in, SensorDataCompressor compressor, SensorDataCodec codec, SensorBatchPool pool,
+                             SensorStreamReader.OnSensorDataReceivedListener listener) {
+        if (SensorDataCompressor.isCompressed(in)) {
+            if (compressor == null)
+                throw new IllegalArgumentException("Unexpected compressed payload");
+            compressor.decompress(in);
+            in = ByteBuffer.wrap(compressor.array(), 0, compressor.length());
+        }
+        if (in.get(in.position()) != PACKET_MARKER) {
+            decodeBatch(in, codec, pool, listener);
+            return 1;
+        }
+        in.get();
+        int count = in.getShort() & 0xFFFF;
+        int limit = in.limit();
+        for (int i = 0; i < count; i++) {
+            int length = (int) SensorDataCodec.readVarint(in);
+            if (length < 0 || length > in.remaining())
+                throw new BufferUnderflowException();
+            int end = in.position() + length;
+            in.limit(end);
+            decodeBatch(in, codec, pool, listener);
+            in.limit(limit);
+            in.position(end);
+        }
+        return count;
+    }
+
+    private static void decodeBatch(ByteBuffer in, SensorDataCodec codec, SensorBatchPool pool,
+                                    SensorStreamReader.OnSensorDataReceivedListener listener) {
+        codec.decodeHeader(in);
+        SensorBuffer.Batch batch = pool.obtain(codec.getSensorType(), codec.getCount(), codec.getDimensions());
+        try {
+            codec.decodeReadings(in, batch.getTimestamps(), batch.getValues());
+        } catch (RuntimeException e) {
+            batch.release();
+            throw e;
+        }
+        listener.onSensorDataReceived(codec.getSensorType(), codec.getSessionId(), codec.getSequenceNumber(), batch);
+    }
+}
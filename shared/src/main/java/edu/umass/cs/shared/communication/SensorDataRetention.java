@@ -0,0 +1,120 @@
+package edu.umass.cs.shared.communication;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+
+/**
+ * The Sensor Data Retention keeps a bounded window of recently sent batches in memory, so that
+ * batches the receiver reports as missing can be sent again. Batches are retained in their
+ * {@link SensorDataCodec encoded} form and identified by their session, sensor type and sequence
+ * number. Once the window exceeds its size, the oldest batches are discarded.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ *
+ * @see SensorGapTracker
+ */
+public class SensorDataRetention {
+
+    /** A retained batch. **/
+    private static class Entry {
+        final long sessionId;
+        final SharedConstants.SENSOR_TYPE sensorType;
+        final long sequenceNumber;
+        final byte[] data;
+
+        Entry(long sessionId, SharedConstants.SENSOR_TYPE sensorType, long sequenceNumber, byte[] data) {
+            this.sessionId = sessionId;
+            this.sensorType = sensorType;
+            this.sequenceNumber = sequenceNumber;
+            this.data = data;
+        }
+    }
+
+    /** The maximum total size of the retained batches in bytes. **/
+    private final long maxSizeBytes;
+
+    /** The retained batches, oldest first. **/
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+
+    /** Decodes the header of each retained batch. **/
+    private final SensorDataCodec codec = new SensorDataCodec();
+
+    /** The total size of the retained batches in bytes. **/
+    private long sizeBytes;
+
+    /** The number of batches discarded from the window. **/
+    private long evictedCount;
+
+    /**
+     * Instantiates a retention window.
+     * @param maxSizeBytes the maximum total size of the retained batches in bytes
+     */
+    public SensorDataRetention(long maxSizeBytes) {
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Retains a copy of an encoded batch. Batches without a sequence number are ignored.
+     * @param data the array containing the encoded batch
+     * @param offset the offset of the batch in the array
+     * @param length the length of the batch in bytes
+     */
+    public synchronized void retain(byte[] data, int offset, int length) {
+        if (length > maxSizeBytes)
+            return;
+        try {
+            codec.decodeHeader(ByteBuffer.wrap(data, offset, length));
+        } catch (RuntimeException e) {
+            return;
+        }
+        if (codec.getSequenceNumber() == SensorDataCodec.NO_SEQUENCE)
+            return;
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        entries.add(new Entry(codec.getSessionId(), codec.getSensorType(), codec.getSequenceNumber(), copy));
+        sizeBytes += length;
+        while (sizeBytes > maxSizeBytes) {
+            sizeBytes -= entries.poll().data.length;
+            evictedCount++;
+        }
+    }
+
+    /**
+     * Passes the retained batches of the given stream whose sequence numbers lie within the
+     * given range to the handler, in the order in which they were retained.
+     * @param sessionId the recording session
+     * @param sensorType the sensor type
+     * @param fromSequenceNumber the first sequence number, inclusive
+     * @param toSequenceNumber the last sequence number, inclusive
+     * @param handler receives each encoded batch; its return value is ignored
+     * @return the number of batches found
+     */
+    public synchronized int retrieve(long sessionId, SharedConstants.SENSOR_TYPE sensorType, long fromSequenceNumber,
+                                     long toSequenceNumber, SensorDataSpool.RecordHandler handler) {
+        int found = 0;
+        Iterator<Entry> iterator = entries.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.sessionId == sessionId && entry.sensorType == sensorType
+                    && entry.sequenceNumber >= fromSequenceNumber && entry.sequenceNumber <= toSequenceNumber) {
+                handler.onRecord(entry.data, 0, entry.data.length);
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /** Returns the total size of the retained batches in bytes. **/
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    /** Returns the number of batches discarded from the window. **/
+    public synchronized long getEvictedCount() {
+        return evictedCount;
+    }
+}
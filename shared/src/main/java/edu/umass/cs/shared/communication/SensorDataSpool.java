@@ -0,0 +1,389 @@
+package edu.umass.cs.shared.communication;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+
+/**
+ * The Sensor Data Spool stores batches of sensor data on disk while the receiving device is
+ * unreachable, so that they can be replayed in order once the connection returns. Batches are
+ * encoded by the {@link SensorDataCodec} and appended as length-prefixed records to segment
+ * files in the spool directory. A segment is deleted once all of its records have been replayed.
+ * <br><br>
+ * The total size of the spool is bounded. When a batch does not fit, the {@link EvictionPolicy}
+ * determines whether the oldest segment is deleted or the new batch is rejected.
+ * <br><br>
+ * Segments left over from a previous process are replayed as well. Since the replay position
+ * is kept in memory, records of a partially replayed segment may be replayed again after a
+ * restart. A record truncated by a crash ends its segment.
+ * <br><br>
+ * Batches may be appended from any thread; {@link #replay(int, RecordHandler)} must only be
+ * called from one thread at a time.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ */
+public class SensorDataSpool {
+
+    @SuppressWarnings("unused")
+    /** used for debugging purposes */
+    private static final String TAG = SensorDataSpool.class.getName();
+
+    /**
+     * Determines which data is discarded when the spool is full.
+     */
+    public enum EvictionPolicy {
+        /** The oldest segment is deleted to make room for new batches. **/
+        DROP_OLDEST,
+        /** New batches are rejected until the spool has been replayed. **/
+        DROP_NEWEST
+    }
+
+    /**
+     * Sends a spooled record, which contains a single batch encoded by the {@link SensorDataCodec}.
+     */
+    public interface RecordHandler {
+        /**
+         * @param data the array containing the record
+         * @param offset the offset of the record in the array
+         * @param length the length of the record in bytes
+         * @return true if the record was sent, false if replay should stop and resume with this record
+         */
+        boolean onRecord(byte[] data, int offset, int length);
+    }
+
+    /** The file extension of spool segments. **/
+    private static final String SEGMENT_EXTENSION = ".spool";
+
+    /** The number of bytes preceding each record, which specify its length. **/
+    private static final int RECORD_HEADER_SIZE = 4;
+
+    /** The directory containing the segment files. **/
+    private final File directory;
+
+    /** The maximum total size of all segments in bytes. **/
+    private final long maxSizeBytes;
+
+    /** The size in bytes at which a new segment is started. **/
+    private final long segmentSizeBytes;
+
+    /** Determines which data is discarded when the spool is full. **/
+    private final EvictionPolicy policy;
+
+    /** The segment files, oldest first. The last segment is the one being appended to. **/
+    private final ArrayDeque<File> segments = new ArrayDeque<>();
+
+    /** The total size of all segments in bytes. **/
+    private long sizeBytes;
+
+    /** The sequence number of the next segment. **/
+    private long nextSegment;
+
+    /** The stream appending to the newest segment, or null if a new segment must be started. **/
+    private FileOutputStream out;
+
+    /** The number of bytes already written to the newest segment. **/
+    private long outSize;
+
+    /** The number of bytes of the oldest segment which have been replayed. **/
+    private long readOffset;
+
+    /** Reusable buffer into which batches are encoded. **/
+    private ByteBuffer encodeBuffer = ByteBuffer.allocate(4096);
+
+    /** Reusable buffer into which records are read during replay. **/
+    private byte[] readBuffer = new byte[4096];
+
+    /** The number of batches appended to the spool. **/
+    private long appendedCount;
+
+    /** The number of batches replayed from the spool. **/
+    private long replayedCount;
+
+    /** The number of batches rejected under the {@link EvictionPolicy#DROP_NEWEST} policy. **/
+    private long rejectedCount;
+
+    /** The number of bytes evicted under the {@link EvictionPolicy#DROP_OLDEST} policy. **/
+    private long evictedBytes;
+
+    /**
+     * Instantiates a spool, picking up any segments left in the directory.
+     * @param directory the directory in which segments are stored, created if necessary
+     * @param maxSizeBytes the maximum total size of the spool in bytes
+     * @param segmentSizeBytes the size in bytes at which a new segment is started
+     * @param policy determines which data is discarded when the spool is full
+     */
+    public SensorDataSpool(File directory, long maxSizeBytes, long segmentSizeBytes, EvictionPolicy policy) {
+        this.directory = directory;
+        this.maxSizeBytes = maxSizeBytes;
+        this.segmentSizeBytes = Math.min(segmentSizeBytes, maxSizeBytes);
+        this.policy = policy;
+
+        //noinspection ResultOfMethodCallIgnored
+        directory.mkdirs();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                if (!file.getName().endsWith(SEGMENT_EXTENSION))
+                    continue;
+                segments.add(file);
+                sizeBytes += file.length();
+                nextSegment = Math.max(nextSegment, parseSequence(file) + 1);
+            }
+        }
+    }
+
+    private static long parseSequence(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_EXTENSION.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Encodes a batch of sensor readings and appends it to the spool.
+     * @param sessionId identifies the recording session
+     * @param sequenceNumber the sequence number of the batch within its stream
+     * @param sensorType the sensor type
+     * @param timestamps the timestamps of the readings
+     * @param values the readings
+     * @param count the number of readings
+     * @param nDimensions the number of values per reading
+     * @param fixedPoint whether values should be encoded as fixed-point integers where possible
+     * @return true if the batch was spooled, false if it was rejected or could not be written
+     */
+    public synchronized boolean append(long sessionId, long sequenceNumber, SharedConstants.SENSOR_TYPE sensorType,
+                                       long[] timestamps, float[] values, int count, int nDimensions, boolean fixedPoint) {
+        int maxSize = RECORD_HEADER_SIZE + SensorDataCodec.getMaxEncodedSize(count, nDimensions);
+        if (encodeBuffer.capacity() < maxSize)
+            encodeBuffer = ByteBuffer.allocate(maxSize);
+        encodeBuffer.clear();
+        encodeBuffer.position(RECORD_HEADER_SIZE);
+        SensorDataCodec.encode(encodeBuffer, sessionId, sequenceNumber, sensorType, timestamps, values, count, nDimensions, fixedPoint);
+        encodeBuffer.putInt(0, encodeBuffer.position() - RECORD_HEADER_SIZE);
+        return appendRecord(encodeBuffer.array(), encodeBuffer.position());
+    }
+
+    /**
+     * Appends an already encoded batch to the spool.
+     * @param data the array containing the encoded batch
+     * @param offset the offset of the batch in the array
+     * @param length the length of the batch in bytes
+     * @return true if the batch was spooled, false if it was rejected or could not be written
+     */
+    public synchronized boolean append(byte[] data, int offset, int length) {
+        if (encodeBuffer.capacity() < RECORD_HEADER_SIZE + length)
+            encodeBuffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        encodeBuffer.clear();
+        encodeBuffer.putInt(length);
+        encodeBuffer.put(data, offset, length);
+        return appendRecord(encodeBuffer.array(), encodeBuffer.position());
+    }
+
+    /**
+     * Writes a length-prefixed record to the newest segment, evicting data if necessary.
+     */
+    private boolean appendRecord(byte[] record, int length) {
+        if (length > maxSizeBytes) {
+            rejectedCount++;
+            return false;
+        }
+        while (sizeBytes + length > maxSizeBytes) {
+            if (policy == EvictionPolicy.DROP_NEWEST || !evictOldest()) {
+                rejectedCount++;
+                return false;
+            }
+        }
+        try {
+            if (out == null || outSize + length > segmentSizeBytes) {
+                closeOutput();
+                File segment = new File(directory, String.format(Locale.US, "%019d%s", nextSegment++, SEGMENT_EXTENSION));
+                out = new FileOutputStream(segment, true);
+                outSize = 0;
+                segments.add(segment);
+            }
+            out.write(record, 0, length);
+            outSize += length;
+            sizeBytes += length;
+            appendedCount++;
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not spool sensor data: " + e.getMessage());
+            closeOutput();
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the oldest segment. If it is also the segment being appended to, a new segment
+     * is started by the next append.
+     * @return true if a segment was deleted, false if the spool is empty
+     */
+    private boolean evictOldest() {
+        File oldest = segments.peekFirst();
+        if (oldest == null)
+            return false;
+        evictedBytes += oldest.length() - readOffset;
+        deleteOldest();
+        return true;
+    }
+
+    /** Deletes the oldest segment and resets the replay position. **/
+    private void deleteOldest() {
+        File oldest = segments.pollFirst();
+        if (segments.isEmpty())
+            closeOutput();
+        sizeBytes -= oldest.length();
+        //noinspection ResultOfMethodCallIgnored
+        oldest.delete();
+        readOffset = 0;
+    }
+
+    private void closeOutput() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {}
+            out = null;
+        }
+    }
+
+    /**
+     * Passes up to the given number of spooled batches to the handler, oldest first. Replay stops
+     * early if the handler fails to send a record, which is then passed again by the next replay.
+     * The spool is not locked while the handler runs, so batches may be appended concurrently.
+     * @param maxRecords the maximum number of batches to replay
+     * @param handler sends each batch
+     * @return the number of batches replayed
+     */
+    public int replay(int maxRecords, RecordHandler handler) {
+        int replayed = 0;
+        while (replayed < maxRecords) {
+            int length;
+            File segment;
+            synchronized (this) {
+                segment = segments.peekFirst();
+                if (segment == null)
+                    break;
+                length = readRecord(segment);
+                if (length < 0) {
+                    if (segment == segments.peekLast() && out != null)
+                        break; // the newest segment has been replayed up to the end, await more data
+                    deleteOldest(); // the segment is exhausted or ends in a torn record
+                    continue;
+                }
+            }
+            if (!handler.onRecord(readBuffer, 0, length))
+                break;
+            synchronized (this) {
+                if (segments.peekFirst() == segment) // unless evicted in the meantime
+                    readOffset += RECORD_HEADER_SIZE + length;
+                replayedCount++;
+            }
+            replayed++;
+        }
+        synchronized (this) {
+            File segment = segments.peekFirst();
+            if (segment != null && segments.size() == 1 && readOffset >= segment.length()) {
+                deleteOldest(); // fully replayed, start afresh with the next append
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * Reads the record at the replay position of the segment into the {@link #readBuffer}.
+     * @return the length of the record, or -1 if there is no complete record
+     */
+    private int readRecord(File segment) {
+        if (readOffset + RECORD_HEADER_SIZE > segment.length())
+            return -1;
+        InputStream stream = null;
+        try {
+            stream = new FileInputStream(segment);
+            DataInputStream in = new DataInputStream(stream);
+            long skipped = 0;
+            while (skipped < readOffset) {
+                long n = in.skip(readOffset - skipped);
+                if (n <= 0)
+                    return -1;
+                skipped += n;
+            }
+            int length = in.readInt();
+            if (length < 0 || readOffset + RECORD_HEADER_SIZE + length > segment.length())
+                return -1;
+            if (readBuffer.length < length)
+                readBuffer = new byte[length];
+            in.readFully(readBuffer, 0, length);
+            return length;
+        } catch (EOFException e) {
+            return -1;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read spooled sensor data: " + e.getMessage());
+            return -1;
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * Indicates whether any batches remain to be replayed.
+     * @return true if the spool is empty
+     */
+    public synchronized boolean isEmpty() {
+        return segments.isEmpty() || (segments.size() == 1 && readOffset >= segments.peekFirst().length());
+    }
+
+    /** Returns the number of bytes waiting to be replayed. **/
+    public synchronized long getSizeBytes() {
+        return sizeBytes - readOffset;
+    }
+
+    public synchronized long getAppendedCount() {
+        return appendedCount;
+    }
+
+    public synchronized long getReplayedCount() {
+        return replayedCount;
+    }
+
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    public synchronized long getEvictedBytes() {
+        return evictedBytes;
+    }
+
+    /**
+     * Closes the segment being appended to. Spooled batches remain on disk.
+     */
+    public synchronized void close() {
+        closeOutput();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "spool: %d bytes pending in %d segments, appended %d, replayed %d, rejected %d, evicted %d bytes",
+                getSizeBytes(), segments.size(), appendedCount, replayedCount, rejectedCount, evictedBytes);
+    }
+}
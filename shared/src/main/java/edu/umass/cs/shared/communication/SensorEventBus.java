@@ -0,0 +1,374 @@
+package edu.umass.cs.shared.communication;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+import edu.umass.cs.shared.util.SensorBuffer;
+
+/**
+ * The Sensor Event Bus delivers batches of sensor data to the in-process application components
+ * that subscribe to them, e.g. the service writing the data to disk and the views displaying it.
+ * Unlike an Intent broadcast, a batch is passed to each subscriber as the primitive arrays it
+ * was published with: nothing is copied, boxed or serialized into a Bundle.
+ * <br><br>
+ * Each subscriber specifies the {@link Executor} on which it receives batches, e.g. a background
+ * thread for storage or the main thread for the UI, or none to receive them directly on the
+ * publishing thread. Publishing never waits for a subscriber. Since all subscribers share the
+ * same arrays, they must treat them as read-only and must not retain them once the callback
+ * returns. A published {@link SensorBuffer.Batch} is released once every subscriber has
+ * received it.
+ * <br><br>
+ * A subscriber that does not need every reading, e.g. a view, may limit what it receives by
+ * specifying {@link SubscriptionOptions}: a maximum delivery rate, a decimation factor, or that
+ * only the latest batch be delivered. Batches of the same sensor type are expected to be
+ * published from one thread at a time.
+ * <br><br>
+ * Low-rate status messages are still sent as Intent broadcasts.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ */
+public class SensorEventBus {
+
+    /**
+     * Receives batches of sensor data. The arrays have capacity for at least {@code count}
+     * readings; only the first {@code count} timestamps and {@code count x nDimensions} values
+     * are valid. They must not be modified or accessed after the callback returns.
+     */
+    public interface OnSensorDataListener {
+        void onSensorData(SharedConstants.SENSOR_TYPE sensorType, long[] timestamps, float[] values, int count, int nDimensions);
+    }
+
+    /**
+     * Specifies which of the published batches a subscriber receives. By default, it receives
+     * every batch. The options apply to each sensor type separately and may be combined.
+     */
+    public static class SubscriptionOptions {
+        /** The minimum time between two deliveries in nanoseconds, 0 if the rate is not limited. **/
+        private long minIntervalNanos = 0;
+
+        /** Only every nth reading is delivered. **/
+        private int decimation = 1;
+
+        /** Indicates whether batches not yet delivered are replaced by newer ones. **/
+        private boolean latestOnly = false;
+
+        /**
+         * Limits the rate at which batches are delivered. Batches published less than 1 / rate
+         * seconds after the last delivered batch are skipped.
+         * @param rate the maximum number of batches per second
+         * @return the options
+         */
+        public SubscriptionOptions setMaxRate(float rate) {
+            minIntervalNanos = (long) (1e9 / rate);
+            return this;
+        }
+
+        /**
+         * Downsamples the readings, keeping every nth reading across consecutive batches.
+         * Decimated readings are copied into new arrays, which the subscriber may retain.
+         * @param factor the decimation factor n, 1 to deliver every reading
+         * @return the options
+         */
+        public SubscriptionOptions setDecimation(int factor) {
+            if (factor < 1)
+                throw new IllegalArgumentException("Invalid decimation factor " + factor);
+            decimation = factor;
+            return this;
+        }
+
+        /**
+         * Delivers only the most recent batch: a batch waiting for the subscriber's executor is
+         * replaced when a newer one is published, so that a slow subscriber never falls behind.
+         * Has no effect if the subscriber is notified on the publishing thread.
+         * @param latestOnly whether only the latest batch is delivered
+         * @return the options
+         */
+        public SubscriptionOptions setLatestOnly(boolean latestOnly) {
+            this.latestOnly = latestOnly;
+            return this;
+        }
+    }
+
+    /** A listener together with the sensor types it is subscribed to and the executor on which it is notified. **/
+    private static class Subscription {
+        private final OnSensorDataListener listener;
+
+        /** The executor on which the listener is notified, or null to notify it on the publishing thread. **/
+        private final Executor executor;
+
+        /** Indicates for each {@link SharedConstants.SENSOR_TYPE} ordinal whether the listener receives it. **/
+        private final boolean[] sensorTypes;
+
+        /** See {@link SubscriptionOptions#setMaxRate(float)}. **/
+        private final long minIntervalNanos;
+
+        /** See {@link SubscriptionOptions#setDecimation(int)}. **/
+        private final int decimation;
+
+        /** See {@link SubscriptionOptions#setLatestOnly(boolean)}. **/
+        private final boolean latestOnly;
+
+        /** The time of the last delivery of each sensor type, as given by {@link System#nanoTime()}. **/
+        private final AtomicLongArray lastDeliveryNanos;
+
+        /** For each sensor type, the index of the next reading to keep relative to the start of the next batch. **/
+        private final int[] decimationOffsets;
+
+        /** For each sensor type, the batch waiting to be delivered in latest-only mode, or null. **/
+        private final AtomicReferenceArray<Event> latest;
+
+        /** The number of published batches that were skipped or replaced. **/
+        private final AtomicLong skipped = new AtomicLong();
+
+        private Subscription(OnSensorDataListener listener, Executor executor, boolean[] sensorTypes, SubscriptionOptions options) {
+            this.listener = listener;
+            this.executor = executor;
+            this.sensorTypes = sensorTypes;
+            this.minIntervalNanos = options.minIntervalNanos;
+            this.decimation = options.decimation;
+            this.latestOnly = options.latestOnly && executor != null;
+            this.lastDeliveryNanos = new AtomicLongArray(sensorTypes.length);
+            this.decimationOffsets = new int[sensorTypes.length];
+            this.latest = new AtomicReferenceArray<>(sensorTypes.length);
+        }
+
+        /**
+         * Delivers the event to the listener, subject to the subscription options.
+         * @param event the published event
+         */
+        private void offer(final Event event) {
+            final int ordinal = event.sensorType.ordinal();
+            if (minIntervalNanos > 0) {
+                long now = System.nanoTime();
+                long last = lastDeliveryNanos.get(ordinal);
+                if (last != 0 && now - last < minIntervalNanos) {
+                    skipped.incrementAndGet();
+                    return;
+                }
+                lastDeliveryNanos.set(ordinal, now);
+            }
+
+            final Event delivered;
+            if (decimation > 1) {
+                delivered = decimate(event);
+                if (delivered == null)
+                    return;
+            } else {
+                delivered = event;
+                event.pending.incrementAndGet();
+            }
+
+            if (executor == null) {
+                delivered.deliverTo(this);
+            } else if (latestOnly) {
+                Event replaced = latest.getAndSet(ordinal, delivered);
+                if (replaced != null) { // a delivery is already scheduled and will pick up the new event
+                    skipped.incrementAndGet();
+                    replaced.done();
+                    return;
+                }
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            Event next = latest.getAndSet(ordinal, null);
+                            if (next != null)
+                                next.deliverTo(Subscription.this);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    Event next = latest.getAndSet(ordinal, null);
+                    if (next != null)
+                        next.done(); // the subscriber is shutting down
+                }
+            } else {
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            delivered.deliverTo(Subscription.this);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    delivered.done(); // the subscriber is shutting down
+                }
+            }
+        }
+
+        /**
+         * Copies every {@link #decimation}th reading of the event into a new event owned by
+         * this subscription, continuing from where the previous batch of the same sensor type ended.
+         * @param event the published event
+         * @return the decimated event, or null if the event contains no reading to keep
+         */
+        private Event decimate(Event event) {
+            int ordinal = event.sensorType.ordinal();
+            int first = decimationOffsets[ordinal];
+            int n = first >= event.count ? 0 : (event.count - 1 - first) / decimation + 1;
+            decimationOffsets[ordinal] = first + n * decimation - event.count;
+            if (n == 0)
+                return null;
+            int nDimensions = event.nDimensions;
+            long[] timestamps = new long[n];
+            float[] values = new float[n * nDimensions];
+            for (int i = 0, j = first; i < n; i++, j += decimation) {
+                timestamps[i] = event.timestamps[j];
+                System.arraycopy(event.values, j * nDimensions, values, i * nDimensions, nDimensions);
+            }
+            return new Event(event.sensorType, timestamps, values, n, nDimensions, null);
+        }
+    }
+
+    /** A published batch, shared by all of its subscribers. **/
+    private static class Event {
+        private final SharedConstants.SENSOR_TYPE sensorType;
+        private final long[] timestamps;
+        private final float[] values;
+        private final int count;
+        private final int nDimensions;
+
+        /** The batch from which the arrays originate, released once all subscribers are done, or null. **/
+        private final SensorBuffer.Batch batch;
+
+        /** The number of subscribers that have not yet received the event, plus one while it is being published. **/
+        private final AtomicInteger pending = new AtomicInteger(1);
+
+        private Event(SharedConstants.SENSOR_TYPE sensorType, long[] timestamps, float[] values, int count, int nDimensions, SensorBuffer.Batch batch) {
+            this.sensorType = sensorType;
+            this.timestamps = timestamps;
+            this.values = values;
+            this.count = count;
+            this.nDimensions = nDimensions;
+            this.batch = batch;
+        }
+
+        private void deliverTo(Subscription subscription) {
+            try {
+                subscription.listener.onSensorData(sensorType, timestamps, values, count, nDimensions);
+            } finally {
+                done();
+            }
+        }
+
+        private void done() {
+            if (pending.decrementAndGet() == 0 && batch != null)
+                batch.release();
+        }
+    }
+
+    private static SensorEventBus instance;
+
+    /** The current subscriptions. Publishing iterates over a snapshot and therefore does not lock. **/
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * Returns the application-wide sensor event bus.
+     * @return the singleton instance
+     */
+    public static synchronized SensorEventBus getInstance() {
+        if (instance == null)
+            instance = new SensorEventBus();
+        return instance;
+    }
+
+    /**
+     * Subscribes a listener to every batch of the given sensor types.
+     * See {@link #subscribe(OnSensorDataListener, Executor, SubscriptionOptions, SharedConstants.SENSOR_TYPE...)}.
+     */
+    public void subscribe(OnSensorDataListener listener, Executor executor, SharedConstants.SENSOR_TYPE... sensorTypes) {
+        subscribe(listener, executor, new SubscriptionOptions(), sensorTypes);
+    }
+
+    /**
+     * Subscribes a listener to batches of the given sensor types, replacing any previous
+     * subscription of the listener.
+     * @param listener receives the batches
+     * @param executor the executor on which the listener is notified, or null to notify it
+     *                 directly on the publishing thread, in which case it must return quickly
+     * @param options specifies which batches the listener receives
+     * @param sensorTypes the sensor types of interest, or none to receive all sensor types
+     */
+    public void subscribe(OnSensorDataListener listener, Executor executor, SubscriptionOptions options,
+                          SharedConstants.SENSOR_TYPE... sensorTypes) {
+        boolean[] mask = new boolean[SharedConstants.SENSOR_TYPE.values().length];
+        for (int i = 0; i < mask.length; i++) {
+            mask[i] = sensorTypes.length == 0;
+        }
+        for (SharedConstants.SENSOR_TYPE sensorType : sensorTypes) {
+            mask[sensorType.ordinal()] = true;
+        }
+        unsubscribe(listener);
+        subscriptions.add(new Subscription(listener, executor, mask, options));
+    }
+
+    /**
+     * Unsubscribes a listener. Batches already handed to its executor may still be delivered.
+     * @param listener the listener to remove
+     */
+    public void unsubscribe(OnSensorDataListener listener) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.listener == listener)
+                subscriptions.remove(subscription);
+        }
+    }
+
+    /**
+     * Publishes a batch of sensor data. The bus takes ownership of the arrays, which must not
+     * be modified afterwards.
+     * @param sensorType the sensor type
+     * @param timestamps the timestamps of the readings
+     * @param values the readings, [nDimensions x count] values in sequential order
+     * @param count the number of readings
+     * @param nDimensions the number of values per reading
+     */
+    public void publish(SharedConstants.SENSOR_TYPE sensorType, long[] timestamps, float[] values, int count, int nDimensions) {
+        publish(new Event(sensorType, timestamps, values, count, nDimensions, null));
+    }
+
+    /**
+     * Publishes a batch of sensor data, which is released once all subscribers have received it.
+     * @param sensorType the sensor type
+     * @param batch the batch of sensor readings, owned by the bus after this call
+     */
+    public void publish(SharedConstants.SENSOR_TYPE sensorType, SensorBuffer.Batch batch) {
+        publish(new Event(sensorType, batch.getTimestamps(), batch.getValues(), batch.size(), batch.getDimensions(), batch));
+    }
+
+    private void publish(Event event) {
+        int ordinal = event.sensorType.ordinal();
+        for (Subscription subscription : subscriptions) {
+            if (subscription.sensorTypes[ordinal])
+                subscription.offer(event);
+        }
+        event.done();
+    }
+
+    /**
+     * Returns the number of batches not delivered to a listener because of its subscription
+     * options, i.e. batches skipped to limit the rate or replaced by newer ones.
+     * @param listener the subscribed listener
+     * @return the number of skipped batches, 0 if the listener is not subscribed
+     */
+    public long getSkippedCount(OnSensorDataListener listener) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.listener == listener)
+                return subscription.skipped.get();
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the number of subscribed listeners.
+     * @return the number of subscriptions
+     */
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+}
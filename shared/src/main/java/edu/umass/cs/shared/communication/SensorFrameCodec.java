@@ -0,0 +1,154 @@
+package edu.umass.cs.shared.communication;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+
+/**
+ * The Sensor Frame Codec defines the binary frames in which batches of sensor readings are
+ * streamed to the server, as an alternative to one text line per reading. A frame consists of
+ * <ul>
+ *     <li>the length of the remainder of the frame as a 32-bit big-endian integer,</li>
+ *     <li>the varint-encoded subject ID, and</li>
+ *     <li>the batch encoded by the {@link SensorDataCodec} with 32-bit float values, i.e. its
+ *     sensor type, session and sequence number, followed by the delta-encoded timestamps and
+ *     the packed values.</li>
+ * </ul>
+ * The format is negotiated when the connection is established. The server speaks first and
+ * sends a greeting, {@link #MAGIC} followed by the highest version it supports. The client
+ * answers with {@link #MAGIC} and the version it chose, and then sends frames. A server that
+ * does not send a greeting only understands the per-reading format, which the client falls back
+ * to. See {@link SensorFrameReader} for the server side.
+ * <br><br>
+ * Sensor types are encoded by their ordinal, so new {@link SharedConstants.SENSOR_TYPE}s must
+ * only ever be appended.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ */
+public class SensorFrameCodec {
+
+    /** Identifies the frame format in the greeting and in the client's answer. **/
+    public static final byte[] MAGIC = {'P', 'R', 'S', 'F'};
+
+    /** The version of the frame format. **/
+    public static final byte VERSION = 1;
+
+    /** The number of bytes of the greeting and of the answer, i.e. the magic and the version. **/
+    public static final int PREAMBLE_SIZE = MAGIC.length + 1;
+
+    /** The number of bytes preceding each frame, which specify its length. **/
+    public static final int FRAME_HEADER_SIZE = 4;
+
+    /** The maximum number of bytes in a varint-encoded subject ID. **/
+    private static final int MAX_SUBJECT_ID_SIZE = 5;
+
+    /** Decodes the batch of the frame. **/
+    private final SensorDataCodec codec = new SensorDataCodec();
+
+    /** The subject ID of the most recently decoded frame. **/
+    private int subjectId;
+
+    /**
+     * Writes the preamble, i.e. the greeting of the server or the answer of the client.
+     * @param out the buffer, with at least {@link #PREAMBLE_SIZE} bytes remaining
+     * @param version the highest supported version, or the chosen version
+     */
+    public static void encodePreamble(ByteBuffer out, byte version) {
+        out.put(MAGIC);
+        out.put(version);
+    }
+
+    /**
+     * Reads a preamble written by {@link #encodePreamble(ByteBuffer, byte)}.
+     * @param in the buffer, with at least {@link #PREAMBLE_SIZE} bytes remaining
+     * @return the version in the preamble, or -1 if the bytes are not a preamble
+     */
+    public static int decodePreamble(ByteBuffer in) {
+        for (byte b : MAGIC) {
+            if (in.get() != b)
+                return -1;
+        }
+        return in.get();
+    }
+
+    /**
+     * Returns an upper bound on the number of bytes of a frame, including its length.
+     * @param count the number of readings
+     * @param nDimensions the number of values per reading
+     * @return the maximum frame size in bytes
+     */
+    public static int getMaxEncodedSize(int count, int nDimensions) {
+        return FRAME_HEADER_SIZE + MAX_SUBJECT_ID_SIZE + SensorDataCodec.getMaxEncodedSize(count, nDimensions);
+    }
+
+    /**
+     * Encodes a batch of sensor readings as a frame, starting at the current position of the buffer.
+     * @param out the buffer, with at least {@link #getMaxEncodedSize(int, int)} bytes remaining
+     * @param subjectId the subject ID
+     * @param sessionId identifies the recording session
+     * @param sequenceNumber the sequence number of the batch within the session's stream of the
+     *                       given sensor type
+     * @param sensorType the sensor type
+     * @param timestamps the timestamps of the readings
+     * @param values the readings, [nDimensions x count] values in sequential order
+     * @param count the number of readings to encode
+     * @param nDimensions the number of values per reading
+     */
+    public static void encode(ByteBuffer out, int subjectId, long sessionId, long sequenceNumber,
+                              SharedConstants.SENSOR_TYPE sensorType, long[] timestamps, float[] values,
+                              int count, int nDimensions) {
+        int start = out.position();
+        out.putInt(0);
+        SensorDataCodec.writeVarint(out, subjectId & 0xFFFFFFFFL);
+        SensorDataCodec.encode(out, sessionId, sequenceNumber, sensorType, timestamps, values, count, nDimensions, false);
+        out.putInt(start, out.position() - start - FRAME_HEADER_SIZE);
+    }
+
+    /**
+     * Decodes the header of a frame. Afterwards, the getters describe the frame, and its
+     * readings may be decoded by calling {@link #decodeReadings(ByteBuffer, long[], float[])}.
+     * @param in the buffer containing the frame without its length
+     * @throws IllegalArgumentException if the batch is encoded in an unsupported format
+     * @throws BufferUnderflowException if the buffer does not contain a complete header
+     */
+    public void decodeHeader(ByteBuffer in) {
+        subjectId = (int) SensorDataCodec.readVarint(in);
+        codec.decodeHeader(in);
+    }
+
+    /**
+     * Decodes the timestamps and values of the frame whose header was last decoded.
+     * @param in the buffer, positioned immediately after the header
+     * @param timestamps receives the {@link #getCount()} timestamps
+     * @param values receives the {@link #getCount()} x {@link #getDimensions()} values
+     */
+    public void decodeReadings(ByteBuffer in, long[] timestamps, float[] values) {
+        codec.decodeReadings(in, timestamps, values);
+    }
+
+    public int getSubjectId() {
+        return subjectId;
+    }
+
+    public SharedConstants.SENSOR_TYPE getSensorType() {
+        return codec.getSensorType();
+    }
+
+    public int getCount() {
+        return codec.getCount();
+    }
+
+    public int getDimensions() {
+        return codec.getDimensions();
+    }
+
+    public long getSessionId() {
+        return codec.getSessionId();
+    }
+
+    public long getSequenceNumber() {
+        return codec.getSequenceNumber();
+    }
+}
@@ -0,0 +1,148 @@
+package edu.umass.cs.shared.communication;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+
+/**
+ * The Sensor Frame Reader is the server side of the frame format defined by the
+ * {@link SensorFrameCodec}. It depends on nothing but the JDK and the shared constants, so that
+ * the server can reuse it. For each connection, the server sends the greeting with
+ * {@link #writeGreeting(OutputStream)}, calls {@link #readPreamble()} and then either
+ * {@link #run()}s the reader on a background thread, or, if the client did not answer with the
+ * frame format, reads the per-reading data of the MHL client from {@link #getInputStream()}.
+ * Clients that do not know the frame format ignore the greeting.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ *
+ * @see SensorFrameCodec
+ */
+public class SensorFrameReader implements Runnable {
+
+    /** Frames larger than this are considered corrupt, since no batch comes close to this size. **/
+    private static final int MAX_FRAME_SIZE = 1 << 20;
+
+    /**
+     * Receives each decoded batch, along with the subject, session and sequence number. The
+     * arrays are owned by the listener.
+     */
+    public interface OnSensorDataReceivedListener {
+        void onSensorDataReceived(int subjectId, SharedConstants.SENSOR_TYPE sensorType, long sessionId,
+                                  long sequenceNumber, long[] timestamps, float[] values);
+    }
+
+    /** The buffered stream, which allows the preamble to be unread. **/
+    private final BufferedInputStream buffered;
+
+    /** The stream from which frames are read. **/
+    private final DataInputStream in;
+
+    /** Receives the decoded batches. **/
+    private final OnSensorDataReceivedListener listener;
+
+    /** Decodes each frame. **/
+    private final SensorFrameCodec codec = new SensorFrameCodec();
+
+    /** Reusable buffer holding the current frame, grown if a frame does not fit. **/
+    private byte[] frame = new byte[4096];
+
+    public SensorFrameReader(InputStream in, OnSensorDataReceivedListener listener) {
+        this.buffered = new BufferedInputStream(in);
+        this.in = new DataInputStream(buffered);
+        this.listener = listener;
+    }
+
+    /**
+     * Sends the greeting, announcing that the server accepts frames up to {@link SensorFrameCodec#VERSION}.
+     * @param out the stream to the client
+     * @throws IOException if the greeting cannot be sent
+     */
+    public static void writeGreeting(OutputStream out) throws IOException {
+        ByteBuffer greeting = ByteBuffer.allocate(SensorFrameCodec.PREAMBLE_SIZE);
+        SensorFrameCodec.encodePreamble(greeting, SensorFrameCodec.VERSION);
+        out.write(greeting.array());
+        out.flush();
+    }
+
+    /**
+     * Reads the client's answer to the greeting. If the client did not answer with the frame
+     * format, nothing is consumed from the stream.
+     * @return true if the client sends frames, false if it sends per-reading data
+     * @throws IOException if the stream failed or the client chose an unsupported version
+     */
+    public boolean readPreamble() throws IOException {
+        buffered.mark(SensorFrameCodec.PREAMBLE_SIZE);
+        for (byte b : SensorFrameCodec.MAGIC) {
+            if (buffered.read() != (b & 0xFF)) { // e.g. the first byte of a reading
+                buffered.reset();
+                return false;
+            }
+        }
+        int version = buffered.read();
+        if (version < 0)
+            throw new EOFException();
+        if (version < 1 || version > SensorFrameCodec.VERSION)
+            throw new IOException("Unsupported frame version " + version);
+        return true;
+    }
+
+    /** Returns the stream, from which the data of a client without frame support can be read. **/
+    public InputStream getInputStream() {
+        return buffered;
+    }
+
+    /**
+     * Reads and decodes a single frame, passing the batch to the listener.
+     * @return false if the end of the stream was reached, true otherwise
+     * @throws IOException if the stream failed or the frame is corrupt
+     */
+    public boolean readFrame() throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        if (length < 0 || length > MAX_FRAME_SIZE)
+            throw new IOException("Invalid frame length " + length);
+        if (frame.length < length)
+            frame = new byte[length];
+        in.readFully(frame, 0, length);
+
+        ByteBuffer buffer = ByteBuffer.wrap(frame, 0, length);
+        try {
+            codec.decodeHeader(buffer);
+            long[] timestamps = new long[codec.getCount()];
+            float[] values = new float[codec.getCount() * codec.getDimensions()];
+            codec.decodeReadings(buffer, timestamps, values);
+            listener.onSensorDataReceived(codec.getSubjectId(), codec.getSensorType(), codec.getSessionId(),
+                    codec.getSequenceNumber(), timestamps, values);
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            throw new IOException("Corrupt sensor frame", e);
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (readFrame()) {
+                // continue until the stream is closed
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package edu.umass.cs.shared.communication;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+
+/**
+ * The Sensor Gap Tracker follows the sequence numbers of the batches received for each sensor
+ * stream of a recording session, as assigned by the sender and encoded by the {@link SensorDataCodec}.
+ * It classifies each batch as in order, following a gap, recovering a previously missing batch,
+ * or a duplicate, and notifies an {@link OnGapDetectedListener} of each new gap so that the
+ * missing batches may be requested again.
+ * <br><br>
+ * For each stream, the tracker counts the batches that are missing because they were lost in
+ * transport, and separately the sensor dropouts, i.e. consecutive batches whose readings are
+ * further apart in time than a threshold. This distinguishes transport loss from gaps in the
+ * sensor data itself.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ *
+ * @see SensorDataRetention
+ */
+public class SensorGapTracker {
+
+    /** The classification of a received batch. **/
+    public enum Result {
+        /** The batch immediately follows the previous batch of its stream. **/
+        IN_ORDER,
+        /** One or more batches preceding this batch are missing. **/
+        GAP,
+        /** The batch was previously reported missing. **/
+        RECOVERED,
+        /** The batch has already been received and should be discarded. **/
+        DUPLICATE,
+        /** The batch carries no sequence number and cannot be tracked. **/
+        UNSEQUENCED
+    }
+
+    /**
+     * Notified when batches of a stream are found to be missing.
+     */
+    public interface OnGapDetectedListener {
+        /**
+         * @param sessionId the recording session
+         * @param sensorType the sensor type of the stream
+         * @param fromSequenceNumber the first missing sequence number, inclusive
+         * @param toSequenceNumber the last missing sequence number, inclusive
+         */
+        void onGapDetected(long sessionId, SharedConstants.SENSOR_TYPE sensorType, long fromSequenceNumber, long toSequenceNumber);
+    }
+
+    /** The state and metrics of a single sensor stream within a session. **/
+    private static class Stream {
+        /** The sequence number expected next. **/
+        long next;
+        /** The missing ranges of sequence numbers, mapping the first to the last, inclusive. **/
+        final TreeMap<Long, Long> missing = new TreeMap<>();
+        /** The last timestamp of the most recent in-order batch, or -1 if none. **/
+        long lastTimestamp = -1;
+
+        long received;
+        long duplicates;
+        long gaps;
+        long lost;
+        long recovered;
+        long dropouts;
+        long dropoutMillis;
+
+        long getMissingCount() {
+            long count = 0;
+            for (Map.Entry<Long, Long> range : missing.entrySet()) {
+                count += range.getValue() - range.getKey() + 1;
+            }
+            return count;
+        }
+    }
+
+    /** The maximum number of sessions for which streams are tracked. **/
+    private static final int MAX_SESSIONS = 8;
+
+    /** The time in milliseconds between consecutive batches above which a sensor dropout is counted. **/
+    private final long dropoutThresholdMillis;
+
+    /** Notified of new gaps, may be null. **/
+    private final OnGapDetectedListener listener;
+
+    /** The streams of each session, in the order in which the sessions were first seen. **/
+    private final LinkedHashMap<Long, Map<SharedConstants.SENSOR_TYPE, Stream>> sessions = new LinkedHashMap<>();
+
+    /**
+     * Instantiates a gap tracker.
+     * @param dropoutThresholdMillis the time in milliseconds between the last reading of one batch and
+     *                               the first reading of the next above which a sensor dropout is counted
+     * @param listener notified of new gaps, may be null
+     */
+    public SensorGapTracker(long dropoutThresholdMillis, OnGapDetectedListener listener) {
+        this.dropoutThresholdMillis = dropoutThresholdMillis;
+        this.listener = listener;
+    }
+
+    /**
+     * Records the receipt of a batch.
+     * @param sessionId the recording session of the batch
+     * @param sensorType the sensor type of the batch
+     * @param sequenceNumber the sequence number of the batch
+     * @param firstTimestamp the timestamp of the first reading in the batch
+     * @param lastTimestamp the timestamp of the last reading in the batch
+     * @return the classification of the batch
+     */
+    public Result onBatchReceived(long sessionId, SharedConstants.SENSOR_TYPE sensorType, long sequenceNumber,
+                                  long firstTimestamp, long lastTimestamp) {
+        if (sequenceNumber == SensorDataCodec.NO_SEQUENCE)
+            return Result.UNSEQUENCED;
+        long gapFrom, gapTo;
+        synchronized (this) {
+            Stream stream = getStream(sessionId, sensorType);
+            if (sequenceNumber < stream.next) {
+                Map.Entry<Long, Long> range = stream.missing.floorEntry(sequenceNumber);
+                if (range == null || range.getValue() < sequenceNumber) {
+                    stream.duplicates++;
+                    return Result.DUPLICATE;
+                }
+                stream.missing.remove(range.getKey());
+                if (range.getKey() < sequenceNumber)
+                    stream.missing.put(range.getKey(), sequenceNumber - 1);
+                if (sequenceNumber < range.getValue())
+                    stream.missing.put(sequenceNumber + 1, range.getValue());
+                stream.received++;
+                stream.recovered++;
+                return Result.RECOVERED;
+            }
+
+            stream.received++;
+            if (stream.lastTimestamp >= 0 && sequenceNumber == stream.next
+                    && firstTimestamp - stream.lastTimestamp > dropoutThresholdMillis) {
+                stream.dropouts++;
+                stream.dropoutMillis += firstTimestamp - stream.lastTimestamp;
+            }
+            stream.lastTimestamp = lastTimestamp;
+            if (sequenceNumber == stream.next) {
+                stream.next++;
+                return Result.IN_ORDER;
+            }
+            gapFrom = stream.next;
+            gapTo = sequenceNumber - 1;
+            stream.missing.put(gapFrom, gapTo);
+            stream.gaps++;
+            stream.lost += gapTo - gapFrom + 1;
+            stream.next = sequenceNumber + 1;
+        }
+        if (listener != null)
+            listener.onGapDetected(sessionId, sensorType, gapFrom, gapTo);
+        return Result.GAP;
+    }
+
+    private Stream getStream(long sessionId, SharedConstants.SENSOR_TYPE sensorType) {
+        Map<SharedConstants.SENSOR_TYPE, Stream> streams = sessions.get(sessionId);
+        if (streams == null) {
+            if (sessions.size() == MAX_SESSIONS) {
+                Iterator<Long> oldest = sessions.keySet().iterator();
+                oldest.next();
+                oldest.remove();
+            }
+            streams = new LinkedHashMap<>();
+            sessions.put(sessionId, streams);
+        }
+        Stream stream = streams.get(sensorType);
+        if (stream == null) {
+            stream = new Stream();
+            streams.put(sensorType, stream);
+        }
+        return stream;
+    }
+
+    /**
+     * Returns the number of batches of the stream which are currently missing.
+     * @param sessionId the recording session
+     * @param sensorType the sensor type of the stream
+     * @return the number of missing batches
+     */
+    public synchronized long getMissingCount(long sessionId, SharedConstants.SENSOR_TYPE sensorType) {
+        Map<SharedConstants.SENSOR_TYPE, Stream> streams = sessions.get(sessionId);
+        Stream stream = streams == null ? null : streams.get(sensorType);
+        return stream == null ? 0 : stream.getMissingCount();
+    }
+
+    /**
+     * Returns the number of sensor dropouts detected in the stream.
+     * @param sessionId the recording session
+     * @param sensorType the sensor type of the stream
+     * @return the number of dropouts
+     */
+    public synchronized long getDropoutCount(long sessionId, SharedConstants.SENSOR_TYPE sensorType) {
+        Map<SharedConstants.SENSOR_TYPE, Stream> streams = sessions.get(sessionId);
+        Stream stream = streams == null ? null : streams.get(sensorType);
+        return stream == null ? 0 : stream.dropouts;
+    }
+
+    /**
+     * Summarizes the gap metrics of each stream of the session, one stream per line.
+     * @param sessionId the recording session
+     * @return the summary, empty if the session is unknown
+     */
+    public synchronized String getSummary(long sessionId) {
+        StringBuilder summary = new StringBuilder();
+        Map<SharedConstants.SENSOR_TYPE, Stream> streams = sessions.get(sessionId);
+        if (streams == null)
+            return "";
+        for (Map.Entry<SharedConstants.SENSOR_TYPE, Stream> entry : streams.entrySet()) {
+            Stream stream = entry.getValue();
+            summary.append(String.format(Locale.US,
+                    "session %d %s: received %d, duplicates %d, gaps %d, lost %d, recovered %d, missing %d, sensor dropouts %d (%d ms)%n",
+                    sessionId, entry.getKey().name(), stream.received, stream.duplicates, stream.gaps, stream.lost,
+                    stream.recovered, stream.getMissingCount(), stream.dropouts, stream.dropoutMillis));
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Summarizes the gap metrics of all tracked sessions.
+     * @return the summary
+     */
+    public synchronized String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        for (Long sessionId : sessions.keySet()) {
+            summary.append(getSummary(sessionId));
+        }
+        return summary.toString();
+    }
+}
@@ -0,0 +1,110 @@
+package edu.umass.cs.shared.communication;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+import edu.umass.cs.shared.util.SensorBuffer;
+
+/**
+ * The Sensor Stream Reader reads the frames written by a {@link SensorStreamWriter} from a
+ * stream, decodes each batch, or each batch of a {@link SensorDataPacket}, and passes it to an
+ * {@link OnSensorDataReceivedListener}. Call
+ * {@link #run()} on a background thread; it returns when the stream ends or fails.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ *
+ * @see SensorStreamWriter
+ */
+public class SensorStreamReader implements Runnable {
+
+    @SuppressWarnings("unused")
+    /** used for debugging purposes */
+    private static final String TAG = SensorStreamReader.class.getName();
+
+    /** Frames larger than this are considered corrupt, since no packet comes close to this size. **/
+    private static final int MAX_FRAME_SIZE = 1 << 20;
+
+    /**
+     * Receives each decoded batch, along with its session and sequence number as defined by the
+     * {@link SensorDataCodec}. The batch is owned by the listener, which must
+     * {@link SensorBuffer.Batch#release() release} it, or hand it to a consumer that does, e.g.
+     * {@link SensorEventBus#publish(SharedConstants.SENSOR_TYPE, SensorBuffer.Batch)}.
+     */
+    public interface OnSensorDataReceivedListener {
+        void onSensorDataReceived(SharedConstants.SENSOR_TYPE sensorType, long sessionId, long sequenceNumber,
+                                  SensorBuffer.Batch batch);
+    }
+
+    /** The stream from which frames are read. **/
+    private final DataInputStream in;
+
+    /** Receives the decoded batches. **/
+    private final OnSensorDataReceivedListener listener;
+
+    /** Decodes each batch. **/
+    private final SensorDataCodec codec = new SensorDataCodec();
+
+    /** Decompresses frames compressed by the sender. The thresholds only apply to compression. **/
+    private final SensorDataCompressor compressor = new SensorDataCompressor(0, 1f, 0);
+
+    /** Provides the batches into which the readings are decoded. **/
+    private final SensorBatchPool pool = new SensorBatchPool();
+
+    /** Reusable buffer holding the current frame, grown if a frame does not fit. **/
+    private byte[] frame = new byte[4096];
+
+    public SensorStreamReader(InputStream in, OnSensorDataReceivedListener listener) {
+        this.in = new DataInputStream(in);
+        this.listener = listener;
+    }
+
+    /**
+     * Reads and decodes a single frame, passing the batch to the listener.
+     * @return false if the end of the stream was reached, true otherwise
+     * @throws IOException if the stream failed or the frame is corrupt
+     */
+    public boolean readFrame() throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        if (length < 0 || length > MAX_FRAME_SIZE)
+            throw new IOException("Invalid frame length " + length);
+        if (frame.length < length)
+            frame = new byte[length];
+        in.readFully(frame, 0, length);
+
+        ByteBuffer buffer = ByteBuffer.wrap(frame, 0, length);
+        try {
+            SensorDataPacket.decode(buffer, compressor, codec, pool, listener);
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            throw new IOException("Corrupt sensor data frame", e);
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (readFrame()) {
+                // continue until the stream is closed
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Sensor data stream failed: " + e.getMessage());
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
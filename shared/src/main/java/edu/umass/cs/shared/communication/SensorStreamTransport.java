@@ -0,0 +1,31 @@
+package edu.umass.cs.shared.communication;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The Sensor Stream Transport provides the byte stream over which a {@link SensorStreamWriter}
+ * sends sensor data for the duration of a recording session. On the wearable, the stream is
+ * backed by a persistent channel to the handheld device; in tests, it may simply be piped to
+ * a {@link SensorStreamReader} in the same process.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ *
+ * @see SensorStreamWriter
+ * @see SensorStreamReader
+ */
+public interface SensorStreamTransport {
+
+    /**
+     * Opens the stream to the receiving device. This may block while the connection is established.
+     * @return the stream to which frames are written
+     * @throws IOException if the stream could not be opened
+     */
+    OutputStream openStream() throws IOException;
+
+    /**
+     * Closes the stream opened by {@link #openStream()}, if any.
+     */
+    void closeStream();
+}
@@ -0,0 +1,121 @@
+package edu.umass.cs.shared.communication;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+
+/**
+ * The Sensor Stream Writer sends batches of sensor data as frames over a persistent stream,
+ * rather than as individual data items. Each frame consists of a 4-byte big-endian length
+ * followed by a batch encoded by the {@link SensorDataCodec}. The stream is opened lazily when
+ * the first batch is written and remains open until {@link #close()} is called or a write fails.
+ * <br><br>
+ * A writer reuses its encoding buffer and must only be used by one thread at a time.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ *
+ * @see SensorStreamReader
+ */
+public class SensorStreamWriter {
+
+    /** The number of bytes preceding each encoded batch, which specify its length. **/
+    static final int FRAME_HEADER_SIZE = 4;
+
+    /** The initial size of the frame buffer, sufficient for a typical batch. **/
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    /** Provides the underlying stream. **/
+    private final SensorStreamTransport transport;
+
+    /** Indicates whether values should be encoded as fixed-point integers where possible. **/
+    private final boolean fixedPoint;
+
+    /** The open stream, or null if the stream is closed. **/
+    private OutputStream out;
+
+    /** Reusable buffer into which frames are encoded, grown if a batch does not fit. **/
+    private ByteBuffer frame = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    public SensorStreamWriter(SensorStreamTransport transport, boolean fixedPoint) {
+        this.transport = transport;
+        this.fixedPoint = fixedPoint;
+    }
+
+    /**
+     * Writes a batch of sensor readings to the stream, opening it if necessary. If the write
+     * fails, the stream is closed and will be reopened on the next write.
+     * @param sensorType the sensor type
+     * @param timestamps the timestamps of the readings
+     * @param values the readings
+     * @param count the number of readings
+     * @param nDimensions the number of values per reading
+     * @throws IOException if the stream could not be opened or written to
+     */
+    public void write(SharedConstants.SENSOR_TYPE sensorType, long[] timestamps, float[] values,
+                      int count, int nDimensions) throws IOException {
+        int maxSize = FRAME_HEADER_SIZE + SensorDataCodec.getMaxEncodedSize(count, nDimensions);
+        if (frame.capacity() < maxSize)
+            frame = ByteBuffer.allocate(maxSize);
+        frame.clear();
+        frame.position(FRAME_HEADER_SIZE);
+        SensorDataCodec.encode(frame, sensorType, timestamps, values, count, nDimensions, fixedPoint);
+        frame.putInt(0, frame.position() - FRAME_HEADER_SIZE);
+        writeFrame();
+    }
+
+    /**
+     * Writes a batch already encoded by the {@link SensorDataCodec} to the stream, opening it
+     * if necessary, e.g. when replaying batches from a {@link SensorDataSpool}.
+     * @param data the array containing the encoded batch
+     * @param offset the offset of the batch in the array
+     * @param length the length of the batch in bytes
+     * @throws IOException if the stream could not be opened or written to
+     */
+    public void writeEncoded(byte[] data, int offset, int length) throws IOException {
+        if (frame.capacity() < FRAME_HEADER_SIZE + length)
+            frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + length);
+        frame.clear();
+        frame.putInt(length);
+        frame.put(data, offset, length);
+        writeFrame();
+    }
+
+    /**
+     * Writes the frame held in the {@link #frame} buffer, closing the stream if the write fails.
+     */
+    private void writeFrame() throws IOException {
+        if (out == null)
+            out = transport.openStream();
+        try {
+            out.write(frame.array(), 0, frame.position());
+            out.flush();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Indicates whether the stream is currently open.
+     * @return true if open, false otherwise
+     */
+    public boolean isOpen() {
+        return out != null;
+    }
+
+    /**
+     * Closes the stream, ending the session.
+     */
+    public void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {}
+            out = null;
+        }
+        transport.closeStream();
+    }
+}
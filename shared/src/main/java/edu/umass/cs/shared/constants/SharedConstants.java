@@ -1,7 +1,5 @@
 package edu.umass.cs.shared.constants;
 
-import android.content.Intent;
-
 /**
  * This file contains constants that are shared between the handheld and wearable applications,
  * such as data layer communications tags and shared service commands.
@@ -23,6 +21,7 @@ public class SharedConstants {
         String STOP_METAWEAR_SERVICE = "edu.umass.cs.prepare.commands.stop-metawear-service";
         String QUERY_WEARABLE_STATE = "edu.umass.cs.prepare.commands.query-wearable-state";
         String QUERY_METAWEAR_STATE = "edu.umass.cs.prepare.commands.query-metawear-state";
+        String REQUEST_SENSOR_DATA = "edu.umass.cs.prepare.commands.request-sensor-data";
     }
 
     public interface MESSAGES {
@@ -47,10 +46,11 @@ public class SharedConstants {
         int SERVER_CONNECTION_SUCCEEDED = 18;
         int SERVER_DISCONNECTED = 19;
         int WEARABLE_CONNECTION_FAILED = 20;
+        int STORAGE_LOW = 21;
     }
 
     /**
-     * Actions sent to bound services via an {@link Intent} handle.
+     * Actions sent to bound services via an {@link android.content.Intent} handle.
      */
     public interface ACTIONS {
         String START_SERVICE = "edu.umass.cs.prepare.action.start-service";
@@ -67,6 +67,7 @@ public class SharedConstants {
         String TIMESTAMPS = "edu.umass.cs.prepare.key.timestamps";
         String SENSOR_VALUES = "edu.umass.cs.prepare.key.sensor-values";
         String SENSOR_TYPE = "edu.umass.cs.prepare.key.sensor-type";
+        String SENSOR_BATCH = "edu.umass.cs.prepare.key.sensor-batch";
         String MESSAGE = "edu.umass.cs.prepare.key.message";
     }
 
@@ -178,6 +179,9 @@ public class SharedConstants {
     /** The port for the server where the data should be sent. **/
     public static final int SERVER_PORT = 9999;
 
+    /** The port for the server where completed files should be uploaded. **/
+    public static final int FILE_UPLOAD_PORT = 9998;
+
     public interface DEVICE {
         interface METAWEAR {
             String NAME = "METAWEAR";
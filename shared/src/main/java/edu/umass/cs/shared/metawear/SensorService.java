@@ -37,6 +37,8 @@ import edu.umass.cs.shared.R;
 import edu.umass.cs.shared.communication.BroadcastInterface;
 import edu.umass.cs.shared.constants.SharedConstants;
 import edu.umass.cs.shared.preferences.ApplicationPreferences;
+import edu.umass.cs.shared.util.NoMotionDetector;
+import edu.umass.cs.shared.util.RingSensorBuffer;
 import edu.umass.cs.shared.util.SensorBuffer;
 
 
@@ -85,17 +87,32 @@ public class SensorService extends Service implements ServiceConnection {
         /** Module responsible for the advertisement settings on the Metawear board. **/
         private Settings settingsModule;
 
-    /** Sensor buffer size. */
-    private static final int BUFFER_SIZE = 1;
+    /** The maximum number of milliseconds spanned by a single batch of readings. */
+    private static final int BUFFER_LATENCY_MILLIS = 1000;
 
-    /** The buffer containing the accelerometer readings. **/
-    protected final SensorBuffer accelerometerBuffer = new SensorBuffer(BUFFER_SIZE, 3);
+    /** The number of batches per sensor buffer that may be in flight before new ones are allocated. */
+    private static final int BUFFER_POOL_SIZE = 4;
 
-    /** The buffer containing the gyroscope readings. **/
-    protected final SensorBuffer gyroscopeBuffer = new SensorBuffer(BUFFER_SIZE, 3);
+    /** The buffer containing the accelerometer readings, instantiated in {@link #onCreate()}. **/
+    protected SensorBuffer accelerometerBuffer;
 
-    /** The buffer containing the RSSI readings. **/
-    protected final SensorBuffer rssiBuffer = new SensorBuffer(BUFFER_SIZE, 1);
+    /** The buffer containing the gyroscope readings, instantiated in {@link #onCreate()}. **/
+    protected SensorBuffer gyroscopeBuffer;
+
+    /** The buffer containing the RSSI readings, instantiated in {@link #onCreate()}. **/
+    protected SensorBuffer rssiBuffer;
+
+    /** The number of readings that may be queued for each sensor buffer before readings are dropped. */
+    private static final int RING_CAPACITY = 1024;
+
+    /** Lock-free queue through which accelerometer readings are passed to the {@link #accelerometerBuffer}. **/
+    private RingSensorBuffer accelerometerRing;
+
+    /** Lock-free queue through which gyroscope readings are passed to the {@link #gyroscopeBuffer}. **/
+    private RingSensorBuffer gyroscopeRing;
+
+    /** Lock-free queue through which RSSI readings are passed to the {@link #rssiBuffer}. **/
+    private RingSensorBuffer rssiRing;
 
     /**
      * Possible sources of disconnection from the Metawear board.
@@ -145,14 +162,15 @@ public class SensorService extends Service implements ServiceConnection {
     private static final float MOTION_THRESHOLD = 0.1875f;
 
     /**
-     * The index into the window of magnitudes.
+     * Threshold for the sum over difference in square magnitude, above which motion is detected
+     * again after no motion was detected.
      */
-    private int magnitudesIndex = 0;
+    private static final float MOTION_EXIT_THRESHOLD = 2 * MOTION_THRESHOLD;
 
     /**
-     * The previous square accelerometer magnitude measurement.
+     * Number of times per second the no-motion window is evaluated.
      */
-    private float prevMagnitudeSq = 0;
+    private static final int NO_MOTION_DECISIONS_PER_SECOND = 5;
 
     /**
      * The number of milliseconds after disconnecting from the board due to no motion before attempting to reconnect.
@@ -171,6 +189,37 @@ public class SensorService extends Service implements ServiceConnection {
         buffer.setOnBufferFullCallback(callback);
     }
 
+    /**
+     * Sets the callback function for the given buffer, which takes ownership of each full batch.
+     * The callback must release the batch once it is no longer needed.
+     * @param buffer The buffer of sensor timestamps and readings
+     * @param callback The function called when a batch is ready
+     * **/
+    protected void setOnBatchReadyCallback(SensorBuffer buffer, SensorBuffer.OnBatchReadyCallback callback){
+        buffer.setOnBatchReadyCallback(callback);
+    }
+
+    /**
+     * Creates a sensor buffer which holds {@link #BUFFER_LATENCY_MILLIS} milliseconds of readings
+     * at the given sampling rate.
+     * @param samplingRate the sampling rate in Hz
+     * @param nDimensions the number of values per reading
+     * @return the sensor buffer
+     */
+    private static SensorBuffer createBuffer(int samplingRate, int nDimensions){
+        int bufferSize = Math.max(1, samplingRate * BUFFER_LATENCY_MILLIS / 1000);
+        return new SensorBuffer(bufferSize, nDimensions, BUFFER_LATENCY_MILLIS, BUFFER_POOL_SIZE);
+    }
+
+    /**
+     * Passes any readings remaining in the sensor buffers to their respective callbacks.
+     */
+    protected void flushBuffers(){
+        accelerometerRing.flush();
+        gyroscopeRing.flush();
+        rssiRing.flush();
+    }
+
     /**
      * Sets the broadcaster, which defines how messages and sensor data should be shared with
      * other application components.
@@ -203,11 +252,23 @@ public class SensorService extends Service implements ServiceConnection {
         IntentFilter filter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
         registerReceiver(bluetoothStateListener, filter);
         applicationPreferences = ApplicationPreferences.getInstance(this);
+        accelerometerBuffer = createBuffer(applicationPreferences.getAccelerometerSamplingRate(), 3);
+        gyroscopeBuffer = createBuffer(applicationPreferences.getGyroscopeSamplingRate(), 3);
+        rssiBuffer = createBuffer(applicationPreferences.getRssiSamplingRate(), 1);
+        accelerometerRing = new RingSensorBuffer(RING_CAPACITY, 3, accelerometerBuffer, BUFFER_LATENCY_MILLIS);
+        gyroscopeRing = new RingSensorBuffer(RING_CAPACITY, 3, gyroscopeBuffer, BUFFER_LATENCY_MILLIS);
+        rssiRing = new RingSensorBuffer(RING_CAPACITY, 1, rssiBuffer, BUFFER_LATENCY_MILLIS);
+        accelerometerRing.start();
+        gyroscopeRing.start();
+        rssiRing.start();
     }
 
     @Override
     public void onDestroy() {
         unregisterReceiver(bluetoothStateListener);
+        accelerometerRing.stop();
+        gyroscopeRing.stop();
+        rssiRing.stop();
         super.onDestroy();
     }
 
@@ -295,6 +356,7 @@ public class SensorService extends Service implements ServiceConnection {
             hThread.quit();
             hThread = null;
         }
+        rssiRing.flush();
     }
 
     /**
@@ -302,6 +364,7 @@ public class SensorService extends Service implements ServiceConnection {
      */
     protected void onMetawearDisconnected(){
         Log.d(TAG, "onDisconnected(): " + disconnectSource.name());
+        flushBuffers();
         if (broadcaster != null && disconnectSource != DISCONNECT_SOURCE.UNKNOWN)
             broadcaster.broadcastMessage(SharedConstants.MESSAGES.METAWEAR_DISCONNECTED);
         switch (disconnectSource){
@@ -420,7 +483,8 @@ public class SensorService extends Service implements ServiceConnection {
     }
 
     /**
-     * Stops sensors/LED on the Metawear board.
+     * Stops sensors/LED on the Metawear board and passes the readings remaining in the sensor
+     * buffers to their callbacks.
      */
     private void stopSensors(){
         if (ledModule != null) {
@@ -437,6 +501,8 @@ public class SensorService extends Service implements ServiceConnection {
             motionModule.stop();
             motionModule.disableMotionDetection();
         }
+        accelerometerRing.flush();
+        gyroscopeRing.flush();
     }
 
     /**
@@ -456,8 +522,9 @@ public class SensorService extends Service implements ServiceConnection {
      */
     private void startAccelerometerWithNoMotionDetection(){
         Log.d(TAG, getString(R.string.routing_accelerometer));
-        final float[] diffInMagnitudeWindow = new float[NO_MOTION_DURATION * applicationPreferences.getAccelerometerSamplingRate()];
-        magnitudesIndex=0;
+        int samplingRate = applicationPreferences.getAccelerometerSamplingRate();
+        final NoMotionDetector noMotionDetector = new NoMotionDetector(NO_MOTION_DURATION * samplingRate,
+                Math.max(1, samplingRate / NO_MOTION_DECISIONS_PER_SECOND), MOTION_THRESHOLD, MOTION_EXIT_THRESHOLD);
         accModule.routeData().fromAxes()
                 .stream(SharedConstants.METAWEAR_STREAM_KEY.ACCELEROMETER)
                 .commit()
@@ -471,23 +538,11 @@ public class SensorService extends Service implements ServiceConnection {
                                 float x = reading.x(), y = reading.y(), z = reading.z();
                                 long timestamp = msg.getTimestamp().getTimeInMillis();
                                 onAccelerometerReadingReceived(timestamp, x, y, z);
-                                synchronized (accelerometerBuffer) { //add sensor data to the appropriate buffer
-                                    accelerometerBuffer.addReading(timestamp, x, y, z);
-                                }
+                                accelerometerRing.addReading(timestamp, x, y, z);
 
-                                float magnitudeSq = x * x + y * y + z * z;
-                                diffInMagnitudeWindow[magnitudesIndex++] = Math.abs(magnitudeSq - prevMagnitudeSq);
-                                prevMagnitudeSq = magnitudeSq;
-
-                                if (magnitudesIndex >= NO_MOTION_DURATION * applicationPreferences.getAccelerometerSamplingRate()) {
-                                    float sumOverDiffInMagnitude = 0f;
-                                    while (magnitudesIndex > 0) {
-                                        sumOverDiffInMagnitude += diffInMagnitudeWindow[--magnitudesIndex];
-                                    }
-                                    Log.d(TAG, String.valueOf(sumOverDiffInMagnitude));
-                                    if (sumOverDiffInMagnitude < MOTION_THRESHOLD) {
-                                        onNoMotionDetected();
-                                    }
+                                if (noMotionDetector.addReading(x, y, z)) {
+                                    Log.d(TAG, "no motion detected: " + noMotionDetector.getSum());
+                                    onNoMotionDetected();
                                 }
                             }
                         });
@@ -544,9 +599,7 @@ public class SensorService extends Service implements ServiceConnection {
                             public void process(Message msg) {
                                 CartesianFloat reading = msg.getData(CartesianFloat.class);
                                 onGyroscopeReadingReceived(msg.getTimestamp().getTimeInMillis(), reading.x(), reading.y(), reading.z());
-                                synchronized (gyroscopeBuffer) { //add sensor data to the appropriate buffer
-                                    gyroscopeBuffer.addReading(msg.getTimestamp().getTimeInMillis(), reading.x(), reading.y(), reading.z());
-                                }
+                                gyroscopeRing.addReading(msg.getTimestamp().getTimeInMillis(), reading.x(), reading.y(), reading.z());
                             }
                         });
                         Log.d(TAG, getString(R.string.starting_gyroscope));
@@ -583,9 +636,7 @@ public class SensorService extends Service implements ServiceConnection {
                     public void success(final Integer result) {
                         long timestamp = System.currentTimeMillis();
                         onRSSIReadingReceived(timestamp, result);
-                        synchronized (rssiBuffer) { //add sensor data to the appropriate buffer
-                            rssiBuffer.addReading(timestamp, (int) result);
-                        }
+                        rssiRing.addReading(timestamp, (int) result);
                     }
 
                     @Override
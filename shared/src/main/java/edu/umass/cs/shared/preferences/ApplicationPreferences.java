@@ -20,13 +20,16 @@ public class ApplicationPreferences implements SharedPreferences.OnSharedPrefere
                     showCameraReminder,
                     writeLocal,
                     writeServer,
+                    sendBinaryFrames,
                     blinkLedWhileRunning,
                     enableRSSI,
                     enableGyroscope,
                     enablePillBottle,
                     useAndroidWear,
                     runServiceOverWearable,
-                    enableWearableGyroscope;
+                    enableWearableGyroscope,
+                    compressFiles,
+                    useFileChannel;
     
     private int batteryLevel,
                 rssiSamplingRate,
@@ -34,11 +37,14 @@ public class ApplicationPreferences implements SharedPreferences.OnSharedPrefere
                 gyroscopeSamplingRate,
                 wearableAccelerometerSamplingRate,
                 wearableGyroscopeSamplingRate,
+                storageQuota,
                 subjectID;
 
     private String  saveDirectory,
                     mwAddress,
-                    ipAddress;
+                    ipAddress,
+                    evictionPolicy,
+                    localFileFormat;
 
     private SharedPreferences preferences;
 
@@ -86,10 +92,22 @@ public class ApplicationPreferences implements SharedPreferences.OnSharedPrefere
                 context.getString(edu.umass.cs.shared.R.string.pref_rssi_sampling_rate_default)));
         ipAddress = preferences.getString(context.getString(R.string.pref_ip_key),
                 context.getString(R.string.pref_ip_default));
+        storageQuota = Integer.parseInt(preferences.getString(context.getString(R.string.pref_storage_quota_key),
+                context.getString(R.string.pref_storage_quota_default)));
+        evictionPolicy = preferences.getString(context.getString(R.string.pref_eviction_policy_key),
+                context.getString(R.string.pref_eviction_policy_default));
+        localFileFormat = preferences.getString(context.getString(R.string.pref_file_format_key),
+                context.getString(R.string.pref_file_format_default));
         writeLocal = preferences.getBoolean(context.getString(R.string.pref_local_key),
                 context.getResources().getBoolean(R.bool.pref_local_default));
+        compressFiles = preferences.getBoolean(context.getString(R.string.pref_compress_key),
+                context.getResources().getBoolean(R.bool.pref_compress_default));
+        useFileChannel = preferences.getBoolean(context.getString(R.string.pref_file_channel_key),
+                context.getResources().getBoolean(R.bool.pref_file_channel_default));
         writeServer = preferences.getBoolean(context.getString(R.string.pref_server_key),
                 context.getResources().getBoolean(R.bool.pref_server_default));
+        sendBinaryFrames = preferences.getBoolean(context.getString(R.string.pref_binary_frames_key),
+                context.getResources().getBoolean(R.bool.pref_binary_frames_default));
         blinkLedWhileRunning = preferences.getBoolean(context.getString(R.string.pref_led_key),
                 context.getResources().getBoolean(R.bool.pref_led_default));
         enableGyroscope = preferences.getBoolean(context.getString(R.string.pref_gyroscope_key),
@@ -142,6 +160,21 @@ public class ApplicationPreferences implements SharedPreferences.OnSharedPrefere
         return writeServer;
     }
 
+    /** Indicates whether sensor data is sent to the server as binary frames rather than through the MHL client. **/
+    public boolean sendBinaryFrames(){
+        return sendBinaryFrames;
+    }
+
+    /** Indicates whether CSV sensor files are compressed. **/
+    public boolean compressFiles(){
+        return compressFiles;
+    }
+
+    /** Indicates whether sensor files are written through a file channel rather than a buffered stream. **/
+    public boolean useFileChannel(){
+        return useFileChannel;
+    }
+
     public boolean showCameraReminder(){
         return showCameraReminder;
     }
@@ -179,6 +212,21 @@ public class ApplicationPreferences implements SharedPreferences.OnSharedPrefere
         return saveDirectory;
     }
 
+    /** Returns the maximum space in megabytes used by recorded data, 0 if unlimited. **/
+    public int getStorageQuota(){
+        return storageQuota;
+    }
+
+    /** Returns the name of the policy deciding which files are deleted when the storage quota is exceeded. **/
+    public String getEvictionPolicy(){
+        return evictionPolicy;
+    }
+
+    /** Returns the name of the format in which sensor data is written locally. **/
+    public String getLocalFileFormat(){
+        return localFileFormat;
+    }
+
     public int getBatteryLevel(){
         return batteryLevel;
     }
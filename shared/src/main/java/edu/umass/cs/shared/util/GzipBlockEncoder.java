@@ -0,0 +1,159 @@
+package edu.umass.cs.shared.util;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a stream of data, e.g. CSV rows, as a sequence of independent gzip members. Input
+ * is collected into a block, and each block is compressed into a complete member once it is full
+ * or when {@link #flush()} is called, e.g. on a schedule. Since concatenated members form a valid
+ * gzip file, the output can be read with {@code gunzip} or {@link java.util.zip.GZIPInputStream};
+ * and since every member is self-contained, a file cut off by a crash loses at most the member
+ * being written, which can be trimmed.
+ * <br><br>
+ * Like the {@link SensorCsvEncoder}, the encoder writes into a reusable buffer, which the caller
+ * appends to the file after each call. It is not thread-safe; {@link #end()} must be called to
+ * release the native compressor.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ */
+public class GzipBlockEncoder {
+
+    /** The default number of uncompressed bytes per block. **/
+    public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+    /** The gzip member header: magic number, deflate, no flags, no time, no extra flags, unknown OS. **/
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    /** The number of bytes of the member trailer, i.e. the CRC-32 and the uncompressed size. **/
+    private static final int TRAILER_SIZE = 8;
+
+    private final Deflater deflater;
+
+    private final CRC32 crc = new CRC32();
+
+    /** The number of uncompressed bytes after which a block is compressed. **/
+    private final int blockSize;
+
+    /** The uncompressed data of the current block. **/
+    private byte[] block;
+
+    /** The number of bytes in the current block. **/
+    private int blockLength = 0;
+
+    /** The compressed data not yet retrieved by the caller. **/
+    private byte[] output;
+
+    private int outputLength = 0;
+
+    /** The total number of uncompressed and compressed bytes, for statistics. **/
+    private long bytesIn = 0, bytesOut = 0;
+
+    public GzipBlockEncoder() {
+        this(DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Instantiates a block encoder.
+     * @param blockSize the number of uncompressed bytes per block
+     * @param level the compression level, see {@link Deflater}
+     */
+    public GzipBlockEncoder(int blockSize, int level) {
+        this.deflater = new Deflater(level, true);
+        this.blockSize = blockSize;
+        this.block = new byte[blockSize];
+        this.output = new byte[blockSize / 2];
+    }
+
+    /**
+     * Adds data to the current block, compressing the block once it is full. A member always ends
+     * at the end of a call, so that a file trimmed after its last complete member ends with
+     * complete rows if every call writes complete rows.
+     * @param data the array containing the data
+     * @param offset the offset of the data in the array
+     * @param length the number of bytes
+     */
+    public void write(byte[] data, int offset, int length) {
+        if (block.length - blockLength < length)
+            block = Arrays.copyOf(block, Math.max(blockLength + length, 2 * block.length));
+        System.arraycopy(data, offset, block, blockLength, length);
+        blockLength += length;
+        if (blockLength >= blockSize)
+            flush();
+    }
+
+    /**
+     * Compresses the current block into a complete member, if it contains any data.
+     */
+    public void flush() {
+        if (blockLength == 0)
+            return;
+        ensureCapacity(HEADER.length);
+        System.arraycopy(HEADER, 0, output, outputLength, HEADER.length);
+        outputLength += HEADER.length;
+
+        deflater.reset();
+        deflater.setInput(block, 0, blockLength);
+        deflater.finish();
+        while (!deflater.finished()) {
+            ensureCapacity(4096);
+            outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+        }
+
+        crc.reset();
+        crc.update(block, 0, blockLength);
+        ensureCapacity(TRAILER_SIZE);
+        writeIntLE((int) crc.getValue());
+        writeIntLE(blockLength);
+
+        bytesIn += blockLength;
+        blockLength = 0;
+    }
+
+    private void writeIntLE(int value) {
+        output[outputLength++] = (byte) value;
+        output[outputLength++] = (byte) (value >>> 8);
+        output[outputLength++] = (byte) (value >>> 16);
+        output[outputLength++] = (byte) (value >>> 24);
+    }
+
+    private void ensureCapacity(int additional) {
+        if (output.length - outputLength < additional)
+            output = Arrays.copyOf(output, Math.max(outputLength + additional, 2 * output.length));
+    }
+
+    /** Returns the array containing the compressed data, starting at index 0. **/
+    public byte[] array() {
+        return output;
+    }
+
+    /** Returns the number of compressed bytes not yet retrieved. **/
+    public int length() {
+        return outputLength;
+    }
+
+    /** Marks the compressed data as retrieved, so that the buffer may be reused. **/
+    public void reset() {
+        bytesOut += outputLength;
+        outputLength = 0;
+    }
+
+    /** Returns the number of bytes in the current block, i.e. not yet compressed. **/
+    public int getPendingLength() {
+        return blockLength;
+    }
+
+    /** Returns the ratio of compressed to uncompressed bytes of all blocks retrieved so far. **/
+    public float getCompressionRatio() {
+        return bytesIn == 0 ? 1f : (float) bytesOut / bytesIn;
+    }
+
+    /**
+     * Releases the compressor. Data not yet {@link #flush() flushed} is discarded.
+     */
+    public void end() {
+        deflater.end();
+    }
+}
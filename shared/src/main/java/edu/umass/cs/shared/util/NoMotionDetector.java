@@ -0,0 +1,147 @@
+package edu.umass.cs.shared.util;
+
+/**
+ * Detects when the Metawear board, and with it the pill bottle, has come to rest. For every
+ * accelerometer reading, the absolute difference between its squared magnitude and that of the
+ * previous reading is added to a sliding window; the board is at rest while the sum over the
+ * window is low. The sum is updated incrementally as readings enter and leave the window, so
+ * each reading costs the same regardless of the window size or sampling rate.
+ * <br><br>
+ * The sum is compared against the thresholds every {@code hopSize} readings once the window is
+ * full, so that rest can be detected within one hop of the window becoming quiet rather than
+ * only at the end of a fixed window. With {@code hopSize} equal to {@code windowSize} the
+ * detector behaves like consecutive non-overlapping windows. To avoid flapping while the sum
+ * hovers near the threshold, the board is considered at rest once the sum falls below the
+ * lower threshold, and in motion again only once it rises above the upper threshold.
+ * <br><br>
+ * Differences are accumulated as integers at a resolution of {@link #RESOLUTION}, so that the
+ * running sum does not drift no matter how long the detector runs. The detector does not
+ * depend on Android and can be fed recorded traces; it is not thread-safe.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ */
+public class NoMotionDetector {
+
+    /** The resolution, in squared g, at which differences in squared magnitude are summed. **/
+    public static final double RESOLUTION = 1e-6;
+
+    /** The quantized differences in the window, used as a ring. **/
+    private final long[] window;
+
+    /** The number of readings between comparisons against the thresholds. **/
+    private final int hopSize;
+
+    /** The quantized sum below which the board is considered at rest. **/
+    private final long enterThreshold;
+
+    /** The quantized sum above which the board is considered in motion again. **/
+    private final long exitThreshold;
+
+    /** The index in the {@link #window} of the next difference. **/
+    private int index;
+
+    /** The number of differences in the window. **/
+    private int size;
+
+    /** The number of readings since the thresholds were last compared against. **/
+    private int readingsSinceDecision;
+
+    /** The quantized sum over the window. **/
+    private long sum;
+
+    /** The squared magnitude of the previous reading, valid if {@link #hasPrevious} is set. **/
+    private float previousMagnitudeSq;
+
+    private boolean hasPrevious;
+
+    private boolean atRest;
+
+    /**
+     * Instantiates a no-motion detector.
+     * @param windowSize the number of differences in the window, e.g. 5 seconds of readings
+     * @param hopSize the number of readings between decisions, at most the window size
+     * @param enterThreshold the sum over the window, in squared g, below which the board is at rest
+     * @param exitThreshold the sum over the window, in squared g, above which the board is in motion
+     *                      again, at least the enter threshold
+     */
+    public NoMotionDetector(int windowSize, int hopSize, float enterThreshold, float exitThreshold) {
+        if (windowSize < 1 || hopSize < 1 || hopSize > windowSize)
+            throw new IllegalArgumentException("Invalid window size " + windowSize + " or hop size " + hopSize);
+        if (exitThreshold < enterThreshold)
+            throw new IllegalArgumentException("The exit threshold must not be below the enter threshold");
+        this.window = new long[windowSize];
+        this.hopSize = hopSize;
+        this.enterThreshold = quantize(enterThreshold);
+        this.exitThreshold = quantize(exitThreshold);
+        reset();
+    }
+
+    private static long quantize(double value) {
+        return Math.round(value / RESOLUTION);
+    }
+
+    /**
+     * Adds an accelerometer reading.
+     * @param x the acceleration along the x axis in g
+     * @param y the acceleration along the y axis in g
+     * @param z the acceleration along the z axis in g
+     * @return true if the board has just come to rest, false otherwise
+     */
+    public boolean addReading(float x, float y, float z) {
+        float magnitudeSq = x * x + y * y + z * z;
+        if (!hasPrevious) {
+            previousMagnitudeSq = magnitudeSq;
+            hasPrevious = true;
+            return false;
+        }
+        long difference = quantize(Math.abs(magnitudeSq - previousMagnitudeSq));
+        previousMagnitudeSq = magnitudeSq;
+
+        if (size == window.length)
+            sum -= window[index];
+        else
+            size++;
+        window[index] = difference;
+        sum += difference;
+        if (++index == window.length)
+            index = 0;
+
+        if (size < window.length || ++readingsSinceDecision < hopSize)
+            return false;
+        readingsSinceDecision = 0;
+        if (!atRest && sum < enterThreshold) {
+            atRest = true;
+            return true;
+        }
+        if (atRest && sum > exitThreshold)
+            atRest = false;
+        return false;
+    }
+
+    /** Indicates whether the board is at rest, as of the most recent decision. **/
+    public boolean isAtRest() {
+        return atRest;
+    }
+
+    /** Returns the sum over the window in squared g. **/
+    public double getSum() {
+        return sum * RESOLUTION;
+    }
+
+    /** Indicates whether the window has been filled, i.e. whether decisions are being made. **/
+    public boolean isWindowFull() {
+        return size == window.length;
+    }
+
+    /** Discards all readings, e.g. when the accelerometer is restarted. **/
+    public void reset() {
+        index = 0;
+        size = 0;
+        sum = 0;
+        // the first decision is made as soon as the window is full
+        readingsSinceDecision = hopSize - 1;
+        hasPrevious = false;
+        atRest = false;
+    }
+}
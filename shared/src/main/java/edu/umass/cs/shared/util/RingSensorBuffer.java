@@ -0,0 +1,271 @@
+package edu.umass.cs.shared.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free multi-producer, single-consumer front-end for a {@link SensorBuffer}. Sensor callbacks
+ * add readings to a preallocated ring without taking a monitor, and a dedicated consumer thread
+ * drains the ring into the underlying {@link SensorBuffer}. As a result, the buffer's callbacks
+ * are always invoked on the consumer thread, outside of the producers' critical path.
+ * <br><br>
+ * The consumer sleeps while it holds no readings and is woken by the first reading that
+ * arrives. It then sleeps until that reading is due, i.e. until the maximum latency has passed,
+ * unless the ring fills up to half of its capacity first. While the sensor is idle, the
+ * consumer does not wake at all.
+ * <br><br>
+ * If the consumer falls behind by more than the capacity of the ring, new readings are dropped
+ * rather than blocking the sensor thread; see {@link #getDroppedCount()}.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ *
+ * @see SensorBuffer
+ */
+public class RingSensorBuffer implements Runnable {
+
+    /** The number of readings the ring can hold, always a power of two. **/
+    private final int capacity;
+
+    /** Maps a sequence number to a slot in the ring. **/
+    private final int mask;
+
+    /** The number of dimensions per sensor reading. **/
+    private final int nDimensions;
+
+    /** The timestamps held in each slot of the ring. **/
+    private final long[] timestamps;
+
+    /** The [{@link #nDimensions} x {@link #capacity}]-length list of readings held in the ring. **/
+    private final float[] values;
+
+    /** For each slot, one more than the sequence number of the reading published to it. **/
+    private final AtomicLongArray published;
+
+    /** The sequence number of the next reading to be claimed by a producer. **/
+    private final AtomicLong head = new AtomicLong();
+
+    /** The sequence number of the next reading to be consumed. Written only by the consumer. **/
+    private volatile long tail = 0;
+
+    /** The number of readings dropped because the ring was full. **/
+    private final AtomicLong dropped = new AtomicLong();
+
+    /** The buffer which batches the readings and notifies its callbacks, accessed only by the consumer. **/
+    private final SensorBuffer delegate;
+
+    /** The maximum number of milliseconds a reading may wait in the ring or the delegate buffer. **/
+    private final long maxLatencyMillis;
+
+    /** The reading passed to the delegate buffer, reused for every reading. **/
+    private final float[] scratch;
+
+    /** The consumer thread, null if not started. **/
+    private volatile Thread consumer;
+
+    /** Indicates whether the consumer thread should keep running. **/
+    private volatile boolean running = false;
+
+    /** Indicates whether the consumer thread is, or is about to be, parked. **/
+    private volatile boolean parked = false;
+
+    /**
+     * Indicates whether the consumer thread holds no readings and is, or is about to be, parked
+     * until a producer wakes it.
+     */
+    private volatile boolean idle = false;
+
+    /** Indicates that a flush of the delegate buffer has been requested and not yet completed. **/
+    private volatile boolean flushRequested = false;
+
+    /** Used to wait for a requested flush to complete. **/
+    private final Object flushLock = new Object();
+
+    /**
+     * Instantiates a ring sensor buffer.
+     * @param capacity the minimum number of readings the ring can hold, rounded up to a power of two
+     * @param nDimensions the number of values per reading
+     * @param delegate the buffer to which readings are passed on the consumer thread
+     * @param maxLatencyMillis the maximum time in milliseconds that readings are held before
+     *                         the delegate buffer is flushed when no new readings arrive
+     */
+    public RingSensorBuffer(int capacity, int nDimensions, SensorBuffer delegate, long maxLatencyMillis) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.nDimensions = nDimensions;
+        this.timestamps = new long[size];
+        this.values = new float[size * nDimensions];
+        this.published = new AtomicLongArray(size);
+        this.delegate = delegate;
+        this.maxLatencyMillis = Math.max(1, maxLatencyMillis);
+        this.scratch = new float[nDimensions];
+    }
+
+    /**
+     * Starts the consumer thread.
+     */
+    public synchronized void start() {
+        if (consumer != null) return;
+        running = true;
+        consumer = new Thread(this, "RingSensorBuffer");
+        consumer.start();
+    }
+
+    /**
+     * Stops the consumer thread, after passing all readings remaining in the ring to the
+     * delegate buffer and flushing it.
+     */
+    public synchronized void stop() {
+        Thread thread = consumer;
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            consumer = null;
+        }
+        drain();
+        delegate.flush();
+    }
+
+    /**
+     * Appends a reading to the ring without blocking. This may be called concurrently from
+     * any number of threads.
+     * @param timestamp the timestamp at which the sensor event occurred
+     * @param values sensor values, e.g. a single value or an xyz data point
+     * @return true if the reading was added, false if it was dropped because the ring is full
+     */
+    public boolean addReading(long timestamp, float... values) {
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail >= capacity) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) (sequence & mask);
+        timestamps[slot] = timestamp;
+        System.arraycopy(values, 0, this.values, slot * nDimensions, nDimensions);
+        published.lazySet(slot, sequence + 1);
+
+        // wake the consumer for the first reading after it went idle, or early if the ring is
+        // filling up; otherwise it drains when the oldest reading it holds is due
+        if (parked && (idle || sequence + 1 - tail >= capacity / 2)) {
+            parked = false;
+            idle = false;
+            Thread thread = consumer;
+            if (thread != null)
+                LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    /**
+     * Passes all readings in the ring to the delegate buffer and flushes it, blocking until
+     * the consumer thread has done so.
+     */
+    public void flush() {
+        Thread thread = consumer;
+        if (thread == null || Thread.currentThread() == thread) {
+            synchronized (this) {
+                drain();
+                delegate.flush();
+            }
+            return;
+        }
+        synchronized (flushLock) {
+            flushRequested = true;
+            LockSupport.unpark(thread);
+            while (flushRequested && consumer != null) {
+                try {
+                    flushLock.wait(maxLatencyMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of readings dropped because the consumer could not keep up.
+     * @return the number of dropped readings
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Moves all published readings from the ring into the delegate buffer. Must only be called
+     * by the consumer.
+     * @return the number of readings consumed
+     */
+    private int drain() {
+        long sequence = tail;
+        int count = 0;
+        while (true) {
+            int slot = (int) (sequence & mask);
+            if (published.get(slot) != sequence + 1)
+                break;
+            System.arraycopy(values, slot * nDimensions, scratch, 0, nDimensions);
+            delegate.addReading(timestamps[slot], scratch);
+            sequence++;
+            count++;
+            if ((count & mask) == 0)
+                tail = sequence; // free slots periodically while draining a full ring
+        }
+        tail = sequence;
+        return count;
+    }
+
+    @Override
+    public void run() {
+        final long maxLatencyNanos = maxLatencyMillis * 1000000L;
+        // the time at which the oldest reading not yet flushed was drained, -1 if there is none
+        long pendingSinceNanos = -1;
+        while (running) {
+            if (drain() > 0 && pendingSinceNanos < 0)
+                pendingSinceNanos = System.nanoTime();
+            if (delegate.size() == 0) {
+                pendingSinceNanos = -1; // the delegate flushed itself
+            } else if (System.nanoTime() - pendingSinceNanos >= maxLatencyNanos) {
+                delegate.flush();
+                pendingSinceNanos = -1;
+            }
+            if (flushRequested) {
+                drain();
+                delegate.flush();
+                pendingSinceNanos = -1;
+                synchronized (flushLock) {
+                    flushRequested = false;
+                    flushLock.notifyAll();
+                }
+                continue;
+            }
+            idle = pendingSinceNanos < 0;
+            parked = true;
+            long backlog = head.get() - tail;
+            if (idle) {
+                // nothing to deliver: sleep until a producer adds a reading
+                if (backlog == 0)
+                    LockSupport.park(this);
+            } else if (backlog < capacity / 2) {
+                // sleep until the oldest reading is due, unless the ring fills up first
+                LockSupport.parkNanos(this, Math.max(1, pendingSinceNanos + maxLatencyNanos - System.nanoTime()));
+            }
+            parked = false;
+            idle = false;
+        }
+        synchronized (flushLock) {
+            flushRequested = false;
+            flushLock.notifyAll();
+        }
+    }
+}
@@ -1,8 +1,23 @@
 package edu.umass.cs.shared.util;
 
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
 /**
  * Data buffer for arbitrary dimensional sensor data, e.g. 3-axis accelerometer data,
  * 4-axis quaternion stream or single-axis RSSI readings.
+ * <br><br>
+ * The buffer is flushed to its {@link OnBufferFullCallback} when either {@link #bufferSize}
+ * readings have been collected or, if a maximum latency is specified, when the oldest unflushed
+ * reading is at least {@link #maxLatencyMillis} milliseconds older than the most recent one,
+ * whichever comes first. Call {@link #flush()} to drain any remaining readings, e.g. when the
+ * sensor is stopped.
+ * <br><br>
+ * If an {@link OnBatchReadyCallback} is set instead, the buffer hands ownership of the full
+ * {@link Batch} to the consumer and continues with a fresh batch taken from a pool of
+ * preallocated batches. The consumer must {@link Batch#release() release} the batch once it
+ * is done with it, so that its arrays may be reused without copying or allocating.
  *
  * @author Sean Noran
  * @affiliation University of Massachusetts Amherst
@@ -14,48 +29,198 @@ public class SensorBuffer {
     /** The number of dimensions per sensor reading. **/
     private final int nDimensions;
 
-    /** The list of timestamps associated with each sequential sensor reading. **/
-    private final long[] timestamps;
+    /** The maximum time span of a single batch in milliseconds, or 0 if only the size is bounded. **/
+    private final long maxLatencyMillis;
+
+    /** The batches available for reuse once they have been released by the consumer. **/
+    private final BlockingQueue<Batch> pool;
 
-    /** The [{@link #nDimensions} x {@link #bufferSize}]-length list of sensor readings.  **/
-    private final float[] values;
+    /** The batch currently being filled. **/
+    private Batch current;
 
     /** The index into the list of sensor readings. **/
     private int index;
 
     public SensorBuffer(int bufferSize, int nDimensions) {
+        this(bufferSize, nDimensions, 0);
+    }
+
+    public SensorBuffer(int bufferSize, int nDimensions, long maxLatencyMillis) {
+        this(bufferSize, nDimensions, maxLatencyMillis, 1);
+    }
+
+    /**
+     * Instantiates a sensor buffer.
+     * @param bufferSize the maximum number of readings per batch
+     * @param nDimensions the number of values per reading
+     * @param maxLatencyMillis the maximum time span of a batch in milliseconds, 0 to disable
+     * @param poolSize the number of batches retained for reuse when using an {@link OnBatchReadyCallback}
+     */
+    public SensorBuffer(int bufferSize, int nDimensions, long maxLatencyMillis, int poolSize) {
         this.bufferSize = bufferSize;
         this.nDimensions = nDimensions;
+        this.maxLatencyMillis = maxLatencyMillis;
         index = 0;
-        timestamps = new long[bufferSize];
-        values = new float[nDimensions * bufferSize];
+        current = new Batch(this);
+        pool = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+        for (int i = 1; i < poolSize; i++) {
+            pool.offer(new Batch(this));
+        }
+    }
+
+    /**
+     * A batch of sensor readings. The {@link #getTimestamps() timestamps} and
+     * {@link #getValues() values} arrays have capacity for a full buffer; only the first
+     * {@link #size()} readings are valid.
+     */
+    public static class Batch {
+        /** The buffer from which the batch originated and to which it is returned. **/
+        private final SensorBuffer owner;
+
+        /** The list of timestamps associated with each sequential sensor reading. **/
+        private final long[] timestamps;
+
+        /** The [{@link #nDimensions} x {@link #bufferSize}]-length list of sensor readings.  **/
+        private final float[] values;
+
+        /** The number of valid readings in the batch. **/
+        private int size;
+
+        private Batch(SensorBuffer owner) {
+            this.owner = owner;
+            this.timestamps = new long[owner.bufferSize];
+            this.values = new float[owner.nDimensions * owner.bufferSize];
+        }
+
+        public long[] getTimestamps() {
+            return timestamps;
+        }
+
+        public float[] getValues() {
+            return values;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int getDimensions() {
+            return owner.nDimensions;
+        }
+
+        /**
+         * Returns the batch to the pool of its buffer. The batch must not be accessed afterwards.
+         */
+        public void release() {
+            size = 0;
+            owner.pool.offer(this);
+        }
     }
 
     /** The callback wrapper that specifies how to handle the full buffer. **/
     private OnBufferFullCallback callback = null;
 
+    /** The callback wrapper that takes ownership of full batches. **/
+    private OnBatchReadyCallback batchCallback = null;
+
+    /**
+     * Handles a batch of sensor readings. The arrays passed to {@link #onBufferFull(long[], float[])}
+     * may be reused by the buffer once the callback returns, so implementations must copy them
+     * if they are handed off to another thread.
+     */
     public interface OnBufferFullCallback {
         void onBufferFull(long[] timestamps, float[] values);
     }
 
+    /**
+     * Takes ownership of a batch of sensor readings. Implementations must call
+     * {@link Batch#release()} once the batch is no longer needed, possibly from another thread.
+     */
+    public interface OnBatchReadyCallback {
+        void onBatchReady(Batch batch);
+    }
+
     public void setOnBufferFullCallback(OnBufferFullCallback callback) {
         this.callback = callback;
     }
 
+    public void setOnBatchReadyCallback(OnBatchReadyCallback callback) {
+        this.batchCallback = callback;
+    }
+
     /**
      * Appends a reading to the sensor buffer, updating the current index and
      * calling the {@link SensorBuffer.OnBufferFullCallback OnBufferFullCallback}
-     * if the buffer becomes full.
+     * if the buffer becomes full or the batch exceeds the maximum latency.
      * @param timestamp the timestamp at which the sensor event occurred
      * @param values sensor values, e.g. a single value or an xyz data point
      */
     public void addReading(long timestamp, float... values) {
-        timestamps[index] = timestamp;
-        System.arraycopy(values, 0, this.values, nDimensions * index, values.length);
+        current.timestamps[index] = timestamp;
+        System.arraycopy(values, 0, current.values, nDimensions * index, values.length);
         index++;
-        if (callback != null && index == bufferSize) {
-            callback.onBufferFull(this.timestamps, this.values);
+        if (index == bufferSize || (maxLatencyMillis > 0 && timestamp - current.timestamps[0] >= maxLatencyMillis)) {
+            flush();
+        }
+    }
+
+    /**
+     * Passes all buffered readings to the {@link SensorBuffer.OnBufferFullCallback OnBufferFullCallback},
+     * regardless of whether the buffer is full, and resets the buffer. This should be called
+     * when the sensor is stopped, so that the remaining readings are not lost.
+     */
+    public void flush() {
+        if (index == 0)
+            return;
+        if (batchCallback != null) {
+            Batch full = current;
+            full.size = index;
+            Batch next = pool.poll();
+            current = (next != null) ? next : new Batch(this);
             index = 0;
+            batchCallback.onBatchReady(full);
+            return;
         }
+        if (callback != null) {
+            if (index == bufferSize) {
+                callback.onBufferFull(current.timestamps, current.values);
+            } else {
+                callback.onBufferFull(Arrays.copyOf(current.timestamps, index), Arrays.copyOf(current.values, nDimensions * index));
+            }
+        }
+        index = 0;
+    }
+
+    /**
+     * Takes a batch from the pool, or allocates one if the pool is empty, e.g. to decode received
+     * readings into instead of allocating arrays for each batch. The caller owns the batch and
+     * must {@link Batch#release() release} it once it is no longer needed.
+     * @param size the number of valid readings, at most the buffer size
+     * @return a batch holding {@code size} readings
+     */
+    public Batch obtainBatch(int size) {
+        if (size < 0 || size > bufferSize)
+            throw new IllegalArgumentException("Invalid batch size " + size);
+        Batch batch = pool.poll();
+        if (batch == null)
+            batch = new Batch(this);
+        batch.size = size;
+        return batch;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getDimensions() {
+        return nDimensions;
+    }
+
+    /**
+     * Returns the number of readings currently held in the buffer.
+     * @return the number of unflushed readings
+     */
+    public int size() {
+        return index;
     }
-}
\ No newline at end of file
+}
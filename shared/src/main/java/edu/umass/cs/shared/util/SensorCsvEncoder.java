@@ -0,0 +1,196 @@
+package edu.umass.cs.shared.util;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Encodes batches of sensor readings as CSV rows of the form {@code timestamp,x,y,z}, with one
+ * column per dimension, e.g. {@code timestamp,rssi} for single-axis readings. Longs and
+ * fixed-precision floats are written directly as ASCII digits into a reusable byte buffer, so
+ * that encoding a batch involves no format string parsing, no boxing and no per-row objects.
+ * <br><br>
+ * Values are written like {@code String.format("%.6f", value)} with six decimals by default, but
+ * always with a '.' decimal separator regardless of the default locale, so that the files remain
+ * valid CSV. An encoder is not thread-safe.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ */
+public class SensorCsvEncoder {
+
+    /** The number of decimals written by default, matching {@code %f}. **/
+    public static final int DEFAULT_DECIMALS = 6;
+
+    /** The maximum number of bytes of a formatted timestamp, including the separator. **/
+    private static final int MAX_TIMESTAMP_SIZE = 21;
+
+    /** Magnitudes at or above this are formatted by the slow path, since they overflow the fixed-point conversion. **/
+    private static final double MAX_FIXED_POINT_VALUE = 1e12;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /** The number of decimals written per value. **/
+    private final int decimals;
+
+    /** 10^{@link #decimals}. **/
+    private final long scale;
+
+    /** The encoded rows. **/
+    private byte[] buffer;
+
+    /** The number of valid bytes in the {@link #buffer}. **/
+    private int length = 0;
+
+    /** Holds scaled values, see {@link #scale(float[], int, float)}. **/
+    private float[] scratch = new float[0];
+
+    /** Used to reverse the digits of a long. **/
+    private final byte[] digits = new byte[20];
+
+    public SensorCsvEncoder() {
+        this(DEFAULT_DECIMALS, 8192);
+    }
+
+    /**
+     * Instantiates a CSV encoder.
+     * @param decimals the number of decimals written per value, at most 9
+     * @param initialCapacity the initial size of the buffer in bytes, which grows as needed
+     */
+    public SensorCsvEncoder(int decimals, int initialCapacity) {
+        if (decimals < 0 || decimals > 9)
+            throw new IllegalArgumentException("Invalid number of decimals " + decimals);
+        this.decimals = decimals;
+        long scale = 1;
+        for (int i = 0; i < decimals; i++) {
+            scale *= 10;
+        }
+        this.scale = scale;
+        this.buffer = new byte[Math.max(64, initialCapacity)];
+    }
+
+    /**
+     * Multiplies the first n values by the given factor, e.g. to convert accelerometer readings
+     * from g to m/s^2. The values are left unchanged; the scaled values are written to an
+     * internal array, which remains valid until the next call.
+     * @param values the values
+     * @param n the number of values to scale
+     * @param factor the factor
+     * @return the scaled values, or the values themselves if the factor is 1
+     */
+    public float[] scale(float[] values, int n, float factor) {
+        if (factor == 1f)
+            return values;
+        if (scratch.length < n)
+            scratch = new float[Math.max(n, 2 * scratch.length)];
+        float[] scaled = scratch;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = values[i] * factor;
+        }
+        return scaled;
+    }
+
+    /**
+     * Appends one row per reading to the buffer.
+     * @param timestamps the timestamps of the readings
+     * @param values the readings, [nDimensions x count] values in sequential order
+     * @param count the number of readings
+     * @param nDimensions the number of values per reading
+     */
+    public void encode(long[] timestamps, float[] values, int count, int nDimensions) {
+        ensureCapacity(count * (MAX_TIMESTAMP_SIZE + nDimensions * (decimals + 14)));
+        for (int i = 0, v = 0; i < count; i++) {
+            writeLong(timestamps[i]);
+            for (int j = 0; j < nDimensions; j++, v++) {
+                buffer[length++] = ',';
+                writeFloat(values[v]);
+            }
+            buffer[length++] = '\n';
+        }
+    }
+
+    /**
+     * Appends one row per reading to the buffer, after multiplying each value by the given factor.
+     * See {@link #encode(long[], float[], int, int)} and {@link #scale(float[], int, float)}.
+     */
+    public void encode(long[] timestamps, float[] values, int count, int nDimensions, float factor) {
+        encode(timestamps, scale(values, count * nDimensions, factor), count, nDimensions);
+    }
+
+    /** Returns the buffer containing the encoded rows. **/
+    public byte[] array() {
+        return buffer;
+    }
+
+    /** Returns the number of encoded bytes in the buffer. **/
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Discards the encoded rows, retaining the buffer for reuse.
+     */
+    public void reset() {
+        length = 0;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (length + additional > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(length + additional, 2 * buffer.length));
+    }
+
+    /**
+     * Writes the decimal representation of a long.
+     */
+    private void writeLong(long value) {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                writeAscii(Long.toString(value));
+                return;
+            }
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int n = 0;
+        do {
+            digits[n++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (n > 0) {
+            buffer[length++] = digits[--n];
+        }
+    }
+
+    /**
+     * Writes a value with {@link #decimals} decimals, rounding half up.
+     */
+    private void writeFloat(float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            writeAscii(Float.isNaN(value) ? "NaN" : (value > 0 ? "Infinity" : "-Infinity"));
+            return;
+        }
+        double magnitude = Math.abs((double) value);
+        if (magnitude >= MAX_FIXED_POINT_VALUE) {
+            writeAscii(String.format(Locale.US, "%." + decimals + "f", value));
+            return;
+        }
+        if (value < 0 || (value == 0 && 1 / value < 0))
+            buffer[length++] = '-';
+        long fixed = Math.round(magnitude * scale);
+        writeLong(fixed / scale);
+        if (decimals == 0)
+            return;
+        buffer[length++] = '.';
+        long fraction = fixed % scale;
+        for (long divisor = scale / 10; divisor > 0; divisor /= 10) {
+            buffer[length++] = (byte) ('0' + fraction / divisor % 10);
+        }
+    }
+
+    private void writeAscii(String s) {
+        byte[] bytes = s.getBytes(ASCII);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+}
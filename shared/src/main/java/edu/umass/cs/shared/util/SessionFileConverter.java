@@ -0,0 +1,97 @@
+package edu.umass.cs.shared.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+
+/**
+ * Converts a session file written by the {@link SessionFileEncoder} into the CSV files the
+ * application writes otherwise, i.e. one file {@code <SENSOR><millis>.csv} per sensor type with
+ * rows {@code timestamp,x,y,z} or {@code timestamp,rssi}, so that existing analysis scripts can
+ * be used unchanged. The session start time is used as the millisecond suffix of every file.
+ * <br><br>
+ * Usage: {@code java edu.umass.cs.shared.util.SessionFileConverter [-o <directory>] <session file>...}
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ *
+ * @see SessionFileReader
+ */
+public class SessionFileConverter {
+
+    /** CSV extension */
+    public static final String CSV_EXTENSION = ".csv";
+
+    /**
+     * Converts a session file into CSV files.
+     * @param sessionFile the session file
+     * @param directory the directory in which the CSV files are created
+     * @return the CSV files, one per sensor type contained in the session
+     * @throws IOException if the session file cannot be read or a CSV file cannot be written
+     */
+    public static List<File> convert(File sessionFile, File directory) throws IOException {
+        List<File> files = new ArrayList<>();
+        OutputStream[] outputs = new OutputStream[SharedConstants.SENSOR_TYPE.values().length];
+        SessionFileReader reader = new SessionFileReader(sessionFile);
+        try {
+            SensorCsvEncoder encoder = new SensorCsvEncoder();
+            long[] timestamps = new long[0];
+            float[] values = new float[0];
+            for (int chunk = 0; chunk < reader.getChunkCount(); chunk++) {
+                SharedConstants.SENSOR_TYPE sensorType = reader.getSensorType(chunk);
+                int count = reader.getCount(chunk);
+                int nDimensions = reader.getDimensions(chunk);
+                if (timestamps.length < count)
+                    timestamps = new long[count];
+                if (values.length < count * nDimensions)
+                    values = new float[count * nDimensions];
+                reader.readChunk(chunk, timestamps, values);
+
+                OutputStream out = outputs[sensorType.ordinal()];
+                if (out == null) {
+                    File file = new File(directory, sensorType.name() + reader.getSessionStart() + CSV_EXTENSION);
+                    out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+                    outputs[sensorType.ordinal()] = out;
+                    files.add(file);
+                }
+                encoder.reset();
+                encoder.encode(timestamps, values, count, nDimensions);
+                out.write(encoder.array(), 0, encoder.length());
+            }
+        } finally {
+            reader.close();
+            for (OutputStream out : outputs) {
+                if (out != null)
+                    out.close();
+            }
+        }
+        return files;
+    }
+
+    public static void main(String[] args) throws IOException {
+        File directory = null;
+        List<File> sessionFiles = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-o") && i + 1 < args.length)
+                directory = new File(args[++i]);
+            else
+                sessionFiles.add(new File(args[i]));
+        }
+        if (sessionFiles.isEmpty()) {
+            System.err.println("Usage: SessionFileConverter [-o <directory>] <session file>...");
+            System.exit(1);
+        }
+        for (File sessionFile : sessionFiles) {
+            File outputDirectory = directory != null ? directory : sessionFile.getAbsoluteFile().getParentFile();
+            for (File file : convert(sessionFile, outputDirectory)) {
+                System.out.println(sessionFile + " -> " + file);
+            }
+        }
+    }
+}
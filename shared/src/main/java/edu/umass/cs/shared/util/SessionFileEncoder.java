@@ -0,0 +1,241 @@
+package edu.umass.cs.shared.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+
+/**
+ * Encodes a recording session as a single binary file containing the data of all sensors. The
+ * file is much smaller than the equivalent CSV files and can be read back without parsing text;
+ * see {@link SessionFileReader}, and {@link SessionFileConverter} to convert it to CSV. A session
+ * file consists of
+ * <ul>
+ *     <li>a header: the magic number {@link #MAGIC}, the {@link #FORMAT_VERSION format version}
+ *     and the start time of the session,</li>
+ *     <li>one chunk per batch of sensor data: a chunk header consisting of the
+ *     {@link SharedConstants.SENSOR_TYPE sensor type}, the number of dimensions, the number of
+ *     readings, the first timestamp and the CRC-32 of the chunk body, followed by the body:
+ *     the timestamp column as 32-bit offsets from the first timestamp, then one column of
+ *     32-bit floats per dimension, and</li>
+ *     <li>a footer: an index entry per chunk, i.e. its offset, sensor type, dimensions, number
+ *     of readings and first and last timestamp, followed by the offset of the index, the number
+ *     of entries and the magic number {@link #FOOTER_MAGIC}.</li>
+ * </ul>
+ * All values are big-endian. The footer is only written when the session ends; a file without
+ * footer, e.g. after a crash, is read by scanning its chunks.
+ * <br><br>
+ * The encoder writes into a reusable buffer, which the caller appends to the file after each
+ * call. It is not thread-safe.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ */
+public class SessionFileEncoder {
+
+    /** The magic number at the start of a session file, "PSES". **/
+    public static final int MAGIC = 0x50534553;
+
+    /** The magic number at the end of a complete session file, "PIDX". **/
+    public static final int FOOTER_MAGIC = 0x50494458;
+
+    /** The version of the format, written after the magic number. **/
+    public static final byte FORMAT_VERSION = 1;
+
+    /** The number of bytes of the file header. **/
+    static final int HEADER_SIZE = 4 + 1 + 8;
+
+    /** The number of bytes of a chunk header. **/
+    static final int CHUNK_HEADER_SIZE = 1 + 1 + 4 + 8 + 4;
+
+    /** The number of bytes of an index entry. **/
+    static final int INDEX_ENTRY_SIZE = 8 + 1 + 1 + 4 + 8 + 8;
+
+    /** The number of bytes following the index entries. **/
+    static final int TRAILER_SIZE = 8 + 4 + 4;
+
+    /** The encoded data not yet retrieved by the caller. **/
+    private ByteBuffer buffer;
+
+    /** The offset in the file at which the {@link #buffer} starts. **/
+    private long bufferOffset = 0;
+
+    /** The offset of each chunk in the file. **/
+    private long[] offsets = new long[64];
+
+    /** The sensor type ordinal, number of dimensions and number of readings of each chunk. **/
+    private int[] descriptors = new int[3 * 64];
+
+    /** The first and last timestamp of each chunk. **/
+    private long[] timeRanges = new long[2 * 64];
+
+    /** The number of chunks encoded so far. **/
+    private int chunkCount = 0;
+
+    /** Indicates whether the footer has been encoded. **/
+    private boolean finished = false;
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Instantiates a session file encoder and encodes the file header.
+     * @param sessionStart the start time of the session in milliseconds
+     */
+    public SessionFileEncoder(long sessionStart) {
+        buffer = ByteBuffer.allocate(8192);
+        buffer.putInt(MAGIC);
+        buffer.put(FORMAT_VERSION);
+        buffer.putLong(sessionStart);
+    }
+
+    /**
+     * Instantiates a session file encoder that continues a session file without footer, e.g.
+     * after the application was killed. The file must be truncated to
+     * {@link SessionFileReader#getValidLength()} before further data is appended; the index
+     * of the chunks already in the file is taken from the reader.
+     * @param reader the reader of the session file
+     */
+    public SessionFileEncoder(SessionFileReader reader) {
+        if (reader.isIndexed())
+            throw new IllegalArgumentException("The session file is already complete");
+        buffer = ByteBuffer.allocate(8192);
+        bufferOffset = reader.getValidLength();
+        for (int i = 0; i < reader.getChunkCount(); i++) {
+            addChunk(reader.getOffset(i), reader.getSensorType(i).ordinal(), reader.getDimensions(i),
+                    reader.getCount(i), reader.getFirstTimestamp(i), reader.getLastTimestamp(i));
+        }
+    }
+
+    /**
+     * Encodes a batch of sensor readings as one or more chunks.
+     * @param sensorType the sensor type
+     * @param timestamps the timestamps of the readings, in milliseconds
+     * @param values the readings, [nDimensions x count] values in sequential order
+     * @param count the number of readings
+     * @param nDimensions the number of values per reading
+     */
+    public void encodeChunk(SharedConstants.SENSOR_TYPE sensorType, long[] timestamps, float[] values, int count, int nDimensions) {
+        if (finished)
+            throw new IllegalStateException("encodeChunk() called after encodeFooter()");
+        int from = 0;
+        while (from < count) {
+            // a chunk ends before the first timestamp whose offset does not fit into 32 bits
+            int to = from + 1;
+            while (to < count) {
+                long delta = timestamps[to] - timestamps[from];
+                if (delta < Integer.MIN_VALUE || delta > Integer.MAX_VALUE)
+                    break;
+                to++;
+            }
+            encodeChunk(sensorType, timestamps, values, from, to, nDimensions);
+            from = to;
+        }
+    }
+
+    private void encodeChunk(SharedConstants.SENSOR_TYPE sensorType, long[] timestamps, float[] values,
+                             int from, int to, int nDimensions) {
+        int count = to - from;
+        int bodySize = 4 * count + 4 * count * nDimensions;
+        ensureCapacity(CHUNK_HEADER_SIZE + bodySize);
+
+        long offset = bufferOffset + buffer.position();
+        long base = timestamps[from];
+        buffer.put((byte) sensorType.ordinal());
+        buffer.put((byte) nDimensions);
+        buffer.putInt(count);
+        buffer.putLong(base);
+        int crcPosition = buffer.position();
+        buffer.putInt(0);
+
+        int bodyPosition = buffer.position();
+        for (int i = from; i < to; i++) {
+            buffer.putInt((int) (timestamps[i] - base));
+        }
+        for (int d = 0; d < nDimensions; d++) {
+            for (int i = from; i < to; i++) {
+                buffer.putFloat(values[i * nDimensions + d]);
+            }
+        }
+        crc.reset();
+        crc.update(buffer.array(), buffer.arrayOffset() + bodyPosition, bodySize);
+        buffer.putInt(crcPosition, (int) crc.getValue());
+
+        addChunk(offset, sensorType.ordinal(), nDimensions, count, base, timestamps[to - 1]);
+    }
+
+    private void addChunk(long offset, int ordinal, int nDimensions, int count, long first, long last) {
+        if (chunkCount == offsets.length) {
+            offsets = Arrays.copyOf(offsets, 2 * chunkCount);
+            descriptors = Arrays.copyOf(descriptors, 6 * chunkCount);
+            timeRanges = Arrays.copyOf(timeRanges, 4 * chunkCount);
+        }
+        offsets[chunkCount] = offset;
+        descriptors[3 * chunkCount] = ordinal;
+        descriptors[3 * chunkCount + 1] = nDimensions;
+        descriptors[3 * chunkCount + 2] = count;
+        timeRanges[2 * chunkCount] = first;
+        timeRanges[2 * chunkCount + 1] = last;
+        chunkCount++;
+    }
+
+    /**
+     * Encodes the chunk index and the trailer. No chunks may be encoded afterwards.
+     */
+    public void encodeFooter() {
+        if (finished)
+            return;
+        finished = true;
+        ensureCapacity(chunkCount * INDEX_ENTRY_SIZE + TRAILER_SIZE);
+        long indexOffset = bufferOffset + buffer.position();
+        for (int i = 0; i < chunkCount; i++) {
+            buffer.putLong(offsets[i]);
+            buffer.put((byte) descriptors[3 * i]);
+            buffer.put((byte) descriptors[3 * i + 1]);
+            buffer.putInt(descriptors[3 * i + 2]);
+            buffer.putLong(timeRanges[2 * i]);
+            buffer.putLong(timeRanges[2 * i + 1]);
+        }
+        buffer.putLong(indexOffset);
+        buffer.putInt(chunkCount);
+        buffer.putInt(FOOTER_MAGIC);
+    }
+
+    /** Returns the array containing the encoded data, starting at index 0. **/
+    public byte[] array() {
+        return buffer.array();
+    }
+
+    /** Returns the number of encoded bytes not yet retrieved. **/
+    public int length() {
+        return buffer.position();
+    }
+
+    /**
+     * Marks the encoded data as retrieved, i.e. appended to the file, so that the buffer may be
+     * reused.
+     */
+    public void reset() {
+        bufferOffset += buffer.position();
+        buffer.clear();
+    }
+
+    /** Returns the number of chunks encoded so far. **/
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /** Returns the size of the file once all encoded data has been appended. **/
+    public long getFileSize() {
+        return bufferOffset + buffer.position();
+    }
+
+    private void ensureCapacity(int additional) {
+        if (buffer.remaining() < additional) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.position() + additional, 2 * buffer.capacity()));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package edu.umass.cs.shared.util;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+
+/**
+ * Reads a session file written by the {@link SessionFileEncoder}. The chunks are located through
+ * the index in the footer; if the file has no valid footer, e.g. because the application was
+ * killed during the session, its chunks are found by scanning the file up to the first
+ * incomplete or corrupt chunk, see {@link #getValidLength()}.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ *
+ * @see SessionFileEncoder
+ */
+public class SessionFileReader implements Closeable {
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    /** The start time of the session in milliseconds. **/
+    private final long sessionStart;
+
+    /** Indicates whether the chunks were located through the footer. **/
+    private final boolean indexed;
+
+    /** The offset of each chunk. **/
+    private long[] offsets = new long[64];
+
+    /** The sensor type ordinal, number of dimensions and number of readings of each chunk. **/
+    private int[] descriptors = new int[3 * 64];
+
+    /** The first and last timestamp of each chunk. **/
+    private long[] timeRanges = new long[2 * 64];
+
+    private int chunkCount = 0;
+
+    /** The number of bytes at the start of the file that contain valid data. **/
+    private long validLength;
+
+    /** Holds the chunk currently being read. **/
+    private ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Opens a session file and reads its index.
+     * @param file the session file
+     * @throws IOException if the file cannot be read or is not a session file
+     */
+    public SessionFileReader(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        try {
+            ByteBuffer header = read(0, SessionFileEncoder.HEADER_SIZE);
+            if (header.getInt() != SessionFileEncoder.MAGIC)
+                throw new IOException("Not a session file: " + file);
+            byte version = header.get();
+            if (version != SessionFileEncoder.FORMAT_VERSION)
+                throw new IOException("Unsupported session file version " + version);
+            sessionStart = header.getLong();
+            indexed = readIndex();
+            if (!indexed)
+                scan();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the index from the footer.
+     * @return true if the file has a valid footer
+     */
+    private boolean readIndex() throws IOException {
+        long size = channel.size();
+        if (size < SessionFileEncoder.HEADER_SIZE + SessionFileEncoder.TRAILER_SIZE)
+            return false;
+        ByteBuffer trailer = read(size - SessionFileEncoder.TRAILER_SIZE, SessionFileEncoder.TRAILER_SIZE);
+        long indexOffset = trailer.getLong();
+        int count = trailer.getInt();
+        if (trailer.getInt() != SessionFileEncoder.FOOTER_MAGIC || count < 0
+                || indexOffset < SessionFileEncoder.HEADER_SIZE
+                || indexOffset + (long) count * SessionFileEncoder.INDEX_ENTRY_SIZE != size - SessionFileEncoder.TRAILER_SIZE)
+            return false;
+        ByteBuffer index = read(indexOffset, count * SessionFileEncoder.INDEX_ENTRY_SIZE);
+        for (int i = 0; i < count; i++) {
+            long offset = index.getLong();
+            int ordinal = index.get() & 0xFF;
+            int nDimensions = index.get() & 0xFF;
+            int n = index.getInt();
+            addChunk(offset, ordinal, nDimensions, n, index.getLong(), index.getLong());
+        }
+        validLength = size;
+        return true;
+    }
+
+    /**
+     * Locates the chunks by reading the file sequentially, stopping at the first chunk that is
+     * incomplete or fails its checksum.
+     */
+    private void scan() throws IOException {
+        long size = channel.size();
+        long offset = SessionFileEncoder.HEADER_SIZE;
+        int nTypes = SharedConstants.SENSOR_TYPE.values().length;
+        while (offset + SessionFileEncoder.CHUNK_HEADER_SIZE <= size) {
+            ByteBuffer header = read(offset, SessionFileEncoder.CHUNK_HEADER_SIZE);
+            int ordinal = header.get() & 0xFF;
+            int nDimensions = header.get() & 0xFF;
+            int count = header.getInt();
+            long base = header.getLong();
+            int checksum = header.getInt();
+            long bodySize = 4L * count * (1 + nDimensions);
+            if (ordinal >= nTypes || count <= 0 || offset + SessionFileEncoder.CHUNK_HEADER_SIZE + bodySize > size)
+                break;
+            ByteBuffer body = read(offset + SessionFileEncoder.CHUNK_HEADER_SIZE, (int) bodySize);
+            crc.reset();
+            crc.update(body.array(), 0, (int) bodySize);
+            if ((int) crc.getValue() != checksum)
+                break;
+            long last = base + body.getInt(4 * (count - 1));
+            addChunk(offset, ordinal, nDimensions, count, base, last);
+            offset += SessionFileEncoder.CHUNK_HEADER_SIZE + bodySize;
+        }
+        validLength = offset;
+    }
+
+    private void addChunk(long offset, int ordinal, int nDimensions, int count, long first, long last) {
+        if (chunkCount == offsets.length) {
+            offsets = Arrays.copyOf(offsets, 2 * chunkCount);
+            descriptors = Arrays.copyOf(descriptors, 6 * chunkCount);
+            timeRanges = Arrays.copyOf(timeRanges, 4 * chunkCount);
+        }
+        offsets[chunkCount] = offset;
+        descriptors[3 * chunkCount] = ordinal;
+        descriptors[3 * chunkCount + 1] = nDimensions;
+        descriptors[3 * chunkCount + 2] = count;
+        timeRanges[2 * chunkCount] = first;
+        timeRanges[2 * chunkCount + 1] = last;
+        chunkCount++;
+    }
+
+    /**
+     * Reads the given number of bytes at the given offset into the reusable buffer.
+     * @return the buffer, positioned at the first byte read
+     */
+    private ByteBuffer read(long offset, int length) throws IOException {
+        if (buffer.capacity() < length)
+            buffer = ByteBuffer.allocate(Math.max(length, 2 * buffer.capacity()));
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0)
+                throw new EOFException();
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public long getSessionStart() {
+        return sessionStart;
+    }
+
+    /** Returns true if the chunks were located through the footer, false if the file was scanned. **/
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    /**
+     * Returns the number of bytes at the start of the file that contain valid data. If the file
+     * has no footer, any bytes beyond belong to an incomplete or corrupt chunk.
+     * @return the length of the valid data in bytes
+     */
+    public long getValidLength() {
+        return validLength;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /** Returns the offset of the chunk in the file. **/
+    public long getOffset(int chunk) {
+        return offsets[chunk];
+    }
+
+    public SharedConstants.SENSOR_TYPE getSensorType(int chunk) {
+        return SharedConstants.SENSOR_TYPE.values()[descriptors[3 * chunk]];
+    }
+
+    public int getDimensions(int chunk) {
+        return descriptors[3 * chunk + 1];
+    }
+
+    public int getCount(int chunk) {
+        return descriptors[3 * chunk + 2];
+    }
+
+    public long getFirstTimestamp(int chunk) {
+        return timeRanges[2 * chunk];
+    }
+
+    public long getLastTimestamp(int chunk) {
+        return timeRanges[2 * chunk + 1];
+    }
+
+    /**
+     * Reads the readings of a chunk.
+     * @param chunk the index of the chunk
+     * @param timestamps receives the {@link #getCount(int)} timestamps
+     * @param values receives the {@link #getCount(int)} x {@link #getDimensions(int)} values,
+     *               in sequential order
+     * @throws IOException if the chunk cannot be read or fails its checksum
+     */
+    public void readChunk(int chunk, long[] timestamps, float[] values) throws IOException {
+        ByteBuffer body = readBody(chunk);
+        int count = getCount(chunk);
+        int nDimensions = getDimensions(chunk);
+        long base = getFirstTimestamp(chunk);
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = base + body.getInt();
+        }
+        for (int d = 0; d < nDimensions; d++) {
+            for (int i = 0; i < count; i++) {
+                values[i * nDimensions + d] = body.getFloat();
+            }
+        }
+    }
+
+    /**
+     * Reads a single value column of a chunk, e.g. only the x-axis.
+     * @param chunk the index of the chunk
+     * @param dimension the index of the column
+     * @param column receives the {@link #getCount(int)} values
+     * @throws IOException if the chunk cannot be read or fails its checksum
+     */
+    public void readColumn(int chunk, int dimension, float[] column) throws IOException {
+        ByteBuffer body = readBody(chunk);
+        int count = getCount(chunk);
+        body.position(4 * count * (1 + dimension));
+        for (int i = 0; i < count; i++) {
+            column[i] = body.getFloat();
+        }
+    }
+
+    private ByteBuffer readBody(int chunk) throws IOException {
+        int bodySize = 4 * getCount(chunk) * (1 + getDimensions(chunk));
+        ByteBuffer header = read(offsets[chunk] + SessionFileEncoder.CHUNK_HEADER_SIZE - 4, 4);
+        int checksum = header.getInt();
+        ByteBuffer body = read(offsets[chunk] + SessionFileEncoder.CHUNK_HEADER_SIZE, bodySize);
+        crc.reset();
+        crc.update(body.array(), 0, bodySize);
+        if ((int) crc.getValue() != checksum)
+            throw new IOException("Checksum mismatch in chunk " + chunk);
+        return body;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,371 @@
+package edu.umass.cs.shared.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The manifest of a recording session lists the segments into which the sensor files of the
+ * session were split, one row per segment:
+ * <pre>
+ * sensor,file,start,end,count,bytes,crc32
+ * ACCELEROMETER_METAWEAR,ACCELEROMETER_METAWEAR1467331200000.csv,1467331200012,1467334799992,180000,11603411,5e1fa2c3
+ * </pre>
+ * where {@code start} and {@code end} are the first and last timestamp of the segment in
+ * milliseconds, {@code count} is the number of readings, and {@code crc32} the checksum of the
+ * whole file. Offline tools can use it to load only the segments covering a time window,
+ * see {@link #getSegments(String, long, long)}, and to verify each file independently.
+ * <br><br>
+ * Rows are appended as segments are completed, so the manifest is valid at any time.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ */
+public class SessionManifest {
+
+    /** The header row of the manifest. **/
+    public static final String HEADER = "sensor,file,start,end,count,bytes,crc32";
+
+    /** The manifest file. **/
+    private final File file;
+
+    /** The segments listed in the manifest. **/
+    private final List<Segment> segments = new ArrayList<>();
+
+    /**
+     * A single file of a session, along with the range and number of readings it contains. The
+     * statistics are accumulated while the file is written, see {@link #update(byte[], int, int)}
+     * and {@link #addReadings(long, long, int)}.
+     */
+    public static class Segment {
+        private final String sensor;
+
+        private final String fileName;
+
+        private long startTimestamp = -1;
+
+        private long endTimestamp = -1;
+
+        private int count = 0;
+
+        private long bytes = 0;
+
+        /** The checksum of the data written so far, null if the segment was read from a manifest. **/
+        private final CRC32 crc;
+
+        /** The final checksum, valid if {@link #crc} is null. **/
+        private long checksum;
+
+        /**
+         * Instantiates an empty segment.
+         * @param sensor the sensor identifier, e.g. {@code ACCELEROMETER_METAWEAR}
+         * @param fileName the name of the file, without directory
+         */
+        public Segment(String sensor, String fileName) {
+            this.sensor = sensor;
+            this.fileName = fileName;
+            this.crc = new CRC32();
+        }
+
+        private Segment(String sensor, String fileName, long startTimestamp, long endTimestamp, int count, long bytes, long checksum) {
+            this.sensor = sensor;
+            this.fileName = fileName;
+            this.startTimestamp = startTimestamp;
+            this.endTimestamp = endTimestamp;
+            this.count = count;
+            this.bytes = bytes;
+            this.crc = null;
+            this.checksum = checksum;
+        }
+
+        /**
+         * Accounts for data appended to the file.
+         * @param data the array containing the data
+         * @param offset the offset of the data in the array
+         * @param length the number of bytes appended
+         */
+        public void update(byte[] data, int offset, int length) {
+            crc.update(data, offset, length);
+            bytes += length;
+        }
+
+        /**
+         * Accounts for readings appended to the file.
+         * @param first the timestamp of the first reading
+         * @param last the timestamp of the last reading
+         * @param n the number of readings
+         */
+        public void addReadings(long first, long last, int n) {
+            if (n <= 0)
+                return;
+            if (count == 0 || first < startTimestamp)
+                startTimestamp = first;
+            if (count == 0 || last > endTimestamp)
+                endTimestamp = last;
+            count += n;
+        }
+
+        public String getSensor() {
+            return sensor;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        /** Returns the timestamp of the first reading, or -1 if the segment is empty. **/
+        public long getStartTimestamp() {
+            return startTimestamp;
+        }
+
+        /** Returns the timestamp of the last reading, or -1 if the segment is empty. **/
+        public long getEndTimestamp() {
+            return endTimestamp;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /** Returns the CRC-32 of the file. **/
+        public long getChecksum() {
+            return crc != null ? crc.getValue() : checksum;
+        }
+
+        /**
+         * Verifies a file against the size and checksum of the segment.
+         * @param directory the directory containing the file
+         * @return true if the file has the expected size and checksum
+         * @throws IOException if the file cannot be read
+         */
+        public boolean verify(File directory) throws IOException {
+            File segmentFile = new File(directory, fileName);
+            if (segmentFile.length() != bytes)
+                return false;
+            CRC32 fileCrc = new CRC32();
+            byte[] buffer = new byte[65536];
+            InputStream in = new FileInputStream(segmentFile);
+            try {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    fileCrc.update(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+            return fileCrc.getValue() == getChecksum();
+        }
+
+        private String toRow() {
+            return String.format(Locale.US, "%s,%s,%d,%d,%d,%d,%08x", sensor, fileName,
+                    startTimestamp, endTimestamp, count, bytes, getChecksum());
+        }
+
+        private static Segment fromRow(String row) {
+            String[] fields = row.split(",");
+            if (fields.length != 7)
+                throw new IllegalArgumentException("Invalid manifest row: " + row);
+            return new Segment(fields[0], fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+                    Integer.parseInt(fields[4]), Long.parseLong(fields[5]), Long.parseLong(fields[6], 16));
+        }
+    }
+
+    /**
+     * Opens a manifest, reading the segments it already lists.
+     * @param file the manifest file, which need not exist
+     * @throws IOException if the file exists but cannot be read
+     */
+    public SessionManifest(File file) throws IOException {
+        this.file = file;
+        if (!file.exists())
+            return;
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String row;
+            while ((row = reader.readLine()) != null) {
+                if (row.isEmpty() || row.equals(HEADER))
+                    continue;
+                try {
+                    segments.add(Segment.fromRow(row));
+                } catch (IllegalArgumentException e) {
+                    // a row torn by a crash is ignored; the segment is listed again once completed
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Appends a completed segment to the manifest.
+     * @param segment the segment
+     * @throws IOException if the manifest cannot be written
+     */
+    public synchronized void add(Segment segment) throws IOException {
+        StringBuilder rows = new StringBuilder();
+        if (!file.exists() || file.length() == 0) {
+            rows.append(HEADER).append('\n');
+        } else if (!endsWithNewline()) {
+            rows.append('\n'); // terminate a row torn by a crash
+        }
+        rows.append(segment.toRow()).append('\n');
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(rows.toString().getBytes("US-ASCII"));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        segments.add(segment);
+    }
+
+    private boolean endsWithNewline() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(raf.length() - 1);
+            return raf.read() == '\n';
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Returns the segments listed in the manifest, in the order in which they were completed. **/
+    public synchronized List<Segment> getSegments() {
+        return Collections.unmodifiableList(new ArrayList<>(segments));
+    }
+
+    /**
+     * Returns the segments of a sensor that contain readings within a time window.
+     * @param sensor the sensor identifier, or null for all sensors
+     * @param from the start of the window in milliseconds, inclusive
+     * @param to the end of the window in milliseconds, inclusive
+     * @return the segments overlapping the window
+     */
+    public synchronized List<Segment> getSegments(String sensor, long from, long to) {
+        List<Segment> result = new ArrayList<>();
+        for (Segment segment : segments) {
+            if ((sensor == null || sensor.equals(segment.sensor)) && segment.count > 0
+                    && segment.startTimestamp <= to && segment.endTimestamp >= from)
+                result.add(segment);
+        }
+        return result;
+    }
+
+    /**
+     * Computes the segment statistics of an existing CSV file, e.g. to continue it after the
+     * application was killed. The file must end with a complete row; it may be compressed by a
+     * {@link GzipBlockEncoder}, in which case the checksum covers the compressed file.
+     * @param sensor the sensor identifier
+     * @param csvFile the CSV file
+     * @return the segment
+     * @throws IOException if the file cannot be read
+     */
+    public static Segment scanCsv(String sensor, File csvFile) throws IOException {
+        Segment segment = new Segment(sensor, csvFile.getName());
+        byte[] buffer = new byte[65536];
+        boolean compressed = false;
+        InputStream in = new FileInputStream(csvFile);
+        try {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                if (segment.getBytes() == 0 && n >= 2)
+                    compressed = buffer[0] == (byte) 0x1f && buffer[1] == (byte) 0x8b;
+                segment.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        if (segment.getBytes() == 0)
+            return segment;
+
+        long timestamp = 0;
+        boolean lineStart = true, inTimestamp = false;
+        long first = -1, last = -1;
+        int count = 0;
+        in = new FileInputStream(csvFile);
+        if (compressed)
+            in = new GZIPInputStream(in, buffer.length);
+        try {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    byte b = buffer[i];
+                    if (lineStart) {
+                        timestamp = 0;
+                        inTimestamp = true;
+                        lineStart = false;
+                    }
+                    if (b == '\n') {
+                        lineStart = true;
+                    } else if (inTimestamp) {
+                        if (b >= '0' && b <= '9') {
+                            timestamp = 10 * timestamp + (b - '0');
+                        } else {
+                            inTimestamp = false;
+                            if (count == 0)
+                                first = timestamp;
+                            last = timestamp;
+                            count++;
+                        }
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+        segment.addReadings(first, last, count);
+        return segment;
+    }
+
+    /**
+     * Computes the segment statistics of an existing session file written by the
+     * {@link SessionFileEncoder}, up to its last valid chunk.
+     * @param sensor the identifier under which the session file is listed
+     * @param sessionFile the session file
+     * @return the segment
+     * @throws IOException if the file cannot be read
+     */
+    public static Segment scanSessionFile(String sensor, File sessionFile) throws IOException {
+        Segment segment = new Segment(sensor, sessionFile.getName());
+        long validLength;
+        SessionFileReader reader = new SessionFileReader(sessionFile);
+        try {
+            for (int i = 0; i < reader.getChunkCount(); i++) {
+                segment.addReadings(reader.getFirstTimestamp(i), reader.getLastTimestamp(i), reader.getCount(i));
+            }
+            validLength = reader.getValidLength();
+        } finally {
+            reader.close();
+        }
+        byte[] buffer = new byte[65536];
+        RandomAccessFile in = new RandomAccessFile(sessionFile, "r");
+        try {
+            long remaining = validLength;
+            while (remaining > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n < 0)
+                    break;
+                segment.update(buffer, 0, n);
+                remaining -= n;
+            }
+        } finally {
+            in.close();
+        }
+        return segment;
+    }
+}
@@ -0,0 +1,48 @@
+package edu.umass.cs.shared.communication;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * In-process {@link SensorStreamTransport}, which connects each opened stream to a pipe whose
+ * input end is made available through {@link #accept()}, in place of a wearable channel.
+ */
+class LoopbackStreamTransport implements SensorStreamTransport {
+
+    private static final int PIPE_SIZE = 1 << 16;
+
+    private final BlockingQueue<InputStream> accepted = new LinkedBlockingQueue<>();
+
+    private OutputStream out;
+
+    int opened = 0;
+
+    @Override
+    public OutputStream openStream() throws IOException {
+        PipedInputStream in = new PipedInputStream(PIPE_SIZE);
+        out = new PipedOutputStream(in);
+        opened++;
+        accepted.add(in);
+        return out;
+    }
+
+    @Override
+    public void closeStream() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {}
+            out = null;
+        }
+    }
+
+    /** Returns the input end of the next opened stream, waiting until one is opened. **/
+    InputStream accept() throws InterruptedException {
+        return accepted.take();
+    }
+}
@@ -0,0 +1,206 @@
+package edu.umass.cs.shared.communication;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies the overflow policies and counters of the {@link SendPipeline}.
+ */
+public class SendPipelineTest {
+
+    /** Records which tasks were sent or discarded; optionally waits on a gate before sending. **/
+    private static class RecordingTask implements SendPipeline.Task {
+        final int id;
+        final Object key;
+        final List<Integer> sent;
+        final List<Integer> discarded;
+        final CountDownLatch gate;
+        int failures;
+
+        RecordingTask(int id, Object key, List<Integer> sent, List<Integer> discarded, CountDownLatch gate) {
+            this.id = id;
+            this.key = key;
+            this.sent = sent;
+            this.discarded = discarded;
+            this.gate = gate;
+        }
+
+        @Override
+        public boolean send() {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                return false;
+            }
+            if (failures > 0) {
+                failures--;
+                return false;
+            }
+            sent.add(id);
+            return true;
+        }
+
+        @Override
+        public void discard() {
+            discarded.add(id);
+        }
+
+        @Override
+        public Object getKey() {
+            return key;
+        }
+    }
+
+    private final List<Integer> sent = Collections.synchronizedList(new ArrayList<Integer>());
+    private final List<Integer> discarded = Collections.synchronizedList(new ArrayList<Integer>());
+
+    /** Submits a task which occupies the writer until the gate opens, then waits until it is taken. **/
+    private void occupyWriter(SendPipeline pipeline, CountDownLatch gate) throws InterruptedException {
+        pipeline.submit(new RecordingTask(0, null, sent, discarded, gate));
+        while (pipeline.size() > 0) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void dropOldestKeepsNewestTasks() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        SendPipeline pipeline = new SendPipeline("test", 3, SendPipeline.OverflowPolicy.DROP_OLDEST, 0, 0);
+        occupyWriter(pipeline, gate);
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(pipeline.submit(new RecordingTask(i, null, sent, discarded, gate)));
+        }
+        gate.countDown();
+        pipeline.stop(5000);
+
+        assertEquals(Arrays.asList(0, 3, 4, 5), sent);
+        assertEquals(Arrays.asList(1, 2), discarded);
+        assertEquals(6, pipeline.getQueuedCount());
+        assertEquals(4, pipeline.getSentCount());
+        assertEquals(2, pipeline.getDroppedCount());
+    }
+
+    @Test
+    public void discardsEvictedTasksOnWriterThread() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        SendPipeline pipeline = new SendPipeline("test", 2, SendPipeline.OverflowPolicy.DROP_OLDEST, 0, 0);
+        occupyWriter(pipeline, gate);
+        final List<Thread> discardThreads = Collections.synchronizedList(new ArrayList<Thread>());
+        for (int i = 1; i <= 4; i++) {
+            pipeline.submit(new RecordingTask(i, null, sent, discarded, gate) {
+                @Override
+                public void discard() {
+                    super.discard();
+                    discardThreads.add(Thread.currentThread());
+                }
+            });
+        }
+        assertTrue(discarded.isEmpty());
+        gate.countDown();
+        pipeline.stop(5000);
+
+        assertEquals(Arrays.asList(1, 2), discarded);
+        assertEquals(Arrays.asList(0, 3, 4), sent);
+        assertEquals(2, discardThreads.size());
+        for (Thread thread : discardThreads) {
+            assertEquals("test", thread.getName());
+        }
+    }
+
+    @Test
+    public void boundsEvictedTasksWhileWriterIsBlocked() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        SendPipeline pipeline = new SendPipeline("test", 2, SendPipeline.OverflowPolicy.DROP_OLDEST, 0, 0);
+        occupyWriter(pipeline, gate);
+        final List<Thread> discardThreads = Collections.synchronizedList(new ArrayList<Thread>());
+        for (int i = 1; i <= 10; i++) {
+            pipeline.submit(new RecordingTask(i, null, sent, discarded, gate) {
+                @Override
+                public void discard() {
+                    super.discard();
+                    discardThreads.add(Thread.currentThread());
+                }
+            });
+        }
+        // the first two evicted tasks wait for the writer, the rest are discarded right away
+        assertEquals(Arrays.asList(3, 4, 5, 6, 7, 8), discarded);
+        for (Thread thread : discardThreads) {
+            assertSame(Thread.currentThread(), thread);
+        }
+        gate.countDown();
+        pipeline.stop(5000);
+
+        assertEquals(Arrays.asList(3, 4, 5, 6, 7, 8, 1, 2), discarded);
+        assertEquals(Arrays.asList(0, 9, 10), sent);
+        assertEquals(8, pipeline.getDroppedCount());
+    }
+
+    @Test
+    public void coalesceReplacesTaskWithSameKey() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        SendPipeline pipeline = new SendPipeline("test", 2, SendPipeline.OverflowPolicy.COALESCE, 0, 0);
+        occupyWriter(pipeline, gate);
+        pipeline.submit(new RecordingTask(1, "a", sent, discarded, gate));
+        pipeline.submit(new RecordingTask(2, "b", sent, discarded, gate));
+        pipeline.submit(new RecordingTask(3, "a", sent, discarded, gate));
+        pipeline.submit(new RecordingTask(4, "c", sent, discarded, gate));
+        gate.countDown();
+        pipeline.stop(5000);
+
+        assertEquals(Arrays.asList(0, 3, 4), sent);
+        assertEquals(Arrays.asList(1, 2), discarded);
+    }
+
+    @Test
+    public void blockWaitsForSpace() throws Exception {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final SendPipeline pipeline = new SendPipeline("test", 1, SendPipeline.OverflowPolicy.BLOCK, 0, 0);
+        occupyWriter(pipeline, gate);
+        pipeline.submit(new RecordingTask(1, null, sent, discarded, gate));
+        final CountDownLatch submitted = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pipeline.submit(new RecordingTask(2, null, sent, discarded, gate));
+                submitted.countDown();
+            }
+        }).start();
+
+        assertFalse(submitted.await(100, TimeUnit.MILLISECONDS));
+        gate.countDown();
+        assertTrue(submitted.await(5000, TimeUnit.MILLISECONDS));
+        pipeline.stop(5000);
+
+        assertEquals(Arrays.asList(0, 1, 2), sent);
+        assertEquals(0, pipeline.getDroppedCount());
+    }
+
+    @Test
+    public void retriesFailedTasksBeforeDropping() throws Exception {
+        CountDownLatch gate = new CountDownLatch(0);
+        SendPipeline pipeline = new SendPipeline("test", 4, SendPipeline.OverflowPolicy.BLOCK, 2, 1);
+        RecordingTask recovers = new RecordingTask(1, null, sent, discarded, gate);
+        recovers.failures = 2;
+        RecordingTask fails = new RecordingTask(2, null, sent, discarded, gate);
+        fails.failures = 3;
+        pipeline.submit(recovers);
+        pipeline.submit(fails);
+        while (pipeline.getSentCount() + pipeline.getDroppedCount() < 2) {
+            Thread.sleep(1);
+        }
+        pipeline.stop(5000);
+
+        assertEquals(Collections.singletonList(1), sent);
+        assertEquals(Collections.singletonList(2), discarded);
+        assertEquals(4, pipeline.getRetriedCount());
+        assertEquals(1, pipeline.getDroppedCount());
+    }
+}
@@ -0,0 +1,124 @@
+package edu.umass.cs.shared.communication;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that sensor batches survive a round trip through the {@link SensorDataCodec}.
+ */
+public class SensorDataCodecTest {
+
+    private static final long[] TIMESTAMPS = {1467331200000L, 1467331200020L, 1467331200040L, 1467331200039L, 1467331201040L};
+
+    private static final float[] VALUES = {0.01f, -0.98f, 0.12f, 0.02f, -1.01f, 0.1f, 0f, -1f, 0.11f,
+            15.5f, -15.9f, 0.5f, 0.03f, -0.99f, 0.12f};
+
+    private final SensorDataCodec codec = new SensorDataCodec();
+
+    private ByteBuffer encode(SharedConstants.SENSOR_TYPE sensorType, float[] values, boolean fixedPoint) {
+        ByteBuffer buffer = ByteBuffer.allocate(SensorDataCodec.getMaxEncodedSize(TIMESTAMPS.length, 3));
+        SensorDataCodec.encode(buffer, sensorType, TIMESTAMPS, values, TIMESTAMPS.length, 3, fixedPoint);
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void roundTripsFloatValues() {
+        ByteBuffer buffer = encode(SharedConstants.SENSOR_TYPE.ACCELEROMETER_WEARABLE, VALUES, false);
+        long[] timestamps = new long[TIMESTAMPS.length];
+        float[] values = new float[VALUES.length];
+        codec.decodeHeader(buffer);
+        assertEquals(SharedConstants.SENSOR_TYPE.ACCELEROMETER_WEARABLE, codec.getSensorType());
+        assertEquals(TIMESTAMPS.length, codec.getCount());
+        assertEquals(3, codec.getDimensions());
+        codec.decodeReadings(buffer, timestamps, values);
+        assertArrayEquals(TIMESTAMPS, timestamps);
+        assertArrayEquals(VALUES, values, 0f);
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void roundTripsFixedPointValuesWithinResolution() {
+        ByteBuffer buffer = encode(SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR, VALUES, true);
+        assertTrue(buffer.remaining() < 4 + 8 + TIMESTAMPS.length * 2 + VALUES.length * 2 + 2);
+        long[] timestamps = new long[TIMESTAMPS.length];
+        float[] values = new float[VALUES.length];
+        codec.decodeHeader(buffer);
+        codec.decodeReadings(buffer, timestamps, values);
+        assertArrayEquals(TIMESTAMPS, timestamps);
+        assertArrayEquals(VALUES, values, 0.5f / SensorDataCodec.getFixedPointScale(SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR));
+    }
+
+    @Test
+    public void fallsBackToFloatWhenOutOfRange() {
+        float[] values = VALUES.clone();
+        values[4] = 40f; // exceeds the 16g fixed-point range of the Metawear accelerometer
+        ByteBuffer buffer = encode(SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR, values, true);
+        assertEquals(SensorDataCodec.ENCODING_FLOAT, buffer.get(2));
+        float[] decoded = new float[values.length];
+        codec.decodeHeader(buffer);
+        codec.decodeReadings(buffer, new long[TIMESTAMPS.length], decoded);
+        assertArrayEquals(values, decoded, 0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownVersion() {
+        ByteBuffer buffer = encode(SharedConstants.SENSOR_TYPE.RSSI, VALUES, false);
+        buffer.put(0, (byte) 99);
+        codec.decodeHeader(buffer);
+    }
+
+    @Test
+    public void rejectsCorruptOrTruncatedHeaders() {
+        // the count is the varint following the four header bytes
+        ByteBuffer buffer = ByteBuffer.allocate(SensorDataCodec.getMaxEncodedSize(TIMESTAMPS.length, 3));
+        buffer.put(SensorDataCodec.FORMAT_VERSION).put((byte) SharedConstants.SENSOR_TYPE.ACCELEROMETER_WEARABLE.ordinal())
+                .put(SensorDataCodec.ENCODING_FLOAT).put((byte) 3);
+        SensorDataCodec.writeVarint(buffer, 0xFFFFFFFFL); // a negative count if cast to int
+        SensorDataCodec.writeVarint(buffer, 0);
+        SensorDataCodec.writeVarint(buffer, 0);
+        buffer.flip();
+        assertRejected(buffer);
+
+        buffer = encode(SharedConstants.SENSOR_TYPE.ACCELEROMETER_WEARABLE, VALUES, false);
+        buffer.put(3, (byte) 200); // too many dimensions
+        assertRejected(buffer);
+
+        buffer = encode(SharedConstants.SENSOR_TYPE.ACCELEROMETER_WEARABLE, VALUES, false);
+        buffer.limit(buffer.limit() - 4); // truncated by a value
+        assertRejected(buffer);
+
+        buffer = encode(SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR, VALUES, true);
+        buffer.put(3, (byte) 16); // more values than the buffer holds
+        assertRejected(buffer);
+    }
+
+    private void assertRejected(ByteBuffer buffer) {
+        try {
+            codec.decodeHeader(buffer);
+            fail("Decoded a corrupt header");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void roundTripsSessionAndSequenceNumber() {
+        ByteBuffer buffer = ByteBuffer.allocate(SensorDataCodec.getMaxEncodedSize(TIMESTAMPS.length, 3));
+        SensorDataCodec.encode(buffer, 1467331200000L, 42, SharedConstants.SENSOR_TYPE.GYROSCOPE_WEARABLE,
+                TIMESTAMPS, VALUES, TIMESTAMPS.length, 3, true);
+        buffer.flip();
+        codec.decodeHeader(buffer);
+        assertEquals(1467331200000L, codec.getSessionId());
+        assertEquals(42, codec.getSequenceNumber());
+
+        buffer = encode(SharedConstants.SENSOR_TYPE.GYROSCOPE_WEARABLE, VALUES, true);
+        codec.decodeHeader(buffer);
+        assertEquals(SensorDataCodec.NO_SESSION, codec.getSessionId());
+        assertEquals(SensorDataCodec.NO_SEQUENCE, codec.getSequenceNumber());
+    }
+}
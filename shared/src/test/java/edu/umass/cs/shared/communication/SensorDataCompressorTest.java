@@ -0,0 +1,105 @@
+package edu.umass.cs.shared.communication;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+import edu.umass.cs.shared.util.SensorBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that the {@link SensorDataCompressor} compresses only payloads for which it pays off,
+ * and that compressed packets decode to the original batches.
+ */
+public class SensorDataCompressorTest {
+
+    private static SensorDataPacket smoothPacket(int count) {
+        long[] timestamps = new long[count];
+        float[] values = new float[3 * count];
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = 1467331200000L + 20 * i;
+            values[3 * i] = (float) Math.sin(i / 50.0);
+            values[3 * i + 1] = -1f;
+            values[3 * i + 2] = 0.1f;
+        }
+        SensorDataPacket packet = new SensorDataPacket(1024);
+        packet.add(1, 0, SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR, timestamps, values, count, 3, true);
+        packet.add(1, 0, SharedConstants.SENSOR_TYPE.GYROSCOPE_METAWEAR, timestamps, values, count, 3, false);
+        return packet;
+    }
+
+    @Test
+    public void compressesLargeSmoothPayloadsAndRoundTrips() {
+        SensorDataCompressor compressor = new SensorDataCompressor(256, 0.9f, 4);
+        SensorDataPacket packet = smoothPacket(500);
+        assertTrue(compressor.compress(packet.array(), 0, packet.length()));
+        assertTrue(compressor.getLastRatio() < 0.9f);
+        System.out.println(String.format("compressed %d bytes to %d (%.2f) in %.3f ms", packet.length(),
+                compressor.length(), compressor.getLastRatio(), compressor.getLastNanos() / 1e6));
+
+        byte[] compressed = java.util.Arrays.copyOf(compressor.array(), compressor.length());
+        final int[] readings = new int[1];
+        int batches = SensorDataPacket.decode(ByteBuffer.wrap(compressed), new SensorDataCompressor(0, 1f, 0), new SensorDataCodec(),
+                new SensorBatchPool(), new SensorStreamReader.OnSensorDataReceivedListener() {
+                    @Override
+                    public void onSensorDataReceived(SharedConstants.SENSOR_TYPE sensorType, long sessionId, long sequenceNumber,
+                                                     SensorBuffer.Batch batch) {
+                        assertEquals(1467331200000L + 20 * 499, batch.getTimestamps()[499]);
+                        assertEquals(Math.sin(499 / 50.0), batch.getValues()[3 * 499], 1e-3);
+                        readings[0] += batch.size();
+                        batch.release();
+                    }
+                });
+        assertEquals(2, batches);
+        assertEquals(1000, readings[0]);
+    }
+
+    @Test
+    public void skipsSmallPayloads() {
+        SensorDataCompressor compressor = new SensorDataCompressor(256, 0.9f, 4);
+        SensorDataPacket packet = smoothPacket(5);
+        assertTrue(packet.length() < 256);
+        assertFalse(compressor.compress(packet.array(), 0, packet.length()));
+        assertEquals(1f, compressor.getOverallRatio(), 0f);
+    }
+
+    @Test
+    public void backsOffWhenCompressionDoesNotPay() {
+        SensorDataCompressor compressor = new SensorDataCompressor(256, 0.9f, 2);
+        byte[] noise = new byte[2048];
+        new Random(42).nextBytes(noise);
+        assertFalse(compressor.compress(noise, 0, noise.length));
+        assertTrue(compressor.getLastRatio() > 0.9f);
+        compressor.getLastNanos();
+
+        SensorDataPacket packet = smoothPacket(500);
+        assertFalse(compressor.compress(packet.array(), 0, packet.length())); // backing off
+        assertFalse(compressor.compress(packet.array(), 0, packet.length()));
+        assertTrue(compressor.compress(packet.array(), 0, packet.length())); // probing again
+        assertEquals(2, compressor.getAttemptCount());
+    }
+
+    @Test
+    public void tracksRecentAttempts() {
+        SensorDataCompressor compressor = new SensorDataCompressor(256, 0.9f, 0);
+        byte[] noise = new byte[2048];
+        new Random(7).nextBytes(noise);
+        for (int i = 0; i < SensorDataCompressor.ROLLING_WINDOW; i++) {
+            compressor.compress(noise, 0, noise.length);
+        }
+        assertTrue(compressor.getRecentRatio() > 0.9f);
+
+        SensorDataPacket packet = smoothPacket(500);
+        for (int i = 0; i < SensorDataCompressor.ROLLING_WINDOW; i++) {
+            assertTrue(compressor.compress(packet.array(), 0, packet.length()));
+        }
+        assertEquals(2 * SensorDataCompressor.ROLLING_WINDOW, compressor.getAttemptCount());
+        assertTrue(compressor.getRecentRatio() < 0.9f);
+        assertTrue(compressor.getRecentMeanNanos() > 0);
+        assertTrue(compressor.getRecentMaxNanos() >= compressor.getRecentMeanNanos());
+        System.out.println(compressor);
+    }
+}
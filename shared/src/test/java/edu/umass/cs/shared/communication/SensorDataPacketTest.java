@@ -0,0 +1,133 @@
+package edu.umass.cs.shared.communication;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+import edu.umass.cs.shared.util.SensorBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that a {@link SensorDataPacket} is demultiplexed into the original per-sensor batches.
+ */
+public class SensorDataPacketTest {
+
+    private static class Collector implements SensorStreamReader.OnSensorDataReceivedListener {
+        final List<SharedConstants.SENSOR_TYPE> sensorTypes = new ArrayList<>();
+        final List<long[]> timestamps = new ArrayList<>();
+        final List<float[]> values = new ArrayList<>();
+
+        @Override
+        public void onSensorDataReceived(SharedConstants.SENSOR_TYPE sensorType, long sessionId, long sequenceNumber,
+                                         SensorBuffer.Batch batch) {
+            this.sensorTypes.add(sensorType);
+            this.timestamps.add(Arrays.copyOf(batch.getTimestamps(), batch.size()));
+            this.values.add(Arrays.copyOf(batch.getValues(), batch.size() * batch.getDimensions()));
+            batch.release();
+        }
+    }
+
+    @Test
+    public void demultiplexesBatchesOfAllSensors() {
+        SensorDataPacket packet = new SensorDataPacket(16);
+        long[] timestamps = new long[100];
+        float[] values = new float[300];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = 1000 + 20 * i;
+            values[3 * i] = i / 10f;
+        }
+        packet.add(1, 0, SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR, timestamps, values, 100, 3, true);
+        packet.add(1, 0, SharedConstants.SENSOR_TYPE.GYROSCOPE_METAWEAR, timestamps, values, 40, 3, false);
+        packet.add(1, 0, SharedConstants.SENSOR_TYPE.RSSI, timestamps, new float[] {-60f, -61f}, 2, 1, true);
+        assertEquals(3, packet.getBatchCount());
+
+        Collector collector = new Collector();
+        int count = SensorDataPacket.decode(ByteBuffer.wrap(packet.array(), 0, packet.length()), new SensorDataCodec(), new SensorBatchPool(), collector);
+
+        assertEquals(3, count);
+        assertEquals(SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR, collector.sensorTypes.get(0));
+        assertEquals(SharedConstants.SENSOR_TYPE.GYROSCOPE_METAWEAR, collector.sensorTypes.get(1));
+        assertEquals(SharedConstants.SENSOR_TYPE.RSSI, collector.sensorTypes.get(2));
+        assertEquals(100, collector.timestamps.get(0).length);
+        assertEquals(40, collector.timestamps.get(1).length);
+        assertEquals(1780L, collector.timestamps.get(1)[39]);
+        assertEquals(3.9f, collector.values.get(1)[117], 0f);
+        assertArrayEquals(new float[] {-60f, -61f}, collector.values.get(2), 0.01f);
+
+        packet.clear();
+        assertTrue(packet.isEmpty());
+        packet.add(1, 0, SharedConstants.SENSOR_TYPE.RSSI, timestamps, new float[] {-70f}, 1, 1, true);
+        collector = new Collector();
+        SensorDataPacket.decode(ByteBuffer.wrap(packet.array(), 0, packet.length()), new SensorDataCodec(), new SensorBatchPool(), collector);
+        assertEquals(1, collector.values.size());
+    }
+
+    @Test
+    public void decodesSingleBatch() {
+        ByteBuffer buffer = ByteBuffer.allocate(SensorDataCodec.getMaxEncodedSize(2, 1));
+        SensorDataCodec.encode(buffer, SharedConstants.SENSOR_TYPE.RSSI, new long[] {1, 2}, new float[] {-50f, -51f}, 2, 1, true);
+        buffer.flip();
+        Collector collector = new Collector();
+
+        assertEquals(1, SensorDataPacket.decode(buffer, new SensorDataCodec(), new SensorBatchPool(), collector));
+        assertArrayEquals(new long[] {1, 2}, collector.timestamps.get(0));
+    }
+
+    @Test
+    public void iteratesEncodedBatchesForSpooling() {
+        SensorDataPacket packet = new SensorDataPacket(64);
+        packet.add(1, 0, SharedConstants.SENSOR_TYPE.RSSI, new long[] {1}, new float[] {-50f}, 1, 1, true);
+        packet.add(1, 0, SharedConstants.SENSOR_TYPE.RSSI, new long[] {2}, new float[] {-51f}, 1, 1, true);
+        final Collector collector = new Collector();
+        final SensorDataCodec codec = new SensorDataCodec();
+        final SensorBatchPool pool = new SensorBatchPool();
+        packet.forEachBatch(new SensorDataSpool.RecordHandler() {
+            @Override
+            public boolean onRecord(byte[] data, int offset, int length) {
+                SensorDataPacket.decode(ByteBuffer.wrap(data, offset, length), codec, pool, collector);
+                return true;
+            }
+        });
+        assertEquals(2, collector.timestamps.size());
+        assertEquals(2L, collector.timestamps.get(1)[0]);
+    }
+
+    @Test
+    public void decodesIntoReleasedBatches() {
+        SensorDataPacket packet = new SensorDataPacket(64);
+        packet.add(1, 0, SharedConstants.SENSOR_TYPE.RSSI, new long[] {1, 2}, new float[] {-50f, -51f}, 2, 1, true);
+        final List<long[]> arrays = new ArrayList<>();
+        SensorStreamReader.OnSensorDataReceivedListener listener = new SensorStreamReader.OnSensorDataReceivedListener() {
+            @Override
+            public void onSensorDataReceived(SharedConstants.SENSOR_TYPE sensorType, long sessionId, long sequenceNumber,
+                                             SensorBuffer.Batch batch) {
+                arrays.add(batch.getTimestamps());
+                batch.release();
+            }
+        };
+        SensorDataCodec codec = new SensorDataCodec();
+        SensorBatchPool pool = new SensorBatchPool(4);
+        for (int i = 0; i < 100; i++) {
+            SensorDataPacket.decode(ByteBuffer.wrap(packet.array(), 0, packet.length()), codec, pool, listener);
+        }
+        assertEquals(100, arrays.size());
+        Set<long[]> distinct = Collections.newSetFromMap(new IdentityHashMap<long[], Boolean>());
+        distinct.addAll(arrays);
+        assertTrue(distinct.size() <= 4);
+
+        // a larger batch does not fit and is decoded into a new pool
+        packet.clear();
+        packet.add(1, 1, SharedConstants.SENSOR_TYPE.RSSI, new long[] {3, 4, 5}, new float[] {-52f, -53f, -54f}, 3, 1, true);
+        Collector collector = new Collector();
+        SensorDataPacket.decode(ByteBuffer.wrap(packet.array(), 0, packet.length()), codec, pool, collector);
+        assertArrayEquals(new long[] {3, 4, 5}, collector.timestamps.get(0));
+    }
+}
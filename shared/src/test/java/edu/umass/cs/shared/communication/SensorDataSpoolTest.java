@@ -0,0 +1,144 @@
+package edu.umass.cs.shared.communication;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that the {@link SensorDataSpool} replays batches in order, resumes after a failed
+ * send or a restart, and bounds its size.
+ */
+public class SensorDataSpoolTest {
+
+    private File directory;
+
+    /** Collects the first timestamp of each replayed batch, failing after a given number of records. **/
+    private static class Collector implements SensorDataSpool.RecordHandler {
+        final List<Long> firstTimestamps = new ArrayList<>();
+        final SensorDataCodec codec = new SensorDataCodec();
+        int remaining = Integer.MAX_VALUE;
+
+        @Override
+        public boolean onRecord(byte[] data, int offset, int length) {
+            if (remaining-- <= 0)
+                return false;
+            ByteBuffer in = ByteBuffer.wrap(data, offset, length);
+            codec.decodeHeader(in);
+            long[] timestamps = new long[codec.getCount()];
+            codec.decodeReadings(in, timestamps, new float[codec.getCount() * codec.getDimensions()]);
+            firstTimestamps.add(timestamps[0]);
+            return true;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("spool", "");
+        assertTrue(directory.delete());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        assertTrue(directory.delete());
+    }
+
+    private static void append(SensorDataSpool spool, long firstTimestamp) {
+        long[] timestamps = new long[10];
+        float[] values = new float[30];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = firstTimestamp + i;
+        }
+        assertTrue(spool.append(1, 0, SharedConstants.SENSOR_TYPE.ACCELEROMETER_WEARABLE, timestamps, values, 10, 3, true));
+    }
+
+    @Test
+    public void replaysInOrderAcrossSegmentsAndResumes() {
+        SensorDataSpool spool = new SensorDataSpool(directory, 1 << 20, 200, SensorDataSpool.EvictionPolicy.DROP_OLDEST);
+        for (int i = 0; i < 20; i++) {
+            append(spool, i * 100);
+        }
+        assertTrue(directory.listFiles().length > 1);
+
+        Collector collector = new Collector();
+        collector.remaining = 7;
+        assertEquals(7, spool.replay(100, collector));
+        collector.remaining = Integer.MAX_VALUE;
+        assertEquals(5, spool.replay(5, collector));
+        append(spool, 2000);
+        assertEquals(9, spool.replay(100, collector));
+
+        assertEquals(21, collector.firstTimestamps.size());
+        for (int i = 0; i < 21; i++) {
+            assertEquals(i * 100L, (long) collector.firstTimestamps.get(i));
+        }
+        assertTrue(spool.isEmpty());
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void replaysSegmentsLeftByPreviousProcessAndSkipsTornRecord() throws IOException {
+        SensorDataSpool spool = new SensorDataSpool(directory, 1 << 20, 1 << 16, SensorDataSpool.EvictionPolicy.DROP_OLDEST);
+        for (int i = 0; i < 3; i++) {
+            append(spool, i * 100);
+        }
+        spool.close();
+        File segment = directory.listFiles()[0];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.setLength(segment.length() - 5); // simulate a crash while writing the last record
+        file.close();
+
+        SensorDataSpool restarted = new SensorDataSpool(directory, 1 << 20, 1 << 16, SensorDataSpool.EvictionPolicy.DROP_OLDEST);
+        append(restarted, 300);
+        Collector collector = new Collector();
+        restarted.replay(100, collector);
+
+        assertEquals(3, collector.firstTimestamps.size());
+        assertEquals(0L, (long) collector.firstTimestamps.get(0));
+        assertEquals(100L, (long) collector.firstTimestamps.get(1));
+        assertEquals(300L, (long) collector.firstTimestamps.get(2));
+    }
+
+    @Test
+    public void boundsSizeAccordingToEvictionPolicy() {
+        SensorDataSpool dropOldest = new SensorDataSpool(directory, 1000, 200, SensorDataSpool.EvictionPolicy.DROP_OLDEST);
+        for (int i = 0; i < 100; i++) {
+            append(dropOldest, i * 100);
+        }
+        assertTrue(dropOldest.getSizeBytes() <= 1000);
+        assertTrue(dropOldest.getEvictedBytes() > 0);
+        Collector collector = new Collector();
+        dropOldest.replay(100, collector);
+        assertEquals(9900L, (long) collector.firstTimestamps.get(collector.firstTimestamps.size() - 1));
+        assertTrue(collector.firstTimestamps.get(0) > 0);
+
+        SensorDataSpool dropNewest = new SensorDataSpool(directory, 1000, 200, SensorDataSpool.EvictionPolicy.DROP_NEWEST);
+        int accepted = 0;
+        long[] timestamps = new long[10];
+        for (int i = 0; i < 100; i++) {
+            if (dropNewest.append(1, i, SharedConstants.SENSOR_TYPE.ACCELEROMETER_WEARABLE, timestamps, new float[30], 10, 3, true))
+                accepted++;
+        }
+        assertTrue(dropNewest.getSizeBytes() <= 1000);
+        assertEquals(100 - accepted, dropNewest.getRejectedCount());
+        collector = new Collector();
+        assertEquals(accepted, dropNewest.replay(100, collector));
+        dropNewest.close();
+    }
+}
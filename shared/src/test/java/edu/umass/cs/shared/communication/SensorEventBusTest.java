@@ -0,0 +1,219 @@
+package edu.umass.cs.shared.communication;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+import edu.umass.cs.shared.util.SensorBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that the {@link SensorEventBus} delivers batches to the subscribed sensor types only,
+ * on each subscriber's executor, and releases pooled batches once all subscribers are done.
+ */
+public class SensorEventBusTest {
+
+    @Test
+    public void deliversSubscribedSensorTypesOnly() {
+        SensorEventBus bus = new SensorEventBus();
+        final AtomicInteger all = new AtomicInteger();
+        final AtomicInteger battery = new AtomicInteger();
+        bus.subscribe(new SensorEventBus.OnSensorDataListener() {
+            @Override
+            public void onSensorData(SharedConstants.SENSOR_TYPE sensorType, long[] timestamps, float[] values, int count, int nDimensions) {
+                all.addAndGet(count);
+            }
+        }, null);
+        SensorEventBus.OnSensorDataListener batteryListener = new SensorEventBus.OnSensorDataListener() {
+            @Override
+            public void onSensorData(SharedConstants.SENSOR_TYPE sensorType, long[] timestamps, float[] values, int count, int nDimensions) {
+                assertEquals(SharedConstants.SENSOR_TYPE.BATTERY_METAWEAR, sensorType);
+                assertEquals(1, nDimensions);
+                battery.set((int) values[0]);
+            }
+        };
+        bus.subscribe(batteryListener, null, SharedConstants.SENSOR_TYPE.BATTERY_METAWEAR);
+
+        bus.publish(SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR, new long[]{1, 2}, new float[6], 2, 3);
+        bus.publish(SharedConstants.SENSOR_TYPE.BATTERY_METAWEAR, new long[]{3}, new float[]{87}, 1, 1);
+        assertEquals(3, all.get());
+        assertEquals(87, battery.get());
+
+        bus.unsubscribe(batteryListener);
+        assertEquals(1, bus.getSubscriberCount());
+        bus.publish(SharedConstants.SENSOR_TYPE.BATTERY_METAWEAR, new long[]{4}, new float[]{50}, 1, 1);
+        assertEquals(87, battery.get());
+    }
+
+    @Test
+    public void releasesBatchOnceAllSubscribersAreDone() throws Exception {
+        SensorEventBus bus = new SensorEventBus();
+        final AtomicLong sum = new AtomicLong();
+        SensorEventBus.OnSensorDataListener listener = new SensorEventBus.OnSensorDataListener() {
+            @Override
+            public void onSensorData(SharedConstants.SENSOR_TYPE sensorType, long[] timestamps, float[] values, int count, int nDimensions) {
+                for (int i = 0; i < count; i++) {
+                    sum.addAndGet(timestamps[i]);
+                }
+            }
+        };
+        ExecutorService first = Executors.newSingleThreadExecutor();
+        ExecutorService second = Executors.newSingleThreadExecutor();
+        bus.subscribe(listener, first);
+        bus.subscribe(new SensorEventBus.OnSensorDataListener() {
+            @Override
+            public void onSensorData(SharedConstants.SENSOR_TYPE sensorType, long[] timestamps, float[] values, int count, int nDimensions) {
+                for (int i = 0; i < count; i++) {
+                    sum.addAndGet(timestamps[i]);
+                }
+            }
+        }, second);
+
+        SensorBuffer buffer = new SensorBuffer(10, 3, 0, 1);
+        final AtomicInteger batches = new AtomicInteger();
+        final SensorEventBus target = bus;
+        buffer.setOnBatchReadyCallback(new SensorBuffer.OnBatchReadyCallback() {
+            @Override
+            public void onBatchReady(SensorBuffer.Batch batch) {
+                batches.incrementAndGet();
+                target.publish(SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR, batch);
+            }
+        });
+        for (int i = 1; i <= 1000; i++) {
+            buffer.addReading(i, 0f, 0f, 0f);
+        }
+        first.shutdown();
+        second.shutdown();
+        assertTrue(first.awaitTermination(5, TimeUnit.SECONDS));
+        assertTrue(second.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals(100, batches.get());
+        assertEquals(2 * 1000L * 1001 / 2, sum.get());
+    }
+
+    @Test
+    public void releasesBatchWhenExecutorRejects() {
+        SensorEventBus bus = new SensorEventBus();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        bus.subscribe(new SensorEventBus.OnSensorDataListener() {
+            @Override
+            public void onSensorData(SharedConstants.SENSOR_TYPE sensorType, long[] timestamps, float[] values, int count, int nDimensions) {
+                fail();
+            }
+        }, executor);
+
+        // the buffer only reuses a batch from its pool if the bus released it
+        SensorBuffer buffer = new SensorBuffer(1, 1, 0, 2);
+        final List<SensorBuffer.Batch> published = new ArrayList<>();
+        final SensorEventBus target = bus;
+        buffer.setOnBatchReadyCallback(new SensorBuffer.OnBatchReadyCallback() {
+            @Override
+            public void onBatchReady(SensorBuffer.Batch batch) {
+                published.add(batch);
+                target.publish(SharedConstants.SENSOR_TYPE.RSSI, batch);
+            }
+        });
+        buffer.addReading(1, -60f);
+        buffer.addReading(2, -61f);
+        buffer.addReading(3, -62f);
+        assertSame(published.get(0), published.get(2));
+    }
+
+    @Test
+    public void decimatesAcrossBatches() {
+        SensorEventBus bus = new SensorEventBus();
+        final List<Long> received = new ArrayList<>();
+        bus.subscribe(new SensorEventBus.OnSensorDataListener() {
+            @Override
+            public void onSensorData(SharedConstants.SENSOR_TYPE sensorType, long[] timestamps, float[] values, int count, int nDimensions) {
+                for (int i = 0; i < count; i++) {
+                    assertEquals(timestamps[i], (long) values[3 * i + 2]);
+                    received.add(timestamps[i]);
+                }
+            }
+        }, null, new SensorEventBus.SubscriptionOptions().setDecimation(3));
+
+        for (int batch = 0; batch < 5; batch++) {
+            long[] timestamps = new long[7];
+            float[] values = new float[21];
+            for (int i = 0; i < 7; i++) {
+                timestamps[i] = 7 * batch + i;
+                values[3 * i + 2] = timestamps[i];
+            }
+            bus.publish(SharedConstants.SENSOR_TYPE.ACCELEROMETER_WEARABLE, timestamps, values, 7, 3);
+        }
+        assertEquals(12, received.size());
+        for (int i = 0; i < received.size(); i++) {
+            assertEquals(3L * i, (long) received.get(i));
+        }
+    }
+
+    @Test
+    public void limitsRatePerSensorType() {
+        SensorEventBus bus = new SensorEventBus();
+        final AtomicInteger received = new AtomicInteger();
+        SensorEventBus.OnSensorDataListener listener = new SensorEventBus.OnSensorDataListener() {
+            @Override
+            public void onSensorData(SharedConstants.SENSOR_TYPE sensorType, long[] timestamps, float[] values, int count, int nDimensions) {
+                received.incrementAndGet();
+            }
+        };
+        bus.subscribe(listener, null, new SensorEventBus.SubscriptionOptions().setMaxRate(1));
+        for (int i = 0; i < 100; i++) {
+            bus.publish(SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR, new long[]{i}, new float[3], 1, 3);
+            bus.publish(SharedConstants.SENSOR_TYPE.GYROSCOPE_METAWEAR, new long[]{i}, new float[3], 1, 3);
+        }
+        assertEquals(2, received.get());
+        assertEquals(198, bus.getSkippedCount(listener));
+    }
+
+    @Test
+    public void deliversLatestBatchToSlowSubscriber() throws Exception {
+        SensorEventBus bus = new SensorEventBus();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final List<Long> received = new ArrayList<>();
+        SensorEventBus.OnSensorDataListener listener = new SensorEventBus.OnSensorDataListener() {
+            @Override
+            public void onSensorData(SharedConstants.SENSOR_TYPE sensorType, long[] timestamps, float[] values, int count, int nDimensions) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                received.add(timestamps[0]);
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        bus.subscribe(listener, executor, new SensorEventBus.SubscriptionOptions().setLatestOnly(true));
+
+        SensorBuffer buffer = new SensorBuffer(1, 1, 0, 3);
+        final SensorEventBus target = bus;
+        buffer.setOnBatchReadyCallback(new SensorBuffer.OnBatchReadyCallback() {
+            @Override
+            public void onBatchReady(SensorBuffer.Batch batch) {
+                target.publish(SharedConstants.SENSOR_TYPE.RSSI, batch);
+            }
+        });
+        for (int i = 0; i < 1000; i++) {
+            buffer.addReading(i, -60f);
+        }
+        blocked.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        // the first batch may have been taken before the subscriber blocked, the last is always delivered
+        assertTrue(received.size() <= 2);
+        assertEquals(999L, (long) received.get(received.size() - 1));
+        assertEquals(1000 - received.size(), bus.getSkippedCount(listener));
+    }
+}
@@ -0,0 +1,107 @@
+package edu.umass.cs.shared.communication;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that frames encoded by the {@link SensorFrameCodec} are decoded by the
+ * {@link SensorFrameReader}, and that clients sending lines are recognized.
+ */
+public class SensorFrameReaderTest {
+
+    private static class Collector implements SensorFrameReader.OnSensorDataReceivedListener {
+        final List<Integer> subjectIds = new ArrayList<>();
+        final List<SharedConstants.SENSOR_TYPE> sensorTypes = new ArrayList<>();
+        final List<Long> sequenceNumbers = new ArrayList<>();
+        final List<long[]> timestamps = new ArrayList<>();
+        final List<float[]> values = new ArrayList<>();
+        long sessionId;
+
+        @Override
+        public void onSensorDataReceived(int subjectId, SharedConstants.SENSOR_TYPE sensorType, long sessionId,
+                                         long sequenceNumber, long[] timestamps, float[] values) {
+            this.subjectIds.add(subjectId);
+            this.sensorTypes.add(sensorType);
+            this.sessionId = sessionId;
+            this.sequenceNumbers.add(sequenceNumber);
+            this.timestamps.add(timestamps);
+            this.values.add(values);
+        }
+    }
+
+    @Test
+    public void decodesFramesAfterPreamble() throws Exception {
+        long sessionId = 1467331200000L;
+        ByteBuffer out = ByteBuffer.allocate(100 * SensorFrameCodec.getMaxEncodedSize(50, 3));
+        SensorFrameCodec.encodePreamble(out, SensorFrameCodec.VERSION);
+        long[] timestamps = new long[50];
+        float[] values = new float[150];
+        for (int batch = 0; batch < 100; batch++) {
+            for (int i = 0; i < timestamps.length; i++) {
+                timestamps[i] = sessionId + batch * 1000L + i * 20 + (i % 3);
+                values[3 * i] = batch;
+                values[3 * i + 1] = i / 3f;
+                values[3 * i + 2] = Float.NaN;
+            }
+            SharedConstants.SENSOR_TYPE sensorType = batch % 2 == 0
+                    ? SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR : SharedConstants.SENSOR_TYPE.GYROSCOPE_METAWEAR;
+            SensorFrameCodec.encode(out, 7, sessionId, batch / 2, sensorType, timestamps, values, batch % 50 + 1, 3);
+        }
+
+        Collector collector = new Collector();
+        SensorFrameReader reader = new SensorFrameReader(new ByteArrayInputStream(out.array(), 0, out.position()), collector);
+        assertTrue(reader.readPreamble());
+        reader.run();
+
+        assertEquals(100, collector.timestamps.size());
+        assertEquals(sessionId, collector.sessionId);
+        for (int batch = 0; batch < 100; batch++) {
+            int count = batch % 50 + 1;
+            assertEquals(7, (int) collector.subjectIds.get(batch));
+            assertEquals(batch % 2 == 0 ? SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR
+                    : SharedConstants.SENSOR_TYPE.GYROSCOPE_METAWEAR, collector.sensorTypes.get(batch));
+            assertEquals(batch / 2, (long) collector.sequenceNumbers.get(batch));
+            assertEquals(count, collector.timestamps.get(batch).length);
+            for (int i = 0; i < count; i++) {
+                assertEquals(sessionId + batch * 1000L + i * 20 + (i % 3), collector.timestamps.get(batch)[i]);
+                assertEquals(batch, collector.values.get(batch)[3 * i], 0f);
+                assertEquals(i / 3f, collector.values.get(batch)[3 * i + 1], 0f);
+                assertTrue(Float.isNaN(collector.values.get(batch)[3 * i + 2]));
+            }
+        }
+    }
+
+    @Test
+    public void leavesLinesOfOldClientsUnread() throws Exception {
+        String lines = "{\"user_id\":\"7\",\"sensor_type\":\"RSSI\",\"data\":{\"t\":5000,\"v\":[-40.000000]}}\n";
+        SensorFrameReader reader = new SensorFrameReader(new ByteArrayInputStream(lines.getBytes("US-ASCII")), new Collector());
+        assertFalse(reader.readPreamble());
+        BufferedReader lineReader = new BufferedReader(new InputStreamReader(reader.getInputStream(), "US-ASCII"));
+        assertEquals(lines.trim(), lineReader.readLine());
+
+        // "PR" starts like the magic but is not followed by it
+        reader = new SensorFrameReader(new ByteArrayInputStream("PRE\n".getBytes("US-ASCII")), new Collector());
+        assertFalse(reader.readPreamble());
+        assertEquals("PRE", new BufferedReader(new InputStreamReader(reader.getInputStream(), "US-ASCII")).readLine());
+    }
+
+    @Test
+    public void greetingIsAPreamble() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SensorFrameReader.writeGreeting(out);
+        assertEquals(SensorFrameCodec.PREAMBLE_SIZE, out.size());
+        assertEquals(SensorFrameCodec.VERSION, SensorFrameCodec.decodePreamble(ByteBuffer.wrap(out.toByteArray())));
+        assertEquals(-1, SensorFrameCodec.decodePreamble(ByteBuffer.wrap("{\"use".getBytes("US-ASCII"))));
+    }
+}
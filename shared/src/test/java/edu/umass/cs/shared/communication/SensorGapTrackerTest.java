@@ -0,0 +1,102 @@
+package edu.umass.cs.shared.communication;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that the {@link SensorGapTracker} classifies batches by sequence number and that
+ * missing batches can be retrieved from a {@link SensorDataRetention} window.
+ */
+public class SensorGapTrackerTest {
+
+    private static final SharedConstants.SENSOR_TYPE ACC = SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR;
+
+    private final List<long[]> gaps = new ArrayList<>();
+
+    private final SensorGapTracker tracker = new SensorGapTracker(100, new SensorGapTracker.OnGapDetectedListener() {
+        @Override
+        public void onGapDetected(long sessionId, SharedConstants.SENSOR_TYPE sensorType, long fromSequenceNumber, long toSequenceNumber) {
+            gaps.add(new long[] {sessionId, fromSequenceNumber, toSequenceNumber});
+        }
+    });
+
+    /** Simulates a batch of one second of readings, contiguous with the previous batch. **/
+    private SensorGapTracker.Result receive(long sessionId, long sequenceNumber) {
+        return tracker.onBatchReceived(sessionId, ACC, sequenceNumber, sequenceNumber * 1000, sequenceNumber * 1000 + 980);
+    }
+
+    @Test
+    public void classifiesGapsRecoveriesAndDuplicates() {
+        assertEquals(SensorGapTracker.Result.IN_ORDER, receive(1, 0));
+        assertEquals(SensorGapTracker.Result.IN_ORDER, receive(1, 1));
+        assertEquals(SensorGapTracker.Result.GAP, receive(1, 5));
+        assertEquals(1, gaps.size());
+        assertArrayEquals(new long[] {1, 2, 4}, gaps.get(0));
+        assertEquals(3, tracker.getMissingCount(1, ACC));
+
+        assertEquals(SensorGapTracker.Result.RECOVERED, receive(1, 3));
+        assertEquals(SensorGapTracker.Result.DUPLICATE, receive(1, 3));
+        assertEquals(SensorGapTracker.Result.DUPLICATE, receive(1, 1));
+        assertEquals(SensorGapTracker.Result.RECOVERED, receive(1, 2));
+        assertEquals(1, tracker.getMissingCount(1, ACC));
+        assertEquals(SensorGapTracker.Result.IN_ORDER, receive(1, 6));
+
+        // sequence numbers restart with each session
+        assertEquals(SensorGapTracker.Result.IN_ORDER, receive(2, 0));
+        assertEquals(0, tracker.getMissingCount(2, ACC));
+        assertEquals(SensorGapTracker.Result.UNSEQUENCED,
+                tracker.onBatchReceived(SensorDataCodec.NO_SESSION, ACC, SensorDataCodec.NO_SEQUENCE, 0, 0));
+        assertTrue(tracker.getSummary(1).contains("gaps 1, lost 3, recovered 2, missing 1"));
+    }
+
+    @Test
+    public void distinguishesSensorDropoutsFromTransportLoss() {
+        tracker.onBatchReceived(1, ACC, 0, 0, 980);
+        tracker.onBatchReceived(1, ACC, 1, 1000, 1980);
+        tracker.onBatchReceived(1, ACC, 2, 5000, 5980); // contiguous sequence, but no readings for 3 seconds
+        tracker.onBatchReceived(1, ACC, 4, 7000, 7980); // batch 3 lost in transport
+
+        assertEquals(1, tracker.getDropoutCount(1, ACC));
+        assertEquals(1, tracker.getMissingCount(1, ACC));
+    }
+
+    @Test
+    public void missingBatchesCanBeRetrievedFromRetention() {
+        SensorDataRetention retention = new SensorDataRetention(1 << 16);
+        ByteBuffer buffer = ByteBuffer.allocate(SensorDataCodec.getMaxEncodedSize(1, 3));
+        for (int sequenceNumber = 0; sequenceNumber < 10; sequenceNumber++) {
+            buffer.clear();
+            SensorDataCodec.encode(buffer, 7, sequenceNumber, ACC, new long[] {sequenceNumber * 1000L},
+                    new float[] {0f, 0f, 1f}, 1, 3, true);
+            retention.retain(buffer.array(), 0, buffer.position());
+        }
+
+        final SensorDataCodec codec = new SensorDataCodec();
+        final List<Long> retrieved = new ArrayList<>();
+        int found = retention.retrieve(7, ACC, 3, 5, new SensorDataSpool.RecordHandler() {
+            @Override
+            public boolean onRecord(byte[] data, int offset, int length) {
+                codec.decodeHeader(ByteBuffer.wrap(data, offset, length));
+                retrieved.add(codec.getSequenceNumber());
+                return true;
+            }
+        });
+        assertEquals(3, found);
+        assertEquals(3L, (long) retrieved.get(0));
+        assertEquals(5L, (long) retrieved.get(2));
+        assertEquals(0, retention.retrieve(8, ACC, 3, 5, null));
+
+        SensorDataRetention small = new SensorDataRetention(2 * buffer.position());
+        for (int i = 0; i < 3; i++) {
+            small.retain(buffer.array(), 0, buffer.position());
+        }
+        assertEquals(1, small.getEvictedCount());
+    }
+}
@@ -0,0 +1,102 @@
+package edu.umass.cs.shared.communication;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+import edu.umass.cs.shared.util.SensorBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that batches written by a {@link SensorStreamWriter} are read back in order by a
+ * {@link SensorStreamReader} over a {@link LoopbackStreamTransport}.
+ */
+public class SensorStreamTest {
+
+    private static class Collector implements SensorStreamReader.OnSensorDataReceivedListener {
+        final List<SharedConstants.SENSOR_TYPE> sensorTypes = new ArrayList<>();
+        final List<long[]> timestamps = new ArrayList<>();
+        final List<float[]> values = new ArrayList<>();
+
+        @Override
+        public void onSensorDataReceived(SharedConstants.SENSOR_TYPE sensorType, long sessionId, long sequenceNumber,
+                                         SensorBuffer.Batch batch) {
+            this.sensorTypes.add(sensorType);
+            this.timestamps.add(Arrays.copyOf(batch.getTimestamps(), batch.size()));
+            this.values.add(Arrays.copyOf(batch.getValues(), batch.size() * batch.getDimensions()));
+            batch.release();
+        }
+    }
+
+    private static Thread startReader(LoopbackStreamTransport transport, Collector collector) throws InterruptedException {
+        Thread reader = new Thread(new SensorStreamReader(transport.accept(), collector));
+        reader.start();
+        return reader;
+    }
+
+    @Test
+    public void readsBatchesInOrder() throws Exception {
+        LoopbackStreamTransport transport = new LoopbackStreamTransport();
+        SensorStreamWriter writer = new SensorStreamWriter(transport, false);
+        Collector collector = new Collector();
+
+        long[] timestamps = new long[50];
+        float[] values = new float[150];
+        writer.write(SharedConstants.SENSOR_TYPE.ACCELEROMETER_WEARABLE, timestamps, values, 0, 3);
+        Thread reader = startReader(transport, collector);
+        for (int batch = 0; batch < 100; batch++) {
+            for (int i = 0; i < timestamps.length; i++) {
+                timestamps[i] = batch * 1000L + i * 20;
+                values[3 * i] = batch;
+                values[3 * i + 1] = i;
+                values[3 * i + 2] = -i / 7f;
+            }
+            SharedConstants.SENSOR_TYPE sensorType = batch % 2 == 0
+                    ? SharedConstants.SENSOR_TYPE.ACCELEROMETER_WEARABLE : SharedConstants.SENSOR_TYPE.GYROSCOPE_WEARABLE;
+            writer.write(sensorType, timestamps, values, batch % 50 + 1, 3);
+        }
+        writer.close();
+        reader.join(5000);
+
+        assertFalse(reader.isAlive());
+        assertEquals(101, collector.timestamps.size());
+        assertEquals(0, collector.timestamps.get(0).length);
+        for (int batch = 0; batch < 100; batch++) {
+            long[] receivedTimestamps = collector.timestamps.get(batch + 1);
+            float[] receivedValues = collector.values.get(batch + 1);
+            assertEquals(batch % 2 == 0 ? SharedConstants.SENSOR_TYPE.ACCELEROMETER_WEARABLE
+                    : SharedConstants.SENSOR_TYPE.GYROSCOPE_WEARABLE, collector.sensorTypes.get(batch + 1));
+            assertEquals(batch % 50 + 1, receivedTimestamps.length);
+            for (int i = 0; i < receivedTimestamps.length; i++) {
+                assertEquals(batch * 1000L + i * 20, receivedTimestamps[i]);
+                assertEquals(batch, receivedValues[3 * i], 0f);
+                assertEquals(-i / 7f, receivedValues[3 * i + 2], 0f);
+            }
+        }
+    }
+
+    @Test
+    public void reopensStreamAfterSessionEnds() throws Exception {
+        LoopbackStreamTransport transport = new LoopbackStreamTransport();
+        SensorStreamWriter writer = new SensorStreamWriter(transport, true);
+        long[] timestamps = {1, 2};
+        float[] values = {-50f, -51f};
+
+        for (int session = 0; session < 2; session++) {
+            Collector collector = new Collector();
+            writer.write(SharedConstants.SENSOR_TYPE.RSSI, timestamps, values, 2, 1);
+            assertTrue(writer.isOpen());
+            Thread reader = startReader(transport, collector);
+            writer.close();
+            assertFalse(writer.isOpen());
+            reader.join(5000);
+            assertEquals(1, collector.values.size());
+            assertArrayEquals(values, collector.values.get(0), 0.01f);
+        }
+        assertEquals(2, transport.opened);
+    }
+}
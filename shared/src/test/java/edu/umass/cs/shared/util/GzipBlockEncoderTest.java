@@ -0,0 +1,127 @@
+package edu.umass.cs.shared.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that the output of the {@link GzipBlockEncoder} is a valid multi-member gzip stream,
+ * and compares the size and CPU time of compressed against plain CSV output.
+ */
+public class GzipBlockEncoderTest {
+
+    /** The number of accelerometer readings per benchmark run, about 2 hours at 50 Hz. **/
+    private static final int SAMPLES = 400000;
+
+    private static final int BATCH_SIZE = 50;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] decompress(byte[] data, int length) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(data, 0, length));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void writesConcatenatedMembers() throws IOException {
+        GzipBlockEncoder encoder = new GzipBlockEncoder(1000, 6);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        Random random = new Random(7);
+        for (int i = 0; i < 100; i++) {
+            byte[] row = (i + "," + random.nextFloat() + "\n").getBytes("US-ASCII");
+            encoder.write(row, 0, row.length);
+            expected.write(row);
+            if (i == 50) {
+                assertTrue(encoder.getPendingLength() > 0);
+                encoder.flush();
+                assertEquals(0, encoder.getPendingLength());
+            }
+            compressed.write(encoder.array(), 0, encoder.length());
+            encoder.reset();
+        }
+        encoder.flush();
+        compressed.write(encoder.array(), 0, encoder.length());
+        encoder.reset();
+        encoder.flush(); // an empty block produces no member
+        assertEquals(0, encoder.length());
+        encoder.end();
+
+        assertArrayEquals(expected.toByteArray(), decompress(compressed.toByteArray(), compressed.size()));
+        assertTrue(compressed.size() < expected.size());
+    }
+
+    @Test
+    public void benchmarkAgainstPlainOutput() throws IOException {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        long[] timestamps = new long[BATCH_SIZE];
+        float[] values = new float[3 * BATCH_SIZE];
+        Random random = new Random(13);
+
+        for (int run = 0; run < 2; run++) {
+            long[] bytes = new long[2];
+            long[] cpuNanos = new long[2];
+            for (int mode = 0; mode < 2; mode++) {
+                SensorCsvEncoder csvEncoder = new SensorCsvEncoder();
+                GzipBlockEncoder compressor = mode == 1 ? new GzipBlockEncoder() : null;
+                File file = folder.newFile();
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+                long t = bean.getCurrentThreadCpuTime();
+                for (int b = 0; b < SAMPLES / BATCH_SIZE; b++) {
+                    for (int i = 0; i < BATCH_SIZE; i++) {
+                        timestamps[i] = 1467331200000L + 20 * (b * BATCH_SIZE + i);
+                        // a bottle at rest: gravity on one axis plus sensor noise
+                        values[3 * i] = (float) (0.01 * random.nextGaussian());
+                        values[3 * i + 1] = (float) (0.01 * random.nextGaussian());
+                        values[3 * i + 2] = (float) (9.81 + 0.01 * random.nextGaussian());
+                    }
+                    csvEncoder.reset();
+                    csvEncoder.encode(timestamps, values, BATCH_SIZE, 3);
+                    if (compressor == null) {
+                        out.write(csvEncoder.array(), 0, csvEncoder.length());
+                    } else {
+                        compressor.write(csvEncoder.array(), 0, csvEncoder.length());
+                        out.write(compressor.array(), 0, compressor.length());
+                        compressor.reset();
+                    }
+                }
+                if (compressor != null) {
+                    compressor.flush();
+                    out.write(compressor.array(), 0, compressor.length());
+                    compressor.reset();
+                    compressor.end();
+                }
+                out.close();
+                cpuNanos[mode] = bean.getCurrentThreadCpuTime() - t;
+                bytes[mode] = file.length();
+            }
+            assertTrue(bytes[1] < bytes[0] / 2);
+            if (run > 0) {
+                System.out.println(String.format("plain: %d bytes, %.2f us/sample; gzip blocks: %d bytes (%.0f%%), %.2f us/sample",
+                        bytes[0], cpuNanos[0] / 1000.0 / SAMPLES, bytes[1], 100.0 * bytes[1] / bytes[0], cpuNanos[1] / 1000.0 / SAMPLES));
+            }
+        }
+    }
+}
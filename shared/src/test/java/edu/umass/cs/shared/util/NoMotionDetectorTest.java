@@ -0,0 +1,182 @@
+package edu.umass.cs.shared.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds accelerometer traces of a pill bottle being handled and set down to the
+ * {@link NoMotionDetector}, verifying when it reports rest and that its running sum matches the
+ * sum over the window.
+ */
+public class NoMotionDetectorTest {
+
+    private static final int SAMPLING_RATE = 25;
+
+    private static final int WINDOW_SIZE = 5 * SAMPLING_RATE;
+
+    private static final float THRESHOLD = 0.1875f;
+
+    /** An accelerometer trace, [3 x n] values in g. **/
+    private static class Trace {
+        final float[] values;
+        int size = 0;
+
+        Trace(int capacity) {
+            values = new float[3 * capacity];
+        }
+
+        void add(double x, double y, double z) {
+            values[3 * size] = (float) x;
+            values[3 * size + 1] = (float) y;
+            values[3 * size + 2] = (float) z;
+            size++;
+        }
+
+        /** The bottle standing on a table, with sensor noise. **/
+        Trace rest(int n, Random random) {
+            for (int i = 0; i < n; i++) {
+                add(0.01 + 0.0003 * random.nextGaussian(), -0.02 + 0.0003 * random.nextGaussian(),
+                        1 + 0.0003 * random.nextGaussian());
+            }
+            return this;
+        }
+
+        /** The bottle being picked up, turned and shaken. **/
+        Trace handle(int n, Random random) {
+            for (int i = 0; i < n; i++) {
+                double t = (double) i / SAMPLING_RATE;
+                add(0.5 * Math.sin(2 * Math.PI * 2 * t), 0.3 * Math.cos(2 * Math.PI * 0.7 * t) + 0.05 * random.nextGaussian(),
+                        1 + 0.4 * Math.sin(2 * Math.PI * 1.3 * t));
+            }
+            return this;
+        }
+
+        /** The bottle rocking after being set down. **/
+        Trace settle(int n, Random random) {
+            for (int i = 0; i < n; i++) {
+                double t = (double) i / SAMPLING_RATE;
+                double amplitude = 0.3 * Math.exp(-t / 0.3);
+                add(0.01 + amplitude * Math.sin(2 * Math.PI * 3 * t), -0.02 + 0.0003 * random.nextGaussian(),
+                        1 + amplitude * Math.cos(2 * Math.PI * 3 * t));
+            }
+            return this;
+        }
+
+        /** Readings whose squared magnitudes differ by the given amount from one reading to the next. **/
+        Trace vary(int n, double difference) {
+            for (int i = 0; i < n; i++) {
+                add(0, 0, size % 2 == 0 ? 1 : Math.sqrt(1 + difference));
+            }
+            return this;
+        }
+    }
+
+    /** Returns the indices of the readings at which the detector reported rest. **/
+    private static int[] detect(NoMotionDetector detector, Trace trace) {
+        int[] detections = new int[trace.size];
+        int n = 0;
+        for (int i = 0; i < trace.size; i++) {
+            if (detector.addReading(trace.values[3 * i], trace.values[3 * i + 1], trace.values[3 * i + 2]))
+                detections[n++] = i;
+        }
+        int[] result = new int[n];
+        System.arraycopy(detections, 0, result, 0, n);
+        return result;
+    }
+
+    @Test
+    public void detectsRestWithinOneHopOfAQuietWindow() {
+        int hopSize = SAMPLING_RATE / 5;
+        int handled = 10 * SAMPLING_RATE + 13, settling = SAMPLING_RATE;
+        Trace trace = new Trace(60 * SAMPLING_RATE).handle(handled, new Random(1)).settle(settling, new Random(2))
+                .rest(30 * SAMPLING_RATE, new Random(3));
+
+        int[] sliding = detect(new NoMotionDetector(WINDOW_SIZE, hopSize, THRESHOLD, 2 * THRESHOLD), trace);
+        int[] consecutive = detect(new NoMotionDetector(WINDOW_SIZE, WINDOW_SIZE, THRESHOLD, THRESHOLD), trace);
+
+        assertEquals(1, sliding.length);
+        assertEquals(1, consecutive.length);
+        int quiet = handled + settling;
+        assertTrue(sliding[0] > handled);
+        assertTrue(sliding[0] <= quiet + WINDOW_SIZE + hopSize);
+        assertTrue(sliding[0] < consecutive[0]);
+        System.out.println(String.format("rest detected %.2f s after the bottle was set down with a hop of %d readings, "
+                        + "%.2f s with consecutive windows", (sliding[0] - handled) / (double) SAMPLING_RATE, hopSize,
+                (consecutive[0] - handled) / (double) SAMPLING_RATE));
+    }
+
+    @Test
+    public void hysteresisPreventsFlapping() {
+        // window sums of 0.15, 0.25, 0.15, 0.5 and 0.15
+        Trace trace = new Trace(10 * WINDOW_SIZE).vary(2 * WINDOW_SIZE, 0.15 / WINDOW_SIZE)
+                .vary(2 * WINDOW_SIZE, 0.25 / WINDOW_SIZE).vary(2 * WINDOW_SIZE, 0.15 / WINDOW_SIZE)
+                .vary(2 * WINDOW_SIZE, 0.5 / WINDOW_SIZE).vary(2 * WINDOW_SIZE, 0.15 / WINDOW_SIZE);
+
+        assertEquals(2, detect(new NoMotionDetector(WINDOW_SIZE, 5, THRESHOLD, 2 * THRESHOLD), trace).length);
+        assertEquals(3, detect(new NoMotionDetector(WINDOW_SIZE, 5, THRESHOLD, THRESHOLD), trace).length);
+    }
+
+    @Test
+    public void consecutiveWindowsMatchSumOverEachWindow() {
+        Random random = new Random(4);
+        Trace trace = new Trace(200 * WINDOW_SIZE);
+        while (trace.size < 190 * WINDOW_SIZE) {
+            if (random.nextBoolean())
+                trace.rest(random.nextInt(3 * WINDOW_SIZE), random);
+            else
+                trace.handle(random.nextInt(WINDOW_SIZE), random);
+        }
+
+        NoMotionDetector detector = new NoMotionDetector(WINDOW_SIZE, WINDOW_SIZE, THRESHOLD, THRESHOLD);
+        detector.addReading(trace.values[0], trace.values[1], trace.values[2]);
+        double sum = 0;
+        int windows = 0, atRest = 0;
+        for (int i = 1; i < trace.size; i++) {
+            float[] v = trace.values;
+            float magnitudeSq = v[3 * i] * v[3 * i] + v[3 * i + 1] * v[3 * i + 1] + v[3 * i + 2] * v[3 * i + 2];
+            float previousSq = v[3 * i - 3] * v[3 * i - 3] + v[3 * i - 2] * v[3 * i - 2] + v[3 * i - 1] * v[3 * i - 1];
+            sum += Math.abs(magnitudeSq - previousSq);
+            detector.addReading(v[3 * i], v[3 * i + 1], v[3 * i + 2]);
+            if (i % WINDOW_SIZE == 0) {
+                assertEquals(sum, detector.getSum(), WINDOW_SIZE * NoMotionDetector.RESOLUTION);
+                if (Math.abs(sum - THRESHOLD) > WINDOW_SIZE * NoMotionDetector.RESOLUTION)
+                    assertEquals(sum < THRESHOLD, detector.isAtRest());
+                windows++;
+                if (detector.isAtRest())
+                    atRest++;
+                sum = 0;
+            }
+        }
+        assertTrue(atRest > 0 && atRest < windows);
+    }
+
+    @Test
+    public void runningSumDoesNotDrift() {
+        Random random = new Random(5);
+        int windowSize = 100 * 5; // 100 Hz
+        Trace trace = new Trace(1000000);
+        while (trace.size < 999000) {
+            trace.handle(random.nextInt(windowSize), random).rest(random.nextInt(windowSize), random);
+        }
+        NoMotionDetector detector = new NoMotionDetector(windowSize, 1, THRESHOLD, 2 * THRESHOLD);
+        long start = System.nanoTime();
+        for (int i = 0; i < trace.size; i++) {
+            detector.addReading(trace.values[3 * i], trace.values[3 * i + 1], trace.values[3 * i + 2]);
+        }
+        double nanosPerReading = (double) (System.nanoTime() - start) / trace.size;
+
+        double sum = 0;
+        for (int i = trace.size - windowSize; i < trace.size; i++) {
+            float[] v = trace.values;
+            float magnitudeSq = v[3 * i] * v[3 * i] + v[3 * i + 1] * v[3 * i + 1] + v[3 * i + 2] * v[3 * i + 2];
+            float previousSq = v[3 * i - 3] * v[3 * i - 3] + v[3 * i - 2] * v[3 * i - 2] + v[3 * i - 1] * v[3 * i - 1];
+            sum += Math.abs(magnitudeSq - previousSq);
+        }
+        assertEquals(sum, detector.getSum(), windowSize * NoMotionDetector.RESOLUTION);
+        System.out.println(String.format("%d readings with a window of %d and a hop of 1: %.1f ns per reading",
+                trace.size, windowSize, nanosPerReading));
+    }
+}
@@ -0,0 +1,144 @@
+package edu.umass.cs.shared.util;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compares the time sensor threads spend handing over readings to the {@link RingSensorBuffer}
+ * against the monitor-based {@link SensorBuffer} path, at the capacity used by the sensor
+ * services and with a running consumer. The callback simulates serializing and writing a batch;
+ * on the monitor path it runs inside the producers' lock.
+ * <br><br>
+ * The results depend on the machine and the scheduler, so this is not part of the unit tests;
+ * run its {@link #main(String[])} method on the JVM.
+ */
+public class RingSensorBufferBenchmark {
+
+    private static final int PRODUCERS = 4;
+
+    private static final int READINGS_PER_PRODUCER = 10000;
+
+    /** The capacity of the rings in the sensor services. **/
+    private static final int RING_CAPACITY = 1024;
+
+    /** The number of readings a producer delivers at once, like a Bluetooth packet. **/
+    private static final int BURST_SIZE = 10;
+
+    private static final long BURST_INTERVAL_NANOS = 1000000;
+
+    private interface Producer {
+        void add(long timestamp, float x, float y, float z);
+    }
+
+    /** Simulates the work done by a buffer callback, e.g. serializing and writing a batch. **/
+    private static long consume(long[] timestamps, float[] values, int size) {
+        long sum = 0;
+        for (int repeat = 0; repeat < 200; repeat++) {
+            for (int i = 0; i < size; i++) {
+                sum += timestamps[i] * 31 + (long) (values[3 * i] * repeat);
+            }
+        }
+        return sum;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final AtomicLong sink = new AtomicLong();
+        final AtomicLong received = new AtomicLong();
+
+        final SensorBuffer monitorBuffer = new SensorBuffer(100, 3, 0, 4);
+        monitorBuffer.setOnBatchReadyCallback(new SensorBuffer.OnBatchReadyCallback() {
+            @Override
+            public void onBatchReady(SensorBuffer.Batch batch) {
+                sink.addAndGet(consume(batch.getTimestamps(), batch.getValues(), batch.size()));
+                received.addAndGet(batch.size());
+                batch.release();
+            }
+        });
+        long[] monitorLatencies = runProducers(new Producer() {
+            @Override
+            public void add(long timestamp, float x, float y, float z) {
+                synchronized (monitorBuffer) {
+                    monitorBuffer.addReading(timestamp, x, y, z);
+                }
+            }
+        });
+        synchronized (monitorBuffer) {
+            monitorBuffer.flush();
+        }
+        long monitorReceived = received.getAndSet(0);
+
+        SensorBuffer ringBuffer = new SensorBuffer(100, 3, 0, 4);
+        ringBuffer.setOnBatchReadyCallback(new SensorBuffer.OnBatchReadyCallback() {
+            @Override
+            public void onBatchReady(SensorBuffer.Batch batch) {
+                sink.addAndGet(consume(batch.getTimestamps(), batch.getValues(), batch.size()));
+                received.addAndGet(batch.size());
+                batch.release();
+            }
+        });
+        final RingSensorBuffer ring = new RingSensorBuffer(RING_CAPACITY, 3, ringBuffer, 1000);
+        ring.start();
+        long[] ringLatencies = runProducers(new Producer() {
+            @Override
+            public void add(long timestamp, float x, float y, float z) {
+                ring.addReading(timestamp, x, y, z);
+            }
+        });
+        ring.stop();
+
+        System.out.println(String.format(Locale.US, "time per reading handed over (p50 / p99 / max / total), checksum %d:%n"
+                        + "  monitor: %s, %d readings delivered%n  ring:    %s, %d readings delivered, %d dropped",
+                sink.get(), summarize(monitorLatencies), monitorReceived, summarize(ringLatencies), received.get(),
+                ring.getDroppedCount()));
+    }
+
+    private static String summarize(long[] latencies) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        long sum = 0;
+        for (long latency : sorted) {
+            sum += latency;
+        }
+        return String.format(Locale.US, "%d ns / %d ns / %.0f us / %.1f ms", sorted[sorted.length / 2],
+                sorted[sorted.length * 99 / 100], sorted[sorted.length - 1] / 1e3, sum / 1e6);
+    }
+
+    /**
+     * Runs {@link #PRODUCERS} concurrent producers, each delivering bursts of readings at a fixed
+     * interval as the sensor callbacks do, and returns the time each hand-over took in nanoseconds.
+     */
+    private static long[] runProducers(final Producer producer) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] latencies = new long[PRODUCERS * READINGS_PER_PRODUCER];
+        Thread[] threads = new Thread[PRODUCERS];
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int offset = p * READINGS_PER_PRODUCER;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < READINGS_PER_PRODUCER; i++) {
+                        long t = System.nanoTime();
+                        producer.add(i, i, i, i);
+                        latencies[offset + i] = System.nanoTime() - t;
+                        if ((i + 1) % BURST_SIZE == 0)
+                            LockSupport.parkNanos(BURST_INTERVAL_NANOS);
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return latencies;
+    }
+}
@@ -0,0 +1,195 @@
+package edu.umass.cs.shared.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that the {@link RingSensorBuffer} delivers every reading from concurrent producers,
+ * in order per producer. The comparison against the monitor-based {@link SensorBuffer} path is
+ * timing-dependent and is run separately, see {@link RingSensorBufferBenchmark}.
+ */
+public class RingSensorBufferTest {
+
+    private static final int PRODUCERS = 4;
+
+    private static final int READINGS_PER_PRODUCER = 10000;
+
+    /** The capacity of the rings in the sensor services. **/
+    private static final int RING_CAPACITY = 1024;
+
+    /** The number of readings a producer delivers at once, like a Bluetooth packet. **/
+    private static final int BURST_SIZE = 10;
+
+    private static final long BURST_INTERVAL_NANOS = 1000000;
+
+    /** Simulates the work done by a buffer callback, e.g. serializing and writing a batch. **/
+    private static long consume(long[] timestamps, float[] values, int size) {
+        long sum = 0;
+        for (int repeat = 0; repeat < 200; repeat++) {
+            for (int i = 0; i < size; i++) {
+                sum += timestamps[i] * 31 + (long) (values[3 * i] * repeat);
+            }
+        }
+        return sum;
+    }
+
+    @Test
+    public void deliversAllReadingsInOrderPerProducer() throws Exception {
+        final long[] lastSeen = new long[PRODUCERS];
+        final AtomicLong received = new AtomicLong();
+        SensorBuffer buffer = new SensorBuffer(50, 3, 1000, 4);
+        buffer.setOnBatchReadyCallback(new SensorBuffer.OnBatchReadyCallback() {
+            @Override
+            public void onBatchReady(SensorBuffer.Batch batch) {
+                for (int i = 0; i < batch.size(); i++) {
+                    int producer = (int) batch.getValues()[3 * i];
+                    long timestamp = batch.getTimestamps()[i];
+                    assertTrue(timestamp > lastSeen[producer]);
+                    lastSeen[producer] = timestamp;
+                }
+                received.addAndGet(batch.size());
+                batch.release();
+            }
+        });
+        final RingSensorBuffer ring = new RingSensorBuffer(1 << 16, 3, buffer, 1000);
+        ring.start();
+
+        final int n = 20000;
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int p = 0; p < PRODUCERS; p++) {
+            final float id = p;
+            producers[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 1; i <= n; i++) {
+                        while (!ring.addReading(i, id, 0f, 0f)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            producers[p].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        ring.stop();
+
+        assertEquals((long) PRODUCERS * n, received.get());
+        for (long last : lastSeen) {
+            assertEquals(n, last);
+        }
+    }
+
+    @Test
+    public void flushDeliversPartialBatch() {
+        final AtomicLong received = new AtomicLong();
+        SensorBuffer buffer = new SensorBuffer(100, 1, 0, 2);
+        buffer.setOnBatchReadyCallback(new SensorBuffer.OnBatchReadyCallback() {
+            @Override
+            public void onBatchReady(SensorBuffer.Batch batch) {
+                received.addAndGet(batch.size());
+                batch.release();
+            }
+        });
+        RingSensorBuffer ring = new RingSensorBuffer(16, 1, buffer, 1000);
+        ring.start();
+        for (int i = 0; i < 10; i++) {
+            ring.addReading(i, i);
+        }
+        ring.flush();
+        assertEquals(10, received.get());
+        ring.stop();
+    }
+
+    @Test
+    public void deliversLoneReadingWithinMaxLatency() throws Exception {
+        final CountDownLatch delivered = new CountDownLatch(1);
+        SensorBuffer buffer = new SensorBuffer(100, 1, 0, 2);
+        buffer.setOnBatchReadyCallback(new SensorBuffer.OnBatchReadyCallback() {
+            @Override
+            public void onBatchReady(SensorBuffer.Batch batch) {
+                delivered.countDown();
+                batch.release();
+            }
+        });
+        RingSensorBuffer ring = new RingSensorBuffer(16, 1, buffer, 100);
+        ring.start();
+        Thread.sleep(200); // the consumer is parked until a reading arrives
+        long t = System.nanoTime();
+        ring.addReading(1, 1f);
+        assertTrue(delivered.await(2, TimeUnit.SECONDS));
+        long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t);
+        assertTrue(latencyMillis >= 90 && latencyMillis < 1000);
+        ring.stop();
+    }
+
+    /**
+     * Delivers bursts of readings from concurrent producers, as the sensor callbacks do, at the
+     * capacity used by the sensor services while the callback keeps the consumer busy. Producers
+     * retry when the ring is full, so no reading may be lost or reordered.
+     */
+    @Test
+    public void deliversAllReadingsWithBusyConsumer() throws Exception {
+        final long[] lastSeen = new long[PRODUCERS];
+        final AtomicLong sink = new AtomicLong();
+        final AtomicLong received = new AtomicLong();
+        SensorBuffer buffer = new SensorBuffer(100, 3, 0, 4);
+        buffer.setOnBatchReadyCallback(new SensorBuffer.OnBatchReadyCallback() {
+            @Override
+            public void onBatchReady(SensorBuffer.Batch batch) {
+                for (int i = 0; i < batch.size(); i++) {
+                    int producer = (int) batch.getValues()[3 * i + 1];
+                    long timestamp = batch.getTimestamps()[i];
+                    assertTrue(timestamp > lastSeen[producer]);
+                    lastSeen[producer] = timestamp;
+                }
+                sink.addAndGet(consume(batch.getTimestamps(), batch.getValues(), batch.size()));
+                received.addAndGet(batch.size());
+                batch.release();
+            }
+        });
+        final RingSensorBuffer ring = new RingSensorBuffer(RING_CAPACITY, 3, buffer, 1000);
+        ring.start();
+
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int p = 0; p < PRODUCERS; p++) {
+            final float id = p;
+            producers[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 1; i <= READINGS_PER_PRODUCER; i++) {
+                        while (!ring.addReading(i, i, id, 0f)) {
+                            Thread.yield();
+                        }
+                        if (i % BURST_SIZE == 0)
+                            LockSupport.parkNanos(BURST_INTERVAL_NANOS);
+                    }
+                }
+            });
+            producers[p].start();
+        }
+        start.countDown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        ring.stop();
+
+        assertEquals(PRODUCERS * READINGS_PER_PRODUCER, received.get());
+        for (long last : lastSeen) {
+            assertEquals(READINGS_PER_PRODUCER, last);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package edu.umass.cs.shared.util;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that the {@link SensorCsvEncoder} produces the same rows as {@code String.format}
+ * and compares its throughput against the formatting it replaces.
+ */
+public class SensorCsvEncoderTest {
+
+    private static String encode(SensorCsvEncoder encoder) {
+        return new String(encoder.array(), 0, encoder.length());
+    }
+
+    @Test
+    public void matchesStringFormat() {
+        Random random = new Random(42);
+        SensorCsvEncoder encoder = new SensorCsvEncoder();
+        long[] timestamps = new long[1];
+        float[] values = new float[3];
+        for (int i = 0; i < 100000; i++) {
+            timestamps[0] = 1467331200000L + random.nextInt();
+            for (int j = 0; j < 3; j++) {
+                values[j] = (float) ((random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(8) - 3));
+            }
+            encoder.reset();
+            encoder.encode(timestamps, values, 1, 3);
+            assertEquals(String.format(Locale.US, "%d,%f,%f,%f\n", timestamps[0], values[0], values[1], values[2]), encode(encoder));
+        }
+    }
+
+    @Test
+    public void encodesSpecialValues() {
+        SensorCsvEncoder encoder = new SensorCsvEncoder();
+        encoder.encode(new long[]{-5, 0, Long.MIN_VALUE}, new float[]{-0f, Float.NaN, 1e20f}, 3, 1);
+        assertEquals("-5,-0.000000\n0,NaN\n" + Long.MIN_VALUE + "," + String.format(Locale.US, "%f", 1e20f) + "\n", encode(encoder));
+
+        encoder = new SensorCsvEncoder(2, 64);
+        encoder.encode(new long[]{1}, new float[]{-73.456f}, 1, 1);
+        assertEquals("1,-73.46\n", encode(encoder));
+    }
+
+    @Test
+    public void scalesBatchWithoutModifyingValues() {
+        SensorCsvEncoder encoder = new SensorCsvEncoder(1, 16);
+        float[] values = {1f, -0.5f, 2f, 0f, 0f, 1f};
+        encoder.encode(new long[]{10, 20}, values, 2, 3, 9.8f);
+        assertEquals("10,9.8,-4.9,19.6\n20,0.0,0.0,9.8\n", encode(encoder));
+        assertEquals(1f, values[0], 0f);
+        assertSame(values, encoder.scale(values, 6, 1f));
+    }
+
+    @Test
+    public void benchmarkAgainstStringFormat() {
+        int count = 50, batches = 2000;
+        long[] timestamps = new long[count];
+        float[] values = new float[3 * count];
+        Random random = new Random(7);
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = 1467331200000L + 20 * i;
+            for (int j = 0; j < 3; j++) {
+                values[3 * i + j] = (float) random.nextGaussian();
+            }
+        }
+
+        long checksum = 0;
+        long t = System.nanoTime();
+        for (int b = 0; b < batches; b++) {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                float[] reading = {values[3 * i] * 9.8f, values[3 * i + 1] * 9.8f, values[3 * i + 2] * 9.8f};
+                builder.append(String.format(Locale.getDefault(), "%d,", timestamps[i]));
+                builder.append(String.format(Locale.getDefault(), "%f,%f,%f\n", reading[0], reading[1], reading[2]));
+            }
+            checksum += builder.length();
+        }
+        long formatNanos = System.nanoTime() - t;
+
+        SensorCsvEncoder encoder = new SensorCsvEncoder();
+        t = System.nanoTime();
+        for (int b = 0; b < batches; b++) {
+            encoder.reset();
+            encoder.encode(timestamps, values, count, 3, 9.8f);
+            checksum += encoder.length();
+        }
+        long encoderNanos = System.nanoTime() - t;
+
+        double rows = (double) count * batches;
+        System.out.println(String.format("String.format: %.0f ns/row, encoder: %.0f ns/row (checksum %d)",
+                formatNanos / rows, encoderNanos / rows, checksum));
+    }
+}
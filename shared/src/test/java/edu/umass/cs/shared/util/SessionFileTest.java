@@ -0,0 +1,150 @@
+package edu.umass.cs.shared.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that session files written by the {@link SessionFileEncoder} are read back by the
+ * {@link SessionFileReader}, with or without footer, and converted to the application's CSV layout.
+ */
+public class SessionFileTest {
+
+    private static final long SESSION_START = 1467331200000L;
+
+    private static final int BATCHES = 100;
+
+    private static final int BATCH_SIZE = 50;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /** The CSV written for each sensor type in the order of {@link SharedConstants.SENSOR_TYPE}, for comparison. **/
+    private final ByteArrayOutputStream[] csv = new ByteArrayOutputStream[SharedConstants.SENSOR_TYPE.values().length];
+
+    /**
+     * Writes a session of interleaved accelerometer and RSSI batches, recording the equivalent CSV.
+     */
+    private File writeSession(boolean footer) throws IOException {
+        File file = folder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        SessionFileEncoder encoder = new SessionFileEncoder(SESSION_START);
+        SensorCsvEncoder csvEncoder = new SensorCsvEncoder();
+        Random random = new Random(5);
+        long[] timestamps = new long[BATCH_SIZE];
+        float[] values = new float[3 * BATCH_SIZE];
+        for (int b = 0; b < BATCHES; b++) {
+            SharedConstants.SENSOR_TYPE sensorType = b % 4 == 3 ? SharedConstants.SENSOR_TYPE.RSSI : SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR;
+            int nDimensions = sensorType == SharedConstants.SENSOR_TYPE.RSSI ? 1 : 3;
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                timestamps[i] = SESSION_START + 20 * (b * BATCH_SIZE + i);
+                for (int d = 0; d < nDimensions; d++) {
+                    values[nDimensions * i + d] = (float) random.nextGaussian() * SharedConstants.GRAVITY;
+                }
+            }
+            encoder.encodeChunk(sensorType, timestamps, values, BATCH_SIZE, nDimensions);
+            out.write(encoder.array(), 0, encoder.length());
+            encoder.reset();
+
+            csvEncoder.reset();
+            csvEncoder.encode(timestamps, values, BATCH_SIZE, nDimensions);
+            if (csv[sensorType.ordinal()] == null)
+                csv[sensorType.ordinal()] = new ByteArrayOutputStream();
+            csv[sensorType.ordinal()].write(csvEncoder.array(), 0, csvEncoder.length());
+        }
+        if (footer) {
+            encoder.encodeFooter();
+            out.write(encoder.array(), 0, encoder.length());
+            encoder.reset();
+        }
+        out.close();
+        assertEquals(encoder.getFileSize(), file.length());
+        return file;
+    }
+
+    @Test
+    public void readsIndexedSession() throws IOException {
+        File file = writeSession(true);
+        SessionFileReader reader = new SessionFileReader(file);
+        assertTrue(reader.isIndexed());
+        assertEquals(SESSION_START, reader.getSessionStart());
+        assertEquals(BATCHES, reader.getChunkCount());
+        assertEquals(SharedConstants.SENSOR_TYPE.RSSI, reader.getSensorType(3));
+        assertEquals(1, reader.getDimensions(3));
+        assertEquals(SESSION_START + 20 * (4 * BATCH_SIZE - 1), reader.getLastTimestamp(3));
+
+        long[] timestamps = new long[BATCH_SIZE];
+        float[] values = new float[3 * BATCH_SIZE];
+        reader.readChunk(BATCHES - 2, timestamps, values);
+        assertEquals(SESSION_START + 20 * ((BATCHES - 1) * BATCH_SIZE - 1), timestamps[BATCH_SIZE - 1]);
+        float[] column = new float[BATCH_SIZE];
+        reader.readColumn(BATCHES - 2, 2, column);
+        assertEquals(values[3 * 7 + 2], column[7], 0f);
+        reader.close();
+        System.out.println(String.format("session file: %d bytes, CSV: %d bytes", file.length(),
+                csv[SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR.ordinal()].size() + csv[SharedConstants.SENSOR_TYPE.RSSI.ordinal()].size()));
+    }
+
+    @Test
+    public void scansSessionWithTornTail() throws IOException {
+        File file = writeSession(false);
+        long length = file.length();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(length - 10);
+        raf.close();
+
+        SessionFileReader reader = new SessionFileReader(file);
+        assertFalse(reader.isIndexed());
+        assertEquals(BATCHES - 1, reader.getChunkCount());
+        assertEquals(SESSION_START + 20 * ((BATCHES - 1) * BATCH_SIZE - 1), reader.getLastTimestamp(BATCHES - 2));
+        assertTrue(reader.getValidLength() < length - 10);
+        reader.close();
+    }
+
+    @Test
+    public void splitsBatchesSpanningMoreThanIntegerRange() throws IOException {
+        File file = folder.newFile();
+        SessionFileEncoder encoder = new SessionFileEncoder(0);
+        encoder.encodeChunk(SharedConstants.SENSOR_TYPE.RSSI, new long[]{0, 1, 1L << 40, (1L << 40) + 1}, new float[]{1, 2, 3, 4}, 4, 1);
+        encoder.encodeFooter();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(encoder.array(), 0, encoder.length());
+        out.close();
+
+        SessionFileReader reader = new SessionFileReader(file);
+        assertEquals(2, reader.getChunkCount());
+        long[] timestamps = new long[2];
+        float[] values = new float[2];
+        reader.readChunk(1, timestamps, values);
+        assertEquals((1L << 40) + 1, timestamps[1]);
+        assertEquals(4f, values[1], 0f);
+        reader.close();
+    }
+
+    @Test
+    public void convertsToCsvLayout() throws IOException {
+        File file = writeSession(true);
+        File directory = folder.newFolder();
+        List<File> files = SessionFileConverter.convert(file, directory);
+        assertEquals(2, files.size());
+        for (SharedConstants.SENSOR_TYPE sensorType : new SharedConstants.SENSOR_TYPE[]{
+                SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR, SharedConstants.SENSOR_TYPE.RSSI}) {
+            File csvFile = new File(directory, sensorType.name() + SESSION_START + ".csv");
+            assertTrue(files.contains(csvFile));
+            assertArrayEquals(csv[sensorType.ordinal()].toByteArray(), Files.readAllBytes(csvFile.toPath()));
+        }
+    }
+}
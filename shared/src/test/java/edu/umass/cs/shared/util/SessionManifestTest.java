@@ -0,0 +1,116 @@
+package edu.umass.cs.shared.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import edu.umass.cs.shared.constants.SharedConstants;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that the {@link SessionManifest} lists segments persistently, selects them by time
+ * window, and computes the same statistics from existing files as while writing them.
+ */
+public class SessionManifestTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Writes a CSV segment of readings 20 ms apart, accounting for it in a new segment.
+     */
+    private SessionManifest.Segment writeCsv(String sensor, long start, int batches) throws IOException {
+        File file = new File(folder.getRoot(), sensor + start + ".csv");
+        SessionManifest.Segment segment = new SessionManifest.Segment(sensor, file.getName());
+        SensorCsvEncoder encoder = new SensorCsvEncoder();
+        long[] timestamps = new long[10];
+        float[] values = new float[30];
+        OutputStream out = new FileOutputStream(file);
+        for (int b = 0; b < batches; b++) {
+            for (int i = 0; i < 10; i++) {
+                timestamps[i] = start + 20 * (10 * b + i);
+                values[3 * i] = b;
+                values[3 * i + 1] = -i;
+                values[3 * i + 2] = 0.5f;
+            }
+            encoder.reset();
+            encoder.encode(timestamps, values, 10, 3);
+            out.write(encoder.array(), 0, encoder.length());
+            segment.update(encoder.array(), 0, encoder.length());
+            segment.addReadings(timestamps[0], timestamps[9], 10);
+        }
+        out.close();
+        return segment;
+    }
+
+    @Test
+    public void listsSegmentsPersistently() throws IOException {
+        File file = new File(folder.getRoot(), "MANIFEST0.csv");
+        SessionManifest manifest = new SessionManifest(file);
+        manifest.add(writeCsv("ACCELEROMETER_METAWEAR", 0, 5));
+        manifest.add(writeCsv("ACCELEROMETER_METAWEAR", 1000, 5));
+        manifest.add(writeCsv("RSSI", 0, 10));
+
+        manifest = new SessionManifest(file);
+        List<SessionManifest.Segment> segments = manifest.getSegments();
+        assertEquals(3, segments.size());
+        SessionManifest.Segment segment = segments.get(1);
+        assertEquals("ACCELEROMETER_METAWEAR1000.csv", segment.getFileName());
+        assertEquals(1000, segment.getStartTimestamp());
+        assertEquals(1980, segment.getEndTimestamp());
+        assertEquals(50, segment.getCount());
+        assertTrue(segment.verify(folder.getRoot()));
+
+        assertEquals(1, manifest.getSegments("ACCELEROMETER_METAWEAR", 1500, 5000).size());
+        assertEquals(2, manifest.getSegments("ACCELEROMETER_METAWEAR", 980, 1000).size());
+        assertEquals(2, manifest.getSegments(null, 0, 100).size());
+        assertTrue(manifest.getSegments("RSSI", 2000, 3000).isEmpty());
+    }
+
+    @Test
+    public void skipsRowTornByCrash() throws IOException {
+        File file = new File(folder.getRoot(), "MANIFEST0.csv");
+        SessionManifest manifest = new SessionManifest(file);
+        manifest.add(writeCsv("RSSI", 0, 1));
+        OutputStream out = new FileOutputStream(file, true);
+        out.write("RSSI,RSSI100.csv,100,2".getBytes("US-ASCII"));
+        out.close();
+
+        manifest = new SessionManifest(file);
+        assertEquals(1, manifest.getSegments().size());
+        manifest.add(writeCsv("RSSI", 100, 1));
+        assertEquals(2, new SessionManifest(file).getSegments().size());
+    }
+
+    @Test
+    public void scansExistingFiles() throws IOException {
+        SessionManifest.Segment written = writeCsv("ACCELEROMETER_METAWEAR", 1467331200000L, 7);
+        SessionManifest.Segment scanned = SessionManifest.scanCsv("ACCELEROMETER_METAWEAR",
+                new File(folder.getRoot(), written.getFileName()));
+        assertEquals(written.getCount(), scanned.getCount());
+        assertEquals(written.getStartTimestamp(), scanned.getStartTimestamp());
+        assertEquals(written.getEndTimestamp(), scanned.getEndTimestamp());
+        assertEquals(written.getBytes(), scanned.getBytes());
+        assertEquals(written.getChecksum(), scanned.getChecksum());
+
+        File sessionFile = new File(folder.getRoot(), "SESSION0.bin");
+        SessionFileEncoder encoder = new SessionFileEncoder(0);
+        encoder.encodeChunk(SharedConstants.SENSOR_TYPE.RSSI, new long[]{500, 520}, new float[]{-40, -41}, 2, 1);
+        encoder.encodeChunk(SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR, new long[]{490}, new float[]{1, 2, 3}, 1, 3);
+        OutputStream out = new FileOutputStream(sessionFile);
+        out.write(encoder.array(), 0, encoder.length());
+        out.close();
+        scanned = SessionManifest.scanSessionFile("SESSION", sessionFile);
+        assertEquals(3, scanned.getCount());
+        assertEquals(490, scanned.getStartTimestamp());
+        assertEquals(520, scanned.getEndTimestamp());
+        assertEquals(sessionFile.length(), scanned.getBytes());
+    }
+}
@@ -0,0 +1,74 @@
+package edu.umass.cs.prepare.communication;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.Channel;
+import com.google.android.gms.wearable.ChannelApi;
+import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.Wearable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import edu.umass.cs.shared.communication.SensorStreamTransport;
+
+/**
+ * Provides a stream to the handheld application over a persistent {@link Channel} of the
+ * Wearable {@link ChannelApi}. Unlike data items, which are persisted and synchronized
+ * individually, the channel carries all sensor data of a recording session.
+ * <br><br>
+ * The methods block and must therefore not be called on the main thread.
+ *
+ * @author Sean Noran
+ * @affiliation University of Massachusetts Amherst
+ *
+ * @see DataClient
+ */
+class ChannelStreamTransport implements SensorStreamTransport {
+
+    /** Google API client used to open the channel, connected by the caller */
+    private final GoogleApiClient googleApiClient;
+
+    /** the channel path, which identifies sensor data streams to the handheld application */
+    private final String path;
+
+    /** the currently open channel, if any */
+    private Channel channel;
+
+    ChannelStreamTransport(GoogleApiClient googleApiClient, String path) {
+        this.googleApiClient = googleApiClient;
+        this.path = path;
+    }
+
+    @Override
+    public OutputStream openStream() throws IOException {
+        List<Node> nodes = Wearable.NodeApi.getConnectedNodes(googleApiClient).await().getNodes();
+        Node target = null;
+        for (Node node : nodes) {
+            if (target == null || node.isNearby())
+                target = node;
+        }
+        if (target == null)
+            throw new IOException("No connected nodes.");
+
+        ChannelApi.OpenChannelResult channelResult = Wearable.ChannelApi.openChannel(googleApiClient, target.getId(), path).await();
+        if (!channelResult.getStatus().isSuccess())
+            throw new IOException("Could not open channel: " + channelResult.getStatus());
+        channel = channelResult.getChannel();
+
+        Channel.GetOutputStreamResult streamResult = channel.getOutputStream(googleApiClient).await();
+        if (!streamResult.getStatus().isSuccess()) {
+            closeStream();
+            throw new IOException("Could not open channel output stream: " + streamResult.getStatus());
+        }
+        return streamResult.getOutputStream();
+    }
+
+    @Override
+    public void closeStream() {
+        if (channel != null) {
+            channel.close(googleApiClient);
+            channel = null;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package edu.umass.cs.prepare.communication;
 import android.content.Context;
 import android.content.Intent;
 import android.support.annotation.NonNull;
+import android.util.Log;
 import android.util.SparseLongArray;
 
 import com.google.android.gms.common.ConnectionResult;
@@ -13,12 +14,26 @@ import com.google.android.gms.wearable.PutDataMapRequest;
 import com.google.android.gms.wearable.PutDataRequest;
 import com.google.android.gms.wearable.Wearable;
 
-import java.util.concurrent.ExecutorService;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import edu.umass.cs.prepare.R;
+import edu.umass.cs.shared.communication.SendPipeline;
+import edu.umass.cs.shared.communication.SensorDataCodec;
+import edu.umass.cs.shared.communication.SensorDataCompressor;
+import edu.umass.cs.shared.communication.SensorDataPacket;
+import edu.umass.cs.shared.communication.SensorDataRetention;
+import edu.umass.cs.shared.communication.SensorDataSpool;
+import edu.umass.cs.shared.communication.SensorStreamWriter;
 import edu.umass.cs.shared.constants.SharedConstants;
+import edu.umass.cs.shared.util.SensorBuffer;
 
 /**
  * The DataClient is responsible for sending data from the wearable device to the handheld application.
@@ -48,8 +63,110 @@ public class DataClient {
     /** timeout when connecting to the handheld device: If not connected after 5 seconds, return failure */
     private static final int CLIENT_CONNECTION_TIMEOUT = 5000;
 
-    /** used to send data on a separate non-UI thread */
-    private final ExecutorService executorService;
+    /** the maximum number of batches of sensor data waiting to be sent */
+    private static final int SENSOR_DATA_QUEUE_CAPACITY = 32;
+
+    /** determines which batches are dropped if the handheld cannot keep up or is out of range */
+    private static final SendPipeline.OverflowPolicy SENSOR_DATA_OVERFLOW_POLICY = SendPipeline.OverflowPolicy.DROP_OLDEST;
+
+    /** the maximum number of messages waiting to be sent */
+    private static final int MESSAGE_QUEUE_CAPACITY = 16;
+
+    /** the number of times a message is retried if the handheld is unreachable; sensor data is spooled instead */
+    private static final int MAX_RETRIES = 2;
+
+    /** the number of milliseconds between attempts to send a batch or message */
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    /** sends sensor data sequentially on a single non-UI thread */
+    private final SendPipeline sensorDataPipeline;
+
+    /** sends messages on a single non-UI thread, coalescing repeated messages if the queue overflows */
+    private final SendPipeline messagePipeline;
+
+    /** indicates whether sensor values should be sent as 16-bit fixed-point integers where the sensor range permits */
+    private static final boolean USE_FIXED_POINT = true;
+
+    /** the initial size of the packet into which sensor data is encoded, sufficient for a typical flush interval */
+    private static final int INITIAL_PACKET_SIZE = 8192;
+
+    /** the size at which the pending packet is sent before the end of the flush interval */
+    private static final int MAX_PACKET_SIZE = 64 * 1024;
+
+    /** the number of milliseconds between flushes of the pending packet, which is also the replay interval of the spool */
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+    /** multiplexes the batches of all sensors received during the current flush interval, accessed only by the {@link #sensorDataPipeline} */
+    private final SensorDataPacket packet = new SensorDataPacket(INITIAL_PACKET_SIZE);
+
+    /** the number of milliseconds after the channel could not be opened during which sensor data is sent as data items */
+    private static final long CHANNEL_RETRY_INTERVAL_MILLIS = 60000;
+
+    /** the time before which sensor data is sent as individual data items rather than streamed over the channel, accessed only by the {@link #sensorDataPipeline} */
+    private long nextChannelAttemptMillis = 0;
+
+    /** writes sensor data to the channel for the current recording session, accessed only by the {@link #sensorDataPipeline} */
+    private final SensorStreamWriter streamWriter;
+
+    /** the name of the directory, relative to the application's files directory, where sensor data is spooled */
+    private static final String SPOOL_DIRECTORY = "sensor-spool";
+
+    /** the maximum size of the spool: about an hour of wearable and Metawear sensor data */
+    private static final long SPOOL_MAX_SIZE_BYTES = 16 * 1024 * 1024;
+
+    /** the size at which a new spool segment is started */
+    private static final long SPOOL_SEGMENT_SIZE_BYTES = 256 * 1024;
+
+    /** determines which sensor data is discarded when the spool is full */
+    private static final SensorDataSpool.EvictionPolicy SPOOL_EVICTION_POLICY = SensorDataSpool.EvictionPolicy.DROP_OLDEST;
+
+    /** the maximum number of spooled batches replayed per interval, which limits the replay rate */
+    private static final int REPLAY_BATCHES_PER_INTERVAL = 8;
+
+    /** the number of milliseconds after a failed connection attempt during which the handheld is assumed unreachable */
+    private static final long RECONNECT_INTERVAL_MILLIS = 10000;
+
+    /** stores sensor data that could not be sent until the handheld is reachable again */
+    private final SensorDataSpool spool;
+
+    /** periodically flushes the pending packet and replays spooled sensor data */
+    private final ScheduledExecutorService flushScheduler;
+
+    /** indicates whether a flush has been submitted to the {@link #sensorDataPipeline} and not yet completed */
+    private final AtomicBoolean flushPending = new AtomicBoolean(false);
+
+    /** the time before which no further connection attempts are made, so as not to drain the battery */
+    private volatile long nextConnectionAttemptMillis = 0;
+
+    /** payloads smaller than this are sent uncompressed, since deflating them saves too little to pay for the CPU time */
+    private static final int COMPRESSION_MIN_SIZE = 512;
+
+    /** the maximum compressed-to-original size ratio for which the compressed payload is sent */
+    private static final float COMPRESSION_MAX_RATIO = 0.9f;
+
+    /** the number of payloads sent uncompressed after a payload did not compress well enough */
+    private static final int COMPRESSION_BACKOFF = 10;
+
+    /** compresses large sensor data payloads, accessed only on the {@link #sensorDataPipeline} writer thread */
+    private final SensorDataCompressor compressor = new SensorDataCompressor(COMPRESSION_MIN_SIZE, COMPRESSION_MAX_RATIO, COMPRESSION_BACKOFF);
+
+    /** the maximum size of the window of sent batches retained for resending: several minutes of sensor data */
+    private static final long RETENTION_MAX_SIZE_BYTES = 512 * 1024;
+
+    /** retains recently sent batches, so that batches reported missing by the handheld can be sent again */
+    private final SensorDataRetention retention = new SensorDataRetention(RETENTION_MAX_SIZE_BYTES);
+
+    /** decodes the headers of batches replayed in response to a request by the handheld, accessed only by the {@link #sensorDataPipeline} */
+    private final SensorDataCodec replayCodec = new SensorDataCodec();
+
+    /** identifies the current recording session by its start time, or {@link SensorDataCodec#NO_SESSION} between sessions */
+    private long sessionId = SensorDataCodec.NO_SESSION;
+
+    /** the next sequence number of each sensor stream in the current session, indexed by {@link SharedConstants.SENSOR_TYPE} ordinal */
+    private final long[] sequenceNumbers = new long[SharedConstants.SENSOR_TYPE.values().length];
+
+    /** guards the {@link #sessionId} and {@link #sequenceNumbers} */
+    private final Object sessionLock = new Object();
 
     /** returns the singleton instance of the class, instantiating if necessary */
     public static DataClient getInstance(Context context) {
@@ -62,16 +179,31 @@ public class DataClient {
     private DataClient(Context context){
         googleApiClient = new GoogleApiClient.Builder(context).addApi(Wearable.API).build();
 
-        executorService = Executors.newCachedThreadPool();
+        sensorDataPipeline = new SendPipeline("SensorDataPipeline", SENSOR_DATA_QUEUE_CAPACITY,
+                SENSOR_DATA_OVERFLOW_POLICY, 0, 0);
+        messagePipeline = new SendPipeline("MessagePipeline", MESSAGE_QUEUE_CAPACITY,
+                SendPipeline.OverflowPolicy.COALESCE, MAX_RETRIES, RETRY_DELAY_MILLIS);
+        streamWriter = new SensorStreamWriter(new ChannelStreamTransport(googleApiClient,
+                context.getString(R.string.path_sensor_stream)), USE_FIXED_POINT);
         lastSensorData = new SparseLongArray();
+
+        spool = new SensorDataSpool(new File(context.getFilesDir(), SPOOL_DIRECTORY), SPOOL_MAX_SIZE_BYTES,
+                SPOOL_SEGMENT_SIZE_BYTES, SPOOL_EVICTION_POLICY);
+        flushScheduler = Executors.newSingleThreadScheduledExecutor();
+        flushScheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                scheduleFlush();
+            }
+        }, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
     }
 
     private SparseLongArray lastSensorData;
 
     /**
-     * Sends the sensor data via the data layer to the handheld application. This calls
-     * {@link #sendSensorDataInBackground(SharedConstants.SENSOR_TYPE, long[], float[])} so as not to block
-     * program execution on the main thread.
+     * Sends the sensor data via the data layer to the handheld application. The data is added
+     * to the packet sent at the end of the current flush interval, so as not to block program
+     * execution on the main thread.
      * @param sensorType the sensor from which the data is received, defined in {@link SharedConstants.SENSOR_TYPE}
      * @param timestamps a sequence of timestamps corresponding to when the values were measured
      * @param values a list sensor readings
@@ -95,29 +227,350 @@ public class DataClient {
 
         lastSensorData.put(sensorType.ordinal(), t);
 
-        executorService.submit(new Runnable() {
+        final long[] sequence = nextSequenceNumber(sensorType);
+        sensorDataPipeline.submit(new SendPipeline.Task() {
             @Override
-            public void run() {
-                sendSensorDataInBackground(sensorType, timestamps, values);
+            public boolean send() {
+                addToPacket(sequence[0], sequence[1], sensorType, timestamps, values, timestamps.length, values.length / timestamps.length);
+                return true;
+            }
+
+            @Override
+            public void discard() {
+                spool.append(sequence[0], sequence[1], sensorType, timestamps, values, timestamps.length,
+                        values.length / timestamps.length, USE_FIXED_POINT);
+            }
+
+            @Override
+            public Object getKey() {
+                return null;
             }
         });
     }
 
     /**
-     * Sends the sensor data via the data layer to the handheld application in a background thread.
+     * Sends a batch of sensor data via the data layer to the handheld application. The data client
+     * takes ownership of the batch and releases it once it has been sent or spooled, so the
+     * caller need not copy its readings. The batch is added to the packet sent at the end of the
+     * current flush interval, together with the batches of the other sensors. If the handheld is
+     * unreachable or the batch overflows the send queue, it is spooled to disk and replayed later.
+     * @param sensorType the sensor from which the data is received, defined in {@link SharedConstants.SENSOR_TYPE}
+     * @param batch the batch of timestamps and sensor readings
+     */
+    public void sendSensorData(final SharedConstants.SENSOR_TYPE sensorType, final SensorBuffer.Batch batch) {
+        final long[] sequence = nextSequenceNumber(sensorType);
+        sensorDataPipeline.submit(new SendPipeline.Task() {
+            @Override
+            public boolean send() {
+                addToPacket(sequence[0], sequence[1], sensorType, batch.getTimestamps(), batch.getValues(),
+                        batch.size(), batch.getDimensions());
+                batch.release();
+                return true;
+            }
+
+            @Override
+            public void discard() {
+                spool.append(sequence[0], sequence[1], sensorType, batch.getTimestamps(), batch.getValues(),
+                        batch.size(), batch.getDimensions(), USE_FIXED_POINT);
+                batch.release();
+            }
+
+            @Override
+            public Object getKey() {
+                return sensorType;
+            }
+        });
+    }
+
+    /**
+     * Returns the current session and the next sequence number of the given sensor stream,
+     * starting a new session if necessary. Sequence numbers are assigned when a batch is
+     * submitted, so that spooled batches keep their place in the stream.
+     * @param sensorType the sensor type of the stream
+     * @return the session ID and sequence number
+     */
+    private long[] nextSequenceNumber(SharedConstants.SENSOR_TYPE sensorType) {
+        synchronized (sessionLock) {
+            if (sessionId == SensorDataCodec.NO_SESSION) {
+                sessionId = System.currentTimeMillis();
+                Arrays.fill(sequenceNumbers, 0);
+            }
+            return new long[] {sessionId, sequenceNumbers[sensorType.ordinal()]++};
+        }
+    }
+
+    /**
+     * Sends the retained batches of the given sensor stream again, in response to a request by
+     * the handheld, which detected that they are missing. Missing batches which were never sent
+     * are usually still spooled, since batches sent live overtake those waiting in the spool; one
+     * interval's worth of the spool is then replayed right away, and the rest of the missing
+     * batches follow at the replay rate, see {@link #replaySpoolThrough(long, SharedConstants.SENSOR_TYPE, long)}.
+     * Batches neither retained nor spooled cannot be recovered.
+     * @param sessionId the recording session
+     * @param sensorType the sensor type of the stream
+     * @param fromSequenceNumber the first missing sequence number, inclusive
+     * @param toSequenceNumber the last missing sequence number, inclusive
+     */
+    public void resendSensorData(final long sessionId, final SharedConstants.SENSOR_TYPE sensorType,
+                                 final long fromSequenceNumber, final long toSequenceNumber) {
+        sensorDataPipeline.submit(new SendPipeline.Task() {
+            @Override
+            public boolean send() {
+                int found = retention.retrieve(sessionId, sensorType, fromSequenceNumber, toSequenceNumber,
+                        new SensorDataSpool.RecordHandler() {
+                            @Override
+                            public boolean onRecord(byte[] data, int offset, int length) {
+                                packet.addEncoded(data, offset, length);
+                                return true;
+                            }
+                        });
+                long requested = toSequenceNumber - fromSequenceNumber + 1;
+                long spooled = 0;
+                if (found < requested)
+                    spooled = replaySpoolThrough(sessionId, sensorType, toSequenceNumber);
+                Log.i(TAG, "Resending " + found + " retained and " + spooled + " spooled of " + requested
+                        + " missing " + sensorType.name() + " batches.");
+                return true;
+            }
+
+            @Override
+            public void discard() {
+                // the handheld may request the batches again
+            }
+
+            @Override
+            public Object getKey() {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Closes the sensor data stream at the end of a recording session. Batches sent before this
+     * call are written first; a later batch opens a new stream and starts a new session.
+     */
+    public void closeSensorDataStream() {
+        synchronized (sessionLock) {
+            sessionId = SensorDataCodec.NO_SESSION;
+        }
+        sensorDataPipeline.submit(new SendPipeline.Task() {
+            @Override
+            public boolean send() {
+                flushPacket();
+                streamWriter.close();
+                Log.i(TAG, sensorDataPipeline.toString());
+                Log.i(TAG, spool.toString());
+                Log.i(TAG, compressor.toString());
+                return true;
+            }
+
+            @Override
+            public void discard() {
+                // the stream remains open and is reused by the next session
+            }
+
+            @Override
+            public Object getKey() {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Replays up to one interval's worth of the spool on the pipeline's writer thread, stopping
+     * early once the oldest spooled batch is past the given stream's requested range, i.e. belongs
+     * to the stream and has a later sequence number or belongs to a later session. Since the spool
+     * is replayed oldest first, missing batches beyond this interval's worth follow at the regular
+     * replay rate, interleaved with live batches; a stale or bogus request therefore never drains
+     * the spool in one burst.
+     * @param sessionId the recording session
+     * @param sensorType the sensor type of the stream
+     * @param toSequenceNumber the last sequence number of interest, inclusive
+     * @return the number of replayed batches belonging to the stream
+     */
+    private long replaySpoolThrough(final long sessionId, final SharedConstants.SENSOR_TYPE sensorType,
+                                    final long toSequenceNumber) {
+        final long[] replayed = {0};
+        if (spool.isEmpty() || !isHandheldReachable())
+            return 0;
+        spool.replay(REPLAY_BATCHES_PER_INTERVAL, new SensorDataSpool.RecordHandler() {
+            @Override
+            public boolean onRecord(byte[] data, int offset, int length) {
+                boolean requested = false;
+                try {
+                    replayCodec.decodeHeader(ByteBuffer.wrap(data, offset, length));
+                    if (replayCodec.getSessionId() > sessionId)
+                        return false;
+                    if (replayCodec.getSessionId() == sessionId && replayCodec.getSensorType() == sensorType) {
+                        if (replayCodec.getSequenceNumber() > toSequenceNumber)
+                            return false;
+                        requested = true;
+                    }
+                } catch (IllegalArgumentException | BufferUnderflowException e) {
+                    // sent as is, like any other spooled batch; the handheld discards it
+                }
+                if (!sendEncodedInBackground(data, offset, length))
+                    return false;
+                retention.retain(data, offset, length);
+                if (requested)
+                    replayed[0]++;
+                return true;
+            }
+        });
+        return replayed[0];
+    }
+
+    /**
+     * Submits a flush of the pending packet to the {@link #sensorDataPipeline}, followed by a
+     * replay of spooled sensor data if the handheld is reachable, unless a flush is already
+     * pending. Replayed batches are thereby interleaved with live batches on the same writer thread.
+     */
+    private void scheduleFlush() {
+        if (!flushPending.compareAndSet(false, true))
+            return;
+        sensorDataPipeline.submit(new SendPipeline.Task() {
+            @Override
+            public boolean send() {
+                flushPacket();
+                if (!spool.isEmpty() && isHandheldReachable()) {
+                    spool.replay(REPLAY_BATCHES_PER_INTERVAL, new SensorDataSpool.RecordHandler() {
+                        @Override
+                        public boolean onRecord(byte[] data, int offset, int length) {
+                            if (!sendEncodedInBackground(data, offset, length))
+                                return false;
+                            retention.retain(data, offset, length);
+                            return true;
+                        }
+                    });
+                }
+                flushPending.set(false);
+                return true;
+            }
+
+            @Override
+            public void discard() {
+                flushPending.set(false);
+            }
+
+            @Override
+            public Object getKey() {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Adds a batch of sensor data to the pending packet on the pipeline's writer thread, sending
+     * the packet early if it becomes too large.
+     * @param sessionId identifies the recording session
+     * @param sequenceNumber the sequence number of the batch within its stream
      * @param sensorType the sensor from which the data is received, defined in {@link SharedConstants.SENSOR_TYPE}
      * @param timestamps a sequence of timestamps corresponding to when the values were measured
      * @param values a list sensor readings
+     * @param count the number of readings
+     * @param nDimensions the number of values per reading
      */
-    private void sendSensorDataInBackground(final SharedConstants.SENSOR_TYPE sensorType, final long[] timestamps, final float[] values) {
-        PutDataMapRequest dataMap = PutDataMapRequest.create(googleApiClient.getContext().getString(R.string.path_sensor_data));
+    private void addToPacket(long sessionId, long sequenceNumber, final SharedConstants.SENSOR_TYPE sensorType,
+                             final long[] timestamps, final float[] values, int count, int nDimensions) {
+        packet.add(sessionId, sequenceNumber, sensorType, timestamps, values, count, nDimensions, USE_FIXED_POINT);
+        if (packet.length() >= MAX_PACKET_SIZE || packet.getBatchCount() == SensorDataPacket.MAX_BATCHES)
+            flushPacket();
+    }
 
-        dataMap.getDataMap().putInt(SharedConstants.KEY.SENSOR_TYPE, sensorType.ordinal());
-        dataMap.getDataMap().putLongArray(SharedConstants.KEY.TIMESTAMPS, timestamps);
-        dataMap.getDataMap().putFloatArray(SharedConstants.KEY.SENSOR_VALUES, values);
+    /**
+     * Sends the pending packet as a single message on the pipeline's writer thread, retaining
+     * its batches in case the handheld reports them missing. If the handheld is unreachable,
+     * the batches in the packet are spooled instead.
+     */
+    private void flushPacket() {
+        if (packet.isEmpty())
+            return;
+        if (isHandheldReachable() && sendEncodedInBackground(packet.array(), 0, packet.length())) {
+            packet.forEachBatch(new SensorDataSpool.RecordHandler() {
+                @Override
+                public boolean onRecord(byte[] data, int offset, int length) {
+                    retention.retain(data, offset, length);
+                    return true;
+                }
+            });
+        } else {
+            packet.forEachBatch(new SensorDataSpool.RecordHandler() {
+                @Override
+                public boolean onRecord(byte[] data, int offset, int length) {
+                    return spool.append(data, offset, length);
+                }
+            });
+        }
+        packet.clear();
+    }
 
-        PutDataRequest putDataRequest = dataMap.asPutDataRequest();
-        send(putDataRequest);
+    /**
+     * Indicates whether the handheld is reachable. After a failed connection attempt, the
+     * handheld is assumed to be unreachable for {@link #RECONNECT_INTERVAL_MILLIS} milliseconds,
+     * so that sensor data is spooled immediately rather than blocking on the connection.
+     * @return true if the handheld is reachable, false otherwise
+     */
+    private boolean isHandheldReachable() {
+        if (System.currentTimeMillis() < nextConnectionAttemptMillis)
+            return false;
+        if (!validateConnection()) {
+            onHandheldUnreachable();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Defers further connection attempts for {@link #RECONNECT_INTERVAL_MILLIS} milliseconds.
+     */
+    private void onHandheldUnreachable() {
+        nextConnectionAttemptMillis = System.currentTimeMillis() + RECONNECT_INTERVAL_MILLIS;
+    }
+
+    /**
+     * Sends a batch of sensor data encoded by the {@link SensorDataCodec}, or a {@link SensorDataPacket}
+     * of such batches, to the handheld application on the pipeline's writer thread. The data is
+     * written to the channel of the current recording session, opening it if necessary. If the
+     * channel cannot be opened, e.g. because the handheld application does not accept channels,
+     * the data is sent as a data item instead, and the channel is not tried again for
+     * {@link #CHANNEL_RETRY_INTERVAL_MILLIS} milliseconds. Large payloads are compressed if doing
+     * so pays off, see {@link SensorDataCompressor}.
+     * @param data the array containing the encoded batch or packet
+     * @param offset the offset of the data in the array
+     * @param length the length of the data in bytes
+     * @return true if the data was sent, false if the handheld is unreachable
+     */
+    private boolean sendEncodedInBackground(byte[] data, int offset, int length) {
+        long attempts = compressor.getAttemptCount();
+        if (compressor.compress(data, offset, length)) {
+            data = compressor.array();
+            offset = 0;
+            length = compressor.length();
+        }
+        if (compressor.getAttemptCount() != attempts && compressor.getAttemptCount() % SensorDataCompressor.ROLLING_WINDOW == 0)
+            Log.d(TAG, compressor.toString());
+        if (System.currentTimeMillis() >= nextChannelAttemptMillis) {
+            boolean opening = !streamWriter.isOpen();
+            try {
+                streamWriter.writeEncoded(data, offset, length);
+                return true;
+            } catch (IOException e) {
+                if (!opening) {
+                    Log.w(TAG, "Could not stream sensor data: " + e.getMessage());
+                    onHandheldUnreachable();
+                    return false;
+                }
+                Log.w(TAG, "Could not open sensor data stream, sending data items instead: " + e.getMessage());
+                nextChannelAttemptMillis = System.currentTimeMillis() + CHANNEL_RETRY_INTERVAL_MILLIS;
+            }
+        }
+        PutDataMapRequest dataMap = PutDataMapRequest.create(googleApiClient.getContext().getString(R.string.path_sensor_data));
+        dataMap.getDataMap().putByteArray(SharedConstants.KEY.SENSOR_BATCH, Arrays.copyOfRange(data, offset, offset + length));
+        if (!send(dataMap.asPutDataRequest())) {
+            onHandheldUnreachable();
+            return false;
+        }
+        return true;
     }
 
     /**
@@ -127,10 +580,20 @@ public class DataClient {
      * @param message the message being delivered
      */
     public void sendMessage(final int message) {
-        executorService.submit(new Runnable() {
+        messagePipeline.submit(new SendPipeline.Task() {
             @Override
-            public void run() {
-                sendMessageInBackground(message);
+            public boolean send() {
+                return sendMessageInBackground(message);
+            }
+
+            @Override
+            public void discard() {
+                Log.w(TAG, "Dropped message " + message);
+            }
+
+            @Override
+            public Object getKey() {
+                return message;
             }
         });
     }
@@ -138,13 +601,14 @@ public class DataClient {
     /**
      * Sends a message via the data layer to the handheld application in a background thread.
      * @param message the message being delivered
+     * @return true if the message was sent, false if the handheld is unreachable
      */
-    private void sendMessageInBackground(final int message) {
+    private boolean sendMessageInBackground(final int message) {
         PutDataMapRequest dataMap = PutDataMapRequest.create(googleApiClient.getContext().getString(R.string.path_message));
         dataMap.getDataMap().putInt(SharedConstants.KEY.MESSAGE, message);
         dataMap.getDataMap().putLong("timestamp", System.currentTimeMillis()); //ensures the data map changes
         PutDataRequest putDataRequest = dataMap.asPutDataRequest();
-        send(putDataRequest);
+        return send(putDataRequest);
     }
 
     /**
@@ -165,8 +629,9 @@ public class DataClient {
      * Sends the data mapped to the put request to the mobile device via the Google API client.
      * @param putDataRequest encodes the data being sent to the mobile device. A {@link PutDataRequest}
      *                       is analogous to an {@link Intent}, which allows cross-context communication.
+     * @return true if the request was sent, false if the handheld is unreachable
      */
-    private void send(PutDataRequest putDataRequest) {
+    private boolean send(PutDataRequest putDataRequest) {
         if (validateConnection()) {
             Wearable.DataApi.putDataItem(googleApiClient, putDataRequest).setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
                 @Override
@@ -174,6 +639,8 @@ public class DataClient {
                     //use dataItemResult.getStatus().isSuccess() to see if successful
                 }
             });
+            return true;
         }
+        return false;
     }
 }
@@ -6,6 +6,8 @@ import android.util.Log;
 import com.google.android.gms.wearable.MessageEvent;
 import com.google.android.gms.wearable.WearableListenerService;
 
+import java.nio.ByteBuffer;
+
 import edu.umass.cs.prepare.sensors.SensorService;
 import edu.umass.cs.shared.constants.SharedConstants;
 
@@ -23,6 +25,9 @@ public class ListenerService extends WearableListenerService {
     /** used for debugging purposes */
     private static final String TAG = ListenerService.class.getName();
 
+    /** the size of a sensor data request: the session, the sensor type and the range of sequence numbers */
+    private static final int SENSOR_DATA_REQUEST_SIZE = 8 + 1 + 8 + 8;
+
     @Override
     public void onMessageReceived(MessageEvent messageEvent) {
         if (messageEvent.getPath().equals(SharedConstants.COMMANDS.START_SENSOR_SERVICE)) {
@@ -51,6 +56,25 @@ public class ListenerService extends WearableListenerService {
             Intent stopServiceIntent = new Intent(this, edu.umass.cs.prepare.metawear.SensorService.class);
             stopServiceIntent.setAction(SharedConstants.ACTIONS.QUERY_CONNECTION_STATE);
             startService(stopServiceIntent);
+        }else if (messageEvent.getPath().equals(SharedConstants.COMMANDS.REQUEST_SENSOR_DATA)) {
+            byte[] data = messageEvent.getData();
+            if (data == null || data.length < SENSOR_DATA_REQUEST_SIZE) {
+                Log.w(TAG, "Ignoring malformed sensor data request.");
+                return;
+            }
+            ByteBuffer request = ByteBuffer.wrap(data);
+            long sessionId = request.getLong();
+            int sensorTypeOrdinal = request.get() & 0xFF;
+            long fromSequenceNumber = request.getLong();
+            long toSequenceNumber = request.getLong();
+            if (sensorTypeOrdinal >= SharedConstants.SENSOR_TYPE.values().length || fromSequenceNumber < 0
+                    || toSequenceNumber < fromSequenceNumber) {
+                Log.w(TAG, "Ignoring invalid sensor data request for sensor " + sensorTypeOrdinal + ", batches "
+                        + fromSequenceNumber + " to " + toSequenceNumber);
+                return;
+            }
+            SharedConstants.SENSOR_TYPE sensorType = SharedConstants.SENSOR_TYPE.values()[sensorTypeOrdinal];
+            DataClient.getInstance(this).resendSensorData(sessionId, sensorType, fromSequenceNumber, toSequenceNumber);
         }
     }
 }
\ No newline at end of file
@@ -58,22 +58,22 @@ public class SensorService extends edu.umass.cs.shared.metawear.SensorService {
         super.onCreate();
         setBroadcaster(new Broadcaster(this));
         client = DataClient.getInstance(this);
-        setOnBufferFullCallback(accelerometerBuffer, new SensorBuffer.OnBufferFullCallback() {
+        setOnBatchReadyCallback(accelerometerBuffer, new SensorBuffer.OnBatchReadyCallback() {
             @Override
-            public void onBufferFull(long[] timestamps, float[] values) {
-                client.sendSensorData(SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR, timestamps.clone(), values.clone());
+            public void onBatchReady(SensorBuffer.Batch batch) {
+                client.sendSensorData(SharedConstants.SENSOR_TYPE.ACCELEROMETER_METAWEAR, batch);
             }
         });
-        setOnBufferFullCallback(gyroscopeBuffer, new SensorBuffer.OnBufferFullCallback() {
+        setOnBatchReadyCallback(gyroscopeBuffer, new SensorBuffer.OnBatchReadyCallback() {
             @Override
-            public void onBufferFull(long[] timestamps, float[] values) {
-                client.sendSensorData(SharedConstants.SENSOR_TYPE.GYROSCOPE_METAWEAR, timestamps.clone(), values.clone());
+            public void onBatchReady(SensorBuffer.Batch batch) {
+                client.sendSensorData(SharedConstants.SENSOR_TYPE.GYROSCOPE_METAWEAR, batch);
             }
         });
-        setOnBufferFullCallback(rssiBuffer, new SensorBuffer.OnBufferFullCallback() {
+        setOnBatchReadyCallback(rssiBuffer, new SensorBuffer.OnBatchReadyCallback() {
             @Override
-            public void onBufferFull(long[] timestamps, float[] values) {
-                client.sendSensorData(SharedConstants.SENSOR_TYPE.RSSI, timestamps.clone(), values.clone());
+            public void onBatchReady(SensorBuffer.Batch batch) {
+                client.sendSensorData(SharedConstants.SENSOR_TYPE.RSSI, batch);
             }
         });
     }
@@ -19,6 +19,7 @@ import edu.umass.cs.prepare.R;
 import edu.umass.cs.prepare.communication.Broadcaster;
 import edu.umass.cs.prepare.communication.DataClient;
 import edu.umass.cs.shared.preferences.ApplicationPreferences;
+import edu.umass.cs.shared.util.RingSensorBuffer;
 import edu.umass.cs.shared.util.SensorBuffer;
 import edu.umass.cs.shared.constants.SharedConstants;
 
@@ -53,14 +54,26 @@ public class SensorService extends Service implements SensorEventListener {
     /** used to communicate with the handheld application */
     private DataClient client;
 
-    /** Buffer size */
-    private static final int BUFFER_SIZE = 1;
+    /** The maximum number of milliseconds spanned by a single batch of readings */
+    private static final int BUFFER_LATENCY_MILLIS = 1000;
 
-    /** The buffer containing the accelerometer readings **/
-    private final SensorBuffer accelerometerBuffer = new SensorBuffer(BUFFER_SIZE, 3);
+    /** The number of batches per sensor buffer that may be in flight before new ones are allocated */
+    private static final int BUFFER_POOL_SIZE = 4;
 
-    /** The buffer containing the gyroscope readings **/
-    private final SensorBuffer gyroscopeBuffer = new SensorBuffer(BUFFER_SIZE, 3);
+    /** The buffer containing the accelerometer readings, sized in {@link #registerSensors()} **/
+    private SensorBuffer accelerometerBuffer;
+
+    /** The buffer containing the gyroscope readings, sized in {@link #registerSensors()} **/
+    private SensorBuffer gyroscopeBuffer;
+
+    /** The number of readings that may be queued for each sensor buffer before readings are dropped */
+    private static final int RING_CAPACITY = 1024;
+
+    /** Lock-free queue through which accelerometer readings are passed to the {@link #accelerometerBuffer} **/
+    private RingSensorBuffer accelerometerRing;
+
+    /** Lock-free queue through which gyroscope readings are passed to the {@link #gyroscopeBuffer} **/
+    private RingSensorBuffer gyroscopeRing;
 
     private ApplicationPreferences applicationPreferences;
 
@@ -110,6 +123,7 @@ public class SensorService extends Service implements SensorEventListener {
 
             } else if (intent.getAction().equals(SharedConstants.ACTIONS.STOP_SERVICE)) {
                 unregisterSensors();
+                client.closeSensorDataStream();
                 client.sendMessage(SharedConstants.MESSAGES.WEARABLE_SERVICE_STOPPED);
                 isRunning = false;
                 stopForeground(true);
@@ -134,18 +148,29 @@ public class SensorService extends Service implements SensorEventListener {
      * register accelerometer and gyroscope sensor listeners and initialize respective buffers
      */
     private void registerSensors(){
-        accelerometerBuffer.setOnBufferFullCallback(new SensorBuffer.OnBufferFullCallback() {
+        stopBuffers();
+
+        int accelerometerSamplingRate = applicationPreferences.getWearableAccelerometerSamplingRate();
+        int gyroscopeSamplingRate = applicationPreferences.getWearableGyroscopeSamplingRate();
+
+        accelerometerBuffer = createBuffer(accelerometerSamplingRate);
+        accelerometerBuffer.setOnBatchReadyCallback(new SensorBuffer.OnBatchReadyCallback() {
             @Override
-            public void onBufferFull(long[] timestamps, float[] values) {
-                client.sendSensorData(SharedConstants.SENSOR_TYPE.ACCELEROMETER_WEARABLE, timestamps.clone(), values.clone());
+            public void onBatchReady(SensorBuffer.Batch batch) {
+                client.sendSensorData(SharedConstants.SENSOR_TYPE.ACCELEROMETER_WEARABLE, batch);
             }
         });
-        gyroscopeBuffer.setOnBufferFullCallback(new SensorBuffer.OnBufferFullCallback() {
+        gyroscopeBuffer = createBuffer(gyroscopeSamplingRate);
+        gyroscopeBuffer.setOnBatchReadyCallback(new SensorBuffer.OnBatchReadyCallback() {
             @Override
-            public void onBufferFull(long[] timestamps, float[] values) {
-                client.sendSensorData(SharedConstants.SENSOR_TYPE.GYROSCOPE_WEARABLE, timestamps.clone(), values.clone());
+            public void onBatchReady(SensorBuffer.Batch batch) {
+                client.sendSensorData(SharedConstants.SENSOR_TYPE.GYROSCOPE_WEARABLE, batch);
             }
         });
+        accelerometerRing = new RingSensorBuffer(RING_CAPACITY, 3, accelerometerBuffer, BUFFER_LATENCY_MILLIS);
+        gyroscopeRing = new RingSensorBuffer(RING_CAPACITY, 3, gyroscopeBuffer, BUFFER_LATENCY_MILLIS);
+        accelerometerRing.start();
+        gyroscopeRing.start();
 
         //get handles to the hardware sensors
         mSensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
@@ -158,8 +183,6 @@ public class SensorService extends Service implements SensorEventListener {
         gyroscope = mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
         accelerometer = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
 
-
-        int accelerometerSamplingRate = applicationPreferences.getWearableAccelerometerSamplingRate();
         int accelerometerSamplingPeriod = 1000 / accelerometerSamplingRate;
         if (accelerometer != null) {
             registered = mSensorManager.registerListener(this, accelerometer, 1000 * accelerometerSamplingPeriod);
@@ -167,7 +190,6 @@ public class SensorService extends Service implements SensorEventListener {
             Log.w(TAG, "No Accelerometer found");
         }
 
-        int gyroscopeSamplingRate = applicationPreferences.getWearableGyroscopeSamplingRate();
         int gyroscopeSamplingPeriod = 1000 / gyroscopeSamplingRate;
         if (gyroscope != null && applicationPreferences.enableWearableGyroscope()) {
             registered = mSensorManager.registerListener(this, gyroscope, 1000 * gyroscopeSamplingPeriod);
@@ -176,6 +198,16 @@ public class SensorService extends Service implements SensorEventListener {
         }
     }
 
+    /**
+     * create a 3-axis sensor buffer which holds {@link #BUFFER_LATENCY_MILLIS} milliseconds of readings
+     * @param samplingRate the sampling rate of the sensor in Hz
+     * @return the sensor buffer
+     */
+    private static SensorBuffer createBuffer(int samplingRate){
+        int bufferSize = Math.max(1, samplingRate * BUFFER_LATENCY_MILLIS / 1000);
+        return new SensorBuffer(bufferSize, 3, BUFFER_LATENCY_MILLIS, BUFFER_POOL_SIZE);
+    }
+
     /**
      * unregister the sensor listeners, this is important for the battery life!
      */
@@ -185,6 +217,19 @@ public class SensorService extends Service implements SensorEventListener {
             mSensorManager.unregisterListener(this);
         }
         registered = false;
+        stopBuffers();
+    }
+
+    /**
+     * stop the sensor buffers, sending any remaining readings to the handheld application
+     */
+    private void stopBuffers() {
+        if (accelerometerRing != null) {
+            accelerometerRing.stop();
+        }
+        if (gyroscopeRing != null) {
+            gyroscopeRing.stop();
+        }
     }
 
     private boolean registered = false;
@@ -194,16 +239,13 @@ public class SensorService extends Service implements SensorEventListener {
         if (!registered)
             unregisterSensors();
         long timestamp = System.currentTimeMillis(); // (new Date()).getTime() + (event.timestamp - System.nanoTime());
-        //TODO: When the service is ended, the remaining data is not saved because it does not fill buffer
         if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
-            synchronized (accelerometerBuffer) { //add sensor data to the appropriate buffer
-                accelerometerBuffer.addReading(timestamp, event.values);
-            }
+            if (accelerometerRing != null) //add sensor data to the appropriate buffer
+                accelerometerRing.addReading(timestamp, event.values);
         }
         else if (event.sensor.getType() == Sensor.TYPE_GYROSCOPE) {
-            synchronized (gyroscopeBuffer) {
-                gyroscopeBuffer.addReading(timestamp, event.values);
-            }
+            if (gyroscopeRing != null)
+                gyroscopeRing.addReading(timestamp, event.values);
         }
         else{
             Log.w(TAG, "Sensor Not Supported!");